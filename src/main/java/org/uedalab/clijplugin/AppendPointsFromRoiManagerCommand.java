@@ -79,9 +79,8 @@ public class AppendPointsFromRoiManagerCommand implements Command {
         final String resolvedRole = defaultRole == null || defaultRole.trim().isEmpty()
                 ? PointTableSchema.ROLE_PLANE_FIT : defaultRole;
 
-        final ResultsTable rt = getOrCreateResultsTable(resolvedTitle);
-        int nextId = Math.max(1, startIndex);
-        int exportedPoints = 0;
+        final PointTableAppender appender = new PointTableAppender(resolvedPrefix, startIndex, resolvedRole,
+                roisToExport.size());
         int exportedRois = 0;
 
         for (Roi roi : roisToExport) {
@@ -94,27 +93,25 @@ public class AppendPointsFromRoiManagerCommand implements Command {
             }
 
             final int z = resolveZ(roi, image, zOneBased);
-            boolean roiContributed = false;
+            final int t = resolveT(roi, image);
+            final int c = resolveC(roi, image);
+            final int before = appender.size();
             for (int i = 0; i < points.npoints; i++) {
                 final double x = points.xpoints[i];
                 final double y = points.ypoints[i];
                 if (!Double.isFinite(x) || !Double.isFinite(y)) {
                     continue;
                 }
-                rt.incrementCounter();
-                rt.addValue(PointTableSchema.COL_ID, formatId(resolvedPrefix, nextId++));
-                rt.addValue(PointTableSchema.COL_X, x);
-                rt.addValue(PointTableSchema.COL_Y, y);
-                rt.addValue(PointTableSchema.COL_Z, z);
-                rt.addValue(PointTableSchema.COL_ROLE, resolvedRole);
-                exportedPoints++;
-                roiContributed = true;
+                appender.add(x, y, z, t, c);
             }
-            if (roiContributed) {
+            if (appender.size() > before) {
                 exportedRois++;
             }
         }
 
+        final ResultsTable rt = getOrCreateResultsTable(resolvedTitle);
+        appender.appendTo(rt);
+        final int exportedPoints = appender.size();
         rt.show(resolvedTitle);
         IJ.log("Exported " + exportedPoints + " points from " + exportedRois + " ROIs to table '"
                 + resolvedTitle + "' (pixel coordinates).");
@@ -145,7 +142,13 @@ public class AppendPointsFromRoiManagerCommand implements Command {
         return zOneBased ? z : Math.max(0, z - 1);
     }
 
-    private static String formatId(final String prefix, final int index) {
-        return String.format("%s%03d", prefix, Math.max(1, index));
+    private static int resolveT(final Roi roi, final ImagePlus image) {
+        final int t = roi.getTPosition();
+        return t > 0 ? t : Math.max(1, image.getT());
+    }
+
+    private static int resolveC(final Roi roi, final ImagePlus image) {
+        final int c = roi.getCPosition();
+        return c > 0 ? c : Math.max(1, image.getC());
     }
 }
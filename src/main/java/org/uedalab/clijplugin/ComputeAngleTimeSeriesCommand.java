@@ -0,0 +1,247 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Fits one line and one plane per timepoint of a point table and reports the line-plane angle as a
+ * time series. Points are reduced to per-timepoint moments in a single pass; the 3x3 solves for all
+ * timepoints then run in parallel. Optional smoothing fits each timepoint to the points of its
+ * neighbouring frames too, sliding the window by merging the entering frame and subtracting the
+ * leaving one.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry fit>compute angle time series...")
+public class ComputeAngleTimeSeriesCommand implements Command {
+
+    private static final int MAX_TIMEPOINTS = 1_000_000;
+
+    @Parameter(label = "Points table", required = false)
+    private ResultsTable pointsTable;
+
+    @Parameter(label = "Z is one-based in table")
+    private boolean zOneBasedInTable = true;
+
+    @Parameter(label = "Line roles (CSV)")
+    private String lineRolesCsv = PointTableSchema.ROLE_AXIS_START + "," + PointTableSchema.ROLE_AXIS_END;
+
+    @Parameter(label = "Plane roles (CSV)")
+    private String planeRolesCsv = PointTableSchema.ROLE_PLANE_FIT;
+
+    @Parameter(label = "Smoothing half window (timepoints)", min = "0")
+    private int smoothingHalfWindow = 0;
+
+    @Parameter(label = "Use absolute dot")
+    private boolean useAbsoluteDot = true;
+
+    @Parameter(label = "Output table title")
+    private String outputTableTitle = "angle_time_series";
+
+    @Override
+    public void run() {
+        final ResultsTable rt = pointsTable != null ? pointsTable : ResultsTable.getResultsTable();
+        if (rt == null || !PointTableSchema.looksLikePointTable(rt)) {
+            IJ.error("Angle Time Series", "Point table is missing required columns: id,x,y,z (role optional).");
+            return;
+        }
+        if (rt.getColumnIndex(PointTableSchema.COL_ROLE) == ResultsTable.COLUMN_NOT_FOUND) {
+            IJ.error("Angle Time Series", "Point table needs a role column to tell line points from plane points.");
+            return;
+        }
+        final boolean hasTime = PointTableSchema.hasTimeColumn(rt);
+        if (!hasTime) {
+            IJ.log("Angle time series: no '" + PointTableSchema.COL_T + "' column; treating all points as t=1.");
+        }
+
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double[] ts = hasTime ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_T)) : null;
+        final Set<String> lineRoles = parseAllowedRoles(lineRolesCsv);
+        final Set<String> planeRoles = parseAllowedRoles(planeRolesCsv);
+
+        // Classify rows once: 0 = skip, 1 = line, 2 = plane.
+        final byte[] kind = new byte[rows];
+        final int[] frameOf = new int[rows];
+        int minT = Integer.MAX_VALUE;
+        int maxT = Integer.MIN_VALUE;
+        for (int row = 0; row < rows; row++) {
+            final String role = rt.getStringValue(PointTableSchema.COL_ROLE, row);
+            final String key = role == null ? "" : role.trim().toLowerCase(Locale.ROOT);
+            final boolean line = lineRoles.contains(key);
+            final boolean plane = planeRoles.contains(key);
+            if (!line && !plane) {
+                continue;
+            }
+            final double t = ts == null ? 1.0 : ts[row];
+            if (!Double.isFinite(xs[row]) || !Double.isFinite(ys[row]) || !Double.isFinite(zs[row]) || !Double.isFinite(t)) {
+                continue;
+            }
+            frameOf[row] = (int) Math.round(t);
+            kind[row] = (byte) (line ? 1 : 2);
+            minT = Math.min(minT, frameOf[row]);
+            maxT = Math.max(maxT, frameOf[row]);
+        }
+        if (minT > maxT) {
+            IJ.error("Angle Time Series", "No valid line or plane points found.");
+            return;
+        }
+        if ((long) maxT - minT >= MAX_TIMEPOINTS) {
+            IJ.error("Angle Time Series", "Timepoint range " + minT + ".." + maxT + " is too large.");
+            return;
+        }
+
+        final int frames = maxT - minT + 1;
+        final PointMoments[] lineMoments = newMoments(frames);
+        final PointMoments[] planeMoments = newMoments(frames);
+        final double zOffset = zOneBasedInTable ? 1.0 : 0.0;
+        for (int row = 0; row < rows; row++) {
+            if (kind[row] == 0) {
+                continue;
+            }
+            final PointMoments target = (kind[row] == 1 ? lineMoments : planeMoments)[frameOf[row] - minT];
+            target.add(xs[row], ys[row], zs[row] - zOffset);
+        }
+
+        final FrameFit[] raw = fitAll(lineMoments, planeMoments, useAbsoluteDot);
+        final int halfWindow = Math.max(0, smoothingHalfWindow);
+        final FrameFit[] smoothed = halfWindow > 0
+                ? fitAll(slideWindow(lineMoments, halfWindow), slideWindow(planeMoments, halfWindow), useAbsoluteDot)
+                : null;
+
+        final String resolvedTitle = outputTableTitle == null || outputTableTitle.trim().isEmpty()
+                ? "angle_time_series" : outputTableTitle;
+        final ResultsTable out = getOrCreateResultsTable(resolvedTitle);
+        int written = 0;
+        int fitted = 0;
+        for (int i = 0; i < frames; i++) {
+            if (lineMoments[i].count() == 0 && planeMoments[i].count() == 0) {
+                continue;
+            }
+            final FrameFit fit = raw[i];
+            out.incrementCounter();
+            out.addValue(PointTableSchema.COL_T, minT + i);
+            out.addValue("n_line", lineMoments[i].count());
+            out.addValue("n_plane", planeMoments[i].count());
+            out.addValue("line_dx", fit.direction[0]);
+            out.addValue("line_dy", fit.direction[1]);
+            out.addValue("line_dz", fit.direction[2]);
+            out.addValue("line_rms", fit.lineRms);
+            out.addValue("plane_nx", fit.normal[0]);
+            out.addValue("plane_ny", fit.normal[1]);
+            out.addValue("plane_nz", fit.normal[2]);
+            out.addValue("plane_rms", fit.planeRms);
+            out.addValue("angle_line_plane_deg", fit.angleDeg);
+            if (smoothed != null) {
+                out.addValue("angle_smoothed_deg", smoothed[i].angleDeg);
+                out.addValue("smoothing_half_window", halfWindow);
+            }
+            written++;
+            if (Double.isFinite(fit.angleDeg)) {
+                fitted++;
+            }
+        }
+        out.show(resolvedTitle);
+        IJ.log("Angle time series: " + written + " timepoints (" + fitted + " with both fits), t=" + minT + ".." + maxT
+                + (halfWindow > 0 ? ", smoothing half window=" + halfWindow : "") + ".");
+    }
+
+    private static PointMoments[] newMoments(final int count) {
+        final PointMoments[] moments = new PointMoments[count];
+        for (int i = 0; i < count; i++) {
+            moments[i] = new PointMoments();
+        }
+        return moments;
+    }
+
+    /**
+     * Moments over frames [i - halfWindow, i + halfWindow] for every i, in O(frames) merges and
+     * subtractions.
+     */
+    private static PointMoments[] slideWindow(final PointMoments[] frames, final int halfWindow) {
+        final PointMoments[] windows = new PointMoments[frames.length];
+        final PointMoments window = new PointMoments();
+        for (int i = 0; i < Math.min(halfWindow, frames.length); i++) {
+            window.merge(frames[i]);
+        }
+        for (int i = 0; i < frames.length; i++) {
+            final int entering = i + halfWindow;
+            if (entering < frames.length) {
+                window.merge(frames[entering]);
+            }
+            final int leaving = i - halfWindow - 1;
+            if (leaving >= 0) {
+                window.subtract(frames[leaving]);
+            }
+            windows[i] = window.copy();
+        }
+        return windows;
+    }
+
+    private static FrameFit[] fitAll(final PointMoments[] line, final PointMoments[] plane, final boolean absoluteDot) {
+        final FrameFit[] fits = new FrameFit[line.length];
+        IntStream.range(0, line.length).parallel().forEach(i -> fits[i] = fitFrame(line[i], plane[i], absoluteDot));
+        return fits;
+    }
+
+    private static FrameFit fitFrame(final PointMoments line, final PointMoments plane, final boolean absoluteDot) {
+        final FrameFit fit = new FrameFit();
+        if (line.count() >= 2) {
+            final Pca3DUtils.LineFitResult lineFit = Pca3DUtils.fitLine(line);
+            fit.direction = lineFit.direction;
+            fit.lineRms = lineFit.rmsDist;
+        }
+        if (plane.count() >= 3) {
+            final Pca3DUtils.PlaneFitResult planeFit = Pca3DUtils.fitPlane(plane);
+            fit.normal = planeFit.normal;
+            fit.planeRms = planeFit.rmsDist;
+        }
+        fit.angleDeg = GeometryRelations.linePlaneAngleDeg(fit.direction[0], fit.direction[1], fit.direction[2],
+                fit.normal[0], fit.normal[1], fit.normal[2], absoluteDot);
+        return fit;
+    }
+
+    private static final class FrameFit {
+        private double[] direction = {Double.NaN, Double.NaN, Double.NaN};
+        private double[] normal = {Double.NaN, Double.NaN, Double.NaN};
+        private double lineRms = Double.NaN;
+        private double planeRms = Double.NaN;
+        private double angleDeg = Double.NaN;
+    }
+
+    private static Set<String> parseAllowedRoles(final String csv) {
+        final Set<String> roles = new HashSet<>();
+        if (csv == null || csv.trim().isEmpty()) {
+            return roles;
+        }
+        for (String token : csv.split(",")) {
+            final String value = token == null ? "" : token.trim().toLowerCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                roles.add(value);
+            }
+        }
+        return roles;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+}
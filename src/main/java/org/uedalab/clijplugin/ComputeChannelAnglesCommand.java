@@ -0,0 +1,185 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Fits one line (or plane) per channel, optionally per timepoint, and reports the angle between every
+ * pair of channels. The table is reduced to per-group moments in a single pass, all groups are solved
+ * in parallel, and the pairwise angles are then plain dot products.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry fit>compute channel angles...")
+public class ComputeChannelAnglesCommand implements Command {
+
+    private static final String MODEL_LINE = "line";
+    private static final String MODEL_PLANE = "plane";
+
+    @Parameter(label = "Points table", required = false)
+    private ResultsTable pointsTable;
+
+    @Parameter(label = "Z is one-based in table")
+    private boolean zOneBasedInTable = true;
+
+    @Parameter(label = "Model per channel", choices = {MODEL_LINE, MODEL_PLANE})
+    private String modelKind = MODEL_LINE;
+
+    @Parameter(label = "Filter by role")
+    private boolean filterByRole = false;
+
+    @Parameter(label = "Allowed roles (CSV)")
+    private String allowedRolesCsv = PointTableSchema.ROLE_AXIS_START + "," + PointTableSchema.ROLE_AXIS_END;
+
+    @Parameter(label = "Per timepoint (uses t column)")
+    private boolean perTimepoint = false;
+
+    @Parameter(label = "Use absolute dot")
+    private boolean useAbsoluteDot = true;
+
+    @Parameter(label = "Output table title")
+    private String outputTableTitle = "channel_angles";
+
+    @Override
+    public void run() {
+        final ResultsTable rt = pointsTable != null ? pointsTable : ResultsTable.getResultsTable();
+        if (rt == null || !PointTableSchema.looksLikePointTable(rt)) {
+            IJ.error("Channel Angles", "Point table is missing required columns: id,x,y,z (role optional).");
+            return;
+        }
+        if (!PointTableSchema.hasChannelColumn(rt)) {
+            IJ.error("Channel Angles", "Point table needs a '" + PointTableSchema.COL_C + "' column.");
+            return;
+        }
+        final boolean useTime = perTimepoint && PointTableSchema.hasTimeColumn(rt);
+        if (perTimepoint && !useTime) {
+            IJ.log("Channel angles: no '" + PointTableSchema.COL_T + "' column; ignoring timepoints.");
+        }
+        final boolean plane = MODEL_PLANE.equals(modelKind);
+        final int minimum = plane ? 3 : 2;
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+        final Set<String> allowedRoles = parseAllowedRoles(allowedRolesCsv);
+
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double[] cs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_C));
+        final double[] ts = useTime ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_T)) : null;
+        final double zOffset = zOneBasedInTable ? 1.0 : 0.0;
+
+        // Single pass: one running moment set per (t, c) group, ordered by t then c.
+        final TreeMap<Long, PointMoments> groups = new TreeMap<>();
+        for (int row = 0; row < rows; row++) {
+            if (filterByRole) {
+                final String role = hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : "";
+                if (!allowedRoles.contains(role == null ? "" : role.trim().toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+            }
+            final double t = ts == null ? 1.0 : ts[row];
+            if (!Double.isFinite(xs[row]) || !Double.isFinite(ys[row]) || !Double.isFinite(zs[row])
+                    || !Double.isFinite(cs[row]) || !Double.isFinite(t)) {
+                continue;
+            }
+            final long key = groupKey((int) Math.round(t), (int) Math.round(cs[row]));
+            groups.computeIfAbsent(key, k -> new PointMoments()).add(xs[row], ys[row], zs[row] - zOffset);
+        }
+
+        final List<Long> keys = new ArrayList<>();
+        for (Map.Entry<Long, PointMoments> entry : groups.entrySet()) {
+            if (entry.getValue().count() >= minimum) {
+                keys.add(entry.getKey());
+            }
+        }
+        final double[][] vectors = new double[keys.size()][];
+        IntStream.range(0, vectors.length).parallel().forEach(i -> {
+            final PointMoments moments = groups.get(keys.get(i));
+            vectors[i] = plane ? Pca3DUtils.fitPlane(moments).normal : Pca3DUtils.fitLine(moments).direction;
+        });
+
+        final String resolvedTitle = outputTableTitle == null || outputTableTitle.trim().isEmpty()
+                ? "channel_angles" : outputTableTitle;
+        final ResultsTable out = getOrCreateResultsTable(resolvedTitle);
+        int pairs = 0;
+        int start = 0;
+        while (start < keys.size()) {
+            // Keys sharing a timepoint are contiguous; compare every channel pair within the run.
+            final int t = groupTime(keys.get(start));
+            int end = start + 1;
+            while (end < keys.size() && groupTime(keys.get(end)) == t) {
+                end++;
+            }
+            for (int a = start; a < end; a++) {
+                for (int b = a + 1; b < end; b++) {
+                    out.incrementCounter();
+                    if (useTime) {
+                        out.addValue(PointTableSchema.COL_T, t);
+                    }
+                    out.addValue("c_a", groupChannel(keys.get(a)));
+                    out.addValue("c_b", groupChannel(keys.get(b)));
+                    out.addValue("n_a", groups.get(keys.get(a)).count());
+                    out.addValue("n_b", groups.get(keys.get(b)).count());
+                    out.addValue("angle_deg", GeometryRelations.angleDeg(vectors[a][0], vectors[a][1], vectors[a][2],
+                            vectors[b][0], vectors[b][1], vectors[b][2], useAbsoluteDot));
+                    pairs++;
+                }
+            }
+            start = end;
+        }
+        out.show(resolvedTitle);
+        IJ.log("Channel angles: " + keys.size() + " " + modelKind + " fits, " + pairs + " channel pairs"
+                + (groups.size() > keys.size() ? ", " + (groups.size() - keys.size())
+                + " groups skipped (fewer than " + minimum + " points)" : "") + ".");
+    }
+
+    private static long groupKey(final int timepoint, final int channel) {
+        return ((long) timepoint << 32) | (channel & 0xffffffffL);
+    }
+
+    private static int groupTime(final long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int groupChannel(final long key) {
+        return (int) key;
+    }
+
+    private static Set<String> parseAllowedRoles(final String csv) {
+        final Set<String> roles = new HashSet<>();
+        if (csv == null || csv.trim().isEmpty()) {
+            return roles;
+        }
+        for (String token : csv.split(",")) {
+            final String value = token == null ? "" : token.trim().toLowerCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                roles.add(value);
+            }
+        }
+        return roles;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+}
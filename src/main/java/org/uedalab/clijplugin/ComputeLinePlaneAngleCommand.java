@@ -84,12 +84,7 @@ public class ComputeLinePlaneAngleCommand implements Command {
             return;
         }
 
-        double dot = dn[0] * nn[0] + dn[1] * nn[1] + dn[2] * nn[2];
-        if (useAbsoluteDot) {
-            dot = Math.abs(dot);
-        }
-        dot = Math.max(-1.0, Math.min(1.0, dot));
-
+        final double dot = GeometryRelations.unitDot(dn[0], dn[1], dn[2], nn[0], nn[1], nn[2], useAbsoluteDot);
         final double thetaDeg = Math.toDegrees(Math.acos(dot));
         final double angleDeg = 90.0 - thetaDeg;
 
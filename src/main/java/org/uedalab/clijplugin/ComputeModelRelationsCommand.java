@@ -0,0 +1,226 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+
+/**
+ * Computes every pairwise relation between the rows of a line fit table and a plane fit table
+ * (line-line angle and closest distance, plane-plane dihedral angle and intersection line, line-plane
+ * angle) and, optionally, the distance of every point of a point table to every model. Models are
+ * named L1.. and P1.. after their row in the fit tables.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry fit>compute model relations...")
+public class ComputeModelRelationsCommand implements Command {
+
+    @Parameter(label = "Line fit table", required = false)
+    private ResultsTable lineFitTable;
+
+    @Parameter(label = "Plane fit table", required = false)
+    private ResultsTable planeFitTable;
+
+    @Parameter(label = "Use absolute dot")
+    private boolean useAbsoluteDot = true;
+
+    @Parameter(label = "Output table title")
+    private String outputTableTitle = "model_relations";
+
+    @Parameter(label = "Compute point-model distances")
+    private boolean computePointDistances = false;
+
+    @Parameter(label = "Points table", required = false)
+    private ResultsTable pointsTable;
+
+    @Parameter(label = "Z is one-based in table")
+    private boolean zOneBasedInTable = true;
+
+    @Parameter(label = "Point distance table title")
+    private String distanceTableTitle = "point_model_distances";
+
+    @Override
+    public void run() {
+        final Models lines = readModels(resolveInputTable(lineFitTable, "fit_line"), "line", "d", "L");
+        final Models planes = readModels(resolveInputTable(planeFitTable, "fit_plane"), "plane", "n", "P");
+        if (lines.count + planes.count == 0) {
+            IJ.error("Model Relations",
+                    "No fit_line or fit_plane table with line_cx..line_dz or plane_cx..plane_nz columns found.");
+            return;
+        }
+
+        final String resolvedTitle = outputTableTitle == null || outputTableTitle.trim().isEmpty()
+                ? "model_relations" : outputTableTitle;
+        final ResultsTable out = getOrCreateResultsTable(resolvedTitle);
+
+        final double[] lineAngles = new double[lines.count * lines.count];
+        final double[] lineDistances = new double[lines.count * lines.count];
+        GeometryRelations.angleTable(lines.vectors, lines.count, lines.vectors, lines.count, useAbsoluteDot, false, lineAngles);
+        GeometryRelations.lineLineDistanceTable(lines.centroids, lines.vectors, lines.count,
+                lines.centroids, lines.vectors, lines.count, lineDistances);
+        for (int i = 0; i < lines.count; i++) {
+            for (int j = i + 1; j < lines.count; j++) {
+                final int k = i * lines.count + j;
+                addRelation(out, "line-line", lines.names[i], lines.names[j], lineAngles[k]);
+                out.addValue("distance", lineDistances[k]);
+            }
+        }
+
+        final int pp = planes.count * planes.count;
+        final double[] dihedrals = new double[pp];
+        final double[] points = new double[pp * 3];
+        final double[] directions = new double[pp * 3];
+        GeometryRelations.angleTable(planes.vectors, planes.count, planes.vectors, planes.count, useAbsoluteDot, false, dihedrals);
+        GeometryRelations.planeIntersectionTable(planes.centroids, planes.vectors, planes.count,
+                planes.centroids, planes.vectors, planes.count, points, directions);
+        for (int i = 0; i < planes.count; i++) {
+            for (int j = i + 1; j < planes.count; j++) {
+                final int k = i * planes.count + j;
+                addRelation(out, "plane-plane", planes.names[i], planes.names[j], dihedrals[k]);
+                out.addValue("ix", points[k * 3]);
+                out.addValue("iy", points[k * 3 + 1]);
+                out.addValue("iz", points[k * 3 + 2]);
+                out.addValue("idx", directions[k * 3]);
+                out.addValue("idy", directions[k * 3 + 1]);
+                out.addValue("idz", directions[k * 3 + 2]);
+            }
+        }
+
+        final double[] linePlane = new double[lines.count * planes.count];
+        GeometryRelations.angleTable(lines.vectors, lines.count, planes.vectors, planes.count, useAbsoluteDot, true, linePlane);
+        for (int i = 0; i < lines.count; i++) {
+            for (int j = 0; j < planes.count; j++) {
+                addRelation(out, "line-plane", lines.names[i], planes.names[j], linePlane[i * planes.count + j]);
+            }
+        }
+        out.show(resolvedTitle);
+
+        if (computePointDistances) {
+            writePointDistances(lines, planes);
+        }
+        IJ.log("Model relations: " + lines.count + " lines, " + planes.count + " planes, "
+                + out.getCounter() + " rows in '" + resolvedTitle + "'.");
+    }
+
+    private void writePointDistances(final Models lines, final Models planes) {
+        final ResultsTable rt = pointsTable != null ? pointsTable : ResultsTable.getResultsTable();
+        if (rt == null || !PointTableSchema.looksLikePointTable(rt)) {
+            IJ.error("Model Relations", "Point table is missing required columns: id,x,y,z (role optional).");
+            return;
+        }
+        final int np = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double zOffset = zOneBasedInTable ? 1.0 : 0.0;
+        final double[] coords = new double[np * 3];
+        for (int p = 0; p < np; p++) {
+            coords[p * 3] = xs[p];
+            coords[p * 3 + 1] = ys[p];
+            coords[p * 3 + 2] = zs[p] - zOffset;
+        }
+
+        final int nm = lines.count + planes.count;
+        final double[] centroids = new double[nm * 3];
+        final double[] vectors = new double[nm * 3];
+        final boolean[] isPlane = new boolean[nm];
+        System.arraycopy(lines.centroids, 0, centroids, 0, lines.count * 3);
+        System.arraycopy(lines.vectors, 0, vectors, 0, lines.count * 3);
+        System.arraycopy(planes.centroids, 0, centroids, lines.count * 3, planes.count * 3);
+        System.arraycopy(planes.vectors, 0, vectors, lines.count * 3, planes.count * 3);
+        for (int m = lines.count; m < nm; m++) {
+            isPlane[m] = true;
+        }
+        final double[] distances = new double[np * nm];
+        GeometryRelations.pointModelDistanceTable(coords, np, centroids, vectors, isPlane, nm, distances);
+
+        final String resolvedTitle = distanceTableTitle == null || distanceTableTitle.trim().isEmpty()
+                ? "point_model_distances" : distanceTableTitle;
+        final ResultsTable out = new ResultsTable();
+        for (int p = 0; p < np; p++) {
+            out.incrementCounter();
+            out.addValue(PointTableSchema.COL_ID, rt.getStringValue(PointTableSchema.COL_ID, p));
+            for (int m = 0; m < nm; m++) {
+                final String name = m < lines.count ? lines.names[m] : planes.names[m - lines.count];
+                out.addValue("d_" + name, distances[p * nm + m]);
+            }
+        }
+        out.show(resolvedTitle);
+    }
+
+    private static void addRelation(final ResultsTable out, final String kind, final String a, final String b,
+                                    final double angleDeg) {
+        out.incrementCounter();
+        out.addValue("kind", kind);
+        out.addValue("model_a", a);
+        out.addValue("model_b", b);
+        out.addValue("angle_deg", angleDeg);
+    }
+
+    /**
+     * Reads the centroid and direction/normal columns of every row into interleaved arrays; a missing
+     * table or column yields no models.
+     */
+    private static Models readModels(final ResultsTable rt, final String prefix, final String vector,
+                                     final String namePrefix) {
+        final String[] columns = {
+                prefix + "_cx", prefix + "_cy", prefix + "_cz",
+                prefix + "_" + vector + "x", prefix + "_" + vector + "y", prefix + "_" + vector + "z"
+        };
+        if (rt == null) {
+            return new Models(0);
+        }
+        for (String column : columns) {
+            if (rt.getColumnIndex(column) == ResultsTable.COLUMN_NOT_FOUND) {
+                return new Models(0);
+            }
+        }
+        final Models models = new Models(rt.getCounter());
+        for (int row = 0; row < models.count; row++) {
+            for (int k = 0; k < 3; k++) {
+                models.centroids[row * 3 + k] = rt.getValue(columns[k], row);
+                models.vectors[row * 3 + k] = rt.getValue(columns[3 + k], row);
+            }
+            models.names[row] = namePrefix + (row + 1);
+        }
+        return models;
+    }
+
+    private static final class Models {
+        private final int count;
+        private final double[] centroids;
+        private final double[] vectors;
+        private final String[] names;
+
+        private Models(final int count) {
+            this.count = count;
+            this.centroids = new double[count * 3];
+            this.vectors = new double[count * 3];
+            this.names = new String[count];
+        }
+    }
+
+    private static ResultsTable resolveInputTable(final ResultsTable injected, final String title) {
+        return injected != null ? injected : findTableByTitle(title);
+    }
+
+    private static ResultsTable findTableByTitle(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable rt = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (rt != null) {
+                return rt;
+            }
+        }
+        return null;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final ResultsTable existing = findTableByTitle(title);
+        return existing != null ? existing : new ResultsTable();
+    }
+}
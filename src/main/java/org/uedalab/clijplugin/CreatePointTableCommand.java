@@ -27,12 +27,15 @@ public class CreatePointTableCommand implements Command {
             rt.addValue(PointTableSchema.COL_X, Double.NaN);
             rt.addValue(PointTableSchema.COL_Y, Double.NaN);
             rt.addValue(PointTableSchema.COL_Z, Double.NaN);
+            rt.addValue(PointTableSchema.COL_T, 1);
+            rt.addValue(PointTableSchema.COL_C, 1);
             rt.addValue(PointTableSchema.COL_ROLE, PointTableSchema.ROLE_PLANE_FIT);
         }
 
         rt.show(resolvedTitle);
         IJ.log("Created point table '" + resolvedTitle + "' with columns: "
                 + PointTableSchema.COL_ID + "," + PointTableSchema.COL_X + "," + PointTableSchema.COL_Y + ","
-                + PointTableSchema.COL_Z + "," + PointTableSchema.COL_ROLE);
+                + PointTableSchema.COL_Z + "," + PointTableSchema.COL_T + ","
+                + PointTableSchema.COL_C + "," + PointTableSchema.COL_ROLE);
     }
 }
@@ -0,0 +1,139 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import net.haesleinhuepf.clij2.AbstractCLIJ2Plugin;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clij2.utilities.HasAuthor;
+import net.haesleinhuepf.clij2.utilities.HasClassifiedInputOutput;
+import net.haesleinhuepf.clij2.utilities.HasLicense;
+import net.haesleinhuepf.clij2.utilities.IsCategorized;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+
+/**
+ * Detects local maxima above a threshold on the GPU and appends them to the standardized point table.
+ * Detection is a single kernel; the spots are compacted into a point list on the device and the
+ * coordinates come back in one transfer, so only the detected points ever leave the GPU.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ2_detectSpotsToPointTable")
+public class DetectSpotsToPointTable extends AbstractCLIJ2Plugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation, HasAuthor, HasLicense, HasClassifiedInputOutput, IsCategorized {
+
+    private static final String TABLE_TITLE = "points";
+
+    @Override
+    public boolean executeCL() {
+        final String role = args[5] == null || args[5].toString().trim().isEmpty()
+                ? PointTableSchema.ROLE_PLANE_FIT : args[5].toString().trim();
+        return detectSpotsToPointTable(getCLIJ2(), (ClearCLBuffer) args[0], asFloat(args[1]),
+                asInteger(args[2]), asInteger(args[3]), asInteger(args[4]), role);
+    }
+
+    private boolean detectSpotsToPointTable(CLIJ2 clij2, ClearCLBuffer src, Float threshold,
+                                            Integer radiusX, Integer radiusY, Integer radiusZ, String role) {
+        final ClearCLBuffer spots = clij2.create(src.getDimensions(), NativeTypeEnum.Float);
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("dst", spots);
+        parameters.put("threshold", threshold);
+        parameters.put("radius_x", Math.max(0, radiusX));
+        parameters.put("radius_y", Math.max(0, radiusY));
+        parameters.put("radius_z", src.getDimension() > 2 ? Math.max(0, radiusZ) : 0);
+        clij2.execute(DetectSpotsToPointTable.class, "detect_spots.cl", "detect_spots",
+                spots.getDimensions(), spots.getDimensions(), parameters);
+
+        final int count = (int) Math.round(clij2.sumOfAllPixels(spots));
+        if (count == 0) {
+            clij2.release(spots);
+            IJ.log("Detect spots: no local maxima above " + threshold + ".");
+            return true;
+        }
+        // Point list: one column per spot, one row per dimension (x, y[, z]).
+        final int dimensions = src.getDimension() > 2 ? 3 : 2;
+        final ClearCLBuffer pointList = clij2.create(new long[]{count, dimensions}, NativeTypeEnum.Float);
+        clij2.spotsToPointList(spots, pointList);
+        clij2.release(spots);
+        final float[] coordinates = new float[count * dimensions];
+        pointList.writeTo(FloatBuffer.wrap(coordinates), true);
+        clij2.release(pointList);
+
+        final ResultsTable rt = getOrCreateResultsTable(TABLE_TITLE);
+        final PointTableAppender appender = new PointTableAppender("p", rt.size() + 1, role, count);
+        for (int i = 0; i < count; i++) {
+            // Table z is one-based, like clicked and imported points.
+            final int z = dimensions > 2 ? Math.round(coordinates[2 * count + i]) + 1 : 1;
+            appender.add(coordinates[i], coordinates[count + i], z, 1, 1);
+        }
+        appender.appendTo(rt);
+        rt.show(TABLE_TITLE);
+        IJ.log("Detect spots: appended " + count + " points above " + threshold + " to table '" + TABLE_TITLE + "'.");
+        return true;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Number threshold, Number radius_x, Number radius_y, Number radius_z, String role";
+    }
+
+    @Override
+    public Object[] getDefaultValues() {
+        return new Object[]{null, 100, 2, 2, 1, PointTableSchema.ROLE_PLANE_FIT};
+    }
+
+    @Override
+    public String getDescription() {
+        return "Detects local maxima brighter than the threshold within a box of the given radii and appends\n"
+                + "their pixel coordinates to the 'points' table (id,x,y,z,t,c,role; z one-based).";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+
+    @Override
+    public String getCategories() {
+        return "Detection";
+    }
+
+    @Override
+    public String getInputType() {
+        return "Image";
+    }
+
+    @Override
+    public String getOutputType() {
+        return "Table";
+    }
+
+    @Override
+    public String getAuthorName() {
+        return "Ueda Lab";
+    }
+
+    @Override
+    public String getLicense() {
+        return "BSD 3-Clause";
+    }
+}
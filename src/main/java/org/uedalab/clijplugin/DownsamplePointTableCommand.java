@@ -0,0 +1,240 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reduces a dense point table to one point per occupied voxel, separately for every timepoint, channel
+ * and role. Each output row carries the number of source points it stands for in a count column, which
+ * the fit commands can use as weights. CSV input is streamed, so the source never has to fit in memory;
+ * only the occupied cells are kept. Source rows that already have a count column (an earlier
+ * downsampling) are weighted by it, so reductions can be chained.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry points>downsample point table...")
+public class DownsamplePointTableCommand implements Command {
+
+    private static final String COL_COUNT = "count";
+    private static final String SOURCE_TABLE = "open table";
+    private static final String SOURCE_CSV = "CSV file";
+    private static final String KEEP_CENTROID = "weighted centroid";
+    private static final String KEEP_NEAREST = "point nearest voxel centre";
+    private static final int GROUP_FIELD = 0xFFFFF;
+
+    @Parameter(label = "Source", choices = {SOURCE_TABLE, SOURCE_CSV})
+    private String source = SOURCE_TABLE;
+
+    @Parameter(label = "Points table", required = false)
+    private ResultsTable pointsTable;
+
+    @Parameter(label = "CSV file", style = "open", required = false)
+    private File csvFile;
+
+    @Parameter(label = "Voxel size XY (px)", min = "0.0001")
+    private double voxelXY = 1.0;
+
+    @Parameter(label = "Voxel size Z (slices)", min = "0.0001")
+    private double voxelZ = 1.0;
+
+    @Parameter(label = "Representative", choices = {KEEP_CENTROID, KEEP_NEAREST})
+    private String representative = KEEP_CENTROID;
+
+    @Parameter(label = "Output table title")
+    private String outputTableTitle = "points_downsampled";
+
+    @Override
+    public void run() {
+        final Reduction reduction = new Reduction(voxelXY, voxelZ, KEEP_NEAREST.equals(representative));
+        final long start = System.nanoTime();
+        final String sourceName;
+        try {
+            if (SOURCE_CSV.equals(source)) {
+                if (csvFile == null || !csvFile.isFile()) {
+                    IJ.error("Downsample Points", "Choose an existing CSV file.");
+                    return;
+                }
+                sourceName = csvFile.getName();
+                PointColumns.streamCsv(csvFile, COL_COUNT, reduction::add);
+            } else {
+                final ResultsTable rt = pointsTable != null ? pointsTable : ResultsTable.getResultsTable();
+                if (rt == null || !PointTableSchema.looksLikePointTable(rt)) {
+                    IJ.error("Downsample Points", "Point table is missing required columns: id,x,y,z (role optional).");
+                    return;
+                }
+                sourceName = rt.getTitle() == null ? "table" : rt.getTitle();
+                addTable(rt, reduction);
+            }
+        } catch (IOException e) {
+            IJ.error("Downsample Points", "Cannot read " + csvFile.getName() + ": " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            IJ.error("Downsample Points", e.getMessage());
+            return;
+        }
+        if (reduction.cells() == 0) {
+            IJ.error("Downsample Points", "No rows with valid x,y,z in " + sourceName + ".");
+            return;
+        }
+
+        final String title = outputTableTitle == null || outputTableTitle.trim().isEmpty()
+                ? "points_downsampled" : outputTableTitle;
+        final ResultsTable out = reduction.toTable();
+        out.show(title);
+        IJ.log(String.format(Locale.ROOT, "Downsample points: %d rows of '%s' -> %d voxels (%.1fx) in %.1f ms; "
+                        + "source counts in '%s' of table '%s'.", reduction.rows, sourceName, reduction.cells(),
+                (double) reduction.rows / reduction.cells(), (System.nanoTime() - start) / 1e6, COL_COUNT, title));
+    }
+
+    private static void addTable(final ResultsTable rt, final Reduction reduction) {
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double[] ts = PointTableSchema.hasTimeColumn(rt)
+                ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_T)) : null;
+        final double[] cs = PointTableSchema.hasChannelColumn(rt)
+                ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_C)) : null;
+        final int countIndex = rt.getColumnIndex(COL_COUNT);
+        final double[] counts = countIndex != ResultsTable.COLUMN_NOT_FOUND ? rt.getColumnAsDoubles(countIndex) : null;
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+        for (int row = 0; row < rows; row++) {
+            reduction.add(xs[row], ys[row], zs[row], ts == null ? 1.0 : ts[row], cs == null ? 1.0 : cs[row],
+                    hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : "",
+                    counts == null ? Double.NaN : counts[row]);
+        }
+    }
+
+    /**
+     * One {@link VoxelGrid} per (t, c, role) group, in first-seen order. Consecutive rows usually share a
+     * group, so the last one is cached and the group map is only consulted when it changes.
+     */
+    private static final class Reduction {
+        private final double voxelXY;
+        private final double voxelZ;
+        private final boolean nearest;
+        private final Map<String, Integer> roleIds = new HashMap<>();
+        private final List<String> roleNames = new ArrayList<>();
+        private final LongObjectHashMap<VoxelGrid> grids = new LongObjectHashMap<>();
+        private final LongArrayList groupOrder = new LongArrayList();
+        private String lastRole;
+        private int lastRoleId;
+        private long lastGroup = -1L;
+        private VoxelGrid lastGrid;
+        private long rows;
+
+        private Reduction(final double voxelXY, final double voxelZ, final boolean nearest) {
+            this.voxelXY = voxelXY;
+            this.voxelZ = voxelZ;
+            this.nearest = nearest;
+        }
+
+        /**
+         * Adds one source row; a missing, non-finite or non-positive count counts as 1.
+         */
+        private void add(final double x, final double y, final double z, final double t, final double c,
+                         final String role, final double count) {
+            if (!Double.isFinite(x) || !Double.isFinite(y) || !Double.isFinite(z)) {
+                return;
+            }
+            rows++;
+            // Group key: role id, channel and timepoint in 20-bit fields.
+            final long group = ((long) roleId(role) << 40)
+                    | ((long) Math.min(GROUP_FIELD, PointColumns.toIndex(c)) << 20)
+                    | Math.min(GROUP_FIELD, PointColumns.toIndex(t));
+            if (group != lastGroup) {
+                VoxelGrid grid = grids.get(group);
+                if (grid == null) {
+                    grid = new VoxelGrid(voxelXY, voxelXY, voxelZ, nearest);
+                    grids.put(group, grid);
+                    groupOrder.add(group);
+                }
+                lastGroup = group;
+                lastGrid = grid;
+            }
+            lastGrid.add(x, y, z, count > 0.0 && Double.isFinite(count) ? count : 1.0);
+        }
+
+        private int roleId(final String role) {
+            if (role != null && role.equals(lastRole)) {
+                return lastRoleId;
+            }
+            final String trimmed = role == null ? "" : role.trim();
+            Integer id = roleIds.get(trimmed);
+            if (id == null) {
+                id = roleNames.size();
+                roleIds.put(trimmed, id);
+                roleNames.add(trimmed);
+            }
+            lastRole = role;
+            lastRoleId = id;
+            return id;
+        }
+
+        private int cells() {
+            int cells = 0;
+            for (int g = 0; g < groupOrder.size(); g++) {
+                cells += grids.get(groupOrder.get(g)).size();
+            }
+            return cells;
+        }
+
+        /**
+         * Standardized point table of the voxel representatives (ids v001...), plus the count column.
+         */
+        private ResultsTable toTable() {
+            final int n = cells();
+            final double[] xs = new double[n];
+            final double[] ys = new double[n];
+            final double[] zs = new double[n];
+            final double[] ts = new double[n];
+            final double[] cs = new double[n];
+            final double[] counts = new double[n];
+            final String[] roles = new String[n];
+            int offset = 0;
+            for (int g = 0; g < groupOrder.size(); g++) {
+                final long group = groupOrder.get(g);
+                final VoxelGrid grid = grids.get(group);
+                grid.copyTo(xs, ys, zs, counts, offset);
+                final int end = offset + grid.size();
+                final String role = roleNames.get((int) (group >>> 40));
+                for (int i = offset; i < end; i++) {
+                    ts[i] = group & GROUP_FIELD;
+                    cs[i] = (group >>> 20) & GROUP_FIELD;
+                    roles[i] = role;
+                }
+                offset = end;
+            }
+
+            final ResultsTable out = new ResultsTable();
+            final int idCol = out.getFreeColumn(PointTableSchema.COL_ID);
+            out.setValues(PointTableSchema.COL_X, xs);
+            out.setValues(PointTableSchema.COL_Y, ys);
+            out.setValues(PointTableSchema.COL_Z, zs);
+            out.setValues(PointTableSchema.COL_T, ts);
+            out.setValues(PointTableSchema.COL_C, cs);
+            final int roleCol = out.getFreeColumn(PointTableSchema.COL_ROLE);
+            out.setValues(COL_COUNT, counts);
+            final StringBuilder id = new StringBuilder(12).append('v');
+            for (int i = 0; i < n; i++) {
+                id.setLength(1);
+                final int index = i + 1;
+                if (index < 100) {
+                    id.append(index < 10 ? "00" : "0");
+                }
+                out.setValue(idCol, i, id.append(index).toString());
+                out.setValue(roleCol, i, roles[i]);
+            }
+            return out;
+        }
+    }
+}
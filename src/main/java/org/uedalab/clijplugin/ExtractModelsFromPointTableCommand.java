@@ -0,0 +1,250 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.Overlay;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Finds every dominant plane and/or line in a point table with {@link SequentialRansac} and writes one
+ * row per model to fit_plane / fit_line (same columns as the fit commands, plus the model label), and the
+ * label of each point to the point table's model column (0 = no model, NaN = row not used).
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry fit>extract models from point table...")
+public class ExtractModelsFromPointTableCommand implements Command {
+
+    private static final String COL_MODEL = "model";
+    private static final String KINDS_PLANES = "planes";
+    private static final String KINDS_LINES = "lines";
+    private static final String KINDS_BOTH = "planes and lines";
+
+    @Parameter(label = "Image", required = false)
+    private ImagePlus image;
+
+    @Parameter(label = "Points table", required = false)
+    private ResultsTable pointsTable;
+
+    @Parameter(label = "Z is one-based in table")
+    private boolean zOneBasedInTable = true;
+
+    @Parameter(label = "Filter by role")
+    private boolean filterByRole = false;
+
+    @Parameter(label = "Allowed roles (CSV)")
+    private String allowedRolesCsv = PointTableSchema.ROLE_PLANE_FIT;
+
+    @Parameter(label = "Models", choices = {KINDS_PLANES, KINDS_LINES, KINDS_BOTH})
+    private String modelKinds = KINDS_PLANES;
+
+    @Parameter(label = "Inlier threshold (px)", min = "0.0001")
+    private double inlierThresholdPx = 1.5;
+
+    @Parameter(label = "Minimum points per model", min = "3")
+    private int minInliers = 50;
+
+    @Parameter(label = "Maximum models", min = "1")
+    private int maxModels = 10;
+
+    @Parameter(label = "Maximum hypotheses per model", min = "1")
+    private int maxIterations = 1000;
+
+    @Parameter(label = "Confidence", min = "0.5", max = "0.999999")
+    private double confidence = 0.99;
+
+    @Parameter(label = "Random seed")
+    private long seed = 1L;
+
+    @Parameter(label = "Overlay sections on all slices")
+    private boolean overlaySections = true;
+
+    @Parameter(label = "Plane table title")
+    private String planeTableTitle = "fit_plane";
+
+    @Parameter(label = "Line table title")
+    private String lineTableTitle = "fit_line";
+
+    @Override
+    public void run() {
+        final ResultsTable rt = pointsTable != null ? pointsTable : ResultsTable.getResultsTable();
+        if (rt == null || !PointTableSchema.looksLikePointTable(rt)) {
+            IJ.error("Extract Models", "Point table is missing required columns: id,x,y,z (role optional).");
+            return;
+        }
+
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+        final Set<String> allowedRoles = filterByRole ? parseAllowedRoles(allowedRolesCsv) : Collections.emptySet();
+        final Set<String> rolesUsed = new HashSet<>();
+        final double zOffset = zOneBasedInTable ? 1.0 : 0.0;
+
+        // Used rows as compact columns with zero-based z.
+        final int[] sourceRows = new int[rows];
+        final double[] px = new double[rows];
+        final double[] py = new double[rows];
+        final double[] pz = new double[rows];
+        int n = 0;
+        for (int row = 0; row < rows; row++) {
+            final String role = hasRole ? safeRole(rt.getStringValue(PointTableSchema.COL_ROLE, row)) : "";
+            if (filterByRole && !allowedRoles.contains(role.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            if (!Double.isFinite(xs[row]) || !Double.isFinite(ys[row]) || !Double.isFinite(zs[row])) {
+                continue;
+            }
+            sourceRows[n] = row;
+            px[n] = xs[row];
+            py[n] = ys[row];
+            pz[n] = zs[row] - zOffset;
+            n++;
+            if (!role.isEmpty()) {
+                rolesUsed.add(role);
+            }
+        }
+        if (n < Math.max(3, minInliers)) {
+            IJ.error("Extract Models", "Need at least " + Math.max(3, minInliers) + " valid points; found " + n + ".");
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final int[] labels = new int[n];
+        final List<SequentialRansac.Model> models = new SequentialRansac(inlierThresholdPx, minInliers, maxModels,
+                maxIterations, confidence, seed, !KINDS_LINES.equals(modelKinds), !KINDS_PLANES.equals(modelKinds))
+                .extract(px, py, pz, n, labels);
+        final double elapsedMs = (System.nanoTime() - start) / 1e6;
+
+        final double[] labelColumn = new double[rows];
+        Arrays.fill(labelColumn, Double.NaN);
+        for (int i = 0; i < n; i++) {
+            labelColumn[sourceRows[i]] = labels[i];
+        }
+        rt.setValues(COL_MODEL, labelColumn);
+        final String title = rt.getTitle();
+        if (title != null && !title.isEmpty()) {
+            rt.show(title);
+        }
+        if (models.isEmpty()) {
+            IJ.log("Extract models: no model with at least " + minInliers + " points within " + inlierThresholdPx
+                    + " px among " + n + " points.");
+            return;
+        }
+
+        final String roles = summarizeRoles(rolesUsed, filterByRole);
+        final String planeTitle = resolveTitle(planeTableTitle, "fit_plane");
+        final String lineTitle = resolveTitle(lineTableTitle, "fit_line");
+        ResultsTable planeTable = null;
+        ResultsTable lineTable = null;
+        final Overlay overlay = overlaySections && image != null
+                ? (image.getOverlay() == null ? new Overlay() : image.getOverlay()) : null;
+        int assigned = 0;
+        for (int k = 0; k < models.size(); k++) {
+            final SequentialRansac.Model model = models.get(k);
+            final boolean plane = model.kind == SequentialRansac.Kind.PLANE;
+            final String prefix = plane ? "plane_" : "line_";
+            final ResultsTable out;
+            if (plane) {
+                planeTable = planeTable != null ? planeTable : getOrCreateResultsTable(planeTitle);
+                out = planeTable;
+            } else {
+                lineTable = lineTable != null ? lineTable : getOrCreateResultsTable(lineTitle);
+                out = lineTable;
+            }
+            out.incrementCounter();
+            out.addValue(COL_MODEL, k + 1);
+            out.addValue("n_points", model.inliers.length);
+            out.addValue(prefix + "cx", model.centroid[0]);
+            out.addValue(prefix + "cy", model.centroid[1]);
+            out.addValue(prefix + "cz", model.centroid[2]);
+            out.addValue(prefix + (plane ? "nx" : "dx"), model.vector[0]);
+            out.addValue(prefix + (plane ? "ny" : "dy"), model.vector[1]);
+            out.addValue(prefix + (plane ? "nz" : "dz"), model.vector[2]);
+            out.addValue("rms_dist", model.rms);
+            if (plane) {
+                out.addValue("max_dist", model.max);
+            }
+            out.addValue("roles_used", roles);
+            assigned += model.inliers.length;
+            if (overlay != null) {
+                final ModelSectionRoi roi = ModelSectionRoi.of(new GeometryPointsCanvas.RenderModel(
+                        plane ? GeometryPointsControlFrame.ModelType.PLANE : GeometryPointsControlFrame.ModelType.LINE,
+                        model.centroid[0], model.centroid[1], model.centroid[2],
+                        model.vector[0], model.vector[1], model.vector[2], new double[0]),
+                        image.getWidth(), image.getHeight(), image.getNSlices());
+                roi.setName("extracted_" + prefix + "sections_" + (k + 1));
+                roi.setStrokeWidth(1.5);
+                overlay.add(roi);
+            }
+        }
+        if (planeTable != null) {
+            planeTable.show(planeTitle);
+        }
+        if (lineTable != null) {
+            lineTable.show(lineTitle);
+        }
+        if (overlay != null) {
+            image.setOverlay(overlay);
+            image.updateAndDraw();
+        }
+        IJ.log(String.format(Locale.ROOT, "Extract models: %d models (%d points assigned, %d unassigned) from %d "
+                        + "points in %.1f ms; labels in '%s'.", models.size(), assigned, n - assigned, n, elapsedMs,
+                COL_MODEL));
+    }
+
+    private static String resolveTitle(final String title, final String fallback) {
+        return title == null || title.trim().isEmpty() ? fallback : title;
+    }
+
+    private static String safeRole(final String role) {
+        return role == null ? "" : role.trim();
+    }
+
+    private static Set<String> parseAllowedRoles(final String csv) {
+        final Set<String> roles = new HashSet<>();
+        if (csv == null || csv.trim().isEmpty()) {
+            return roles;
+        }
+        for (String token : csv.split(",")) {
+            final String value = token == null ? "" : token.trim().toLowerCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                roles.add(value);
+            }
+        }
+        return roles;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+
+    private static String summarizeRoles(final Set<String> roles, final boolean filtered) {
+        if (roles.isEmpty()) {
+            return filtered ? "(filtered; no role values)" : "(all/non-empty roles unavailable)";
+        }
+        final List<String> sorted = new ArrayList<>(roles);
+        Collections.sort(sorted);
+        return String.join(",", sorted);
+    }
+}
@@ -0,0 +1,169 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Fits a sphere, cylinder or general quadric to the rows of a point table. The columns are read in
+ * bulk into one interleaved coordinate array and the fit streams over it, so tables with millions of
+ * rows need no per-point objects.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry fit>fit surface from point table...")
+public class FitSurfaceFromPointTableCommand implements Command {
+
+    private static final String SURFACE_SPHERE = "sphere";
+    private static final String SURFACE_CYLINDER = "cylinder";
+    private static final String SURFACE_QUADRIC = "quadric";
+
+    @Parameter(label = "Points table", required = false)
+    private ResultsTable pointsTable;
+
+    @Parameter(label = "Z is one-based in table")
+    private boolean zOneBasedInTable = true;
+
+    @Parameter(label = "Surface", choices = {SURFACE_SPHERE, SURFACE_CYLINDER, SURFACE_QUADRIC})
+    private String surface = SURFACE_SPHERE;
+
+    @Parameter(label = "Refinement iterations", min = "0")
+    private int refineIterations = SurfaceFitUtils.DEFAULT_REFINE_ITERATIONS;
+
+    @Parameter(label = "Filter by role")
+    private boolean filterByRole = false;
+
+    @Parameter(label = "Allowed roles (CSV)")
+    private String allowedRolesCsv = PointTableSchema.ROLE_PLANE_FIT;
+
+    @Parameter(label = "Output table title")
+    private String outputTableTitle = "fit_surface";
+
+    @Override
+    public void run() {
+        final ResultsTable rt = pointsTable != null ? pointsTable : ResultsTable.getResultsTable();
+        if (rt == null || !PointTableSchema.looksLikePointTable(rt)) {
+            IJ.error("Fit Surface", "Point table is missing required columns: id,x,y,z (role optional).");
+            return;
+        }
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+        final Set<String> allowedRoles = parseAllowedRoles(allowedRolesCsv);
+
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double zOffset = zOneBasedInTable ? 1.0 : 0.0;
+        final double[] coords = new double[rows * 3];
+        int n = 0;
+        for (int row = 0; row < rows; row++) {
+            if (filterByRole) {
+                final String role = hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : "";
+                if (!allowedRoles.contains(role == null ? "" : role.trim().toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+            }
+            if (!Double.isFinite(xs[row]) || !Double.isFinite(ys[row]) || !Double.isFinite(zs[row])) {
+                continue;
+            }
+            coords[n * 3] = xs[row];
+            coords[n * 3 + 1] = ys[row];
+            coords[n * 3 + 2] = zs[row] - zOffset;
+            n++;
+        }
+
+        final int minimum = SURFACE_QUADRIC.equals(surface) ? 9 : SURFACE_CYLINDER.equals(surface) ? 5 : 4;
+        if (n < minimum) {
+            IJ.error("Fit Surface", "Need at least " + minimum + " valid points to fit a " + surface + ".");
+            return;
+        }
+
+        final String resolvedTitle = outputTableTitle == null || outputTableTitle.trim().isEmpty()
+                ? "fit_surface" : outputTableTitle;
+        final ResultsTable out = getOrCreateResultsTable(resolvedTitle);
+        final String summary;
+        try {
+            if (SURFACE_CYLINDER.equals(surface)) {
+                final SurfaceFitUtils.CylinderFitResult fit = SurfaceFitUtils.fitCylinder(coords, n, refineIterations);
+                addRow(out, n);
+                addVector(out, "cylinder_p", fit.axisPoint);
+                addVector(out, "cylinder_d", fit.direction);
+                out.addValue("radius", fit.radius);
+                addStats(out, fit.rmsDist, fit.maxDist, fit.iterations);
+                summary = String.format(Locale.ROOT, "axis point=(%.4f,%.4f,%.4f), radius=%.4f, rms=%.4f",
+                        fit.axisPoint[0], fit.axisPoint[1], fit.axisPoint[2], fit.radius, fit.rmsDist);
+            } else if (SURFACE_QUADRIC.equals(surface)) {
+                final SurfaceFitUtils.QuadricFitResult fit = SurfaceFitUtils.fitQuadric(coords, n, refineIterations);
+                addRow(out, n);
+                for (int k = 0; k < SurfaceFitUtils.QUADRIC_COEFFICIENTS; k++) {
+                    out.addValue("q" + k, fit.coefficients[k]);
+                }
+                addStats(out, fit.rmsDist, fit.maxDist, fit.iterations);
+                summary = String.format(Locale.ROOT, "sampson rms=%.4f, max=%.4f", fit.rmsDist, fit.maxDist);
+            } else {
+                final SurfaceFitUtils.SphereFitResult fit = SurfaceFitUtils.fitSphere(coords, n, refineIterations);
+                addRow(out, n);
+                addVector(out, "sphere_c", fit.center);
+                out.addValue("radius", fit.radius);
+                addStats(out, fit.rmsDist, fit.maxDist, fit.iterations);
+                summary = String.format(Locale.ROOT, "center=(%.4f,%.4f,%.4f), radius=%.4f, rms=%.4f",
+                        fit.center[0], fit.center[1], fit.center[2], fit.radius, fit.rmsDist);
+            }
+        } catch (IllegalArgumentException e) {
+            IJ.error("Fit Surface", "Cannot fit a " + surface + ": " + e.getMessage());
+            return;
+        }
+        out.show(resolvedTitle);
+        IJ.log("Fit " + surface + " from point table: n_points=" + n + ", " + summary + ".");
+    }
+
+    private void addRow(final ResultsTable out, final int n) {
+        out.incrementCounter();
+        out.addValue("surface", surface);
+        out.addValue("n_points", n);
+    }
+
+    private static void addVector(final ResultsTable out, final String prefix, final double[] v) {
+        out.addValue(prefix + "x", v[0]);
+        out.addValue(prefix + "y", v[1]);
+        out.addValue(prefix + "z", v[2]);
+    }
+
+    private static void addStats(final ResultsTable out, final double rms, final double max, final int iterations) {
+        out.addValue("rms_dist", rms);
+        out.addValue("max_dist", max);
+        out.addValue("iterations", iterations);
+    }
+
+    private static Set<String> parseAllowedRoles(final String csv) {
+        final Set<String> roles = new HashSet<>();
+        if (csv == null || csv.trim().isEmpty()) {
+            return roles;
+        }
+        for (String token : csv.split(",")) {
+            final String value = token == null ? "" : token.trim().toLowerCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                roles.add(value);
+            }
+        }
+        return roles;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+}
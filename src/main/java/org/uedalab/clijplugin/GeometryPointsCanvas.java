@@ -3,15 +3,21 @@ package org.uedalab.clijplugin;
 import ij.ImagePlus;
 import ij.gui.ImageCanvas;
 
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
 import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 class GeometryPointsCanvas extends ImageCanvas {
@@ -20,29 +26,29 @@ class GeometryPointsCanvas extends ImageCanvas {
         RenderState getRenderState();
 
         void handleCanvasClick(double x, double y, int z);
+
+        void handleCanvasRemovePoint(long key);
+
+        void handleCanvasSelectPoint(long key);
+
+        void handleCanvasMovePoint(long key, double x, double y);
     }
 
     static final class RenderState {
-        final List<RenderPoint> points;
+        final SliceRenderCache points;
         final RenderModel selectedModel;
-
-        RenderState(final List<RenderPoint> points, final RenderModel selectedModel) {
+        final RenderModel previewModel;
+        /**
+         * Sections of every model, drawn on each slice; null when that display is off.
+         */
+        final ModelSections[] sections;
+
+        RenderState(final SliceRenderCache points, final RenderModel selectedModel, final RenderModel previewModel,
+                    final ModelSections[] sections) {
             this.points = points;
             this.selectedModel = selectedModel;
-        }
-    }
-
-    static final class RenderPoint {
-        final double x;
-        final double y;
-        final int z;
-        final boolean highlighted;
-
-        RenderPoint(final double x, final double y, final int z, final boolean highlighted) {
-            this.x = x;
-            this.y = y;
-            this.z = z;
-            this.highlighted = highlighted;
+            this.previewModel = previewModel;
+            this.sections = sections;
         }
     }
 
@@ -54,10 +60,14 @@ class GeometryPointsCanvas extends ImageCanvas {
         final double vx;
         final double vy;
         final double vz;
+        /**
+         * Radius for spheres and cylinders, quadric coefficients for quadrics, empty otherwise.
+         */
+        final double[] shape;
 
         RenderModel(final GeometryPointsControlFrame.ModelType type,
                     final double cx, final double cy, final double cz,
-                    final double vx, final double vy, final double vz) {
+                    final double vx, final double vy, final double vz, final double[] shape) {
             this.type = type;
             this.cx = cx;
             this.cy = cy;
@@ -65,31 +75,139 @@ class GeometryPointsCanvas extends ImageCanvas {
             this.vx = vx;
             this.vy = vy;
             this.vz = vz;
+            this.shape = shape;
+        }
+
+        boolean sameGeometry(final RenderModel other) {
+            return type == other.type && cx == other.cx && cy == other.cy && cz == other.cz
+                    && vx == other.vx && vy == other.vy && vz == other.vz && Arrays.equals(shape, other.shape);
         }
     }
 
+    private static final BasicStroke MODEL_STROKE = new BasicStroke(2f);
+    private static final BasicStroke SECTION_STROKE = new BasicStroke(1f);
+    private static final Color SECTION_COLOR = new Color(255, 0, 255, 160);
+    private static final BasicStroke PREVIEW_STROKE = new BasicStroke(1.5f, BasicStroke.CAP_BUTT,
+            BasicStroke.JOIN_MITER, 10f, new float[]{6f, 4f}, 0f);
+
+    /**
+     * Above this many visible points the slice is drawn as a density image instead of one oval per point.
+     */
+    private static final int DENSITY_POINT_THRESHOLD = 20000;
+    private static final int DENSITY_BIN_PX = 2;
+    /**
+     * Screen-pixel spacing of the grid on which implicit surface cross-sections are contoured.
+     */
+    private static final int CONTOUR_STEP_PX = 4;
+    private static final int POINT_RGB = 0x0000FF;
+    private static final int HIGHLIGHT_RGB = 0xFF0000;
+
+    private static final double PICK_RADIUS_SCREEN_PX = 6.0;
+
     private final StateProvider stateProvider;
 
+    private long dragKey = -1L;
+    private boolean dragMoved;
+    private double dragX;
+    private double dragY;
+
+    private BufferedImage pointLayer;
+    private long layerVersion = -1L;
+    private int layerC;
+    private int layerZ;
+    private int layerSrcX;
+    private int layerSrcY;
+    private int layerSrcW;
+    private int layerSrcH;
+    private double layerMagnification;
+    private int[] densityCounts = new int[0];
+    private boolean[] densityHighlighted = new boolean[0];
+
     GeometryPointsCanvas(final ImagePlus imp, final StateProvider stateProvider) {
         super(imp);
         this.stateProvider = stateProvider;
 
-        addMouseListener(new MouseAdapter() {
-            @Override
-            public void mousePressed(final MouseEvent e) {
-                if (e.getButton() != MouseEvent.BUTTON1) {
-                    return;
-                }
-                final double x = offScreenXD(e.getX());
-                final double y = offScreenYD(e.getY());
-                if (!Double.isFinite(x) || !Double.isFinite(y)) {
-                    return;
-                }
-                stateProvider.handleCanvasClick(x, y, getCurrentZ());
+        addMouseWheelListener(this::handleMouseWheelZoom);
+    }
+
+    /**
+     * Left press on an existing point selects it (shift: removes it from its model) and starts a drag;
+     * elsewhere it adds a point and falls through to the ImageJ tool handling.
+     */
+    @Override
+    public void mousePressed(final MouseEvent e) {
+        if (e.getButton() != MouseEvent.BUTTON1) {
+            super.mousePressed(e);
+            return;
+        }
+        final double x = offScreenXD(e.getX());
+        final double y = offScreenYD(e.getY());
+        if (!Double.isFinite(x) || !Double.isFinite(y)) {
+            super.mousePressed(e);
+            return;
+        }
+        final long key = pickPoint(x, y);
+        if (key >= 0L) {
+            if (e.isShiftDown()) {
+                stateProvider.handleCanvasRemovePoint(key);
+            } else {
+                dragKey = key;
+                dragMoved = false;
+                dragX = x;
+                dragY = y;
+                stateProvider.handleCanvasSelectPoint(key);
             }
-        });
+            e.consume();
+            return;
+        }
+        super.mousePressed(e);
+        if (!e.isShiftDown()) {
+            stateProvider.handleCanvasClick(x, y, getCurrentZ());
+        }
+    }
 
-        addMouseWheelListener(this::handleMouseWheelZoom);
+    @Override
+    public void mouseDragged(final MouseEvent e) {
+        if (dragKey < 0L) {
+            super.mouseDragged(e);
+            return;
+        }
+        final double x = offScreenXD(e.getX());
+        final double y = offScreenYD(e.getY());
+        if (Double.isFinite(x) && Double.isFinite(y)) {
+            dragX = x;
+            dragY = y;
+            dragMoved = true;
+            repaint();
+        }
+        e.consume();
+    }
+
+    @Override
+    public void mouseReleased(final MouseEvent e) {
+        if (dragKey < 0L) {
+            super.mouseReleased(e);
+            return;
+        }
+        final long key = dragKey;
+        dragKey = -1L;
+        if (dragMoved) {
+            stateProvider.handleCanvasMovePoint(key, dragX, dragY);
+        }
+        e.consume();
+    }
+
+    /**
+     * Hit-tests the current slice through its spatial grid; returns the point key or -1.
+     */
+    private long pickPoint(final double x, final double y) {
+        final RenderState state = stateProvider.getRenderState();
+        if (state == null) {
+            return -1L;
+        }
+        final SliceRenderCache.Slice slice = state.points.slice(getCurrentC(), getCurrentZ());
+        final int index = slice.nearest(x, y, PICK_RADIUS_SCREEN_PX / Math.max(1e-6, getMagnification()));
+        return index < 0 ? -1L : slice.keys[index];
     }
 
     @Override
@@ -104,34 +222,239 @@ class GeometryPointsCanvas extends ImageCanvas {
             return;
         }
         final int currentZ = getCurrentZ();
+        final BufferedImage layer = pointLayer(state.points, getCurrentC(), currentZ);
+        if (layer != null) {
+            g.drawImage(layer, 0, 0, null);
+        }
+
         final Graphics2D g2 = (Graphics2D) g.create();
         g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        for (RenderPoint p : state.points) {
-            if (p.z != currentZ) {
-                continue;
+        if (dragKey >= 0L && dragMoved) {
+            final int sx = screenXD(dragX);
+            final int sy = screenYD(dragY);
+            g2.setColor(Color.RED);
+            g2.fillOval(sx - 4, sy - 4, 8, 8);
+        }
+
+        if (state.sections != null) {
+            final Rectangle src = getSrcRect();
+            g2.setColor(SECTION_COLOR);
+            g2.setStroke(SECTION_STROKE);
+            for (ModelSections sections : state.sections) {
+                sections.draw(g2, currentZ, src.x, src.y, getMagnification());
             }
-            final int sx = screenXD(p.x);
-            final int sy = screenYD(p.y);
-            final int r = p.highlighted ? 4 : 3;
-            g2.setColor(p.highlighted ? Color.RED : Color.BLUE);
-            g2.fillOval(sx - r, sy - r, r * 2, r * 2);
+        }
+
+        final RenderModel preview = state.previewModel;
+        if (preview != null) {
+            g2.setColor(Color.ORANGE);
+            g2.setStroke(PREVIEW_STROKE);
+            drawModelIntersection(g2, preview, currentZ);
         }
 
         final RenderModel model = state.selectedModel;
         if (model != null) {
             g2.setColor(Color.RED);
-            g2.setStroke(new BasicStroke(2f));
-            if (model.type == GeometryPointsControlFrame.ModelType.LINE) {
-                drawLineModelIntersection(g2, model, currentZ);
-            } else {
-                drawPlaneModelIntersection(g2, model, currentZ);
-            }
+            g2.setStroke(MODEL_STROKE);
+            drawModelIntersection(g2, model, currentZ);
         }
 
         g2.dispose();
     }
 
+    /**
+     * Returns the rasterized points of the current slice, redrawing it only when the state version,
+     * channel, slice, viewport or canvas size changed since the last paint.
+     */
+    private BufferedImage pointLayer(final SliceRenderCache points, final int c, final int z) {
+        final int w = getWidth();
+        final int h = getHeight();
+        if (w <= 0 || h <= 0) {
+            return null;
+        }
+        final Rectangle src = getSrcRect();
+        final double mag = getMagnification();
+        if (pointLayer != null && pointLayer.getWidth() == w && pointLayer.getHeight() == h
+                && layerVersion == points.version && layerC == c && layerZ == z && layerMagnification == mag
+                && layerSrcX == src.x && layerSrcY == src.y && layerSrcW == src.width && layerSrcH == src.height) {
+            return pointLayer;
+        }
+
+        if (pointLayer == null || pointLayer.getWidth() != w || pointLayer.getHeight() != h) {
+            pointLayer = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        }
+        layerVersion = points.version;
+        layerC = c;
+        layerZ = z;
+        layerMagnification = mag;
+        layerSrcX = src.x;
+        layerSrcY = src.y;
+        layerSrcW = src.width;
+        layerSrcH = src.height;
+
+        final SliceRenderCache.Slice slice = points.slice(c, z);
+        // Cull to the source rectangle, padded by the largest marker radius.
+        final double pad = 4.0 / Math.max(1e-6, mag);
+        final double minX = src.x - pad;
+        final double minY = src.y - pad;
+        final double maxX = src.x + src.width + pad;
+        final double maxY = src.y + src.height + pad;
+        int visible = 0;
+        for (int i = 0; i < slice.size(); i++) {
+            final double x = slice.x[i];
+            final double y = slice.y[i];
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                visible++;
+            }
+        }
+
+        if (visible > DENSITY_POINT_THRESHOLD) {
+            drawDensity(pointLayer, slice, minX, minY, maxX, maxY);
+            return pointLayer;
+        }
+
+        final Graphics2D lg = pointLayer.createGraphics();
+        lg.setComposite(AlphaComposite.Clear);
+        lg.fillRect(0, 0, w, h);
+        lg.setComposite(AlphaComposite.SrcOver);
+        lg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        for (int i = 0; i < slice.size(); i++) {
+            final double x = slice.x[i];
+            final double y = slice.y[i];
+            if (x < minX || x > maxX || y < minY || y > maxY) {
+                continue;
+            }
+            final boolean highlighted = slice.highlighted[i];
+            final int sx = screenXD(x);
+            final int sy = screenYD(y);
+            final int r = highlighted ? 4 : 3;
+            lg.setColor(highlighted ? Color.RED : Color.BLUE);
+            lg.fillOval(sx - r, sy - r, r * 2, r * 2);
+        }
+        lg.dispose();
+        return pointLayer;
+    }
+
+    /**
+     * Level-of-detail path: bins visible points into DENSITY_BIN_PX screen cells and writes one
+     * pixel block per occupied cell, with opacity growing with the log of the count.
+     */
+    private void drawDensity(final BufferedImage layer, final SliceRenderCache.Slice slice,
+                             final double minX, final double minY, final double maxX, final double maxY) {
+        final int w = layer.getWidth();
+        final int h = layer.getHeight();
+        final int binsX = (w + DENSITY_BIN_PX - 1) / DENSITY_BIN_PX;
+        final int binsY = (h + DENSITY_BIN_PX - 1) / DENSITY_BIN_PX;
+        final int nBins = binsX * binsY;
+        if (densityCounts.length < nBins) {
+            densityCounts = new int[nBins];
+            densityHighlighted = new boolean[nBins];
+        } else {
+            Arrays.fill(densityCounts, 0, nBins, 0);
+            Arrays.fill(densityHighlighted, 0, nBins, false);
+        }
+
+        for (int i = 0; i < slice.size(); i++) {
+            final double x = slice.x[i];
+            final double y = slice.y[i];
+            if (x < minX || x > maxX || y < minY || y > maxY) {
+                continue;
+            }
+            final int sx = screenXD(x);
+            final int sy = screenYD(y);
+            if (sx < 0 || sy < 0 || sx >= w || sy >= h) {
+                continue;
+            }
+            final int bin = (sy / DENSITY_BIN_PX) * binsX + sx / DENSITY_BIN_PX;
+            densityCounts[bin]++;
+            if (slice.highlighted[i]) {
+                densityHighlighted[bin] = true;
+            }
+        }
+
+        final int[] argb = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+        for (int by = 0; by < binsY; by++) {
+            for (int bx = 0; bx < binsX; bx++) {
+                final int bin = by * binsX + bx;
+                final int count = densityCounts[bin];
+                int value = 0;
+                if (count > 0) {
+                    final int alpha = Math.min(255, 110 + (int) (36.0 * Math.log(count) / Math.log(2.0)));
+                    value = (alpha << 24) | (densityHighlighted[bin] ? HIGHLIGHT_RGB : POINT_RGB);
+                }
+                final int x0 = bx * DENSITY_BIN_PX;
+                final int y0 = by * DENSITY_BIN_PX;
+                final int x1 = Math.min(w, x0 + DENSITY_BIN_PX);
+                final int y1 = Math.min(h, y0 + DENSITY_BIN_PX);
+                for (int py = y0; py < y1; py++) {
+                    Arrays.fill(argb, py * w + x0, py * w + x1, value);
+                }
+            }
+        }
+    }
+
+    private void drawModelIntersection(final Graphics2D g2, final RenderModel model, final int z0) {
+        switch (model.type) {
+            case LINE:
+                drawLineModelIntersection(g2, model, z0);
+                break;
+            case PLANE:
+                drawPlaneModelIntersection(g2, model, z0);
+                break;
+            case SPHERE:
+                drawSphereModelIntersection(g2, model, z0);
+                break;
+            default:
+                drawImplicitModelIntersection(g2, model, z0);
+                break;
+        }
+    }
+
+    /**
+     * A sphere meets the slice in a circle of radius sqrt(r^2 - dz^2). Models are fitted with zero-based
+     * z, so the one-based slice is shifted down by one.
+     */
+    private void drawSphereModelIntersection(final Graphics2D g2, final RenderModel model, final int z0) {
+        final double dz = z0 - 1.0 - model.cz;
+        final double r = model.shape[0];
+        final double rr = r * r - dz * dz;
+        if (!(rr > 0.0)) {
+            return;
+        }
+        final double rho = Math.sqrt(rr);
+        g2.draw(new Ellipse2D.Double(screenXD(model.cx - rho), screenYD(model.cy - rho),
+                2.0 * rho * getMagnification(), 2.0 * rho * getMagnification()));
+    }
+
+    /**
+     * Contours f = 0 on the current slice for cylinders (f = squared axis distance - r^2) and quadrics
+     * (f = Q) by marching squares over a coarse screen grid covering the visible canvas.
+     */
+    private void drawImplicitModelIntersection(final Graphics2D g2, final RenderModel model, final int z0) {
+        final int w = getWidth();
+        final int h = getHeight();
+        if (w <= 0 || h <= 0 || model.shape.length == 0) {
+            return;
+        }
+        final double z = z0 - 1.0;
+        final int cols = w / CONTOUR_STEP_PX + 2;
+        final int rows = h / CONTOUR_STEP_PX + 2;
+        final double[] f = new double[cols * rows];
+        for (int j = 0; j < rows; j++) {
+            final double y = offScreenYD(j * CONTOUR_STEP_PX);
+            for (int i = 0; i < cols; i++) {
+                f[j * cols + i] = ModelSections.implicitValue(model, offScreenXD(i * CONTOUR_STEP_PX), y, z);
+            }
+        }
+        ModelSections.contour(f, cols, rows, 0.0, 0.0, CONTOUR_STEP_PX,
+                (x1, y1, x2, y2) -> g2.draw(new Line2D.Double(x1, y1, x2, y2)));
+    }
+
+    private int getCurrentC() {
+        return imp == null ? 1 : Math.max(1, imp.getC());
+    }
+
     private int getCurrentZ() {
         if (imp == null) {
             return 1;
@@ -154,7 +477,7 @@ class GeometryPointsCanvas extends ImageCanvas {
         }
 
         if (Math.abs(model.vz) > eps) {
-            final double t = (z0 - model.cz) / model.vz;
+            final double t = (z0 - 1.0 - model.cz) / model.vz;
             final double x = model.cx + t * model.vx;
             final double y = model.cy + t * model.vy;
             if (x < 0 || y < 0 || x > w - 1 || y > h - 1) {
@@ -168,7 +491,7 @@ class GeometryPointsCanvas extends ImageCanvas {
             return;
         }
 
-        if (Math.abs(z0 - Math.round(model.cz)) <= 1.0) {
+        if (Math.abs(z0 - 1.0 - Math.round(model.cz)) <= 1.0) {
             final double norm = Math.hypot(model.vx, model.vy);
             if (norm <= eps) {
                 final int sx = screenXD(model.cx);
@@ -202,7 +525,7 @@ class GeometryPointsCanvas extends ImageCanvas {
         final double nz = model.vz;
 
         if (Math.abs(nx) + Math.abs(ny) <= eps) {
-            if (Math.abs(z0 - model.cz) <= 0.5) {
+            if (Math.abs(z0 - 1.0 - model.cz) <= 0.5) {
                 g2.setColor(new Color(255, 0, 0, 120));
                 final int sx = screenXD(model.cx);
                 final int sy = screenYD(model.cy);
@@ -211,7 +534,7 @@ class GeometryPointsCanvas extends ImageCanvas {
             return;
         }
 
-        final double c = nz * (z0 - model.cz) - nx * model.cx - ny * model.cy;
+        final double c = nz * (z0 - 1.0 - model.cz) - nx * model.cx - ny * model.cy;
         final List<double[]> pts = new ArrayList<>(4);
 
         addIntersectionForX(pts, 0, ny, c, h, eps);
@@ -3,16 +3,21 @@ package org.uedalab.clijplugin;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
 
 import javax.swing.AbstractCellEditor;
 import javax.swing.BorderFactory;
-import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
-import javax.swing.JRadioButton;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSlider;
 import javax.swing.JSplitPane;
@@ -20,6 +25,8 @@ import javax.swing.JTable;
 import javax.swing.KeyStroke;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableCellEditor;
 import javax.swing.table.TableCellRenderer;
@@ -28,25 +35,47 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.Frame;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GeometryPointsControlFrame extends JFrame implements GeometryPointsCanvas.StateProvider {
 
+    private static final int PREVIEW_STATS_DELAY_MS = 150;
+    private static final int JOB_PROGRESS_CHUNK = 1 << 16;
+    private static final double[] NO_SHAPE = new double[0];
+    private static final String IMPORT_SOURCE_CSV = "CSV file...";
+    private static final String IMPORT_TO_UNASSIGNED = "unassigned points";
+    private static final String IMPORT_TO_MODELS = "models by role";
+    private static final int UNDO_LIMIT = 100;
+    private static final int SNAP_RADIUS_XY = 3;
+    private static final int SNAP_RADIUS_Z = 1;
+    private static final int SNAP_ITERATIONS = 5;
+
     private final JLabel boundImageLabel = new JLabel("bound image: (none)");
     private final JLabel zInfoLabel = new JLabel("Z: - / -");
     private final JPanel canvasContainer = new JPanel(new BorderLayout());
     private final JSlider channelSlider = new JSlider(1, 1, 1);
     private final JSlider zSlider = new JSlider(1, 1, 1);
+    private final JSlider tSlider = new JSlider(1, 1, 1);
 
     private final PointsTableModel pointsModel = new PointsTableModel();
     private final ModelsTableModel modelsModel = new ModelsTableModel();
@@ -55,31 +84,114 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
 
     private final JComboBox<String> lineSelector = new JComboBox<>();
     private final JComboBox<String> planeSelector = new JComboBox<>();
+    private final JComboBox<String> targetModelSelector = new JComboBox<>();
     private final JLabel angleLabel = new JLabel("--");
-
-    private JRadioButton lineRadio;
-    private JRadioButton planeRadio;
-
-    private final Map<Long, PointRecord> allPoints = new LinkedHashMap<>();
-    private final List<Long> unassignedPointKeys = new ArrayList<>();
+    private final JCheckBox liveCheck = new JCheckBox("live");
+    private final JCheckBox perChannelCheck = new JCheckBox("per channel");
+    private final JCheckBox snapCheck = new JCheckBox("snap clicks");
+    private final JCheckBox channelOnlyCheck = new JCheckBox("current channel only");
+    private final JCheckBox allSectionsCheck = new JCheckBox("all model sections");
+    private final JLabel previewLabel = new JLabel();
+    private final JButton fitButton = new JButton("fitting");
+    private final JButton addToModelButton = new JButton("add to model");
+    private final JButton cancelJobButton = new JButton("cancel");
+    private final JButton saveButton = new JButton("save session...");
+    private final JButton loadButton = new JButton("load session...");
+    private final JButton importButton = new JButton("import table...");
+    private final JProgressBar jobProgress = new JProgressBar(0, 100);
+    private final JButton undoButton = new JButton("undo");
+    private final JButton redoButton = new JButton("redo");
+
+    private final JComboBox<ModelType> fitTypeCombo = new JComboBox<>(ModelType.values());
+
+    private LongObjectHashMap<PointRecord> allPoints = new LongObjectHashMap<>();
+    /**
+     * Ascending point keys; keys are issued in id order, so this is also the table's id order.
+     */
+    private LongArrayList unassignedPointKeys = new LongArrayList();
     private final List<ModelRecord> models = new ArrayList<>();
+    private final Map<String, ModelRecord> modelsById = new HashMap<>();
+    /**
+     * Owning model of every assigned point key; unassigned points have no entry.
+     */
+    private LongObjectHashMap<ModelRecord> pointOwners = new LongObjectHashMap<>();
+    private final PointMoments unassignedMoments = new PointMoments();
+
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "geometry-points-preview");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> pendingPreviewStats;
+    private long previewGeneration;
+    private GeometryPointsCanvas.RenderModel previewModel;
+    private double previewRms;
+    private Future<?> pendingMaxDistances;
+    private Future<?> pendingSurfaceRefits;
+    /**
+     * Debounces the background passes: every edit restarts it, and once edits pause it fires on the EDT,
+     * where each pass copies the points it reads before handing them to the preview executor.
+     */
+    private final Timer previewTimer = new Timer(PREVIEW_STATS_DELAY_MS, e -> startPreviewPasses());
+
+    private final ExecutorService jobExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "geometry-points-jobs");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FrameJob<?> activeJob;
+    private long renderVersion;
+    private GeometryPointsCanvas.RenderState renderState;
+    /**
+     * Bumped whenever the unassigned points change, so a fit job started on them can tell that its
+     * result no longer applies.
+     */
+    private long unassignedVersion;
+    private SessionStore.Journal journal;
+    /**
+     * Journal of a save in progress. Edits go to it as well as to the current journal until the save
+     * finishes, so either one is complete whether the save succeeds or not.
+     */
+    private SessionStore.Journal savingJournal;
+    private final ArrayDeque<Edit> undoStack = new ArrayDeque<>();
+    private final ArrayDeque<Edit> redoStack = new ArrayDeque<>();
 
     private ImagePlus boundImage;
     private GeometryPointsCanvas imageCanvas;
     private long nextPointKey = 1;
     private int nextPointId = 1;
-    private int nextLineId = 1;
-    private int nextPlaneId = 1;
+    /**
+     * Next id number of each model type, indexed by ordinal. Numbers only grow, so an id is never
+     * reused for another model after a delete.
+     */
+    private int[] nextModelIds = initialModelIds();
 
     public GeometryPointsControlFrame() {
         super("Geometry Points Control");
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         setSize(1220, 760);
         setLocationByPlatform(true);
+        previewTimer.setRepeats(false);
         buildUi();
         refreshBoundImageLabel();
     }
 
+    @Override
+    public void dispose() {
+        if (activeJob != null) {
+            activeJob.cancel(true);
+        }
+        if (savingJournal != null) {
+            savingJournal.discard();
+            savingJournal = null;
+        }
+        closeJournal();
+        previewTimer.stop();
+        jobExecutor.shutdownNow();
+        previewExecutor.shutdownNow();
+        super.dispose();
+    }
+
     private void buildUi() {
         setLayout(new BorderLayout(8, 8));
 
@@ -135,24 +247,61 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
         top.add(boundImageLabel, BorderLayout.CENTER);
         final JButton bindButton = new JButton("bind active image");
         bindButton.addActionListener(e -> bindActiveImage());
-        top.add(bindButton, BorderLayout.EAST);
+        saveButton.addActionListener(e -> saveSession());
+        loadButton.addActionListener(e -> loadSession());
+
+        undoButton.addActionListener(e -> undo());
+        redoButton.addActionListener(e -> redo());
+        updateUndoButtons();
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("ctrl Z"), "undoEdit");
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("ctrl Y"), "redoEdit");
+        getRootPane().getActionMap().put("undoEdit", new javax.swing.AbstractAction() {
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                undo();
+            }
+        });
+        getRootPane().getActionMap().put("redoEdit", new javax.swing.AbstractAction() {
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                redo();
+            }
+        });
+
+        final JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+        buttons.add(undoButton);
+        buttons.add(redoButton);
+        buttons.add(saveButton);
+        buttons.add(loadButton);
+        buttons.add(bindButton);
+        top.add(buttons, BorderLayout.EAST);
         return top;
     }
 
     private JPanel buildSliders() {
-        final JPanel sliderPanel = new JPanel(new GridLayout(3, 2, 6, 4));
+        final JPanel sliderPanel = new JPanel(new GridLayout(6, 2, 6, 4));
         sliderPanel.setBorder(BorderFactory.createEmptyBorder(4, 0, 0, 0));
         sliderPanel.add(new JLabel("Channel"));
         sliderPanel.add(channelSlider);
         sliderPanel.add(new JLabel("Z"));
         sliderPanel.add(zSlider);
+        sliderPanel.add(new JLabel("T"));
+        sliderPanel.add(tSlider);
+        sliderPanel.add(new JLabel("Points"));
+        sliderPanel.add(channelOnlyCheck);
+        sliderPanel.add(new JLabel("Models"));
+        sliderPanel.add(allSectionsCheck);
         sliderPanel.add(new JLabel("Slice"));
         sliderPanel.add(zInfoLabel);
 
         channelSlider.addChangeListener(e -> applyChannelFromSlider());
         zSlider.addChangeListener(e -> applyZFromSlider());
+        tSlider.addChangeListener(e -> applyTFromSlider());
+        channelOnlyCheck.addActionListener(e -> rebuildOverlay());
+        allSectionsCheck.addActionListener(e -> rebuildOverlay());
         channelSlider.setEnabled(false);
         zSlider.setEnabled(false);
+        tSlider.setEnabled(false);
         return sliderPanel;
     }
 
@@ -168,16 +317,23 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
                 rebuildOverlay();
             }
         });
-        pointsTable.getColumnModel().getColumn(4).setCellRenderer(new DeleteButtonRenderer());
-        pointsTable.getColumnModel().getColumn(4).setCellEditor(new DeleteButtonEditor(pointsTable, this::deletePointRow));
-        pointsTable.getColumnModel().getColumn(4).setMaxWidth(52);
-        pointsTable.getColumnModel().getColumn(4).setMinWidth(42);
+        pointsTable.getColumnModel().getColumn(6).setCellRenderer(new DeleteButtonRenderer());
+        pointsTable.getColumnModel().getColumn(6).setCellEditor(new DeleteButtonEditor(pointsTable, this::deletePointRow));
+        pointsTable.getColumnModel().getColumn(6).setMaxWidth(52);
+        pointsTable.getColumnModel().getColumn(6).setMinWidth(42);
 
+        // Fixed row height keeps the table virtual: only visible rows are ever asked for values.
+        pointsTable.setRowHeight(pointsTable.getRowHeight());
         final JScrollPane scrollPane = new JScrollPane(pointsTable);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         panel.add(scrollPane, BorderLayout.CENTER);
         panel.setMinimumSize(new Dimension(380, 160));
 
+        final JPanel pointButtons = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 2));
+        importButton.addActionListener(e -> importPointTable());
+        pointButtons.add(importButton);
+        panel.add(pointButtons, BorderLayout.SOUTH);
+
         pointsTable.getInputMap().put(KeyStroke.getKeyStroke("DELETE"), "deletePointRow");
         pointsTable.getActionMap().put("deletePointRow", new javax.swing.AbstractAction() {
             @Override
@@ -192,24 +348,44 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
     }
 
     private JPanel buildFitPanel() {
-        final JPanel panel = new JPanel(new BorderLayout());
+        final JPanel panel = new JPanel(new GridLayout(3, 1));
         panel.setBorder(BorderFactory.createTitledBorder("Fitting"));
-        panel.setPreferredSize(new Dimension(460, 66));
+        panel.setPreferredSize(new Dimension(460, 132));
 
         final JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 6));
-        final JButton fitButton = new JButton("fitting");
-        lineRadio = new JRadioButton("line", true);
-        planeRadio = new JRadioButton("plane", false);
-        final ButtonGroup group = new ButtonGroup();
-        group.add(lineRadio);
-        group.add(planeRadio);
-
-        fitButton.addActionListener(e -> fitCurrentUnassignedPoints(lineRadio.isSelected() ? ModelType.LINE : ModelType.PLANE));
+        fitButton.addActionListener(e -> fitCurrentUnassignedPoints(selectedFitType()));
+        fitTypeCombo.addActionListener(e -> {
+            refreshLivePreview();
+            rebuildOverlay();
+        });
+        liveCheck.addActionListener(e -> {
+            refreshLivePreview();
+            rebuildOverlay();
+        });
 
         controls.add(fitButton);
-        controls.add(lineRadio);
-        controls.add(planeRadio);
-        panel.add(controls, BorderLayout.CENTER);
+        controls.add(fitTypeCombo);
+        controls.add(perChannelCheck);
+        controls.add(liveCheck);
+        controls.add(snapCheck);
+        controls.add(previewLabel);
+        panel.add(controls);
+
+        final JPanel editControls = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 6));
+        addToModelButton.addActionListener(e -> addUnassignedPointsToModel());
+        editControls.add(addToModelButton);
+        editControls.add(targetModelSelector);
+        editControls.add(new JLabel("drag: move point, shift+click: remove from selected model"));
+        panel.add(editControls);
+
+        final JPanel jobControls = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 6));
+        jobProgress.setStringPainted(true);
+        jobProgress.setString("idle");
+        cancelJobButton.setEnabled(false);
+        cancelJobButton.addActionListener(e -> cancelActiveJob());
+        jobControls.add(jobProgress);
+        jobControls.add(cancelJobButton);
+        panel.add(jobControls);
         return panel;
     }
 
@@ -291,10 +467,12 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
         if (boundImage == null) {
             channelSlider.setEnabled(false);
             zSlider.setEnabled(false);
+            tSlider.setEnabled(false);
             return;
         }
         final int channels = Math.max(1, boundImage.getNChannels());
         final int slices = Math.max(1, boundImage.getNSlices());
+        final int frames = Math.max(1, boundImage.getNFrames());
 
         channelSlider.setMinimum(1);
         channelSlider.setMaximum(channels);
@@ -305,6 +483,11 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
         zSlider.setMaximum(slices);
         zSlider.setValue(Math.max(1, boundImage.getZ()));
         zSlider.setEnabled(slices > 1);
+
+        tSlider.setMinimum(1);
+        tSlider.setMaximum(frames);
+        tSlider.setValue(Math.max(1, boundImage.getT()));
+        tSlider.setEnabled(frames > 1);
         updateZInfoLabel();
     }
 
@@ -321,7 +504,6 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
             boundImage.setC(c);
         }
         boundImage.updateAndDraw();
-        rebuildOverlay();
         if (imageCanvas != null) imageCanvas.repaint();
     }
 
@@ -337,43 +519,115 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
         }
         boundImage.updateAndDraw();
         updateZInfoLabel();
-        rebuildOverlay();
         if (imageCanvas != null) imageCanvas.repaint();
     }
 
+    /**
+     * Points belong to one timepoint, so changing T rebuilds the render state for the new frame.
+     */
+    private void applyTFromSlider() {
+        if (boundImage == null) {
+            return;
+        }
+        final int t = Math.max(1, tSlider.getValue());
+        if (t == boundImage.getT()) {
+            return;
+        }
+        if (boundImage.isHyperStack()) {
+            boundImage.setPosition(Math.max(1, boundImage.getC()), Math.max(1, boundImage.getZ()), t);
+        } else {
+            boundImage.setT(t);
+        }
+        boundImage.updateAndDraw();
+        rebuildOverlay();
+    }
+
+    /**
+     * Returns the cached render state; it is rebuilt (one pass over allPoints, bucketed by channel and z
+     * and limited to the current timepoint) only after {@link #rebuildOverlay()} has bumped the render
+     * version, never on channel or slice changes.
+     */
     @Override
     public GeometryPointsCanvas.RenderState getRenderState() {
+        if (renderState == null || renderState.points.version != renderVersion) {
+            renderState = buildRenderState();
+        }
+        return renderState;
+    }
+
+    private GeometryPointsCanvas.RenderState buildRenderState() {
         final int selectedPointRow = pointsTable.getSelectedRow();
-        final int selectedModelRow = modelsTable.getSelectedRow();
 
-        Long selectedPointKey = null;
+        long selectedPointKey = -1L;
         if (selectedPointRow >= 0 && selectedPointRow < unassignedPointKeys.size()) {
             selectedPointKey = unassignedPointKeys.get(selectedPointRow);
         }
 
-        ModelRecord selectedModel = null;
-        if (selectedModelRow >= 0 && selectedModelRow < models.size()) {
-            selectedModel = models.get(selectedModelRow);
-        }
+        final ModelRecord selectedModel = selectedModel();
+        final LongHashSet highlightedKeys = selectedModel == null ? null : selectedModel.pointKeys;
+
+        // Single-frame images show every point, whatever t it was recorded at.
+        final int frame = boundImage != null && boundImage.getNFrames() > 1 ? boundImage.getT() : 0;
+        final SliceRenderCache points = buildPointCache(allPoints, frame, selectedPointKey, highlightedKeys,
+                renderVersion, channelOnlyCheck.isSelected());
+
+        final GeometryPointsCanvas.RenderModel renderModel = selectedModel == null ? null : renderModel(selectedModel);
+        return new GeometryPointsCanvas.RenderState(points, renderModel, previewModel, currentSections());
+    }
 
-        final List<GeometryPointsCanvas.RenderPoint> points = new ArrayList<>();
-        for (PointRecord p : allPoints.values()) {
-            boolean highlighted = selectedPointKey != null && selectedPointKey == p.key;
-            if (!highlighted && selectedModel != null) {
-                highlighted = selectedModel.pointKeys.contains(p.key);
+    /**
+     * Buckets the points of one timepoint (0 = every timepoint) by slice, and by channel when asked,
+     * flagging the selected point and the points of the highlighted model (may be null).
+     */
+    static SliceRenderCache buildPointCache(final LongObjectHashMap<PointRecord> points, final int frame,
+                                            final long selectedPointKey, final LongHashSet highlightedKeys,
+                                            final long version, final boolean byChannel) {
+        final SliceRenderCache.Builder builder = new SliceRenderCache.Builder(version, byChannel);
+        final int slots = points.capacity();
+        for (int slot = 0; slot < slots; slot++) {
+            final PointRecord p = points.valueAt(slot);
+            if (p != null && (frame == 0 || p.t == frame)) {
+                builder.count(p.c, p.z);
+            }
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            final PointRecord p = points.valueAt(slot);
+            if (p == null || (frame != 0 && p.t != frame)) {
+                continue;
             }
-            points.add(new GeometryPointsCanvas.RenderPoint(p.x, p.y, p.z, highlighted));
+            final boolean highlighted = p.key == selectedPointKey
+                    || (highlightedKeys != null && highlightedKeys.contains(p.key));
+            builder.add(p.c, p.z, p.key, p.x, p.y, highlighted);
         }
+        return builder.build();
+    }
 
-        GeometryPointsCanvas.RenderModel renderModel = null;
-        if (selectedModel != null) {
-            renderModel = new GeometryPointsCanvas.RenderModel(
-                    selectedModel.type,
-                    selectedModel.cx, selectedModel.cy, selectedModel.cz,
-                    selectedModel.vx, selectedModel.vy, selectedModel.vz
-            );
+    /**
+     * Returns every model's section table when that display is on. A model's table is dropped when its
+     * fit changes and recreated here empty; it intersects a slice only when that slice is drawn, so an
+     * edit costs the visible slice of the edited model instead of every slice of every model.
+     */
+    private ModelSections[] currentSections() {
+        if (!allSectionsCheck.isSelected() || boundImage == null) {
+            return null;
         }
-        return new GeometryPointsCanvas.RenderState(points, renderModel);
+        final int width = boundImage.getWidth();
+        final int height = boundImage.getHeight();
+        final int slices = Math.max(1, boundImage.getNSlices());
+        final ModelSections[] sections = new ModelSections[models.size()];
+        for (int m = 0; m < sections.length; m++) {
+            final ModelRecord model = models.get(m);
+            if (model.sections == null || !model.sections.isFor(width, height, slices)) {
+                model.sections = ModelSections.of(renderModel(model), width, height, slices);
+            }
+            sections[m] = model.sections;
+        }
+        return sections;
+    }
+
+    private static GeometryPointsCanvas.RenderModel renderModel(final ModelRecord model) {
+        return new GeometryPointsCanvas.RenderModel(model.type, model.cx, model.cy, model.cz,
+                model.vx, model.vy, model.vz, model.shape);
     }
 
     @Override
@@ -384,259 +638,1647 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
         if (!Double.isFinite(x) || !Double.isFinite(y)) {
             return;
         }
-        final int zSlice = clampSlice(z > 0 ? z : boundImage.getZ());
-        final long key = nextPointKey++;
-        final PointRecord p = new PointRecord(key, nextPointId++, x, y, zSlice);
-        allPoints.put(key, p);
-        unassignedPointKeys.add(key);
+        final int[] ts = {Math.max(1, boundImage.getT())};
+        final int[] cs = {Math.max(1, boundImage.getC())};
+        // Snapping refines x, y to sub-pixel; z stays a slice index, so it is rounded to the nearest slice.
+        final double[] clicked = {x, y, clampSlice(z > 0 ? z : boundImage.getZ()) - 1.0};
+        if (snapCheck.isSelected()) {
+            new PointRefiner(boundImage, SNAP_RADIUS_XY, SNAP_RADIUS_Z, PointRefiner.Method.CENTROID, SNAP_ITERATIONS)
+                    .refine(clicked, cs[0], ts[0]);
+        }
+        final int zSlice = clampSlice((int) Math.round(clicked[2]) + 1);
+        final long key = nextPointKey;
+        final int id = nextPointId;
+        final double[] xs = {clicked[0]};
+        final double[] ys = {clicked[1]};
+        final int[] zs = {zSlice};
+        final EditState before = new EditState(null);
+        insertPoints(key, id, 1, xs, ys, zs, ts, cs);
+        record(j -> j.pointsAdded(key, id, 1, xs, ys, zs, ts, cs));
+        pushEdit(new AddPointsEdit(before, key, id, 1, xs, ys, zs, ts, cs));
         pointsModel.fireTableDataChanged();
+        refreshLivePreview();
         rebuildOverlay();
     }
 
-    private void fitCurrentUnassignedPoints(final ModelType type) {
-        if (unassignedPointKeys.isEmpty()) {
-            IJ.error("No points to fit.");
-            return;
-        }
-
-        final List<double[]> fitPoints = new ArrayList<>();
-        for (Long key : unassignedPointKeys) {
-            final PointRecord p = allPoints.get(key);
-            if (p != null) {
-                fitPoints.add(new double[]{p.x, p.y, p.z - 1.0});
-            }
-        }
-
-        if (type == ModelType.LINE && fitPoints.size() < 2) {
-            IJ.error("Need at least 2 points for line fitting.");
+    @Override
+    public void handleCanvasRemovePoint(final long key) {
+        final ModelRecord model = selectedModel();
+        if (model == null || !model.pointKeys.contains(key)) {
             return;
         }
-        if (type == ModelType.PLANE && fitPoints.size() < 3) {
-            IJ.error("Need at least 3 points for plane fitting.");
+        if (model.pointKeys.size() <= minimumPoints(model.type)) {
+            IJ.error("Model " + model.id + " needs at least " + minimumPoints(model.type)
+                    + " points. Delete the model instead.");
             return;
         }
 
-        final List<Long> assignedKeys = new ArrayList<>(unassignedPointKeys);
-        final ModelRecord model;
-        if (type == ModelType.LINE) {
-            final Pca3DUtils.LineFitResult fit = Pca3DUtils.fitLine(fitPoints);
-            final String id = "L" + nextLineId++;
-            final String eq = String.format(Locale.ROOT,
-                    "c=(%.4f,%.4f,%.4f), d=(%.4f,%.4f,%.4f), rms=%.4f",
-                    fit.centroid[0], fit.centroid[1], fit.centroid[2],
-                    fit.direction[0], fit.direction[1], fit.direction[2], fit.rmsDist);
-            model = new ModelRecord(id, ModelType.LINE, fit.centroid[0], fit.centroid[1], fit.centroid[2],
-                    fit.direction[0], fit.direction[1], fit.direction[2], fit.rmsDist, 0.0,
-                    clampSlice((int) Math.round(fit.centroid[2] + 1.0)), assignedKeys, eq);
-        } else {
-            final Pca3DUtils.PlaneFitResult fit = Pca3DUtils.fitPlane(fitPoints);
-            final String id = "P" + nextPlaneId++;
-            final String eq = String.format(Locale.ROOT,
-                    "c=(%.4f,%.4f,%.4f), n=(%.4f,%.4f,%.4f), rms=%.4f, max=%.4f",
-                    fit.centroid[0], fit.centroid[1], fit.centroid[2],
-                    fit.normal[0], fit.normal[1], fit.normal[2], fit.rmsDist, fit.maxDist);
-            model = new ModelRecord(id, ModelType.PLANE, fit.centroid[0], fit.centroid[1], fit.centroid[2],
-                    fit.normal[0], fit.normal[1], fit.normal[2], fit.rmsDist, fit.maxDist,
-                    clampSlice((int) Math.round(fit.centroid[2] + 1.0)), assignedKeys, eq);
-        }
-
-        models.add(model);
-        unassignedPointKeys.clear();
+        final EditState before = new EditState(model);
+        final long[] keys = {key};
+        detachPoints(model, keys, 1);
+        record(j -> j.pointsUnassigned(model.id, keys, 1));
+        pushEdit(new DetachEdit(before, model, keys));
         pointsModel.fireTableDataChanged();
-        modelsModel.fireTableDataChanged();
-        refreshAngleSelectors();
-        modelsTable.getSelectionModel().setSelectionInterval(models.size() - 1, models.size() - 1);
+        final int row = models.indexOf(model);
+        modelsModel.fireTableRowsUpdated(row, row);
+        refreshLivePreview();
         rebuildOverlay();
     }
 
-    private void deletePointRow(final int row) {
-        if (row < 0 || row >= unassignedPointKeys.size()) {
+    @Override
+    public void handleCanvasSelectPoint(final long key) {
+        final int pointRow = unassignedPointKeys.binarySearch(key);
+        if (pointRow >= 0) {
+            pointsTable.getSelectionModel().setSelectionInterval(pointRow, pointRow);
+            pointsTable.scrollRectToVisible(pointsTable.getCellRect(pointRow, 0, true));
             return;
         }
-        final Long key = unassignedPointKeys.remove(row);
-        allPoints.remove(key);
-        pointsTable.clearSelection();
-        pointsModel.fireTableDataChanged();
-        rebuildOverlay();
+        final ModelRecord owner = findOwnerModel(key);
+        if (owner != null) {
+            final int modelRow = models.indexOf(owner);
+            modelsTable.getSelectionModel().setSelectionInterval(modelRow, modelRow);
+        }
     }
 
-    private void deleteModelRow(final int row) {
-        if (row < 0 || row >= models.size()) {
+    /**
+     * Moves a point within its slice. The owning model (or the unassigned moments) is updated by
+     * removing the old and adding the new position, then refit in O(1).
+     */
+    @Override
+    public void handleCanvasMovePoint(final long key, final double x, final double y) {
+        if (!allPoints.containsKey(key) || !Double.isFinite(x) || !Double.isFinite(y)) {
             return;
         }
-        final ModelRecord removed = models.remove(row);
-        for (Long key : removed.pointKeys) {
-            if (allPoints.containsKey(key)) {
-                unassignedPointKeys.add(key);
+        final PointRecord old = allPoints.get(key);
+        final EditState before = new EditState(findOwnerModel(key));
+        final ModelRecord owner = relocatePoint(key, x, y);
+        record(j -> j.pointMoved(key, x, y));
+        pushEdit(new MovePointEdit(before, key, old.x, old.y, x, y));
+
+        if (owner == null) {
+            final int pointRow = unassignedPointKeys.binarySearch(key);
+            if (pointRow >= 0) {
+                pointsModel.fireTableRowsUpdated(pointRow, pointRow);
             }
+        } else {
+            final int modelRow = models.indexOf(owner);
+            modelsModel.fireTableRowsUpdated(modelRow, modelRow);
         }
-        Collections.sort(unassignedPointKeys, (a, b) -> Integer.compare(allPoints.get(a).id, allPoints.get(b).id));
-        modelsTable.clearSelection();
-        pointsModel.fireTableDataChanged();
-        modelsModel.fireTableDataChanged();
-        refreshAngleSelectors();
+        refreshLivePreview();
         rebuildOverlay();
     }
 
-    private void rebuildOverlay() {
-        if (boundImage == null) {
-            return;
-        }
-        boundImage.setOverlay(null);
-        boundImage.updateAndDraw();
-        if (imageCanvas != null) imageCanvas.repaint();
+    private ModelRecord findOwnerModel(final long key) {
+        return pointOwners.get(key);
     }
 
-    private void computeAngle() {
-        final String lineId = (String) lineSelector.getSelectedItem();
-        final String planeId = (String) planeSelector.getSelectedItem();
-        if (lineId == null || planeId == null) {
-            angleLabel.setText("--");
-            IJ.error("Select one line model and one plane model.");
+    /**
+     * Fits the current unassigned points on the job executor. The points are snapshotted here; if the
+     * unassigned list changes before the job finishes, the result is dropped. With "per channel" the
+     * points are partitioned by channel in one counting pass and every channel with enough points
+     * becomes its own model.
+     */
+    private void fitCurrentUnassignedPoints(final ModelType type) {
+        if (unassignedPointKeys.isEmpty()) {
+            IJ.error("No points to fit.");
             return;
         }
-        final ModelRecord line = findModelById(lineId);
-        final ModelRecord plane = findModelById(planeId);
-        if (line == null || plane == null) {
-            angleLabel.setText("--");
-            return;
+
+        final int total = unassignedPointKeys.size();
+        final PointRecord[] points = new PointRecord[total];
+        int count = 0;
+        int maxChannel = 1;
+        for (int i = 0; i < total; i++) {
+            final PointRecord p = allPoints.get(unassignedPointKeys.get(i));
+            if (p != null) {
+                points[count++] = p;
+                maxChannel = Math.max(maxChannel, p.c);
+            }
         }
 
-        final double[] d = Pca3DUtils.normalize(new double[]{line.vx, line.vy, line.vz}, new double[]{Double.NaN, Double.NaN, Double.NaN});
-        final double[] n = Pca3DUtils.normalize(new double[]{plane.vx, plane.vy, plane.vz}, new double[]{Double.NaN, Double.NaN, Double.NaN});
-        if (!Double.isFinite(d[0]) || !Double.isFinite(n[0])) {
-            angleLabel.setText("--");
-            IJ.error("Model vectors are invalid.");
+        // Group start offsets into the partitioned arrays; a single group when not splitting by channel.
+        final boolean byChannel = perChannelCheck.isSelected() && maxChannel > 1;
+        final int groupCount = byChannel ? maxChannel : 1;
+        final int[] groupStart = new int[groupCount + 1];
+        for (int i = 0; i < count; i++) {
+            groupStart[(byChannel ? points[i].c - 1 : 0) + 1]++;
+        }
+        for (int g = 0; g < groupCount; g++) {
+            groupStart[g + 1] += groupStart[g];
+        }
+        final int[] fill = Arrays.copyOf(groupStart, groupCount);
+        final long[] keys = new long[count];
+        final double[] coords = new double[count * 3];
+        for (int i = 0; i < count; i++) {
+            final PointRecord p = points[i];
+            final int k = fill[byChannel ? p.c - 1 : 0]++;
+            keys[k] = p.key;
+            coords[k * 3] = p.x;
+            coords[k * 3 + 1] = p.y;
+            coords[k * 3 + 2] = p.z - 1.0;
+        }
+
+        final int minimum = minimumPoints(type);
+        final List<Integer> fitted = new ArrayList<>();
+        for (int g = 0; g < groupCount; g++) {
+            if (groupStart[g + 1] - groupStart[g] >= minimum) {
+                fitted.add(g);
+            }
+        }
+        if (fitted.isEmpty()) {
+            IJ.error("Need at least " + minimum + " points" + (byChannel ? " in one channel" : "") + " for "
+                    + type + " fitting.");
             return;
         }
 
-        double dot = d[0] * n[0] + d[1] * n[1] + d[2] * n[2];
-        dot = Math.abs(dot);
-        dot = Math.max(-1.0, Math.min(1.0, dot));
-        final double thetaDeg = Math.toDegrees(Math.acos(dot));
-        final double angleDeg = 90.0 - thetaDeg;
-        angleLabel.setText(String.format(Locale.ROOT, "%.2f\u00B0", angleDeg));
+        final long version = unassignedVersion;
+        final long progressTotal = 2L * count;
+        startJob(new FrameJob<FitOutcome[]>("fitting") {
+            @Override
+            protected FitOutcome[] doInBackground() {
+                final FitOutcome[] fits = new FitOutcome[fitted.size()];
+                long progress = 0L;
+                for (int f = 0; f < fits.length; f++) {
+                    final int g = fitted.get(f);
+                    final int n = groupStart[g + 1] - groupStart[g];
+                    final double[] groupCoords = Arrays.copyOfRange(coords, groupStart[g] * 3, groupStart[g + 1] * 3);
+                    fits[f] = computeFit(type, groupCoords, n, this, progress, progressTotal);
+                    if (fits[f] == null) {
+                        return null;
+                    }
+                    progress += 2L * n;
+                }
+                return fits;
+            }
+
+            @Override
+            protected void apply(final FitOutcome[] fits) {
+                if (version != unassignedVersion) {
+                    jobProgress.setString("points changed; fit discarded");
+                    return;
+                }
+                final List<Edit> parts = new ArrayList<>();
+                for (int f = 0; f < fits.length; f++) {
+                    final int g = fitted.get(f);
+                    // The counting pass is stable, so every group's keys are still ascending.
+                    final long[] groupKeys = Arrays.copyOfRange(keys, groupStart[g], groupStart[g + 1]);
+                    parts.add(createFittedModel(type, groupKeys, fits[f]));
+                }
+                pushEdit(parts.size() == 1 ? parts.get(0) : new CompoundEdit("fit per channel", parts));
+                pointsModel.fireTableDataChanged();
+                modelsModel.fireTableDataChanged();
+                refreshModelSelectors();
+                modelsTable.getSelectionModel().setSelectionInterval(models.size() - 1, models.size() - 1);
+                refreshLivePreview();
+                rebuildOverlay();
+            }
+        });
     }
 
-    private void refreshAngleSelectors() {
-        final String selectedLine = (String) lineSelector.getSelectedItem();
-        final String selectedPlane = (String) planeSelector.getSelectedItem();
+    /**
+     * Creates and attaches a model from a finished fit over the given unassigned points (ascending keys),
+     * journals it and returns its undo edit.
+     */
+    private Edit createFittedModel(final ModelType type, final long[] sortedKeys, final FitOutcome fit) {
+        final int n = sortedKeys.length;
+        final String id = type.idPrefix + nextModelIds[type.ordinal()]++;
+        final ModelRecord model = new ModelRecord(id, type, sortedKeys, n, fit.moments);
+        model.setFit(fit.centroid, fit.vector, fit.rmsDist, fit.maxDist);
+        model.shape = fit.shape;
+        model.modelZ = clampSlice((int) Math.round(model.cz + 1.0));
+        model.equation = formatEquation(model);
+
+        final EditState before = new EditState(null);
+        attachModel(model, models.size(), sortedKeys, n);
+        record(j -> j.modelCreated(model.id, model.type, fitParams(model), sortedKeys, n));
+        return new CreateModelEdit(before, model, sortedKeys, n);
+    }
 
-        lineSelector.removeAllItems();
-        planeSelector.removeAllItems();
-        for (ModelRecord model : models) {
-            if (model.type == ModelType.LINE) {
-                lineSelector.addItem(model.id);
-            } else {
-                planeSelector.addItem(model.id);
+    /**
+     * Accumulates moments and fits one model over interleaved x,y,z (z zero-based) coordinates. Runs on
+     * the job executor; returns null if the job was cancelled. Progress covers two passes of n points.
+     */
+    private static FitOutcome computeFit(final ModelType type, final double[] coords, final int n,
+                                         final FrameJob<?> job, final long progressBase, final long progressTotal) {
+        final PointMoments moments = new PointMoments();
+        for (int i = 0; i < n; i++) {
+            moments.add(coords[i * 3], coords[i * 3 + 1], coords[i * 3 + 2]);
+            if (i % JOB_PROGRESS_CHUNK == 0) {
+                if (job.isCancelled()) {
+                    return null;
+                }
+                job.reportProgress(progressBase + i, progressTotal);
+            }
+        }
+        if (type.isSurface()) {
+            if (job.isCancelled()) {
+                return null;
+            }
+            job.reportProgress(progressBase + n, progressTotal);
+            return computeSurfaceFit(type, coords, n, moments);
+        }
+        final double[] c;
+        final double[] v;
+        final double rms;
+        double max = 0.0;
+        if (type == ModelType.LINE) {
+            final Pca3DUtils.LineFitResult fit = Pca3DUtils.fitLine(moments);
+            c = fit.centroid;
+            v = fit.direction;
+            rms = fit.rmsDist;
+        } else {
+            final Pca3DUtils.PlaneFitResult fit = Pca3DUtils.fitPlane(moments);
+            c = fit.centroid;
+            v = fit.normal;
+            rms = fit.rmsDist;
+            for (int i = 0; i < n; i++) {
+                final double dist = Math.abs((coords[i * 3] - c[0]) * v[0]
+                        + (coords[i * 3 + 1] - c[1]) * v[1] + (coords[i * 3 + 2] - c[2]) * v[2]);
+                if (dist > max) {
+                    max = dist;
+                }
+                if (i % JOB_PROGRESS_CHUNK == 0) {
+                    if (job.isCancelled()) {
+                        return null;
+                    }
+                    job.reportProgress(progressBase + n + i, progressTotal);
+                }
             }
         }
+        return new FitOutcome(moments, c, v, rms, max, NO_SHAPE);
+    }
 
-        restoreSelection(lineSelector, selectedLine);
-        restoreSelection(planeSelector, selectedPlane);
-        if (lineSelector.getItemCount() == 0 || planeSelector.getItemCount() == 0) {
-            angleLabel.setText("--");
+    /**
+     * Sphere, cylinder or quadric fit over interleaved x,y,z (z zero-based) coordinates. The centroid
+     * slot holds the sphere centre, the cylinder axis point or the quadric centroid, the vector slot the
+     * cylinder axis; the radius or the ten quadric coefficients go into the shape parameters.
+     */
+    private static FitOutcome computeSurfaceFit(final ModelType type, final double[] coords, final int n,
+                                                final PointMoments moments) {
+        final int iterations = SurfaceFitUtils.DEFAULT_REFINE_ITERATIONS;
+        if (type == ModelType.SPHERE) {
+            final SurfaceFitUtils.SphereFitResult fit = SurfaceFitUtils.fitSphere(coords, n, iterations);
+            return new FitOutcome(moments, fit.center, new double[3], fit.rmsDist, fit.maxDist,
+                    new double[]{fit.radius});
         }
+        if (type == ModelType.CYLINDER) {
+            final SurfaceFitUtils.CylinderFitResult fit = SurfaceFitUtils.fitCylinder(coords, n, iterations);
+            return new FitOutcome(moments, fit.axisPoint, fit.direction, fit.rmsDist, fit.maxDist,
+                    new double[]{fit.radius});
+        }
+        final SurfaceFitUtils.QuadricFitResult fit = SurfaceFitUtils.fitQuadric(coords, n, iterations);
+        return new FitOutcome(moments, fit.centroid, new double[3], fit.rmsDist, fit.maxDist, fit.coefficients);
     }
 
-    private static void restoreSelection(final JComboBox<String> combo, final String preferred) {
-        if (preferred == null) {
+    /**
+     * Imports a standardized point table (open ResultsTable or CSV file) in one job. Parsing, slice
+     * mapping and per-role fits run in the background; the EDT inserts everything and fires a single
+     * event per table model.
+     */
+    private void importPointTable() {
+        final JComboBox<String> sourceCombo = new JComboBox<>();
+        for (String title : openPointTableTitles()) {
+            sourceCombo.addItem(title);
+        }
+        sourceCombo.addItem(IMPORT_SOURCE_CSV);
+        final JComboBox<String> targetCombo = new JComboBox<>(new String[]{IMPORT_TO_UNASSIGNED, IMPORT_TO_MODELS});
+        final JCheckBox zOneBasedCheck = new JCheckBox("Z is one-based in table", true);
+
+        final JPanel form = new JPanel(new GridLayout(0, 2, 6, 4));
+        form.add(new JLabel("Source"));
+        form.add(sourceCombo);
+        form.add(new JLabel("Assign to"));
+        form.add(targetCombo);
+        form.add(zOneBasedCheck);
+        if (JOptionPane.showConfirmDialog(this, form, "Import points", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
             return;
         }
-        for (int i = 0; i < combo.getItemCount(); i++) {
-            if (preferred.equals(combo.getItemAt(i))) {
-                combo.setSelectedIndex(i);
+
+        final String source = (String) sourceCombo.getSelectedItem();
+        final File file;
+        final ResultsTable table;
+        if (IMPORT_SOURCE_CSV.equals(source)) {
+            final JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            file = chooser.getSelectedFile();
+            table = null;
+        } else {
+            file = null;
+            table = findResultsTable(source);
+            if (table == null) {
+                IJ.error("Point table '" + source + "' is no longer open.");
                 return;
             }
         }
+
+        final boolean byRole = IMPORT_TO_MODELS.equals(targetCombo.getSelectedItem());
+        final boolean zOneBased = zOneBasedCheck.isSelected();
+        final int maxSlice = boundImage == null ? Integer.MAX_VALUE : Math.max(1, boundImage.getNSlices());
+        final int maxFrame = boundImage == null ? Integer.MAX_VALUE : Math.max(1, boundImage.getNFrames());
+        final int maxChannel = boundImage == null ? Integer.MAX_VALUE : Math.max(1, boundImage.getNChannels());
+        startJob(new FrameJob<ImportOutcome>("import") {
+            @Override
+            protected ImportOutcome doInBackground() throws IOException {
+                final PointColumns columns = file != null ? PointColumns.readCsv(file) : PointColumns.fromResultsTable(table);
+                if (isCancelled()) {
+                    return null;
+                }
+                return prepareImport(columns, zOneBased, maxSlice, maxFrame, maxChannel, byRole, this);
+            }
+
+            @Override
+            protected void apply(final ImportOutcome result) {
+                applyImport(result);
+            }
+        });
     }
 
-    private ModelRecord findModelById(final String id) {
-        for (ModelRecord model : models) {
-            if (model.id.equals(id)) {
-                return model;
+    private static ImportOutcome prepareImport(final PointColumns columns, final boolean zOneBased, final int maxSlice,
+                                               final int maxFrame, final int maxChannel, final boolean byRole,
+                                               final FrameJob<?> job) {
+        final int n = columns.size;
+        final int[] slices = new int[n];
+        final int[] frames = new int[n];
+        final int[] channels = new int[n];
+        for (int i = 0; i < n; i++) {
+            final long z = Math.round(columns.z[i]) + (zOneBased ? 0 : 1);
+            slices[i] = (int) Math.max(1L, Math.min(maxSlice, z));
+            frames[i] = Math.min(maxFrame, columns.t[i]);
+            channels[i] = Math.min(maxChannel, columns.c[i]);
+        }
+
+        final ImportOutcome outcome = new ImportOutcome(columns, slices, frames, channels);
+        final int[] lineRows = new int[n];
+        final int[] planeRows = new int[n];
+        int lineCount = 0;
+        int planeCount = 0;
+        for (int i = 0; i < n; i++) {
+            final String role = columns.roles[i];
+            if (byRole && (PointTableSchema.ROLE_AXIS_START.equalsIgnoreCase(role)
+                    || PointTableSchema.ROLE_AXIS_END.equalsIgnoreCase(role))) {
+                lineRows[lineCount++] = i;
+            } else if (byRole && PointTableSchema.ROLE_PLANE_FIT.equalsIgnoreCase(role)) {
+                planeRows[planeCount++] = i;
             }
         }
-        return null;
+
+        final long total = 2L * (lineCount + planeCount);
+        long progress = 0L;
+        for (int g = 0; g < 2; g++) {
+            final ModelType type = g == 0 ? ModelType.LINE : ModelType.PLANE;
+            final int[] rows = g == 0 ? lineRows : planeRows;
+            final int count = g == 0 ? lineCount : planeCount;
+            if (count < minimumPoints(type)) {
+                // Too few to fit; these rows stay unassigned.
+                continue;
+            }
+            final double[] coords = new double[count * 3];
+            for (int k = 0; k < count; k++) {
+                coords[k * 3] = columns.x[rows[k]];
+                coords[k * 3 + 1] = columns.y[rows[k]];
+                coords[k * 3 + 2] = slices[rows[k]] - 1.0;
+            }
+            final FitOutcome fit = computeFit(type, coords, count, job, progress, total);
+            if (fit == null) {
+                return null;
+            }
+            progress += 2L * count;
+            outcome.groups.add(new ImportGroup(type, Arrays.copyOf(rows, count), fit));
+        }
+        return outcome;
     }
 
-    private boolean ensureBoundImage() {
-        if (boundImage == null) {
-            IJ.error("No image bound. Click 'bind active image' first.");
-            return false;
+    private void applyImport(final ImportOutcome result) {
+        final PointColumns columns = result.columns;
+        final long firstKey = nextPointKey;
+        final int firstId = nextPointId;
+        final List<Edit> parts = new ArrayList<>();
+        final EditState beforeInsert = new EditState(null);
+        insertPoints(firstKey, firstId, columns.size, columns.x, columns.y, result.slices, result.frames,
+                result.channels);
+        record(j -> j.pointsAdded(firstKey, firstId, columns.size, columns.x, columns.y, result.slices, result.frames,
+                result.channels));
+        parts.add(new AddPointsEdit(beforeInsert, firstKey, firstId, columns.size, columns.x, columns.y,
+                result.slices, result.frames, result.channels));
+
+        for (ImportGroup group : result.groups) {
+            final long[] keys = new long[group.rows.length];
+            for (int k = 0; k < keys.length; k++) {
+                keys[k] = firstKey + group.rows[k];
+            }
+            parts.add(createFittedModel(group.type, keys, group.fit));
         }
-        return true;
+        pushEdit(new CompoundEdit("import", parts));
+
+        pointsModel.fireTableDataChanged();
+        modelsModel.fireTableDataChanged();
+        refreshModelSelectors();
+        refreshLivePreview();
+        rebuildOverlay();
+        jobProgress.setString("imported " + columns.size + " points");
     }
 
-    private int clampSlice(final int z) {
-        if (boundImage == null) {
-            return Math.max(1, z);
+    private static List<String> openPointTableTitles() {
+        final List<String> titles = new ArrayList<>();
+        final Frame[] windows = WindowManager.getNonImageWindows();
+        if (windows == null) {
+            return titles;
         }
-        final int max = Math.max(1, boundImage.getNSlices());
-        if (z < 1) {
-            return 1;
+        for (Frame frame : windows) {
+            if (frame instanceof TextWindow) {
+                final ResultsTable rt = ((TextWindow) frame).getTextPanel().getResultsTable();
+                if (PointTableSchema.looksLikePointTable(rt)) {
+                    titles.add(frame.getTitle());
+                }
+            }
         }
-        return Math.min(z, max);
+        return titles;
     }
 
-    private void refreshBoundImageLabel() {
-        if (boundImage == null) {
-            boundImageLabel.setText("bound image: (none)");
-            zInfoLabel.setText("Z: - / -");
-            return;
+    private static ResultsTable findResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            return ((TextWindow) frame).getTextPanel().getResultsTable();
         }
-        boundImageLabel.setText(String.format(Locale.ROOT, "bound image: %s (%dx%dx%d)",
-                boundImage.getTitle(), boundImage.getWidth(), boundImage.getHeight(), Math.max(1, boundImage.getNSlices())));
-        updateZInfoLabel();
+        return null;
     }
 
-    private void updateZInfoLabel() {
-        if (boundImage == null) {
-            zInfoLabel.setText("Z: - / -");
+    private void addUnassignedPointsToModel() {
+        final ModelRecord model = findModelById((String) targetModelSelector.getSelectedItem());
+        if (model == null) {
+            IJ.error("Select a target model.");
+            return;
+        }
+        if (unassignedPointKeys.isEmpty()) {
+            IJ.error("No points to add.");
             return;
         }
-        zInfoLabel.setText(String.format(Locale.ROOT, "Z: %d / %d", Math.max(1, boundImage.getZ()), Math.max(1, boundImage.getNSlices())));
-    }
 
-    private final class PointsTableModel extends AbstractTableModel {
-        private final String[] columns = {"id", "x", "y", "z", "delete"};
+        final long[] keys = unassignedPointKeys.toArray();
+        final EditState before = new EditState(model);
+        assignUnassigned(model);
+        record(j -> j.unassignedAssigned(model.id));
+        pushEdit(new AssignEdit(before, model, keys));
 
-        @Override
-        public int getRowCount() {
-            return unassignedPointKeys.size();
-        }
+        pointsTable.clearSelection();
+        pointsModel.fireTableDataChanged();
+        final int row = models.indexOf(model);
+        modelsModel.fireTableRowsUpdated(row, row);
+        modelsTable.getSelectionModel().setSelectionInterval(row, row);
+        refreshLivePreview();
+        rebuildOverlay();
+    }
 
-        @Override
-        public int getColumnCount() {
-            return columns.length;
+    /**
+     * Refits a model from its running moments: one 3x3 eigen solve, no pass over the points. A plane's
+     * max distance does need one, so it is left stale (NaN) for {@link #startStaleMaxDistances()}.
+     * Surface models have no closed form in the moments; they keep their fit until
+     * {@link #startSurfaceRefits()} has refit them over their points.
+     */
+    private void refitModel(final ModelRecord model) {
+        if (model.type.isSurface()) {
+            model.refitPending = true;
+            return;
         }
-
-        @Override
-        public String getColumnName(final int column) {
-            return columns[column];
+        if (model.type == ModelType.LINE) {
+            final Pca3DUtils.LineFitResult fit = Pca3DUtils.fitLine(model.moments);
+            model.setFit(fit.centroid, fit.direction, fit.rmsDist, 0.0);
+        } else {
+            final Pca3DUtils.PlaneFitResult fit = Pca3DUtils.fitPlane(model.moments);
+            model.setFit(fit.centroid, fit.normal, fit.rmsDist, Double.NaN);
         }
+        model.modelZ = clampSlice((int) Math.round(model.cz + 1.0));
+        model.equation = formatEquation(model);
+    }
 
-        @Override
-        public boolean isCellEditable(final int rowIndex, final int columnIndex) {
-            return columnIndex == 4;
+    private double[] modelCoords(final ModelRecord model) {
+        final long[] keys = model.pointKeys.toArray();
+        final double[] coords = new double[keys.length * 3];
+        int i = 0;
+        for (long key : keys) {
+            final PointRecord p = allPoints.get(key);
+            if (p != null) {
+                coords[i++] = p.x;
+                coords[i++] = p.y;
+                coords[i++] = p.z - 1.0;
+            }
         }
+        return i == coords.length ? coords : Arrays.copyOf(coords, i);
+    }
 
-        @Override
-        public Object getValueAt(final int rowIndex, final int columnIndex) {
-            final PointRecord p = allPoints.get(unassignedPointKeys.get(rowIndex));
-            if (p == null) {
-                return "";
+    /**
+     * Runs on the EDT when the preview timer fires, once edits have paused.
+     */
+    private void startPreviewPasses() {
+        startStaleMaxDistances();
+        startSurfaceRefits();
+        startPreviewStats();
+    }
+
+    /**
+     * Refits, on the preview executor, every surface model an edit marked pending. Their points are
+     * copied here on the EDT; the fits are applied only if no edit happened meanwhile, and such an edit
+     * has restarted the preview timer, so the models stay pending until a pass completes undisturbed.
+     */
+    private void startSurfaceRefits() {
+        final List<ModelRecord> pending = new ArrayList<>();
+        for (ModelRecord model : models) {
+            if (model.refitPending) {
+                pending.add(model);
             }
-            switch (columnIndex) {
-                case 0:
-                    return p.id;
-                case 1:
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        final double[][] coords = new double[pending.size()][];
+        for (int k = 0; k < coords.length; k++) {
+            coords[k] = modelCoords(pending.get(k));
+        }
+        final long generation = previewGeneration;
+        pendingSurfaceRefits = previewExecutor.submit(() -> {
+            final FitOutcome[] fits = new FitOutcome[coords.length];
+            final String[] errors = new String[coords.length];
+            for (int k = 0; k < coords.length; k++) {
+                final ModelType type = pending.get(k).type;
+                final int n = coords[k].length / 3;
+                if (n < type.minimumPoints) {
+                    continue;
+                }
+                try {
+                    fits[k] = computeSurfaceFit(type, coords[k], n, null);
+                } catch (IllegalArgumentException e) {
+                    errors[k] = e.getMessage();
+                }
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (generation != previewGeneration) {
+                    return;
+                }
+                for (int k = 0; k < coords.length; k++) {
+                    final ModelRecord model = pending.get(k);
+                    model.refitPending = false;
+                    if (errors[k] != null) {
+                        IJ.log("Refit of " + model.id + " failed: " + errors[k]);
+                    }
+                    if (fits[k] == null) {
+                        continue;
+                    }
+                    model.setFit(fits[k].centroid, fits[k].vector, fits[k].rmsDist, fits[k].maxDist);
+                    model.shape = fits[k].shape;
+                    model.modelZ = clampSlice((int) Math.round(model.cz + 1.0));
+                    model.equation = formatEquation(model);
+                    final int row = models.indexOf(model);
+                    if (row >= 0) {
+                        modelsModel.fireTableRowsUpdated(row, row);
+                    }
+                }
+                rebuildOverlay();
+            });
+        });
+    }
+
+    /**
+     * Recomputes, on the preview executor, the max distance of every plane an incremental refit left
+     * stale. The points of those planes are copied here on the EDT; the result is applied only if no
+     * edit happened meanwhile, and such an edit has restarted the preview timer for a new pass.
+     */
+    private void startStaleMaxDistances() {
+        final List<ModelRecord> stale = new ArrayList<>();
+        for (ModelRecord model : models) {
+            if (model.type == ModelType.PLANE && Double.isNaN(model.maxDist)) {
+                stale.add(model);
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        final double[][] centroids = new double[stale.size()][];
+        final double[][] normals = new double[stale.size()][];
+        final double[][] coords = new double[stale.size()][];
+        for (int k = 0; k < coords.length; k++) {
+            final ModelRecord model = stale.get(k);
+            centroids[k] = new double[]{model.cx, model.cy, model.cz};
+            normals[k] = new double[]{model.vx, model.vy, model.vz};
+            coords[k] = modelCoords(model);
+        }
+        final long generation = previewGeneration;
+        pendingMaxDistances = previewExecutor.submit(() -> {
+            final double[] max = new double[coords.length];
+            for (int k = 0; k < coords.length; k++) {
+                max[k] = computeMaxResidual(coords[k], ModelType.PLANE, centroids[k], normals[k]);
+            }
+            SwingUtilities.invokeLater(() -> {
+                if (generation != previewGeneration) {
+                    return;
+                }
+                for (int k = 0; k < coords.length; k++) {
+                    final ModelRecord model = stale.get(k);
+                    model.maxDist = max[k];
+                    model.equation = formatEquation(model);
+                    final int row = models.indexOf(model);
+                    if (row >= 0) {
+                        modelsModel.fireTableRowsUpdated(row, row);
+                    }
+                }
+            });
+        });
+    }
+
+    private static String formatEquation(final ModelRecord model) {
+        if (model.type == ModelType.SPHERE) {
+            return String.format(Locale.ROOT, "c=(%.4f,%.4f,%.4f), r=%.4f, rms=%.4f, max=%.4f",
+                    model.cx, model.cy, model.cz, model.shape[0], model.rmsDist, model.maxDist);
+        }
+        if (model.type == ModelType.CYLINDER) {
+            return String.format(Locale.ROOT, "p=(%.4f,%.4f,%.4f), d=(%.4f,%.4f,%.4f), r=%.4f, rms=%.4f, max=%.4f",
+                    model.cx, model.cy, model.cz, model.vx, model.vy, model.vz, model.shape[0],
+                    model.rmsDist, model.maxDist);
+        }
+        if (model.type == ModelType.QUADRIC) {
+            final StringBuilder sb = new StringBuilder("q=(");
+            for (int k = 0; k < model.shape.length; k++) {
+                sb.append(k == 0 ? "" : ",").append(String.format(Locale.ROOT, "%.4g", model.shape[k]));
+            }
+            return sb.append(String.format(Locale.ROOT, "), rms=%.4f, max=%.4f", model.rmsDist, model.maxDist))
+                    .toString();
+        }
+        if (model.type == ModelType.LINE) {
+            return String.format(Locale.ROOT,
+                    "c=(%.4f,%.4f,%.4f), d=(%.4f,%.4f,%.4f), rms=%.4f",
+                    model.cx, model.cy, model.cz, model.vx, model.vy, model.vz, model.rmsDist);
+        }
+        return String.format(Locale.ROOT,
+                "c=(%.4f,%.4f,%.4f), n=(%.4f,%.4f,%.4f), rms=%.4f, max=%s",
+                model.cx, model.cy, model.cz, model.vx, model.vy, model.vz, model.rmsDist,
+                Double.isNaN(model.maxDist) ? "..." : String.format(Locale.ROOT, "%.4f", model.maxDist));
+    }
+
+    private ModelType selectedFitType() {
+        final ModelType type = (ModelType) fitTypeCombo.getSelectedItem();
+        return type == null ? ModelType.LINE : type;
+    }
+
+    /**
+     * Updates the provisional fit over the unassigned points from their running moments (O(1) plus one
+     * eigen solve); the residual pass follows in {@link #startPreviewStats()}. Every edit ends here, so
+     * this also bumps the generation that background results are checked against, drops the passes
+     * still running and restarts the preview timer.
+     */
+    private void refreshLivePreview() {
+        previewGeneration++;
+        if (pendingMaxDistances != null) {
+            pendingMaxDistances.cancel(false);
+            pendingMaxDistances = null;
+        }
+        if (pendingSurfaceRefits != null) {
+            pendingSurfaceRefits.cancel(false);
+            pendingSurfaceRefits = null;
+        }
+        if (pendingPreviewStats != null) {
+            pendingPreviewStats.cancel(false);
+            pendingPreviewStats = null;
+        }
+        previewTimer.restart();
+        previewModel = null;
+        if (!liveCheck.isSelected()) {
+            previewLabel.setText("");
+            return;
+        }
+        final ModelType type = selectedFitType();
+        final int n = unassignedMoments.count();
+        if (n < minimumPoints(type) || type.isSurface()) {
+            previewLabel.setText(String.format(Locale.ROOT, "n=%d", n));
+            return;
+        }
+
+        final double[] c;
+        final double[] v;
+        if (type == ModelType.LINE) {
+            final Pca3DUtils.LineFitResult fit = Pca3DUtils.fitLine(unassignedMoments);
+            c = fit.centroid;
+            v = fit.direction;
+            previewRms = fit.rmsDist;
+        } else {
+            final Pca3DUtils.PlaneFitResult fit = Pca3DUtils.fitPlane(unassignedMoments);
+            c = fit.centroid;
+            v = fit.normal;
+            previewRms = fit.rmsDist;
+        }
+        previewModel = new GeometryPointsCanvas.RenderModel(type, c[0], c[1], c[2], v[0], v[1], v[2], NO_SHAPE);
+        previewLabel.setText(String.format(Locale.ROOT, "n=%d, rms=%.4f", n, previewRms));
+    }
+
+    /**
+     * Finishes the live preview on the preview executor: the max residual of the moment-based line or
+     * plane, or the whole fit of a surface, which has no moment-based closed form. The unassigned points
+     * are copied here on the EDT, and the result is shown only if no edit happened meanwhile.
+     */
+    private void startPreviewStats() {
+        if (!liveCheck.isSelected()) {
+            return;
+        }
+        final ModelType type = selectedFitType();
+        final int n = unassignedMoments.count();
+        if (n < minimumPoints(type)) {
+            return;
+        }
+        final double[] coords = gatherCoords(unassignedPointKeys);
+        final long generation = previewGeneration;
+        if (type.isSurface()) {
+            pendingPreviewStats = previewExecutor.submit(() -> {
+                final FitOutcome fit;
+                try {
+                    fit = computeSurfaceFit(type, coords, coords.length / 3, null);
+                } catch (IllegalArgumentException e) {
+                    // Degenerate points (e.g. coplanar for a sphere): nothing to preview yet.
+                    return;
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (generation != previewGeneration) {
+                        return;
+                    }
+                    previewModel = new GeometryPointsCanvas.RenderModel(type, fit.centroid[0], fit.centroid[1],
+                            fit.centroid[2], fit.vector[0], fit.vector[1], fit.vector[2], fit.shape);
+                    previewLabel.setText(String.format(Locale.ROOT, "n=%d, rms=%.4f, max=%.4f", n, fit.rmsDist,
+                            fit.maxDist));
+                    rebuildOverlay();
+                });
+            });
+            return;
+        }
+        final GeometryPointsCanvas.RenderModel preview = previewModel;
+        if (preview == null) {
+            return;
+        }
+        final double[] c = {preview.cx, preview.cy, preview.cz};
+        final double[] v = {preview.vx, preview.vy, preview.vz};
+        final double rms = previewRms;
+        pendingPreviewStats = previewExecutor.submit(() -> {
+            final double max = computeMaxResidual(coords, type, c, v);
+            SwingUtilities.invokeLater(() -> {
+                if (generation == previewGeneration) {
+                    previewLabel.setText(String.format(Locale.ROOT, "n=%d, rms=%.4f, max=%.4f", n, rms, max));
+                }
+            });
+        });
+    }
+
+    /**
+     * Interleaved x,y,z (z zero-based) of the given points.
+     */
+    private double[] gatherCoords(final LongArrayList keys) {
+        final int size = keys.size();
+        final double[] coords = new double[size * 3];
+        int i = 0;
+        for (int k = 0; k < size; k++) {
+            final PointRecord p = allPoints.get(keys.get(k));
+            if (p != null) {
+                coords[i++] = p.x;
+                coords[i++] = p.y;
+                coords[i++] = p.z - 1.0;
+            }
+        }
+        return i == coords.length ? coords : Arrays.copyOf(coords, i);
+    }
+
+    private static double computeMaxResidual(final double[] coords, final ModelType type,
+                                             final double[] c, final double[] v) {
+        double max = 0.0;
+        for (int i = 0; i < coords.length; i += 3) {
+            final double dx = coords[i] - c[0];
+            final double dy = coords[i + 1] - c[1];
+            final double dz = coords[i + 2] - c[2];
+            final double t = dx * v[0] + dy * v[1] + dz * v[2];
+            final double dist;
+            if (type == ModelType.LINE) {
+                final double rx = dx - t * v[0];
+                final double ry = dy - t * v[1];
+                final double rz = dz - t * v[2];
+                dist = Math.sqrt(rx * rx + ry * ry + rz * rz);
+            } else {
+                dist = Math.abs(t);
+            }
+            if (dist > max) {
+                max = dist;
+            }
+        }
+        return max;
+    }
+
+    private static int minimumPoints(final ModelType type) {
+        return type.minimumPoints;
+    }
+
+    private static int[] initialModelIds() {
+        final int[] ids = new int[ModelType.values().length];
+        Arrays.fill(ids, 1);
+        return ids;
+    }
+
+    private ModelRecord selectedModel() {
+        final int selectedModelRow = modelsTable.getSelectedRow();
+        if (selectedModelRow >= 0 && selectedModelRow < models.size()) {
+            return models.get(selectedModelRow);
+        }
+        return null;
+    }
+
+    private void deletePointRow(final int row) {
+        if (row < 0 || row >= unassignedPointKeys.size()) {
+            return;
+        }
+        final long[] keys = {unassignedPointKeys.get(row)};
+        final PointRecord p = allPoints.get(keys[0]);
+        final EditState before = new EditState(null);
+        erasePoints(keys, 1);
+        record(j -> j.pointsDeleted(keys, 1));
+        pushEdit(new DeletePointEdit(before, p));
+        pointsTable.clearSelection();
+        pointsModel.fireTableDataChanged();
+        refreshLivePreview();
+        rebuildOverlay();
+    }
+
+    private void deleteModelRow(final int row) {
+        if (row < 0 || row >= models.size()) {
+            return;
+        }
+        final ModelRecord removed = models.get(row);
+        final long[] keys = removed.pointKeys.toArray();
+        Arrays.sort(keys);
+        final EditState before = new EditState(null);
+        removeModel(removed);
+        record(j -> j.modelDeleted(removed.id));
+        pushEdit(new DeleteModelEdit(before, removed, row, keys));
+        modelsTable.clearSelection();
+        pointsModel.fireTableDataChanged();
+        modelsModel.fireTableDataChanged();
+        refreshModelSelectors();
+        refreshLivePreview();
+        rebuildOverlay();
+    }
+
+    // Data-level edits, shared by the UI handlers and journal replay. They update the point/model state
+    // and id counters only; callers journal the edit and refresh tables and overlay.
+
+    /**
+     * Adds unassigned points with consecutive keys and ids. New keys are above every existing key, so
+     * each insert lands at the end of the sorted unassigned list.
+     */
+    private void insertPoints(final long firstKey, final int firstId, final int count,
+                              final double[] xs, final double[] ys, final int[] zs, final int[] ts, final int[] cs) {
+        for (int i = 0; i < count; i++) {
+            final long key = firstKey + i;
+            allPoints.put(key, new PointRecord(key, firstId + i, xs[i], ys[i], zs[i], ts[i], cs[i]));
+            unassignedPointKeys.insertSorted(key);
+            unassignedMoments.add(xs[i], ys[i], zs[i] - 1.0);
+        }
+        nextPointKey = Math.max(nextPointKey, firstKey + count);
+        nextPointId = Math.max(nextPointId, firstId + count);
+        unassignedVersion++;
+    }
+
+    /**
+     * Deletes unassigned points (ascending keys); keys that are not unassigned are ignored.
+     */
+    private void erasePoints(final long[] sortedKeys, final int count) {
+        final long[] present = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (unassignedPointKeys.binarySearch(sortedKeys[i]) >= 0) {
+                present[n++] = sortedKeys[i];
+            }
+        }
+        withdrawUnassigned(present, n);
+        for (int i = 0; i < n; i++) {
+            allPoints.remove(present[i]);
+        }
+    }
+
+    /**
+     * Takes points (ascending keys, all still in allPoints) out of the unassigned list and moments.
+     */
+    private void withdrawUnassigned(final long[] sortedKeys, final int count) {
+        final int removed = unassignedPointKeys.removeAllSorted(sortedKeys, count);
+        if (removed == count && removed <= unassignedPointKeys.size()) {
+            for (int i = 0; i < count; i++) {
+                final PointRecord p = allPoints.get(sortedKeys[i]);
+                unassignedMoments.remove(p.x, p.y, p.z - 1.0);
+            }
+        } else if (removed > 0) {
+            // Cheaper (and exact) to re-accumulate the smaller remainder than to subtract.
+            unassignedMoments.clear();
+            for (int i = 0; i < unassignedPointKeys.size(); i++) {
+                final PointRecord p = allPoints.get(unassignedPointKeys.get(i));
+                unassignedMoments.add(p.x, p.y, p.z - 1.0);
+            }
+        }
+        unassignedVersion++;
+    }
+
+    /**
+     * Moves a point within its slice, updating the moments it contributes to. Returns the owning model,
+     * or null if the point is unassigned.
+     */
+    private ModelRecord relocatePoint(final long key, final double x, final double y) {
+        final PointRecord old = allPoints.get(key);
+        if (old == null) {
+            return null;
+        }
+        final PointRecord moved = new PointRecord(key, old.id, x, y, old.z, old.t, old.c);
+        allPoints.put(key, moved);
+        final ModelRecord owner = findOwnerModel(key);
+        if (owner == null) {
+            unassignedMoments.remove(old.x, old.y, old.z - 1.0);
+            unassignedMoments.add(moved.x, moved.y, moved.z - 1.0);
+            unassignedVersion++;
+            return null;
+        }
+        owner.moments.remove(old.x, old.y, old.z - 1.0);
+        owner.moments.add(moved.x, moved.y, moved.z - 1.0);
+        refitModel(owner);
+        return owner;
+    }
+
+    /**
+     * Inserts a fitted model at the given row and takes its points (ascending keys) out of the
+     * unassigned list.
+     */
+    private void attachModel(final ModelRecord model, final int index, final long[] sortedKeys, final int count) {
+        withdrawUnassigned(sortedKeys, count);
+        models.add(Math.min(index, models.size()), model);
+        modelsById.put(model.id, model);
+        model.pointKeys.forEach(key -> pointOwners.put(key, model));
+
+        int number = 0;
+        try {
+            number = Integer.parseInt(model.id.substring(model.type.idPrefix.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException ignored) {
+            // Foreign id; counters stay as they are.
+        }
+        final int type = model.type.ordinal();
+        nextModelIds[type] = Math.max(nextModelIds[type], number + 1);
+    }
+
+    private void assignUnassigned(final ModelRecord model) {
+        for (int i = 0; i < unassignedPointKeys.size(); i++) {
+            final long key = unassignedPointKeys.get(i);
+            final PointRecord p = allPoints.get(key);
+            if (p != null) {
+                model.moments.add(p.x, p.y, p.z - 1.0);
+                model.pointKeys.add(key);
+                pointOwners.put(key, model);
+            }
+        }
+        unassignedPointKeys.clear();
+        unassignedMoments.clear();
+        unassignedVersion++;
+        refitModel(model);
+    }
+
+    /**
+     * Moves unassigned points (ascending keys) into a model and refits it once.
+     */
+    private void assignPoints(final ModelRecord model, final long[] sortedKeys, final int count) {
+        withdrawUnassigned(sortedKeys, count);
+        for (int i = 0; i < count; i++) {
+            final PointRecord p = allPoints.get(sortedKeys[i]);
+            if (p != null && model.pointKeys.add(p.key)) {
+                model.moments.add(p.x, p.y, p.z - 1.0);
+                pointOwners.put(p.key, model);
+            }
+        }
+        refitModel(model);
+    }
+
+    /**
+     * Returns points (ascending keys) of a model to the unassigned list and refits the model once.
+     */
+    private void detachPoints(final ModelRecord model, final long[] sortedKeys, final int count) {
+        final long[] returned = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            final PointRecord p = allPoints.get(sortedKeys[i]);
+            if (p != null && model.pointKeys.remove(p.key)) {
+                pointOwners.remove(p.key);
+                model.moments.remove(p.x, p.y, p.z - 1.0);
+                unassignedMoments.add(p.x, p.y, p.z - 1.0);
+                returned[n++] = p.key;
+            }
+        }
+        unassignedPointKeys.mergeSorted(returned, n);
+        unassignedVersion++;
+        refitModel(model);
+    }
+
+    private void removeModel(final ModelRecord model) {
+        models.remove(model);
+        modelsById.remove(model.id);
+        final long[] returned = model.pointKeys.toArray();
+        for (long key : returned) {
+            pointOwners.remove(key);
+        }
+        Arrays.sort(returned);
+        unassignedPointKeys.mergeSorted(returned, returned.length);
+        unassignedMoments.merge(model.moments);
+        unassignedVersion++;
+    }
+
+    /**
+     * The fixed {@link SessionStore#FIT_PARAMS} values followed by the model's shape parameters.
+     */
+    private static double[] fitParams(final ModelRecord model) {
+        final double[] fit = Arrays.copyOf(new double[]{
+                model.cx, model.cy, model.cz, model.vx, model.vy, model.vz, model.rmsDist, model.maxDist
+        }, SessionStore.FIT_PARAMS + model.shape.length);
+        System.arraycopy(model.shape, 0, fit, SessionStore.FIT_PARAMS, model.shape.length);
+        return fit;
+    }
+
+    private static double[] fitParams(final FitOutcome fit) {
+        final double[] params = Arrays.copyOf(new double[]{
+                fit.centroid[0], fit.centroid[1], fit.centroid[2], fit.vector[0], fit.vector[1], fit.vector[2],
+                fit.rmsDist, fit.maxDist
+        }, SessionStore.FIT_PARAMS + fit.shape.length);
+        System.arraycopy(fit.shape, 0, params, SessionStore.FIT_PARAMS, fit.shape.length);
+        return params;
+    }
+
+    /**
+     * Builds a model whose fit is already known, accumulating its moments from the given points.
+     */
+    private static ModelRecord restoreModel(final LongObjectHashMap<PointRecord> points, final String id,
+                                            final ModelType type, final double[] fit, final long[] keys) {
+        final PointMoments moments = new PointMoments();
+        int count = 0;
+        final long[] present = new long[keys.length];
+        for (long key : keys) {
+            final PointRecord p = points.get(key);
+            if (p != null) {
+                moments.add(p.x, p.y, p.z - 1.0);
+                present[count++] = key;
+            }
+        }
+        final ModelRecord model = new ModelRecord(id, type, present, count, moments);
+        model.restoreFit(fit);
+        return model;
+    }
+
+    private void record(final JournalEdit edit) {
+        if (journal != null) {
+            try {
+                edit.writeTo(journal);
+            } catch (IOException e) {
+                closeJournal();
+                IJ.error("Session journal write failed; autosave is off until the session is saved again.\n"
+                        + e.getMessage());
+            }
+        }
+        if (savingJournal != null) {
+            try {
+                edit.writeTo(savingJournal);
+            } catch (IOException e) {
+                savingJournal.discard();
+                savingJournal = null;
+                IJ.error("Session journal write failed; the session being saved will not include later edits.\n"
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            IJ.log("Closing session journal failed: " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    private void pushEdit(final Edit edit) {
+        undoStack.push(edit);
+        if (undoStack.size() > UNDO_LIMIT) {
+            undoStack.removeLast();
+        }
+        redoStack.clear();
+        updateUndoButtons();
+    }
+
+    private void undo() {
+        if (undoStack.isEmpty() || activeJob != null) {
+            return;
+        }
+        final Edit edit = undoStack.pop();
+        edit.undo();
+        redoStack.push(edit);
+        refreshAfterHistoryChange();
+    }
+
+    private void redo() {
+        if (redoStack.isEmpty() || activeJob != null) {
+            return;
+        }
+        final Edit edit = redoStack.pop();
+        edit.redo();
+        undoStack.push(edit);
+        refreshAfterHistoryChange();
+    }
+
+    private void clearHistory() {
+        undoStack.clear();
+        redoStack.clear();
+        updateUndoButtons();
+    }
+
+    private void refreshAfterHistoryChange() {
+        pointsTable.clearSelection();
+        modelsTable.clearSelection();
+        pointsModel.fireTableDataChanged();
+        modelsModel.fireTableDataChanged();
+        refreshModelSelectors();
+        refreshLivePreview();
+        rebuildOverlay();
+        updateUndoButtons();
+    }
+
+    private void updateUndoButtons() {
+        undoButton.setEnabled(!undoStack.isEmpty());
+        redoButton.setEnabled(!redoStack.isEmpty());
+        undoButton.setToolTipText(undoStack.isEmpty() ? null : "undo " + undoStack.peek().name);
+        redoButton.setToolTipText(redoStack.isEmpty() ? null : "redo " + redoStack.peek().name);
+    }
+
+    /**
+     * Writes a snapshot of the whole session and starts a fresh journal next to it. The state is copied
+     * into columns on the EDT; the file is written on the job executor. Edits made meanwhile are
+     * buffered by the new journal and land in its file once the snapshot is in place; they also still go
+     * to the current journal, which is only closed once the save has succeeded. A failed or cancelled
+     * save drops the new journal and keeps the current one.
+     */
+    private void saveSession() {
+        final JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File chosen = chooser.getSelectedFile();
+        if (!chosen.getName().endsWith(SessionStore.SESSION_EXTENSION)) {
+            chosen = new File(chosen.getPath() + SessionStore.SESSION_EXTENSION);
+        }
+        final File file = chosen;
+        final long stamp = new Random().nextLong();
+        final SessionStore.Snapshot snapshot = captureSession(stamp);
+        // Surface models still waiting for the preview pass are refit in the save job, from points
+        // copied here, so the snapshot never stores a fit that is older than its points.
+        final List<Integer> refitIndices = new ArrayList<>();
+        final List<double[]> refitCoords = new ArrayList<>();
+        for (int k = 0; k < models.size(); k++) {
+            if (models.get(k).refitPending) {
+                refitIndices.add(k);
+                refitCoords.add(modelCoords(models.get(k)));
+            }
+        }
+
+        final SessionStore.Journal pending = SessionStore.Journal.buffered();
+        final boolean started = startJob(new FrameJob<File>("saving") {
+            @Override
+            protected File doInBackground() throws IOException {
+                for (int k = 0; k < refitIndices.size(); k++) {
+                    final int index = refitIndices.get(k);
+                    final double[] coords = refitCoords.get(k);
+                    final ModelType type = snapshot.modelTypes[index];
+                    final int n = coords.length / 3;
+                    if (n < type.minimumPoints) {
+                        continue;
+                    }
+                    try {
+                        snapshot.modelFits[index] = fitParams(computeSurfaceFit(type, coords, n, null));
+                    } catch (IllegalArgumentException e) {
+                        // As in the preview pass, a failed refit keeps the previous fit.
+                    }
+                }
+                try {
+                    SessionStore.writeSnapshot(file, snapshot);
+                    pending.bind(SessionStore.journalFile(file), stamp);
+                } catch (IOException e) {
+                    pending.discard();
+                    throw e;
+                }
+                return file;
+            }
+
+            @Override
+            protected void apply(final File saved) {
+                adoptSavedJournal(pending);
+                jobProgress.setString("saved " + saved.getName());
+            }
+
+            @Override
+            protected void abandoned() {
+                if (!pending.discardUnlessBound()) {
+                    // Cancelled after the journal was bound: the save itself is complete.
+                    adoptSavedJournal(pending);
+                } else if (savingJournal == pending) {
+                    savingJournal = null;
+                }
+            }
+        });
+        if (started) {
+            savingJournal = pending;
+        }
+    }
+
+    /**
+     * Switches autosave to the journal of a finished save, unless a write error dropped it meanwhile.
+     */
+    private void adoptSavedJournal(final SessionStore.Journal saved) {
+        if (savingJournal != saved) {
+            return;
+        }
+        closeJournal();
+        journal = saved;
+        savingJournal = null;
+    }
+
+    private SessionStore.Snapshot captureSession(final long stamp) {
+        final SessionStore.Snapshot s = new SessionStore.Snapshot();
+        s.stamp = stamp;
+        s.nextPointKey = nextPointKey;
+        s.nextPointId = nextPointId;
+        s.nextModelIds = nextModelIds.clone();
+
+        final int n = allPoints.size();
+        s.pointCount = n;
+        s.keys = new long[n];
+        s.ids = new int[n];
+        s.x = new double[n];
+        s.y = new double[n];
+        s.z = new int[n];
+        s.t = new int[n];
+        s.c = new int[n];
+        int i = 0;
+        final int slots = allPoints.capacity();
+        for (int slot = 0; slot < slots; slot++) {
+            final PointRecord p = allPoints.valueAt(slot);
+            if (p != null) {
+                s.keys[i] = p.key;
+                s.ids[i] = p.id;
+                s.x[i] = p.x;
+                s.y[i] = p.y;
+                s.z[i] = p.z;
+                s.t[i] = p.t;
+                s.c[i] = p.c;
+                i++;
+            }
+        }
+        s.unassignedKeys = unassignedPointKeys.toArray();
+
+        final int m = models.size();
+        s.modelIds = new String[m];
+        s.modelTypes = new ModelType[m];
+        s.modelFits = new double[m][];
+        s.modelKeys = new long[m][];
+        for (int k = 0; k < m; k++) {
+            final ModelRecord model = models.get(k);
+            s.modelIds[k] = model.id;
+            s.modelTypes[k] = model.type;
+            s.modelFits[k] = fitParams(model);
+            s.modelKeys[k] = model.pointKeys.toArray();
+        }
+        return s;
+    }
+
+    /**
+     * Loads a session: the snapshot is mapped and turned into point/model records on the job executor;
+     * the EDT swaps them in, replays the journal and keeps appending to it.
+     */
+    private void loadSession() {
+        if ((!allPoints.isEmpty() || !models.isEmpty()) && JOptionPane.showConfirmDialog(this,
+                "Replace the current points and models?", "Load session", JOptionPane.OK_CANCEL_OPTION)
+                != JOptionPane.OK_OPTION) {
+            return;
+        }
+        final JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File file = chooser.getSelectedFile();
+        startJob(new FrameJob<LoadedSession>("loading") {
+            @Override
+            protected LoadedSession doInBackground() throws IOException {
+                final SessionStore.Snapshot snapshot = SessionStore.readSnapshot(file);
+                final ByteBuffer records = SessionStore.readJournal(SessionStore.journalFile(file), snapshot.stamp);
+                return isCancelled() ? null : buildLoadedSession(file, snapshot, records, this);
+            }
+
+            @Override
+            protected void apply(final LoadedSession loaded) {
+                installSession(loaded);
+            }
+        });
+    }
+
+    private static LoadedSession buildLoadedSession(final File file, final SessionStore.Snapshot s,
+                                                    final ByteBuffer records, final FrameJob<?> job) {
+        final LoadedSession loaded = new LoadedSession(file, s, records);
+        final long total = (long) s.pointCount + s.unassignedKeys.length;
+        for (int i = 0; i < s.pointCount; i++) {
+            loaded.points.put(s.keys[i], new PointRecord(s.keys[i], s.ids[i], s.x[i], s.y[i], s.z[i], s.t[i], s.c[i]));
+            if (i % JOB_PROGRESS_CHUNK == 0) {
+                if (job.isCancelled()) {
+                    return null;
+                }
+                job.reportProgress(i, total);
+            }
+        }
+        for (long key : s.unassignedKeys) {
+            final PointRecord p = loaded.points.get(key);
+            if (p != null) {
+                loaded.unassigned.add(key);
+                loaded.unassignedMoments.add(p.x, p.y, p.z - 1.0);
+            }
+        }
+        for (int m = 0; m < s.modelIds.length; m++) {
+            final ModelRecord model = restoreModel(loaded.points, s.modelIds[m], s.modelTypes[m], s.modelFits[m],
+                    s.modelKeys[m]);
+            loaded.models.add(model);
+            model.pointKeys.forEach(key -> loaded.owners.put(key, model));
+        }
+        return loaded;
+    }
+
+    private void installSession(final LoadedSession loaded) {
+        closeJournal();
+        final SessionStore.Snapshot s = loaded.snapshot;
+        allPoints = loaded.points;
+        unassignedPointKeys = loaded.unassigned;
+        pointOwners = loaded.owners;
+        unassignedMoments.clear();
+        unassignedMoments.merge(loaded.unassignedMoments);
+        models.clear();
+        modelsById.clear();
+        for (ModelRecord model : loaded.models) {
+            model.modelZ = clampSlice((int) Math.round(model.cz + 1.0));
+            model.equation = formatEquation(model);
+            addModel(model);
+        }
+        nextPointKey = s.nextPointKey;
+        nextPointId = s.nextPointId;
+        nextModelIds = s.nextModelIds.clone();
+        unassignedVersion++;
+
+        final File journalFile = SessionStore.journalFile(loaded.file);
+        try {
+            if (loaded.journalRecords == null) {
+                journal = SessionStore.Journal.create(journalFile, s.stamp);
+            } else {
+                long valid = -1;
+                try {
+                    valid = SessionStore.replay(loaded.journalRecords, new JournalReplay());
+                } catch (IOException e) {
+                    // Leave the journal untouched: appending would truncate the records it cannot read.
+                    IJ.error("Session loaded without the rest of its journal; autosave is off.\n" + e.getMessage());
+                }
+                journal = valid < 0 ? null : SessionStore.Journal.append(journalFile, valid);
+            }
+        } catch (IOException e) {
+            journal = null;
+            IJ.error("Session loaded, but its journal cannot be written; autosave is off.\n" + e.getMessage());
+        }
+
+        clearHistory();
+        pointsTable.clearSelection();
+        modelsTable.clearSelection();
+        pointsModel.fireTableDataChanged();
+        modelsModel.fireTableDataChanged();
+        refreshModelSelectors();
+        refreshLivePreview();
+        rebuildOverlay();
+        jobProgress.setString(String.format(Locale.ROOT, "loaded %d points, %d models", allPoints.size(), models.size()));
+    }
+
+    /**
+     * Marks the render state stale after an edit or selection change. Annotations are painted by the
+     * embedded canvas, so a refresh is just a (coalesced) repaint; the image itself is only redrawn when
+     * a stale ImageJ overlay has to be cleared.
+     */
+    private void rebuildOverlay() {
+        renderVersion++;
+        if (boundImage == null) {
+            return;
+        }
+        if (boundImage.getOverlay() != null) {
+            boundImage.setOverlay(null);
+            boundImage.updateAndDraw();
+        }
+        if (imageCanvas != null) imageCanvas.repaint();
+    }
+
+    /**
+     * Runs a job unless another one is still active; jobs never pre-empt each other (a cancelled save
+     * would lose its journal), and the controls that start jobs stay disabled until it finishes.
+     */
+    private boolean startJob(final FrameJob<?> job) {
+        if (activeJob != null) {
+            return false;
+        }
+        activeJob = job;
+        setJobControlsEnabled(false);
+        jobProgress.setValue(0);
+        jobProgress.setString(job.name + " 0%");
+        job.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName()) && activeJob == job) {
+                final int percent = (Integer) evt.getNewValue();
+                jobProgress.setValue(percent);
+                jobProgress.setString(job.name + " " + percent + "%");
+            }
+        });
+        jobExecutor.execute(job);
+        return true;
+    }
+
+    private void setJobControlsEnabled(final boolean enabled) {
+        fitButton.setEnabled(enabled);
+        addToModelButton.setEnabled(enabled);
+        saveButton.setEnabled(enabled);
+        loadButton.setEnabled(enabled);
+        importButton.setEnabled(enabled);
+        cancelJobButton.setEnabled(!enabled);
+    }
+
+    private void cancelActiveJob() {
+        if (activeJob != null) {
+            activeJob.cancel(true);
+        }
+    }
+
+    private void finishJob(final FrameJob<?> job, final String status) {
+        if (activeJob != job) {
+            return;
+        }
+        activeJob = null;
+        setJobControlsEnabled(true);
+        jobProgress.setValue(0);
+        jobProgress.setString(status);
+    }
+
+    private void computeAngle() {
+        final String lineId = (String) lineSelector.getSelectedItem();
+        final String planeId = (String) planeSelector.getSelectedItem();
+        if (lineId == null || planeId == null) {
+            angleLabel.setText("--");
+            IJ.error("Select one line model and one plane model.");
+            return;
+        }
+        final ModelRecord line = findModelById(lineId);
+        final ModelRecord plane = findModelById(planeId);
+        if (line == null || plane == null) {
+            angleLabel.setText("--");
+            return;
+        }
+
+        final double angleDeg = GeometryRelations.linePlaneAngleDeg(line.vx, line.vy, line.vz,
+                plane.vx, plane.vy, plane.vz, true);
+        if (!Double.isFinite(angleDeg)) {
+            angleLabel.setText("--");
+            IJ.error("Model vectors are invalid.");
+            return;
+        }
+        angleLabel.setText(String.format(Locale.ROOT, "%.2f\u00B0", angleDeg));
+    }
+
+    private void refreshModelSelectors() {
+        final String selectedLine = (String) lineSelector.getSelectedItem();
+        final String selectedPlane = (String) planeSelector.getSelectedItem();
+        final String selectedTarget = (String) targetModelSelector.getSelectedItem();
+
+        lineSelector.removeAllItems();
+        planeSelector.removeAllItems();
+        targetModelSelector.removeAllItems();
+        for (ModelRecord model : models) {
+            targetModelSelector.addItem(model.id);
+            if (model.type == ModelType.LINE) {
+                lineSelector.addItem(model.id);
+            } else if (model.type == ModelType.PLANE) {
+                planeSelector.addItem(model.id);
+            }
+        }
+
+        restoreSelection(lineSelector, selectedLine);
+        restoreSelection(planeSelector, selectedPlane);
+        restoreSelection(targetModelSelector, selectedTarget);
+        if (lineSelector.getItemCount() == 0 || planeSelector.getItemCount() == 0) {
+            angleLabel.setText("--");
+        }
+    }
+
+    private static void restoreSelection(final JComboBox<String> combo, final String preferred) {
+        if (preferred == null) {
+            return;
+        }
+        for (int i = 0; i < combo.getItemCount(); i++) {
+            if (preferred.equals(combo.getItemAt(i))) {
+                combo.setSelectedIndex(i);
+                return;
+            }
+        }
+    }
+
+    private ModelRecord findModelById(final String id) {
+        return id == null ? null : modelsById.get(id);
+    }
+
+    private void addModel(final ModelRecord model) {
+        models.add(model);
+        modelsById.put(model.id, model);
+    }
+
+    private boolean ensureBoundImage() {
+        if (boundImage == null) {
+            IJ.error("No image bound. Click 'bind active image' first.");
+            return false;
+        }
+        return true;
+    }
+
+    private int clampSlice(final int z) {
+        if (boundImage == null) {
+            return Math.max(1, z);
+        }
+        final int max = Math.max(1, boundImage.getNSlices());
+        if (z < 1) {
+            return 1;
+        }
+        return Math.min(z, max);
+    }
+
+    private void refreshBoundImageLabel() {
+        if (boundImage == null) {
+            boundImageLabel.setText("bound image: (none)");
+            zInfoLabel.setText("Z: - / -");
+            return;
+        }
+        boundImageLabel.setText(String.format(Locale.ROOT, "bound image: %s (%dx%dx%d)",
+                boundImage.getTitle(), boundImage.getWidth(), boundImage.getHeight(), Math.max(1, boundImage.getNSlices())));
+        updateZInfoLabel();
+    }
+
+    private void updateZInfoLabel() {
+        if (boundImage == null) {
+            zInfoLabel.setText("Z: - / -");
+            return;
+        }
+        zInfoLabel.setText(String.format(Locale.ROOT, "Z: %d / %d", Math.max(1, boundImage.getZ()), Math.max(1, boundImage.getNSlices())));
+    }
+
+    private final class PointsTableModel extends AbstractTableModel {
+        private final String[] columns = {"id", "x", "y", "z", "t", "c", "delete"};
+
+        @Override
+        public int getRowCount() {
+            return unassignedPointKeys.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public String getColumnName(final int column) {
+            return columns[column];
+        }
+
+        @Override
+        public boolean isCellEditable(final int rowIndex, final int columnIndex) {
+            return columnIndex == 6;
+        }
+
+        @Override
+        public Object getValueAt(final int rowIndex, final int columnIndex) {
+            final PointRecord p = allPoints.get(unassignedPointKeys.get(rowIndex));
+            if (p == null) {
+                return "";
+            }
+            switch (columnIndex) {
+                case 0:
+                    return p.id;
+                case 1:
                     return String.format(Locale.ROOT, "%.2f", p.x);
                 case 2:
                     return String.format(Locale.ROOT, "%.2f", p.y);
                 case 3:
                     return p.z;
                 case 4:
+                    return p.t;
+                case 5:
+                    return p.c;
+                case 6:
                     return "x";
                 default:
                     return "";
@@ -674,7 +2316,7 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
                 case 0:
                     return model.id;
                 case 1:
-                    return model.n;
+                    return model.pointKeys.size();
                 case 2:
                     return model.equation;
                 case 3:
@@ -732,65 +2374,622 @@ public class GeometryPointsControlFrame extends JFrame implements GeometryPoints
         }
     }
 
+    /**
+     * Background work for the frame. doInBackground runs on the job executor and must only touch its
+     * own snapshot; apply runs on the EDT, and only if the job was neither cancelled nor superseded.
+     */
+    private abstract class FrameJob<T> extends SwingWorker<T, Void> {
+        private final String name;
+
+        private FrameJob(final String name) {
+            this.name = name;
+        }
+
+        protected void reportProgress(final long done, final long total) {
+            setProgress((int) Math.min(100L, done * 100L / Math.max(1L, total)));
+        }
+
+        protected abstract void apply(T result);
+
+        /**
+         * Called on the EDT instead of apply when the job was cancelled, interrupted or failed (or returned
+         * nothing), to undo whatever was set up for it.
+         */
+        protected void abandoned() {
+        }
+
+        @Override
+        protected final void done() {
+            if (activeJob != this) {
+                abandoned();
+                return;
+            }
+            if (isCancelled()) {
+                finishJob(this, name + " cancelled");
+                abandoned();
+                return;
+            }
+            try {
+                final T result = get();
+                finishJob(this, "idle");
+                if (result != null) {
+                    apply(result);
+                } else {
+                    abandoned();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finishJob(this, name + " interrupted");
+                abandoned();
+            } catch (ExecutionException e) {
+                finishJob(this, name + " failed");
+                abandoned();
+                IJ.error(name + " failed: " + e.getCause());
+            }
+        }
+    }
+
+    private static final class FitOutcome {
+        private final PointMoments moments;
+        private final double[] centroid;
+        private final double[] vector;
+        private final double rmsDist;
+        private final double maxDist;
+        private final double[] shape;
+
+        private FitOutcome(final PointMoments moments, final double[] centroid, final double[] vector,
+                           final double rmsDist, final double maxDist, final double[] shape) {
+            this.moments = moments;
+            this.centroid = centroid;
+            this.vector = vector;
+            this.rmsDist = rmsDist;
+            this.maxDist = maxDist;
+            this.shape = shape;
+        }
+    }
+
+    private static final class ImportGroup {
+        private final ModelType type;
+        private final int[] rows;
+        private final FitOutcome fit;
+
+        private ImportGroup(final ModelType type, final int[] rows, final FitOutcome fit) {
+            this.type = type;
+            this.rows = rows;
+            this.fit = fit;
+        }
+    }
+
+    private static final class ImportOutcome {
+        private final PointColumns columns;
+        private final int[] slices;
+        private final int[] frames;
+        private final int[] channels;
+        private final List<ImportGroup> groups = new ArrayList<>();
+
+        private ImportOutcome(final PointColumns columns, final int[] slices, final int[] frames, final int[] channels) {
+            this.columns = columns;
+            this.slices = slices;
+            this.frames = frames;
+            this.channels = channels;
+        }
+    }
+
+    private static final class LoadedSession {
+        private final File file;
+        private final SessionStore.Snapshot snapshot;
+        private final ByteBuffer journalRecords;
+        private final LongObjectHashMap<PointRecord> points;
+        private final LongArrayList unassigned;
+        private final LongObjectHashMap<ModelRecord> owners;
+        private final PointMoments unassignedMoments = new PointMoments();
+        private final List<ModelRecord> models = new ArrayList<>();
+
+        private LoadedSession(final File file, final SessionStore.Snapshot snapshot, final ByteBuffer journalRecords) {
+            this.file = file;
+            this.snapshot = snapshot;
+            this.journalRecords = journalRecords;
+            this.points = new LongObjectHashMap<>(snapshot.pointCount);
+            this.unassigned = new LongArrayList(snapshot.unassignedKeys.length);
+            this.owners = new LongObjectHashMap<>(Math.max(0, snapshot.pointCount - snapshot.unassignedKeys.length));
+        }
+    }
+
+    /**
+     * Applies journal records to the freshly installed snapshot through the same data-level edits the
+     * UI uses. Records that refer to unknown models are skipped.
+     */
+    private final class JournalReplay implements SessionStore.JournalListener {
+        @Override
+        public void pointsAdded(final long firstKey, final int firstId, final int count,
+                                final double[] x, final double[] y, final int[] z, final int[] t, final int[] c) {
+            insertPoints(firstKey, firstId, count, x, y, z, t, c);
+        }
+
+        @Override
+        public void pointsDeleted(final long[] keys) {
+            erasePoints(keys, keys.length);
+        }
+
+        @Override
+        public void pointMoved(final long key, final double x, final double y) {
+            relocatePoint(key, x, y);
+        }
+
+        @Override
+        public void modelCreated(final String id, final ModelType type, final double[] fit, final long[] keys) {
+            if (modelsById.containsKey(id)) {
+                return;
+            }
+            final ModelRecord model = restoreModel(allPoints, id, type, fit, keys);
+            model.modelZ = clampSlice((int) Math.round(model.cz + 1.0));
+            model.equation = formatEquation(model);
+            attachModel(model, models.size(), keys, keys.length);
+        }
+
+        @Override
+        public void unassignedAssigned(final String modelId) {
+            final ModelRecord model = findModelById(modelId);
+            if (model != null) {
+                assignUnassigned(model);
+            }
+        }
+
+        @Override
+        public void pointsUnassigned(final String modelId, final long[] keys) {
+            final ModelRecord model = findModelById(modelId);
+            if (model != null) {
+                detachPoints(model, keys, keys.length);
+            }
+        }
+
+        @Override
+        public void pointsAssigned(final String modelId, final long[] keys) {
+            final ModelRecord model = findModelById(modelId);
+            if (model != null) {
+                assignPoints(model, keys, keys.length);
+            }
+        }
+
+        @Override
+        public void modelDeleted(final String modelId) {
+            final ModelRecord model = findModelById(modelId);
+            if (model != null) {
+                removeModel(model);
+            }
+        }
+    }
+
+    /**
+     * Moments and fit of the unassigned points and of at most one model, captured around an edit.
+     * Copies are O(1), so an edit's history entry never grows with the state.
+     */
+    private final class EditState {
+        private final PointMoments unassigned;
+        private final ModelRecord model;
+        private final PointMoments modelMoments;
+        private final double[] modelFit;
+        private final boolean modelRefitPending;
+
+        private EditState(final ModelRecord model) {
+            this.unassigned = unassignedMoments.copy();
+            this.model = model;
+            this.modelMoments = model == null ? null : model.moments.copy();
+            this.modelFit = model == null ? null : fitParams(model);
+            this.modelRefitPending = model != null && model.refitPending;
+        }
+
+        private void restore() {
+            unassignedMoments.clear();
+            unassignedMoments.merge(unassigned);
+            unassignedVersion++;
+            if (model != null) {
+                model.moments.clear();
+                model.moments.merge(modelMoments);
+                model.restoreFit(modelFit);
+                model.refitPending = modelRefitPending;
+                model.modelZ = clampSlice((int) Math.round(model.cz + 1.0));
+                model.equation = formatEquation(model);
+            }
+        }
+    }
+
+    /**
+     * One entry of the undo history.
+     */
+    private abstract static class Edit {
+        private final String name;
+
+        private Edit(final String name) {
+            this.name = name;
+        }
+
+        abstract void undo();
+
+        abstract void redo();
+    }
+
+    /**
+     * Reversible command: it keeps only what the edit touched, re-runs (and journals) the inverse or
+     * forward data-level edit, then restores the moments and fit captured around the original edit, so
+     * undo and redo never refit from points and never drift.
+     */
+    private abstract class StateEdit extends Edit {
+        private final EditState before;
+        private final EditState after;
+
+        private StateEdit(final String name, final EditState before) {
+            super(name);
+            this.before = before;
+            this.after = new EditState(before.model);
+        }
+
+        @Override
+        final void undo() {
+            revert();
+            before.restore();
+        }
+
+        @Override
+        final void redo() {
+            reapply();
+            after.restore();
+        }
+
+        protected abstract void revert();
+
+        protected abstract void reapply();
+    }
+
+    private final class AddPointsEdit extends StateEdit {
+        private final long firstKey;
+        private final int firstId;
+        private final int count;
+        private final double[] xs;
+        private final double[] ys;
+        private final int[] zs;
+        private final int[] ts;
+        private final int[] cs;
+
+        private AddPointsEdit(final EditState before, final long firstKey, final int firstId, final int count,
+                              final double[] xs, final double[] ys, final int[] zs, final int[] ts, final int[] cs) {
+            super(count == 1 ? "add point" : "add " + count + " points", before);
+            this.firstKey = firstKey;
+            this.firstId = firstId;
+            this.count = count;
+            this.xs = xs;
+            this.ys = ys;
+            this.zs = zs;
+            this.ts = ts;
+            this.cs = cs;
+        }
+
+        @Override
+        protected void revert() {
+            final long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = firstKey + i;
+            }
+            erasePoints(keys, count);
+            record(j -> j.pointsDeleted(keys, count));
+        }
+
+        @Override
+        protected void reapply() {
+            insertPoints(firstKey, firstId, count, xs, ys, zs, ts, cs);
+            record(j -> j.pointsAdded(firstKey, firstId, count, xs, ys, zs, ts, cs));
+        }
+    }
+
+    private final class DeletePointEdit extends StateEdit {
+        private final PointRecord point;
+
+        private DeletePointEdit(final EditState before, final PointRecord point) {
+            super("delete point " + point.id, before);
+            this.point = point;
+        }
+
+        @Override
+        protected void revert() {
+            final double[] xs = {point.x};
+            final double[] ys = {point.y};
+            final int[] zs = {point.z};
+            final int[] ts = {point.t};
+            final int[] cs = {point.c};
+            insertPoints(point.key, point.id, 1, xs, ys, zs, ts, cs);
+            record(j -> j.pointsAdded(point.key, point.id, 1, xs, ys, zs, ts, cs));
+        }
+
+        @Override
+        protected void reapply() {
+            final long[] keys = {point.key};
+            erasePoints(keys, 1);
+            record(j -> j.pointsDeleted(keys, 1));
+        }
+    }
+
+    private final class MovePointEdit extends StateEdit {
+        private final long key;
+        private final double oldX;
+        private final double oldY;
+        private final double newX;
+        private final double newY;
+
+        private MovePointEdit(final EditState before, final long key, final double oldX, final double oldY,
+                              final double newX, final double newY) {
+            super("move point", before);
+            this.key = key;
+            this.oldX = oldX;
+            this.oldY = oldY;
+            this.newX = newX;
+            this.newY = newY;
+        }
+
+        @Override
+        protected void revert() {
+            relocatePoint(key, oldX, oldY);
+            record(j -> j.pointMoved(key, oldX, oldY));
+        }
+
+        @Override
+        protected void reapply() {
+            relocatePoint(key, newX, newY);
+            record(j -> j.pointMoved(key, newX, newY));
+        }
+    }
+
+    /**
+     * Fit (or import) of a new model. The model record itself is kept, so undo followed by redo
+     * brings back its moments and fit as they were.
+     */
+    private final class CreateModelEdit extends StateEdit {
+        private final ModelRecord model;
+        private final long[] keys;
+        private final int count;
+
+        private CreateModelEdit(final EditState before, final ModelRecord model, final long[] keys, final int count) {
+            super("fit " + model.id, before);
+            this.model = model;
+            this.keys = keys;
+            this.count = count;
+        }
+
+        @Override
+        protected void revert() {
+            removeModel(model);
+            record(j -> j.modelDeleted(model.id));
+        }
+
+        @Override
+        protected void reapply() {
+            attachModel(model, models.size(), keys, count);
+            record(j -> j.modelCreated(model.id, model.type, fitParams(model), keys, count));
+        }
+    }
+
+    private final class AssignEdit extends StateEdit {
+        private final ModelRecord model;
+        private final long[] keys;
+
+        private AssignEdit(final EditState before, final ModelRecord model, final long[] keys) {
+            super("add points to " + model.id, before);
+            this.model = model;
+            this.keys = keys;
+        }
+
+        @Override
+        protected void revert() {
+            detachPoints(model, keys, keys.length);
+            record(j -> j.pointsUnassigned(model.id, keys, keys.length));
+        }
+
+        @Override
+        protected void reapply() {
+            assignPoints(model, keys, keys.length);
+            record(j -> j.pointsAssigned(model.id, keys, keys.length));
+        }
+    }
+
+    private final class DetachEdit extends StateEdit {
+        private final ModelRecord model;
+        private final long[] keys;
+
+        private DetachEdit(final EditState before, final ModelRecord model, final long[] keys) {
+            super("remove point from " + model.id, before);
+            this.model = model;
+            this.keys = keys;
+        }
+
+        @Override
+        protected void revert() {
+            assignPoints(model, keys, keys.length);
+            record(j -> j.pointsAssigned(model.id, keys, keys.length));
+        }
+
+        @Override
+        protected void reapply() {
+            detachPoints(model, keys, keys.length);
+            record(j -> j.pointsUnassigned(model.id, keys, keys.length));
+        }
+    }
+
+    private final class DeleteModelEdit extends StateEdit {
+        private final ModelRecord model;
+        private final int index;
+        private final long[] keys;
+
+        private DeleteModelEdit(final EditState before, final ModelRecord model, final int index, final long[] keys) {
+            super("delete " + model.id, before);
+            this.model = model;
+            this.index = index;
+            this.keys = keys;
+        }
+
+        @Override
+        protected void revert() {
+            attachModel(model, index, keys, keys.length);
+            record(j -> j.modelCreated(model.id, model.type, fitParams(model), keys, keys.length));
+        }
+
+        @Override
+        protected void reapply() {
+            removeModel(model);
+            record(j -> j.modelDeleted(model.id));
+        }
+    }
+
+    private static final class CompoundEdit extends Edit {
+        private final List<Edit> parts;
+
+        private CompoundEdit(final String name, final List<Edit> parts) {
+            super(name);
+            this.parts = parts;
+        }
+
+        @Override
+        void undo() {
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                parts.get(i).undo();
+            }
+        }
+
+        @Override
+        void redo() {
+            for (Edit part : parts) {
+                part.redo();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface JournalEdit {
+        void writeTo(SessionStore.Journal journal) throws IOException;
+    }
+
     @FunctionalInterface
     private interface RowDeleteAction {
         void deleteRow(int row);
     }
 
-    private static final class PointRecord {
+    static final class PointRecord {
         private final long key;
         private final int id;
         private final double x;
         private final double y;
         private final int z;
+        private final int t;
+        private final int c;
 
-        private PointRecord(final long key, final int id, final double x, final double y, final int z) {
+        PointRecord(final long key, final int id, final double x, final double y, final int z, final int t,
+                    final int c) {
             this.key = key;
             this.id = id;
             this.x = x;
             this.y = y;
             this.z = z;
+            this.t = t;
+            this.c = c;
         }
     }
 
+    /**
+     * Model kinds; sessions store the ordinal, so new kinds are only ever appended.
+     */
     enum ModelType {
-        LINE,
-        PLANE
+        LINE("line", "L", 2),
+        PLANE("plane", "P", 3),
+        SPHERE("sphere", "S", 4),
+        CYLINDER("cylinder", "C", 5),
+        QUADRIC("quadric", "Q", 9);
+
+        private final String label;
+        private final String idPrefix;
+        private final int minimumPoints;
+
+        ModelType(final String label, final String idPrefix, final int minimumPoints) {
+            this.label = label;
+            this.idPrefix = idPrefix;
+            this.minimumPoints = minimumPoints;
+        }
+
+        /**
+         * Sphere, cylinder and quadric models carry shape parameters and are refit over their points.
+         */
+        boolean isSurface() {
+            return this != LINE && this != PLANE;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
     }
 
     private static final class ModelRecord {
         private final String id;
         private final ModelType type;
-        private final int n;
-        private final String equation;
-        private final double cx;
-        private final double cy;
-        private final double cz;
-        private final double vx;
-        private final double vy;
-        private final double vz;
-        private final double rmsDist;
-        private final double maxDist;
-        private final int modelZ;
-        private final List<Long> pointKeys;
-
-        private ModelRecord(final String id, final ModelType type, final double cx, final double cy, final double cz,
-                            final double vx, final double vy, final double vz, final double rmsDist, final double maxDist,
-                            final int modelZ, final List<Long> pointKeys, final String equation) {
+        private final LongHashSet pointKeys;
+        private final PointMoments moments;
+        private String equation = "";
+        private double cx;
+        private double cy;
+        private double cz;
+        private double vx;
+        private double vy;
+        private double vz;
+        private double rmsDist;
+        private double maxDist;
+        /**
+         * Radius for spheres and cylinders, the ten quadric coefficients for quadrics, empty otherwise.
+         */
+        private double[] shape = NO_SHAPE;
+        private int modelZ;
+        /**
+         * Sections with the bound image, or null once the fit changes.
+         */
+        private ModelSections sections;
+        /**
+         * A surface model whose points changed since its fit; the preview pass refits it.
+         */
+        private boolean refitPending;
+
+        private ModelRecord(final String id, final ModelType type, final long[] pointKeys, final int count,
+                            final PointMoments moments) {
             this.id = id;
             this.type = type;
-            this.cx = cx;
-            this.cy = cy;
-            this.cz = cz;
-            this.vx = vx;
-            this.vy = vy;
-            this.vz = vz;
+            this.pointKeys = new LongHashSet(count);
+            for (int i = 0; i < count; i++) {
+                this.pointKeys.add(pointKeys[i]);
+            }
+            this.moments = moments;
+        }
+
+        private void restoreFit(final double[] fit) {
+            this.cx = fit[0];
+            this.cy = fit[1];
+            this.cz = fit[2];
+            this.vx = fit[3];
+            this.vy = fit[4];
+            this.vz = fit[5];
+            this.rmsDist = fit[6];
+            this.maxDist = fit[7];
+            this.shape = fit.length > SessionStore.FIT_PARAMS
+                    ? Arrays.copyOfRange(fit, SessionStore.FIT_PARAMS, fit.length) : NO_SHAPE;
+            this.sections = null;
+        }
+
+        private void setFit(final double[] c, final double[] v, final double rmsDist, final double maxDist) {
+            // Keep the vector orientation stable across incremental refits.
+            final double sign = v[0] * vx + v[1] * vy + v[2] * vz < 0.0 ? -1.0 : 1.0;
+            this.cx = c[0];
+            this.cy = c[1];
+            this.cz = c[2];
+            this.vx = sign * v[0];
+            this.vy = sign * v[1];
+            this.vz = sign * v[2];
             this.rmsDist = rmsDist;
             this.maxDist = maxDist;
-            this.modelZ = modelZ;
-            this.pointKeys = new ArrayList<>(pointKeys);
-            this.n = this.pointKeys.size();
-            this.equation = equation;
+            this.sections = null;
         }
     }
 }
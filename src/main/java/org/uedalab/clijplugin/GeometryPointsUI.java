@@ -4,7 +4,6 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.Overlay;
-import ij.gui.OvalRoi;
 import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.process.FloatPolygon;
@@ -25,6 +24,8 @@ import java.awt.GridLayout;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class GeometryPointsUI extends JFrame {
 
@@ -174,20 +175,26 @@ public class GeometryPointsUI extends JFrame {
         if (!ensureBoundImage()) {
             return;
         }
-        final Overlay overlay = new Overlay();
+        final Map<Integer, PointOverlayRoi.Builder> batches = new TreeMap<>();
         int drawn = 0;
         for (PointRow row : model.rows()) {
             if (!Double.isFinite(row.x) || !Double.isFinite(row.y) || row.z <= 0) {
                 continue;
             }
-            final double diameter = OVERLAY_RADIUS_PX * 2.0;
-            final OvalRoi roi = new OvalRoi(row.x - OVERLAY_RADIUS_PX, row.y - OVERLAY_RADIUS_PX, diameter, diameter);
-            assignSlicePosition(roi, row.z);
-            roi.setName(row.id + " (" + row.role + ")");
-            roi.setStrokeWidth(1.0);
-            overlay.add(roi);
+            PointOverlayRoi.Builder batch = batches.get(row.z);
+            if (batch == null) {
+                batch = new PointOverlayRoi.Builder(16, true);
+                batches.put(row.z, batch);
+            }
+            batch.add(row.x, row.y, row.id + " (" + row.role + ")");
             drawn++;
         }
+        final Overlay overlay = new Overlay();
+        for (Map.Entry<Integer, PointOverlayRoi.Builder> entry : batches.entrySet()) {
+            final PointOverlayRoi roi = entry.getValue().build(OVERLAY_RADIUS_PX);
+            assignSlicePosition(roi, entry.getKey());
+            overlay.add(roi);
+        }
         boundImage.setOverlay(overlay);
         boundImage.updateAndDraw();
         IJ.log("Geometry Points UI: drew " + drawn + " points as overlay.");
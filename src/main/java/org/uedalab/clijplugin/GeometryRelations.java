@@ -0,0 +1,218 @@
+package org.uedalab.clijplugin;
+
+/**
+ * Angles and distances between fitted lines, planes and points. Models are passed as interleaved
+ * x,y,z primitive arrays (centroid and direction or normal per model, three doubles each), and the bulk
+ * methods fill whole relation tables in flat, row-major output arrays with no per-pair allocation.
+ * Degenerate inputs (zero-length vectors, parallel models where a result is undefined) yield NaN.
+ */
+final class GeometryRelations {
+
+    private static final double EPS = 1e-12;
+
+    private GeometryRelations() {
+    }
+
+    /**
+     * Dot product of the two vectors after normalization, optionally made absolute, clamped to [-1, 1].
+     */
+    static double unitDot(final double ax, final double ay, final double az,
+                          final double bx, final double by, final double bz, final boolean absolute) {
+        final double na = Math.sqrt(ax * ax + ay * ay + az * az);
+        final double nb = Math.sqrt(bx * bx + by * by + bz * bz);
+        if (!(na > EPS) || !(nb > EPS) || !Double.isFinite(na) || !Double.isFinite(nb)) {
+            return Double.NaN;
+        }
+        double dot = (ax * bx + ay * by + az * bz) / (na * nb);
+        if (absolute) {
+            dot = Math.abs(dot);
+        }
+        return Math.max(-1.0, Math.min(1.0, dot));
+    }
+
+    /**
+     * Angle between two vectors in degrees: line-line angle for directions, dihedral angle for normals.
+     */
+    static double angleDeg(final double ax, final double ay, final double az,
+                           final double bx, final double by, final double bz, final boolean absolute) {
+        return Math.toDegrees(Math.acos(unitDot(ax, ay, az, bx, by, bz, absolute)));
+    }
+
+    /**
+     * Angle between a line direction and a plane (90 degrees minus the line-normal angle).
+     */
+    static double linePlaneAngleDeg(final double dx, final double dy, final double dz,
+                                    final double nx, final double ny, final double nz, final boolean absolute) {
+        return 90.0 - angleDeg(dx, dy, dz, nx, ny, nz, absolute);
+    }
+
+    /**
+     * Fills out[i * nb + j] with the angle between vector i of a and vector j of b. For lines against
+     * planes pass linePlane = true to get the line-plane angle instead of the vector angle.
+     */
+    static void angleTable(final double[] a, final int na, final double[] b, final int nb,
+                           final boolean absolute, final boolean linePlane, final double[] out) {
+        for (int i = 0; i < na; i++) {
+            final double ax = a[i * 3];
+            final double ay = a[i * 3 + 1];
+            final double az = a[i * 3 + 2];
+            final int row = i * nb;
+            for (int j = 0; j < nb; j++) {
+                final double angle = angleDeg(ax, ay, az, b[j * 3], b[j * 3 + 1], b[j * 3 + 2], absolute);
+                out[row + j] = linePlane ? 90.0 - angle : angle;
+            }
+        }
+    }
+
+    /**
+     * Fills out[i * nb + j] with the closest distance between infinite line i of a and line j of b.
+     * Parallel lines fall back to the distance of b's centroid from line a.
+     */
+    static void lineLineDistanceTable(final double[] centroidsA, final double[] directionsA, final int na,
+                                      final double[] centroidsB, final double[] directionsB, final int nb,
+                                      final double[] out) {
+        for (int i = 0; i < na; i++) {
+            final double cx = centroidsA[i * 3];
+            final double cy = centroidsA[i * 3 + 1];
+            final double cz = centroidsA[i * 3 + 2];
+            final double dx = directionsA[i * 3];
+            final double dy = directionsA[i * 3 + 1];
+            final double dz = directionsA[i * 3 + 2];
+            final double dNorm = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            final int row = i * nb;
+            for (int j = 0; j < nb; j++) {
+                final double wx = centroidsB[j * 3] - cx;
+                final double wy = centroidsB[j * 3 + 1] - cy;
+                final double wz = centroidsB[j * 3 + 2] - cz;
+                final double ex = directionsB[j * 3];
+                final double ey = directionsB[j * 3 + 1];
+                final double ez = directionsB[j * 3 + 2];
+                // Common normal d x e.
+                final double px = dy * ez - dz * ey;
+                final double py = dz * ex - dx * ez;
+                final double pz = dx * ey - dy * ex;
+                final double pNorm = Math.sqrt(px * px + py * py + pz * pz);
+                final double eNorm = Math.sqrt(ex * ex + ey * ey + ez * ez);
+                if (!(dNorm > EPS) || !(eNorm > EPS)) {
+                    out[row + j] = Double.NaN;
+                } else if (pNorm > EPS * dNorm * eNorm) {
+                    out[row + j] = Math.abs(wx * px + wy * py + wz * pz) / pNorm;
+                } else {
+                    final double qx = wy * dz - wz * dy;
+                    final double qy = wz * dx - wx * dz;
+                    final double qz = wx * dy - wy * dx;
+                    out[row + j] = Math.sqrt(qx * qx + qy * qy + qz * qz) / dNorm;
+                }
+            }
+        }
+    }
+
+    /**
+     * Intersection line of every plane pair: a point (the one closest to the origin) and a unit
+     * direction, written at out[(i * nb + j) * 3]. Parallel planes give NaN.
+     */
+    static void planeIntersectionTable(final double[] centroidsA, final double[] normalsA, final int na,
+                                       final double[] centroidsB, final double[] normalsB, final int nb,
+                                       final double[] outPoints, final double[] outDirections) {
+        final double[] unitB = units(normalsB, nb);
+        final double[] offsetB = new double[nb];
+        for (int j = 0; j < nb; j++) {
+            offsetB[j] = unitB[j * 3] * centroidsB[j * 3] + unitB[j * 3 + 1] * centroidsB[j * 3 + 1]
+                    + unitB[j * 3 + 2] * centroidsB[j * 3 + 2];
+        }
+        final double[] n1 = new double[3];
+        for (int i = 0; i < na; i++) {
+            unit(normalsA, i, n1);
+            final double h1 = n1[0] * centroidsA[i * 3] + n1[1] * centroidsA[i * 3 + 1] + n1[2] * centroidsA[i * 3 + 2];
+            for (int j = 0; j < nb; j++) {
+                final int o = (i * nb + j) * 3;
+                final double n2x = unitB[j * 3];
+                final double n2y = unitB[j * 3 + 1];
+                final double n2z = unitB[j * 3 + 2];
+                final double h2 = offsetB[j];
+                final double ux = n1[1] * n2z - n1[2] * n2y;
+                final double uy = n1[2] * n2x - n1[0] * n2z;
+                final double uz = n1[0] * n2y - n1[1] * n2x;
+                final double det = ux * ux + uy * uy + uz * uz;
+                if (!(det > EPS)) {
+                    fillNaN(outPoints, o);
+                    fillNaN(outDirections, o);
+                    continue;
+                }
+                // p = ((h1 - h2 c) n1 + (h2 - h1 c) n2) / (1 - c^2), with c = n1 . n2 and 1 - c^2 = |n1 x n2|^2.
+                final double c = n1[0] * n2x + n1[1] * n2y + n1[2] * n2z;
+                final double k1 = (h1 - h2 * c) / det;
+                final double k2 = (h2 - h1 * c) / det;
+                outPoints[o] = k1 * n1[0] + k2 * n2x;
+                outPoints[o + 1] = k1 * n1[1] + k2 * n2y;
+                outPoints[o + 2] = k1 * n1[2] + k2 * n2z;
+                final double len = Math.sqrt(det);
+                outDirections[o] = ux / len;
+                outDirections[o + 1] = uy / len;
+                outDirections[o + 2] = uz / len;
+            }
+        }
+    }
+
+    /**
+     * Fills out[p * nm + m] with the distance from point p to model m: signed along the normal for
+     * planes (positive on the side the normal points to), perpendicular and non-negative for lines.
+     */
+    static void pointModelDistanceTable(final double[] points, final int np,
+                                        final double[] centroids, final double[] vectors, final boolean[] isPlane,
+                                        final int nm, final double[] out) {
+        final double[] v = new double[3];
+        for (int m = 0; m < nm; m++) {
+            unit(vectors, m, v);
+            final double cx = centroids[m * 3];
+            final double cy = centroids[m * 3 + 1];
+            final double cz = centroids[m * 3 + 2];
+            if (isPlane[m]) {
+                for (int p = 0; p < np; p++) {
+                    out[p * nm + m] = (points[p * 3] - cx) * v[0] + (points[p * 3 + 1] - cy) * v[1]
+                            + (points[p * 3 + 2] - cz) * v[2];
+                }
+            } else {
+                for (int p = 0; p < np; p++) {
+                    final double wx = points[p * 3] - cx;
+                    final double wy = points[p * 3 + 1] - cy;
+                    final double wz = points[p * 3 + 2] - cz;
+                    final double along = wx * v[0] + wy * v[1] + wz * v[2];
+                    out[p * nm + m] = Math.sqrt(Math.max(0.0, wx * wx + wy * wy + wz * wz - along * along));
+                }
+            }
+        }
+    }
+
+    private static double[] units(final double[] vectors, final int count) {
+        final double[] out = new double[count * 3];
+        final double[] v = new double[3];
+        for (int i = 0; i < count; i++) {
+            unit(vectors, i, v);
+            out[i * 3] = v[0];
+            out[i * 3 + 1] = v[1];
+            out[i * 3 + 2] = v[2];
+        }
+        return out;
+    }
+
+    private static void unit(final double[] vectors, final int index, final double[] out) {
+        final double x = vectors[index * 3];
+        final double y = vectors[index * 3 + 1];
+        final double z = vectors[index * 3 + 2];
+        final double norm = Math.sqrt(x * x + y * y + z * z);
+        if (!(norm > EPS) || !Double.isFinite(norm)) {
+            fillNaN(out, 0);
+            return;
+        }
+        out[0] = x / norm;
+        out[1] = y / norm;
+        out[2] = z / norm;
+    }
+
+    private static void fillNaN(final double[] out, final int offset) {
+        out[offset] = Double.NaN;
+        out[offset + 1] = Double.NaN;
+        out[offset + 2] = Double.NaN;
+    }
+}
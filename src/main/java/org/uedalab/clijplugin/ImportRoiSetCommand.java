@@ -0,0 +1,199 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.WindowManager;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.measure.ResultsTable;
+import ij.process.FloatPolygon;
+import ij.text.TextWindow;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Appends the points of a saved ROI set (.zip) or single .roi file to a point table without the ROI
+ * Manager, so it also runs headless. Zip entries are streamed in batches; each batch is decoded in
+ * parallel and appended in entry order through {@link PointTableAppender}.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry points>import roi set file...")
+public class ImportRoiSetCommand implements Command {
+
+    /**
+     * Zip entries read before a batch is decoded; bounds the raw bytes held at once.
+     */
+    private static final int BATCH_ENTRIES = 4096;
+
+    @Parameter(label = "ROI set (.zip or .roi)", style = "open")
+    private File roiFile;
+
+    @Parameter(label = "Table title")
+    private String tableTitle = "points";
+
+    @Parameter(label = "ID prefix")
+    private String idPrefix = "p";
+
+    @Parameter(label = "Start index", min = "1")
+    private int startIndex = 1;
+
+    @Parameter(label = "Default role")
+    private String defaultRole = PointTableSchema.ROLE_PLANE_FIT;
+
+    @Parameter(label = "Z one-based")
+    private boolean zOneBased = true;
+
+    @Override
+    public void run() {
+        if (roiFile == null || !roiFile.isFile()) {
+            IJ.error("Import ROI Set", "Choose an existing .zip or .roi file.");
+            return;
+        }
+        final String resolvedTitle = tableTitle == null || tableTitle.trim().isEmpty() ? "points" : tableTitle;
+        final String resolvedPrefix = idPrefix == null || idPrefix.isEmpty() ? "p" : idPrefix;
+        final String resolvedRole = defaultRole == null || defaultRole.trim().isEmpty()
+                ? PointTableSchema.ROLE_PLANE_FIT : defaultRole;
+
+        final PointTableAppender appender = new PointTableAppender(resolvedPrefix, startIndex, resolvedRole, 1024);
+        final int[] counts = new int[2];
+        try {
+            if (roiFile.getName().toLowerCase(Locale.ROOT).endsWith(".zip")) {
+                readZip(roiFile, appender, counts);
+            } else {
+                final List<byte[]> single = new ArrayList<>(1);
+                single.add(Files.readAllBytes(roiFile.toPath()));
+                decodeBatch(single, appender, counts);
+            }
+        } catch (IOException e) {
+            IJ.error("Import ROI Set", "Cannot read " + roiFile.getName() + ": " + e.getMessage());
+            return;
+        }
+        if (appender.size() == 0) {
+            IJ.error("Import ROI Set", "No point ROIs with valid coordinates in " + roiFile.getName() + ".");
+            return;
+        }
+
+        final ResultsTable rt = getOrCreateResultsTable(resolvedTitle);
+        appender.appendTo(rt);
+        rt.show(resolvedTitle);
+        IJ.log("Imported " + appender.size() + " points from " + counts[0] + " of " + counts[1] + " ROIs in '"
+                + roiFile.getName() + "' to table '" + resolvedTitle + "' (pixel coordinates).");
+    }
+
+    private void readZip(final File file, final PointTableAppender appender, final int[] counts) throws IOException {
+        final List<byte[]> batch = new ArrayList<>(BATCH_ENTRIES);
+        final byte[] buffer = new byte[8192];
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory() || !entry.getName().toLowerCase(Locale.ROOT).endsWith(".roi")) {
+                    continue;
+                }
+                batch.add(readEntry(zip, buffer));
+                if (batch.size() == BATCH_ENTRIES) {
+                    decodeBatch(batch, appender, counts);
+                    batch.clear();
+                }
+            }
+        }
+        decodeBatch(batch, appender, counts);
+    }
+
+    private static byte[] readEntry(final InputStream in, final byte[] buffer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the batch in parallel, then appends the point ROIs in entry order. counts = {point ROIs
+     * used, ROIs seen}.
+     */
+    private void decodeBatch(final List<byte[]> batch, final PointTableAppender appender, final int[] counts) {
+        final DecodedRoi[] decoded = new DecodedRoi[batch.size()];
+        IntStream.range(0, decoded.length).parallel().forEach(i -> decoded[i] = decode(batch.get(i)));
+        counts[1] += decoded.length;
+        for (DecodedRoi roi : decoded) {
+            if (roi == null) {
+                continue;
+            }
+            final int before = appender.size();
+            for (int i = 0; i < roi.points.npoints; i++) {
+                final double x = roi.points.xpoints[i];
+                final double y = roi.points.ypoints[i];
+                if (Double.isFinite(x) && Double.isFinite(y)) {
+                    appender.add(x, y, roi.z, roi.t, roi.c);
+                }
+            }
+            if (appender.size() > before) {
+                counts[0]++;
+            }
+        }
+    }
+
+    private DecodedRoi decode(final byte[] bytes) {
+        final Roi roi;
+        try {
+            roi = RoiDecoder.openFromByteArray(bytes);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (!(roi instanceof PointRoi)) {
+            return null;
+        }
+        final FloatPolygon points = roi.getFloatPolygon();
+        if (points == null || points.npoints <= 0) {
+            return null;
+        }
+        int z = roi.getZPosition();
+        if (z <= 0) {
+            z = roi.getPosition();
+        }
+        z = Math.max(1, z);
+        return new DecodedRoi(points, zOneBased ? z : z - 1, Math.max(1, roi.getTPosition()),
+                Math.max(1, roi.getCPosition()));
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+
+    private static final class DecodedRoi {
+        private final FloatPolygon points;
+        private final int z;
+        private final int t;
+        private final int c;
+
+        private DecodedRoi(final FloatPolygon points, final int z, final int t, final int c) {
+            this.points = points;
+            this.z = z;
+            this.t = t;
+            this.c = c;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.uedalab.clijplugin;
+
+/**
+ * Static 3D k-d tree for nearest-neighbour queries. The tree is implicit: points are permuted so that
+ * every range [lo, hi) is split at its middle element along the axis of largest spread, and the
+ * coordinates are copied interleaved in that order so a query walks contiguous memory. Read-only after
+ * construction, so any number of threads can query it at once.
+ */
+final class KdTree {
+
+    /**
+     * Ranges up to this size are scanned linearly instead of split further.
+     */
+    private static final int LEAF = 8;
+
+    private final double[] coords;
+    private final int[] index;
+    private final byte[] splitAxis;
+    private final int size;
+
+    KdTree(final double[] xs, final double[] ys, final double[] zs, final int n) {
+        this.size = n;
+        this.coords = new double[3 * n];
+        this.index = new int[n];
+        this.splitAxis = new byte[n];
+        for (int i = 0; i < n; i++) {
+            coords[3 * i] = xs[i];
+            coords[3 * i + 1] = ys[i];
+            coords[3 * i + 2] = zs[i];
+            index[i] = i;
+        }
+        build(0, n);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Index (into the construction arrays) of the point nearest to (x, y, z), or -1 for an empty tree;
+     * the squared distance goes to distanceOut[0] when distanceOut is not null.
+     */
+    int nearest(final double x, final double y, final double z, final double[] distanceOut) {
+        final double[] best = {Double.POSITIVE_INFINITY, -1};
+        search(0, size, x, y, z, best);
+        if (distanceOut != null) {
+            distanceOut[0] = best[0];
+        }
+        return (int) best[1];
+    }
+
+    private void search(final int lo, final int hi, final double x, final double y, final double z,
+                        final double[] best) {
+        if (hi - lo <= LEAF) {
+            for (int i = lo; i < hi; i++) {
+                consider(i, x, y, z, best);
+            }
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+        consider(mid, x, y, z, best);
+        final int axis = splitAxis[mid];
+        final double diff = (axis == 0 ? x : axis == 1 ? y : z) - coords[3 * mid + axis];
+        if (diff < 0.0) {
+            search(lo, mid, x, y, z, best);
+            if (diff * diff < best[0]) {
+                search(mid + 1, hi, x, y, z, best);
+            }
+        } else {
+            search(mid + 1, hi, x, y, z, best);
+            if (diff * diff < best[0]) {
+                search(lo, mid, x, y, z, best);
+            }
+        }
+    }
+
+    private void consider(final int i, final double x, final double y, final double z, final double[] best) {
+        final double dx = coords[3 * i] - x;
+        final double dy = coords[3 * i + 1] - y;
+        final double dz = coords[3 * i + 2] - z;
+        final double d2 = dx * dx + dy * dy + dz * dz;
+        if (d2 < best[0]) {
+            best[0] = d2;
+            best[1] = index[i];
+        }
+    }
+
+    private void build(final int lo, final int hi) {
+        if (hi - lo <= LEAF) {
+            return;
+        }
+        final int axis = widestAxis(lo, hi);
+        final int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        splitAxis[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private int widestAxis(final int lo, final int hi) {
+        int widest = 0;
+        double widestSpread = -1.0;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                final double v = coords[3 * i + axis];
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+            if (max - min > widestSpread) {
+                widestSpread = max - min;
+                widest = axis;
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Quickselect: afterwards position k holds the element that sorted order along axis would put there,
+     * with no larger element before it and no smaller one after it, within [left, right].
+     */
+    private void select(int left, int right, final int k, final int axis) {
+        while (right > left) {
+            final double pivot = coords[3 * ((left + right) >>> 1) + axis];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coords[3 * i + axis] < pivot) {
+                    i++;
+                }
+                while (coords[3 * j + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(final int a, final int b) {
+        for (int d = 0; d < 3; d++) {
+            final double t = coords[3 * a + d];
+            coords[3 * a + d] = coords[3 * b + d];
+            coords[3 * b + d] = t;
+        }
+        final int t = index[a];
+        index[a] = index[b];
+        index[b] = t;
+    }
+}
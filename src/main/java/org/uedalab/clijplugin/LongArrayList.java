@@ -0,0 +1,135 @@
+package org.uedalab.clijplugin;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive longs. The sorted helpers keep an ascending list ordered without
+ * re-sorting: single keys go in by binary search, batches by a linear merge.
+ */
+final class LongArrayList {
+
+    private long[] data;
+    private int size;
+
+    LongArrayList() {
+        this(16);
+    }
+
+    LongArrayList(final int initialCapacity) {
+        data = new long[Math.max(4, initialCapacity)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long get(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return data[index];
+    }
+
+    void add(final long value) {
+        ensureCapacity(size + 1);
+        data[size++] = value;
+    }
+
+    long removeAt(final int index) {
+        final long value = get(index);
+        System.arraycopy(data, index + 1, data, index, size - index - 1);
+        size--;
+        return value;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Index of the value in an ascending list, or {@code -(insertionPoint + 1)}.
+     */
+    int binarySearch(final long value) {
+        return Arrays.binarySearch(data, 0, size, value);
+    }
+
+    void insertSorted(final long value) {
+        int index = binarySearch(value);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        ensureCapacity(size + 1);
+        System.arraycopy(data, index, data, index + 1, size - index);
+        data[index] = value;
+        size++;
+    }
+
+    boolean removeSorted(final long value) {
+        final int index = binarySearch(value);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Merges the first {@code count} values of an ascending array into this ascending list in O(n + m).
+     */
+    void mergeSorted(final long[] sorted, final int count) {
+        if (count <= 0) {
+            return;
+        }
+        final long[] merged = new long[Math.max(data.length, size + count)];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < size && j < count) {
+            merged[k++] = data[i] <= sorted[j] ? data[i++] : sorted[j++];
+        }
+        while (i < size) {
+            merged[k++] = data[i++];
+        }
+        while (j < count) {
+            merged[k++] = sorted[j++];
+        }
+        data = merged;
+        size = k;
+    }
+
+    /**
+     * Removes the first {@code count} values of an ascending array from this ascending list in O(n + m)
+     * and returns how many were found.
+     */
+    int removeAllSorted(final long[] sorted, final int count) {
+        int j = 0;
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < count && sorted[j] < data[i]) {
+                j++;
+            }
+            if (j < count && sorted[j] == data[i]) {
+                j++;
+                continue;
+            }
+            data[k++] = data[i];
+        }
+        final int removed = size - k;
+        size = k;
+        return removed;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length + (data.length >> 1)));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.uedalab.clijplugin;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing set of primitive longs (linear probing, backward-shift deletion). No boxing on
+ * add, remove or contains.
+ */
+final class LongHashSet {
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private boolean hasZero;
+
+    LongHashSet() {
+        this(16);
+    }
+
+    LongHashSet(final int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean contains(final long key) {
+        if (key == 0L) {
+            return hasZero;
+        }
+        int i = LongHashing.slot(key, mask);
+        while (true) {
+            final long k = table[i];
+            if (k == 0L) {
+                return false;
+            }
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    boolean add(final long key) {
+        if (key == 0L) {
+            final boolean added = !hasZero;
+            hasZero = true;
+            return added;
+        }
+        int i = LongHashing.slot(key, mask);
+        while (true) {
+            final long k = table[i];
+            if (k == 0L) {
+                table[i] = key;
+                if (++size > (table.length >> 1) + (table.length >> 2)) {
+                    rehash(table.length << 1);
+                }
+                return true;
+            }
+            if (k == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    boolean remove(final long key) {
+        if (key == 0L) {
+            final boolean removed = hasZero;
+            hasZero = false;
+            return removed;
+        }
+        int i = LongHashing.slot(key, mask);
+        while (true) {
+            final long k = table[i];
+            if (k == 0L) {
+                return false;
+            }
+            if (k == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            final long k = table[j];
+            if (k == 0L) {
+                break;
+            }
+            final int home = LongHashing.slot(k, mask);
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                table[i] = k;
+                i = j;
+            }
+        }
+        table[i] = 0L;
+        return true;
+    }
+
+    void clear() {
+        java.util.Arrays.fill(table, 0L);
+        size = 0;
+        hasZero = false;
+    }
+
+    void forEach(final LongConsumer action) {
+        if (hasZero) {
+            action.accept(0L);
+        }
+        for (long k : table) {
+            if (k != 0L) {
+                action.accept(k);
+            }
+        }
+    }
+
+    long[] toArray() {
+        final long[] out = new long[size()];
+        int n = 0;
+        if (hasZero) {
+            out[n++] = 0L;
+        }
+        for (long k : table) {
+            if (k != 0L) {
+                out[n++] = k;
+            }
+        }
+        return out;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] old = table;
+        allocate(capacity);
+        for (long k : old) {
+            if (k != 0L) {
+                int i = LongHashing.slot(k, mask);
+                while (table[i] != 0L) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = k;
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        table = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    static int tableSizeFor(final int expectedSize) {
+        final int needed = Math.max(4, (int) Math.min(1L << 30, (long) expectedSize * 4 / 3 + 1));
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
+}
@@ -0,0 +1,15 @@
+package org.uedalab.clijplugin;
+
+/**
+ * Hash mixing shared by the primitive long-keyed collections.
+ */
+final class LongHashing {
+
+    private LongHashing() {
+    }
+
+    static int slot(final long key, final int mask) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,168 @@
+package org.uedalab.clijplugin;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from primitive long keys to objects. Iterate with {@link #capacity()} and
+ * {@link #valueAt(int)}, which returns null for empty slots.
+ */
+final class LongObjectHashMap<V> {
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private V zeroValue;
+
+    LongObjectHashMap() {
+        this(16);
+    }
+
+    LongObjectHashMap(final int expectedSize) {
+        allocate(LongHashSet.tableSizeFor(expectedSize));
+    }
+
+    int size() {
+        return size + (zeroValue != null ? 1 : 0);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean containsKey(final long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final long key) {
+        if (key == 0L) {
+            return zeroValue;
+        }
+        int i = LongHashing.slot(key, mask);
+        while (true) {
+            final long k = keys[i];
+            if (k == 0L) {
+                return null;
+            }
+            if (k == key) {
+                return (V) values[i];
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Associates a non-null value with the key and returns the previous value, if any.
+     */
+    @SuppressWarnings("unchecked")
+    V put(final long key, final V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported.");
+        }
+        if (key == 0L) {
+            final V previous = zeroValue;
+            zeroValue = value;
+            return previous;
+        }
+        int i = LongHashing.slot(key, mask);
+        while (true) {
+            final long k = keys[i];
+            if (k == 0L) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > (keys.length >> 1) + (keys.length >> 2)) {
+                    rehash(keys.length << 1);
+                }
+                return null;
+            }
+            if (k == key) {
+                final V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(final long key) {
+        if (key == 0L) {
+            final V previous = zeroValue;
+            zeroValue = null;
+            return previous;
+        }
+        int i = LongHashing.slot(key, mask);
+        while (true) {
+            final long k = keys[i];
+            if (k == 0L) {
+                return null;
+            }
+            if (k == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        final V previous = (V) values[i];
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            final long k = keys[j];
+            if (k == 0L) {
+                break;
+            }
+            final int home = LongHashing.slot(k, mask);
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = k;
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0L;
+        values[i] = null;
+        return previous;
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0L);
+        Arrays.fill(values, null);
+        size = 0;
+        zeroValue = null;
+    }
+
+    /**
+     * Number of iteration slots; slot {@code capacity() - 1} holds the value for key 0.
+     */
+    int capacity() {
+        return keys.length + 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(final int slot) {
+        return slot == keys.length ? zeroValue : (V) values[slot];
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        allocate(capacity);
+        for (int s = 0; s < oldKeys.length; s++) {
+            final long k = oldKeys[s];
+            if (k != 0L) {
+                int i = LongHashing.slot(k, mask);
+                while (keys[i] != 0L) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+                values[i] = oldValues[s];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,52 @@
+package org.uedalab.clijplugin;
+
+import ij.gui.ImageCanvas;
+import ij.gui.Roi;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * Overlay element showing a model's {@link ModelSections} on whichever z slice the image is at. It is
+ * not tied to a slice, so one element covers the whole stack.
+ */
+final class ModelSectionRoi extends Roi {
+
+    private final ModelSections sections;
+
+    private ModelSectionRoi(final ModelSections sections, final int width, final int height) {
+        super(0, 0, Math.max(1, width), Math.max(1, height));
+        this.sections = sections;
+    }
+
+    /**
+     * Sections of one model with every slice of a width x height x slices image.
+     */
+    static ModelSectionRoi of(final GeometryPointsCanvas.RenderModel model, final int width, final int height,
+                              final int slices) {
+        return new ModelSectionRoi(ModelSections.of(model, width, height, slices), width, height);
+    }
+
+    @Override
+    public void drawOverlay(final Graphics g) {
+        draw(g);
+    }
+
+    @Override
+    public void draw(final Graphics g) {
+        if (imp == null) {
+            return;
+        }
+        final int z = imp.isHyperStack() ? imp.getZ() : imp.getCurrentSlice();
+        // Without a canvas (flattening) image and screen coordinates coincide.
+        final ImageCanvas canvas = ic;
+        final Rectangle src = canvas != null ? canvas.getSrcRect() : null;
+        final Graphics2D g2 = (Graphics2D) g;
+        final Color color = getStrokeColor();
+        g2.setColor(color != null ? color : Roi.getColor());
+        sections.draw(g2, z, src != null ? src.x : 0.0, src != null ? src.y : 0.0,
+                canvas != null ? canvas.getMagnification() : 1.0);
+    }
+}
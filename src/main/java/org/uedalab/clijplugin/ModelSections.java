@@ -0,0 +1,315 @@
+package org.uedalab.clijplugin;
+
+import java.awt.Graphics2D;
+import java.util.Arrays;
+
+/**
+ * Cross-sections of one model with the z slices of an image, stored as a compact table per slice: each
+ * entry is four floats (a segment, a circle or a marker) and a kind byte, 17 bytes in all. A slice is
+ * intersected the first time it is drawn and kept, so a table for a new or refitted model costs nothing
+ * until it is shown, and then only the slice on screen; drawing a kept slice is one draw call per entry,
+ * with no geometry and no allocation. Models are in zero-based z, so slice z is the model plane z - 1.
+ */
+final class ModelSections {
+
+    static final byte KIND_SEGMENT = 0;
+    static final byte KIND_CIRCLE = 1;
+    static final byte KIND_MARKER = 2;
+
+    /**
+     * Implicit surfaces are contoured on a grid of at most this many cells per image side.
+     */
+    private static final int MAX_CONTOUR_CELLS = 256;
+    private static final int MARKER_RADIUS_PX = 5;
+    private static final double EPS = 1e-9;
+
+    /**
+     * Receives the segments of a contour.
+     */
+    interface SegmentSink {
+        void segment(double x1, double y1, double x2, double y2);
+    }
+
+    private final GeometryPointsCanvas.RenderModel model;
+    private final int width;
+    private final int height;
+    private final int step;
+    /**
+     * Per slice, null until first drawn.
+     */
+    private final Slice[] slices;
+
+    private ModelSections(final GeometryPointsCanvas.RenderModel model, final int width, final int height,
+                          final int slices) {
+        this.model = model;
+        this.width = width;
+        this.height = height;
+        this.step = Math.max(2, (Math.max(width, height) + MAX_CONTOUR_CELLS - 1) / MAX_CONTOUR_CELLS);
+        this.slices = new Slice[Math.max(1, slices)];
+    }
+
+    /**
+     * Sections of the model with slices 1..slices of a width x height image, intersected on demand.
+     */
+    static ModelSections of(final GeometryPointsCanvas.RenderModel model, final int width, final int height,
+                            final int slices) {
+        return new ModelSections(model, width, height, slices);
+    }
+
+    /**
+     * True if this table was made for the same image size and slice count.
+     */
+    boolean isFor(final int width, final int height, final int slices) {
+        return this.width == width && this.height == height && this.slices.length == Math.max(1, slices);
+    }
+
+    int slices() {
+        return slices.length;
+    }
+
+    /**
+     * Draws the entries of slice z, intersecting the slice first if it has not been drawn before;
+     * screen = (image - origin) * mag, as ImageCanvas maps coordinates.
+     */
+    void draw(final Graphics2D g2, final int z, final double originX, final double originY, final double mag) {
+        if (z < 1 || z > slices.length) {
+            return;
+        }
+        Slice slice = slices[z - 1];
+        if (slice == null) {
+            final Entries entries = new Entries();
+            addSection(entries, model, z - 1.0, width, height, step);
+            slice = new Slice(entries);
+            slices[z - 1] = slice;
+        }
+        final float[] coords = slice.coords;
+        final byte[] kinds = slice.kinds;
+        for (int e = 0; e < kinds.length; e++) {
+            final int k = e * 4;
+            final int sx = (int) ((coords[k] - originX) * mag);
+            final int sy = (int) ((coords[k + 1] - originY) * mag);
+            if (kinds[e] == KIND_SEGMENT) {
+                g2.drawLine(sx, sy, (int) ((coords[k + 2] - originX) * mag), (int) ((coords[k + 3] - originY) * mag));
+            } else if (kinds[e] == KIND_CIRCLE) {
+                final int r = (int) Math.round(coords[k + 2] * mag);
+                g2.drawOval(sx - r, sy - r, 2 * r, 2 * r);
+            } else {
+                g2.drawLine(sx - MARKER_RADIUS_PX, sy, sx + MARKER_RADIUS_PX, sy);
+                g2.drawLine(sx, sy - MARKER_RADIUS_PX, sx, sy + MARKER_RADIUS_PX);
+            }
+        }
+    }
+
+    private static void addSection(final Entries entries, final GeometryPointsCanvas.RenderModel model,
+                                   final double z, final int width, final int height, final int step) {
+        switch (model.type) {
+            case LINE:
+                if (Math.abs(model.vz) > EPS) {
+                    final double t = (z - model.cz) / model.vz;
+                    final double x = model.cx + t * model.vx;
+                    final double y = model.cy + t * model.vy;
+                    if (x >= 0 && y >= 0 && x <= width - 1 && y <= height - 1) {
+                        entries.add(KIND_MARKER, x, y, 0.0, 0.0);
+                    }
+                } else if (Math.abs(z - model.cz) <= 0.5) {
+                    // An in-plane line: its 2D normal is (-vy, vx).
+                    if (Math.abs(model.vx) + Math.abs(model.vy) <= EPS) {
+                        entries.add(KIND_MARKER, model.cx, model.cy, 0.0, 0.0);
+                    } else {
+                        addClippedLine(entries, -model.vy, model.vx,
+                                model.vy * model.cx - model.vx * model.cy, width, height);
+                    }
+                }
+                break;
+            case PLANE:
+                if (Math.abs(model.vx) + Math.abs(model.vy) <= EPS) {
+                    if (Math.abs(z - model.cz) <= 0.5) {
+                        entries.add(KIND_MARKER, model.cx, model.cy, 0.0, 0.0);
+                    }
+                } else {
+                    addClippedLine(entries, model.vx, model.vy,
+                            model.vz * (z - model.cz) - model.vx * model.cx - model.vy * model.cy, width, height);
+                }
+                break;
+            case SPHERE:
+                final double dz = z - model.cz;
+                final double rr = model.shape[0] * model.shape[0] - dz * dz;
+                if (rr > 0.0) {
+                    entries.add(KIND_CIRCLE, model.cx, model.cy, Math.sqrt(rr), 0.0);
+                }
+                break;
+            default:
+                if (model.shape.length == 0) {
+                    break;
+                }
+                final int cols = (width - 1) / step + 2;
+                final int rows = (height - 1) / step + 2;
+                final double[] f = new double[cols * rows];
+                for (int j = 0; j < rows; j++) {
+                    for (int i = 0; i < cols; i++) {
+                        f[j * cols + i] = implicitValue(model, i * step, j * step, z);
+                    }
+                }
+                contour(f, cols, rows, 0.0, 0.0, step,
+                        (x1, y1, x2, y2) -> entries.add(KIND_SEGMENT, x1, y1, x2, y2));
+                break;
+        }
+    }
+
+    /**
+     * Clips a*x + b*y + c = 0 to the image and stores the longest chord, if any.
+     */
+    private static void addClippedLine(final Entries entries, final double a, final double b,
+                                       final double c, final int width, final int height) {
+        final double xMax = width - 1.0;
+        final double yMax = height - 1.0;
+        final double[] pts = new double[8];
+        int n = 0;
+        if (Math.abs(b) > EPS) {
+            for (double x : new double[]{0.0, xMax}) {
+                final double y = -(c + a * x) / b;
+                if (y >= 0.0 && y <= yMax) {
+                    pts[n++] = x;
+                    pts[n++] = y;
+                }
+            }
+        }
+        if (Math.abs(a) > EPS) {
+            for (double y : new double[]{0.0, yMax}) {
+                final double x = -(c + b * y) / a;
+                if (x >= 0.0 && x <= xMax) {
+                    pts[n++] = x;
+                    pts[n++] = y;
+                }
+            }
+        }
+        int p1 = -1;
+        int p2 = -1;
+        double best = -1.0;
+        for (int i = 0; i < n; i += 2) {
+            for (int j = i + 2; j < n; j += 2) {
+                final double dx = pts[i] - pts[j];
+                final double dy = pts[i + 1] - pts[j + 1];
+                if (dx * dx + dy * dy > best) {
+                    best = dx * dx + dy * dy;
+                    p1 = i;
+                    p2 = j;
+                }
+            }
+        }
+        if (p1 >= 0 && best > 1e-12) {
+            entries.add(KIND_SEGMENT, pts[p1], pts[p1 + 1], pts[p2], pts[p2 + 1]);
+        }
+    }
+
+    /**
+     * Value of the implicit function whose zero set is the cylinder (squared axis distance - r^2) or
+     * quadric (Q) surface.
+     */
+    static double implicitValue(final GeometryPointsCanvas.RenderModel model, final double x, final double y,
+                                final double z) {
+        if (model.type == GeometryPointsControlFrame.ModelType.CYLINDER) {
+            final double wx = x - model.cx;
+            final double wy = y - model.cy;
+            final double wz = z - model.cz;
+            final double t = wx * model.vx + wy * model.vy + wz * model.vz;
+            final double r = model.shape[0];
+            return wx * wx + wy * wy + wz * wz - t * t - r * r;
+        }
+        return SurfaceFitUtils.evaluateQuadric(model.shape, x, y, z);
+    }
+
+    /**
+     * Marching squares over f sampled on a cols x rows grid with the given spacing, grid point (i, j) at
+     * (originX + i * step, originY + j * step).
+     */
+    static void contour(final double[] f, final int cols, final int rows, final double originX,
+                        final double originY, final double step, final SegmentSink sink) {
+        final double[] crossings = new double[8];
+        for (int j = 0; j + 1 < rows; j++) {
+            for (int i = 0; i + 1 < cols; i++) {
+                final double a = f[j * cols + i];
+                final double b = f[j * cols + i + 1];
+                final double c = f[(j + 1) * cols + i + 1];
+                final double d = f[(j + 1) * cols + i];
+                final double x0 = originX + i * step;
+                final double y0 = originY + j * step;
+                final double x1 = x0 + step;
+                final double y1 = y0 + step;
+                // Crossings on the top, right, bottom and left edges, in that order.
+                int n = 0;
+                if (crosses(a, b)) {
+                    crossings[n++] = x0 + step * a / (a - b);
+                    crossings[n++] = y0;
+                }
+                if (crosses(b, c)) {
+                    crossings[n++] = x1;
+                    crossings[n++] = y0 + step * b / (b - c);
+                }
+                if (crosses(c, d)) {
+                    crossings[n++] = x1 - step * c / (c - d);
+                    crossings[n++] = y1;
+                }
+                if (crosses(d, a)) {
+                    crossings[n++] = x0;
+                    crossings[n++] = y1 - step * d / (d - a);
+                }
+                if (n == 4) {
+                    sink.segment(crossings[0], crossings[1], crossings[2], crossings[3]);
+                } else if (n == 8) {
+                    // Saddle: the centre value decides which opposite corners are joined.
+                    if (((a + b + c + d) > 0.0) == (a > 0.0)) {
+                        // The top-right and bottom-left corners are cut off.
+                        sink.segment(crossings[0], crossings[1], crossings[2], crossings[3]);
+                        sink.segment(crossings[4], crossings[5], crossings[6], crossings[7]);
+                    } else {
+                        sink.segment(crossings[6], crossings[7], crossings[0], crossings[1]);
+                        sink.segment(crossings[2], crossings[3], crossings[4], crossings[5]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean crosses(final double a, final double b) {
+        return (a > 0.0) != (b > 0.0) && Double.isFinite(a) && Double.isFinite(b);
+    }
+
+    /**
+     * The entries of one slice, trimmed. Fields are final so a slice built during one paint is seen whole
+     * by the next, even from another thread.
+     */
+    private static final class Slice {
+        private final float[] coords;
+        private final byte[] kinds;
+
+        private Slice(final Entries entries) {
+            this.coords = Arrays.copyOf(entries.coords, entries.size * 4);
+            this.kinds = Arrays.copyOf(entries.kinds, entries.size);
+        }
+    }
+
+    /**
+     * Growable parallel arrays of entries.
+     */
+    private static final class Entries {
+        private float[] coords = new float[64];
+        private byte[] kinds = new byte[16];
+        private int size;
+
+        private void add(final byte kind, final double a, final double b, final double c, final double d) {
+            if (size == kinds.length) {
+                final int grown = size * 2;
+                coords = Arrays.copyOf(coords, grown * 4);
+                kinds = Arrays.copyOf(kinds, grown);
+            }
+            final int k = size * 4;
+            coords[k] = (float) a;
+            coords[k + 1] = (float) b;
+            coords[k + 2] = (float) c;
+            coords[k + 3] = (float) d;
+            kinds[size] = kind;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.uedalab.clijplugin;
+
+/**
+ * Moment and residual passes over x, y, z primitive columns. The loops are unrolled with independent
+ * accumulators so consecutive points do not wait on one another's additions, and the data is read
+ * strictly sequentially. Moments are built per cache-sized block (mean, then co-moments shifted by that
+ * mean, both over data already in cache) and the blocks are combined pairwise with
+ * {@link PointMoments#merge}, so the rounding error grows with log(n / block) rather than n. Residual
+ * sums are added across blocks with Kahan compensation.
+ */
+final class MomentKernels {
+
+    /**
+     * Points per block: three columns of 2048 doubles stay well inside L1/L2.
+     */
+    private static final int BLOCK = 2048;
+
+    private MomentKernels() {
+    }
+
+    /**
+     * Moments of points [from, to).
+     */
+    static PointMoments moments(final double[] xs, final double[] ys, final double[] zs,
+                                final int from, final int to) {
+        if (to - from <= BLOCK) {
+            return to > from ? blockMoments(xs, ys, zs, from, to) : new PointMoments();
+        }
+        final int mid = splitPoint(from, to);
+        final PointMoments left = moments(xs, ys, zs, from, mid);
+        left.merge(moments(xs, ys, zs, mid, to));
+        return left;
+    }
+
+    /**
+     * Weighted moments of points [from, to): {total weight, mx, my, mz, sxx, sxy, sxz, syy, syz, szz}, the
+     * co-moments weighted and not divided by the total weight. Built per block and merged pairwise like
+     * {@link #moments}, with the block weights in place of the counts. Weights must be finite and
+     * non-negative; zero-weight points take no part.
+     */
+    static double[] weightedMoments(final double[] xs, final double[] ys, final double[] zs, final double[] ws,
+                                    final int from, final int to) {
+        if (to - from <= BLOCK) {
+            return weightedBlockMoments(xs, ys, zs, ws, from, to);
+        }
+        final int mid = splitPoint(from, to);
+        final double[] left = weightedMoments(xs, ys, zs, ws, from, mid);
+        mergeWeighted(left, weightedMoments(xs, ys, zs, ws, mid, to));
+        return left;
+    }
+
+    /**
+     * Block-aligned midpoint, so every leaf except the last holds exactly BLOCK points.
+     */
+    private static int splitPoint(final int from, final int to) {
+        final int blocks = (to - from + BLOCK - 1) / BLOCK;
+        return from + ((blocks + 1) / 2) * BLOCK;
+    }
+
+    private static PointMoments blockMoments(final double[] xs, final double[] ys, final double[] zs,
+                                             final int from, final int to) {
+        double x0 = 0.0;
+        double x1 = 0.0;
+        double y0 = 0.0;
+        double y1 = 0.0;
+        double z0 = 0.0;
+        double z1 = 0.0;
+        int i = from;
+        for (; i + 1 < to; i += 2) {
+            x0 += xs[i];
+            x1 += xs[i + 1];
+            y0 += ys[i];
+            y1 += ys[i + 1];
+            z0 += zs[i];
+            z1 += zs[i + 1];
+        }
+        if (i < to) {
+            x0 += xs[i];
+            y0 += ys[i];
+            z0 += zs[i];
+        }
+        final int n = to - from;
+        final double invN = 1.0 / n;
+        final double mx = (x0 + x1) * invN;
+        final double my = (y0 + y1) * invN;
+        final double mz = (z0 + z1) * invN;
+
+        double sxx0 = 0.0;
+        double sxy0 = 0.0;
+        double sxz0 = 0.0;
+        double syy0 = 0.0;
+        double syz0 = 0.0;
+        double szz0 = 0.0;
+        double sxx1 = 0.0;
+        double sxy1 = 0.0;
+        double sxz1 = 0.0;
+        double syy1 = 0.0;
+        double syz1 = 0.0;
+        double szz1 = 0.0;
+        i = from;
+        for (; i + 1 < to; i += 2) {
+            final double ax = xs[i] - mx;
+            final double ay = ys[i] - my;
+            final double az = zs[i] - mz;
+            final double bx = xs[i + 1] - mx;
+            final double by = ys[i + 1] - my;
+            final double bz = zs[i + 1] - mz;
+            sxx0 += ax * ax;
+            sxy0 += ax * ay;
+            sxz0 += ax * az;
+            syy0 += ay * ay;
+            syz0 += ay * az;
+            szz0 += az * az;
+            sxx1 += bx * bx;
+            sxy1 += bx * by;
+            sxz1 += bx * bz;
+            syy1 += by * by;
+            syz1 += by * bz;
+            szz1 += bz * bz;
+        }
+        if (i < to) {
+            final double ax = xs[i] - mx;
+            final double ay = ys[i] - my;
+            final double az = zs[i] - mz;
+            sxx0 += ax * ax;
+            sxy0 += ax * ay;
+            sxz0 += ax * az;
+            syy0 += ay * ay;
+            syz0 += ay * az;
+            szz0 += az * az;
+        }
+        return PointMoments.of(n, mx, my, mz, sxx0 + sxx1, sxy0 + sxy1, sxz0 + sxz1,
+                syy0 + syy1, syz0 + syz1, szz0 + szz1);
+    }
+
+    private static double[] weightedBlockMoments(final double[] xs, final double[] ys, final double[] zs,
+                                                 final double[] ws, final int from, final int to) {
+        final double[] m = new double[10];
+        double w = 0.0;
+        double sx = 0.0;
+        double sy = 0.0;
+        double sz = 0.0;
+        for (int i = from; i < to; i++) {
+            w += ws[i];
+            sx += ws[i] * xs[i];
+            sy += ws[i] * ys[i];
+            sz += ws[i] * zs[i];
+        }
+        if (!(w > 0.0)) {
+            return m;
+        }
+        final double mx = sx / w;
+        final double my = sy / w;
+        final double mz = sz / w;
+        double sxx = 0.0;
+        double sxy = 0.0;
+        double sxz = 0.0;
+        double syy = 0.0;
+        double syz = 0.0;
+        double szz = 0.0;
+        for (int i = from; i < to; i++) {
+            final double dx = xs[i] - mx;
+            final double dy = ys[i] - my;
+            final double dz = zs[i] - mz;
+            final double wx = ws[i] * dx;
+            final double wy = ws[i] * dy;
+            sxx += wx * dx;
+            sxy += wx * dy;
+            sxz += wx * dz;
+            syy += wy * dy;
+            syz += wy * dz;
+            szz += ws[i] * dz * dz;
+        }
+        m[0] = w;
+        m[1] = mx;
+        m[2] = my;
+        m[3] = mz;
+        m[4] = sxx;
+        m[5] = sxy;
+        m[6] = sxz;
+        m[7] = syy;
+        m[8] = syz;
+        m[9] = szz;
+        return m;
+    }
+
+    /**
+     * Adds the weighted moments b into a: {@link PointMoments#merge} with weights for counts.
+     */
+    private static void mergeWeighted(final double[] a, final double[] b) {
+        if (!(b[0] > 0.0)) {
+            return;
+        }
+        if (!(a[0] > 0.0)) {
+            System.arraycopy(b, 0, a, 0, a.length);
+            return;
+        }
+        final double total = a[0] + b[0];
+        final double dx = b[1] - a[1];
+        final double dy = b[2] - a[2];
+        final double dz = b[3] - a[3];
+        final double f = a[0] * b[0] / total;
+        a[4] += b[4] + dx * dx * f;
+        a[5] += b[5] + dx * dy * f;
+        a[6] += b[6] + dx * dz * f;
+        a[7] += b[7] + dy * dy * f;
+        a[8] += b[8] + dy * dz * f;
+        a[9] += b[9] + dz * dz * f;
+        final double share = b[0] / total;
+        a[1] += dx * share;
+        a[2] += dy * share;
+        a[3] += dz * share;
+        a[0] = total;
+    }
+
+    /**
+     * Sum of squared perpendicular distances to the line through c along unit d, and the largest
+     * distance: {sumSq, max}.
+     */
+    static double[] lineDistanceStats(final double[] xs, final double[] ys, final double[] zs, final int n,
+                                      final double[] c, final double[] d) {
+        final double[] block = new double[2];
+        final double[] total = new double[3];
+        for (int start = 0; start < n; start += BLOCK) {
+            lineBlock(xs, ys, zs, start, Math.min(n, start + BLOCK), c, d, block);
+            accumulate(total, block);
+        }
+        return new double[]{total[0], Math.sqrt(total[2])};
+    }
+
+    /**
+     * Sum of squared distances to the plane through c with unit normal nrm, and the largest distance:
+     * {sumSq, max}.
+     */
+    static double[] planeDistanceStats(final double[] xs, final double[] ys, final double[] zs, final int n,
+                                       final double[] c, final double[] nrm) {
+        final double[] block = new double[2];
+        final double[] total = new double[3];
+        for (int start = 0; start < n; start += BLOCK) {
+            planeBlock(xs, ys, zs, start, Math.min(n, start + BLOCK), c, nrm, block);
+            accumulate(total, block);
+        }
+        return new double[]{total[0], total[2]};
+    }
+
+    /**
+     * Kahan-adds a block's {sum, max} into total = {sum, compensation, max}.
+     */
+    private static void accumulate(final double[] total, final double[] block) {
+        final double y = block[0] - total[1];
+        final double t = total[0] + y;
+        total[1] = (t - total[0]) - y;
+        total[0] = t;
+        total[2] = Math.max(total[2], block[1]);
+    }
+
+    /**
+     * Squared perpendicular distances of points [from, to) to the line: out = {sum, max}.
+     */
+    private static void lineBlock(final double[] xs, final double[] ys, final double[] zs, final int from,
+                                  final int to, final double[] c, final double[] d, final double[] out) {
+        final double cx = c[0];
+        final double cy = c[1];
+        final double cz = c[2];
+        final double dx = d[0];
+        final double dy = d[1];
+        final double dz = d[2];
+        double sum0 = 0.0;
+        double sum1 = 0.0;
+        double max0 = 0.0;
+        double max1 = 0.0;
+        int i = from;
+        for (; i + 1 < to; i += 2) {
+            final double ax = xs[i] - cx;
+            final double ay = ys[i] - cy;
+            final double az = zs[i] - cz;
+            final double bx = xs[i + 1] - cx;
+            final double by = ys[i + 1] - cy;
+            final double bz = zs[i + 1] - cz;
+            final double ta = ax * dx + ay * dy + az * dz;
+            final double tb = bx * dx + by * dy + bz * dz;
+            final double qa = Math.max(0.0, ax * ax + ay * ay + az * az - ta * ta);
+            final double qb = Math.max(0.0, bx * bx + by * by + bz * bz - tb * tb);
+            sum0 += qa;
+            sum1 += qb;
+            max0 = Math.max(max0, qa);
+            max1 = Math.max(max1, qb);
+        }
+        if (i < to) {
+            final double ax = xs[i] - cx;
+            final double ay = ys[i] - cy;
+            final double az = zs[i] - cz;
+            final double ta = ax * dx + ay * dy + az * dz;
+            final double qa = Math.max(0.0, ax * ax + ay * ay + az * az - ta * ta);
+            sum0 += qa;
+            max0 = Math.max(max0, qa);
+        }
+        out[0] = sum0 + sum1;
+        out[1] = Math.max(max0, max1);
+    }
+
+    /**
+     * Distances of points [from, to) to the plane: out = {sum of squares, max absolute}.
+     */
+    private static void planeBlock(final double[] xs, final double[] ys, final double[] zs, final int from,
+                                   final int to, final double[] c, final double[] nrm, final double[] out) {
+        final double nx = nrm[0];
+        final double ny = nrm[1];
+        final double nz = nrm[2];
+        // Signed distance = p.n - c.n, so only one dot product per point.
+        final double offset = c[0] * nx + c[1] * ny + c[2] * nz;
+        double sum0 = 0.0;
+        double sum1 = 0.0;
+        double max0 = 0.0;
+        double max1 = 0.0;
+        int i = from;
+        for (; i + 1 < to; i += 2) {
+            final double da = xs[i] * nx + ys[i] * ny + zs[i] * nz - offset;
+            final double db = xs[i + 1] * nx + ys[i + 1] * ny + zs[i + 1] * nz - offset;
+            sum0 += da * da;
+            sum1 += db * db;
+            max0 = Math.max(max0, Math.abs(da));
+            max1 = Math.max(max1, Math.abs(db));
+        }
+        if (i < to) {
+            final double da = xs[i] * nx + ys[i] * ny + zs[i] * nz - offset;
+            sum0 += da * da;
+            max0 = Math.max(max0, Math.abs(da));
+        }
+        out[0] = sum0 + sum1;
+        out[1] = Math.max(max0, max1);
+    }
+}
@@ -0,0 +1,133 @@
+package org.uedalab.clijplugin;
+
+import java.util.Arrays;
+
+/**
+ * Streaming least-squares accumulator: rows of a design matrix are folded into A^T W A and A^T W b one
+ * at a time, so a fit over any number of points needs only size^2 doubles. Rows can be removed again
+ * with the same weight, like the running covariance of {@link PointMoments}.
+ */
+final class NormalEquations {
+
+    private final int size;
+    private final double[] ata;
+    private final double[] atb;
+    private long rows;
+
+    NormalEquations(final int size) {
+        this.size = size;
+        this.ata = new double[size * size];
+        this.atb = new double[size];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    void clear() {
+        Arrays.fill(ata, 0.0);
+        Arrays.fill(atb, 0.0);
+        rows = 0L;
+    }
+
+    /**
+     * Adds one weighted row; only the upper triangle of A^T W A is accumulated.
+     */
+    void add(final double[] row, final double rhs, final double weight) {
+        accumulate(row, rhs, weight);
+        rows++;
+    }
+
+    void remove(final double[] row, final double rhs, final double weight) {
+        accumulate(row, rhs, -weight);
+        rows--;
+    }
+
+    private void accumulate(final double[] row, final double rhs, final double weight) {
+        for (int i = 0; i < size; i++) {
+            final double wi = weight * row[i];
+            if (wi == 0.0) {
+                continue;
+            }
+            atb[i] += wi * rhs;
+            final int base = i * size;
+            for (int j = i; j < size; j++) {
+                ata[base + j] += wi * row[j];
+            }
+        }
+    }
+
+    /**
+     * Returns A^T W A as a full symmetric matrix.
+     */
+    double[][] matrix() {
+        final double[][] m = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = i; j < size; j++) {
+                m[i][j] = ata[i * size + j];
+                m[j][i] = m[i][j];
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Solves A^T W A x = A^T W b by Gaussian elimination with partial pivoting; null if the system is
+     * (numerically) singular.
+     */
+    double[] solve() {
+        final double[][] m = matrix();
+        final double[] x = atb.clone();
+        double scale = 0.0;
+        for (int i = 0; i < size; i++) {
+            scale = Math.max(scale, Math.abs(m[i][i]));
+        }
+        final double tiny = Math.max(scale, 1e-300) * 1e-13;
+        for (int col = 0; col < size; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < size; r++) {
+                if (Math.abs(m[r][col]) > Math.abs(m[pivot][col])) {
+                    pivot = r;
+                }
+            }
+            if (!(Math.abs(m[pivot][col]) > tiny)) {
+                return null;
+            }
+            if (pivot != col) {
+                final double[] tmpRow = m[pivot];
+                m[pivot] = m[col];
+                m[col] = tmpRow;
+                final double tmp = x[pivot];
+                x[pivot] = x[col];
+                x[col] = tmp;
+            }
+            for (int r = col + 1; r < size; r++) {
+                final double f = m[r][col] / m[col][col];
+                if (f == 0.0) {
+                    continue;
+                }
+                for (int k = col; k < size; k++) {
+                    m[r][k] -= f * m[col][k];
+                }
+                x[r] -= f * x[col];
+            }
+        }
+        for (int r = size - 1; r >= 0; r--) {
+            double sum = x[r];
+            for (int k = r + 1; k < size; k++) {
+                sum -= m[r][k] * x[k];
+            }
+            x[r] = sum / m[r][r];
+        }
+        for (double v : x) {
+            if (!Double.isFinite(v)) {
+                return null;
+            }
+        }
+        return x;
+    }
+}
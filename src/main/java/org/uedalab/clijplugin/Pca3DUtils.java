@@ -11,34 +11,184 @@ public final class Pca3DUtils {
         if (points == null || points.size() < 2) {
             throw new IllegalArgumentException("Need at least 2 points.");
         }
-        final double[] centroid = computeCentroid(points);
-        final double[][] covariance = computeCovariance(points, centroid);
+        final double[][] columns = toColumns(points, 3);
+        return fitLine(columns[0], columns[1], columns[2], points.size());
+    }
+
+    /**
+     * Line fit over x, y, z columns: one blocked moment pass and one residual pass for the exact rms.
+     */
+    public static LineFitResult fitLine(final double[] xs, final double[] ys, final double[] zs, final int n) {
+        if (n < 2) {
+            throw new IllegalArgumentException("Need at least 2 points.");
+        }
+        final PointMoments moments = MomentKernels.moments(xs, ys, zs, 0, n);
+        final EigenResult eigen = jacobiEigenSymmetric3x3(moments.covariance());
+        final double[] direction = principalDirection(eigen);
+        final double[] centroid = moments.centroid();
+        final double[] stats = MomentKernels.lineDistanceStats(xs, ys, zs, n, centroid, direction);
+        return new LineFitResult(centroid, direction, Math.sqrt(stats[0] / n));
+    }
+
+    /**
+     * Line fit from running moments; rms comes from the eigenvalues, no pass over the points.
+     */
+    public static LineFitResult fitLine(final PointMoments moments) {
+        if (moments == null || moments.count() < 2) {
+            throw new IllegalArgumentException("Need at least 2 points.");
+        }
+        final double[][] covariance = moments.covariance();
         final EigenResult eigen = jacobiEigenSymmetric3x3(covariance);
-        final int principalIndex = largestEigenvalueIndex(eigen.values);
-        final double[] direction = normalize(new double[]{
-                eigen.vectors[0][principalIndex],
-                eigen.vectors[1][principalIndex],
-                eigen.vectors[2][principalIndex]
-        }, new double[]{1.0, 0.0, 0.0});
-        final double rms = computeLineRmsDistance(points, centroid, direction);
-        return new LineFitResult(centroid, direction, rms);
+        final double[] direction = principalDirection(eigen);
+        final double trace = covariance[0][0] + covariance[1][1] + covariance[2][2];
+        final double residual = trace - eigen.values[largestEigenvalueIndex(eigen.values)];
+        return new LineFitResult(moments.centroid(), direction, Math.sqrt(Math.max(0.0, residual)));
     }
 
     public static PlaneFitResult fitPlane(final List<double[]> points) {
         if (points == null || points.size() < 3) {
             throw new IllegalArgumentException("Need at least 3 points.");
         }
-        final double[] centroid = computeCentroid(points);
-        final double[][] covariance = computeCovariance(points, centroid);
-        final EigenResult eigen = jacobiEigenSymmetric3x3(covariance);
-        final int normalIndex = smallestEigenvalueIndex(eigen.values);
-        final double[] normal = normalize(new double[]{
-                eigen.vectors[0][normalIndex],
-                eigen.vectors[1][normalIndex],
-                eigen.vectors[2][normalIndex]
-        }, new double[]{0.0, 0.0, 1.0});
-        final DistanceStats stats = computePlaneDistanceStats(points, centroid, normal);
-        return new PlaneFitResult(centroid, normal, stats.rms, stats.max);
+        final double[][] columns = toColumns(points, 3);
+        return fitPlane(columns[0], columns[1], columns[2], points.size());
+    }
+
+    /**
+     * Plane fit over x, y, z columns: one blocked moment pass and one residual pass for rms and max.
+     */
+    public static PlaneFitResult fitPlane(final double[] xs, final double[] ys, final double[] zs, final int n) {
+        if (n < 3) {
+            throw new IllegalArgumentException("Need at least 3 points.");
+        }
+        final PointMoments moments = MomentKernels.moments(xs, ys, zs, 0, n);
+        final EigenResult eigen = jacobiEigenSymmetric3x3(moments.covariance());
+        final double[] normal = normalDirection(eigen);
+        final double[] centroid = moments.centroid();
+        final double[] stats = MomentKernels.planeDistanceStats(xs, ys, zs, n, centroid, normal);
+        return new PlaneFitResult(centroid, normal, Math.sqrt(stats[0] / n), stats[1]);
+    }
+
+    /**
+     * Plane fit from running moments. rms is the square root of the smallest eigenvalue;
+     * maxDist needs every point and is returned as NaN.
+     */
+    public static PlaneFitResult fitPlane(final PointMoments moments) {
+        if (moments == null || moments.count() < 3) {
+            throw new IllegalArgumentException("Need at least 3 points.");
+        }
+        final EigenResult eigen = jacobiEigenSymmetric3x3(moments.covariance());
+        final double[] normal = normalDirection(eigen);
+        final double residual = eigen.values[smallestEigenvalueIndex(eigen.values)];
+        return new PlaneFitResult(moments.centroid(), normal, Math.sqrt(Math.max(0.0, residual)), Double.NaN);
+    }
+
+    /**
+     * Weighted line fit over points {x, y, z, weight}, e.g. voxel representatives weighted by the number
+     * of points they stand for. rms is the weighted rms distance.
+     */
+    public static LineFitResult fitWeightedLine(final List<double[]> points) {
+        if (points == null || points.size() < 2) {
+            throw new IllegalArgumentException("Need at least 2 points.");
+        }
+        final double[][] columns = toColumns(points, 4);
+        return fitWeightedLine(columns[0], columns[1], columns[2], columns[3], points.size());
+    }
+
+    /**
+     * Weighted line fit over x, y, z columns and a weight column. Weights must be finite and
+     * non-negative.
+     */
+    public static LineFitResult fitWeightedLine(final double[] xs, final double[] ys, final double[] zs,
+                                                final double[] ws, final int n) {
+        if (n < 2) {
+            throw new IllegalArgumentException("Need at least 2 points.");
+        }
+        checkWeights(ws, n);
+        final double[] centroid = new double[3];
+        final double[][] covariance = new double[3][3];
+        final double totalWeight = weightedMoments(xs, ys, zs, ws, n, centroid, covariance);
+        final double[] direction = principalDirection(jacobiEigenSymmetric3x3(covariance));
+        double sumSq = 0.0;
+        for (int i = 0; i < n; i++) {
+            final double dx = xs[i] - centroid[0];
+            final double dy = ys[i] - centroid[1];
+            final double dz = zs[i] - centroid[2];
+            final double along = dx * direction[0] + dy * direction[1] + dz * direction[2];
+            sumSq += ws[i] * Math.max(0.0, dx * dx + dy * dy + dz * dz - along * along);
+        }
+        return new LineFitResult(centroid, direction, Math.sqrt(sumSq / totalWeight));
+    }
+
+    /**
+     * Weighted plane fit over points {x, y, z, weight}; rms is weighted, maxDist is over all points.
+     */
+    public static PlaneFitResult fitWeightedPlane(final List<double[]> points) {
+        if (points == null || points.size() < 3) {
+            throw new IllegalArgumentException("Need at least 3 points.");
+        }
+        final double[][] columns = toColumns(points, 4);
+        return fitWeightedPlane(columns[0], columns[1], columns[2], columns[3], points.size());
+    }
+
+    /**
+     * Weighted plane fit over x, y, z columns and a weight column. Weights must be finite and
+     * non-negative.
+     */
+    public static PlaneFitResult fitWeightedPlane(final double[] xs, final double[] ys, final double[] zs,
+                                                  final double[] ws, final int n) {
+        if (n < 3) {
+            throw new IllegalArgumentException("Need at least 3 points.");
+        }
+        checkWeights(ws, n);
+        final double[] centroid = new double[3];
+        final double[][] covariance = new double[3][3];
+        final double totalWeight = weightedMoments(xs, ys, zs, ws, n, centroid, covariance);
+        final double[] normal = normalDirection(jacobiEigenSymmetric3x3(covariance));
+        double sumSq = 0.0;
+        double max = 0.0;
+        for (int i = 0; i < n; i++) {
+            final double dist = (xs[i] - centroid[0]) * normal[0] + (ys[i] - centroid[1]) * normal[1]
+                    + (zs[i] - centroid[2]) * normal[2];
+            sumSq += ws[i] * dist * dist;
+            max = Math.max(max, Math.abs(dist));
+        }
+        return new PlaneFitResult(centroid, normal, Math.sqrt(sumSq / totalWeight), max);
+    }
+
+    private static void checkWeights(final double[] ws, final int n) {
+        for (int i = 0; i < n; i++) {
+            if (!(ws[i] >= 0.0) || ws[i] == Double.POSITIVE_INFINITY) {
+                throw new IllegalArgumentException("Point weights must be finite and non-negative (point "
+                        + i + " has " + ws[i] + ").");
+            }
+        }
+    }
+
+    /**
+     * Weighted centroid and weighted covariance about it, divided by the total weight, from the blocked
+     * kernel. Returns the total weight.
+     */
+    private static double weightedMoments(final double[] xs, final double[] ys, final double[] zs,
+                                          final double[] ws, final int n, final double[] centroid,
+                                          final double[][] covariance) {
+        final double[] m = MomentKernels.weightedMoments(xs, ys, zs, ws, 0, n);
+        final double w = m[0];
+        if (!(w > 0.0)) {
+            throw new IllegalArgumentException("Point weights must sum to a positive value.");
+        }
+        centroid[0] = m[1];
+        centroid[1] = m[2];
+        centroid[2] = m[3];
+        covariance[0][0] = m[4] / w;
+        covariance[0][1] = m[5] / w;
+        covariance[0][2] = m[6] / w;
+        covariance[1][1] = m[7] / w;
+        covariance[1][2] = m[8] / w;
+        covariance[2][2] = m[9] / w;
+        covariance[1][0] = covariance[0][1];
+        covariance[2][0] = covariance[0][2];
+        covariance[2][1] = covariance[1][2];
+        return w;
     }
 
     public static double[] normalize(final double[] v, final double[] fallback) {
@@ -49,47 +199,44 @@ public final class Pca3DUtils {
         return new double[]{v[0] / norm, v[1] / norm, v[2] / norm};
     }
 
-    private static double[] computeCentroid(final List<double[]> points) {
-        final double[] c = new double[3];
-        for (double[] p : points) {
-            c[0] += p[0];
-            c[1] += p[1];
-            c[2] += p[2];
-        }
-        final double invN = 1.0 / points.size();
-        c[0] *= invN;
-        c[1] *= invN;
-        c[2] *= invN;
-        return c;
+    private static double[] principalDirection(final EigenResult eigen) {
+        final int principalIndex = largestEigenvalueIndex(eigen.values);
+        return normalize(new double[]{
+                eigen.vectors[0][principalIndex],
+                eigen.vectors[1][principalIndex],
+                eigen.vectors[2][principalIndex]
+        }, new double[]{1.0, 0.0, 0.0});
+    }
+
+    private static double[] normalDirection(final EigenResult eigen) {
+        final int normalIndex = smallestEigenvalueIndex(eigen.values);
+        return normalize(new double[]{
+                eigen.vectors[0][normalIndex],
+                eigen.vectors[1][normalIndex],
+                eigen.vectors[2][normalIndex]
+        }, new double[]{0.0, 0.0, 1.0});
     }
 
-    private static double[][] computeCovariance(final List<double[]> points, final double[] c) {
-        final double[][] s = new double[3][3];
-        for (double[] p : points) {
-            final double dx = p[0] - c[0];
-            final double dy = p[1] - c[1];
-            final double dz = p[2] - c[2];
-            s[0][0] += dx * dx;
-            s[0][1] += dx * dy;
-            s[0][2] += dx * dz;
-            s[1][1] += dy * dy;
-            s[1][2] += dy * dz;
-            s[2][2] += dz * dz;
+    /**
+     * The first {@code width} components of every point as columns.
+     */
+    private static double[][] toColumns(final List<double[]> points, final int width) {
+        final int n = points.size();
+        final double[][] columns = new double[width][n];
+        for (int i = 0; i < n; i++) {
+            final double[] p = points.get(i);
+            for (int k = 0; k < width; k++) {
+                columns[k][i] = p[k];
+            }
         }
-        final double invN = 1.0 / points.size();
-        s[0][0] *= invN;
-        s[0][1] *= invN;
-        s[0][2] *= invN;
-        s[1][1] *= invN;
-        s[1][2] *= invN;
-        s[2][2] *= invN;
-        s[1][0] = s[0][1];
-        s[2][0] = s[0][2];
-        s[2][1] = s[1][2];
-        return s;
+        return columns;
     }
 
-    private static EigenResult jacobiEigenSymmetric3x3(final double[][] matrix) {
+    /**
+     * Jacobi eigen decomposition of a symmetric 3x3 matrix; values[k] belongs to column k of vectors,
+     * in no particular order.
+     */
+    static EigenResult jacobiEigenSymmetric3x3(final double[][] matrix) {
         final double[][] a = new double[3][3];
         final double[][] v = new double[3][3];
         for (int i = 0; i < 3; i++) {
@@ -178,40 +325,9 @@ public final class Pca3DUtils {
         return idx;
     }
 
-    private static double computeLineRmsDistance(final List<double[]> points, final double[] c, final double[] d) {
-        double sumSq = 0.0;
-        for (double[] p : points) {
-            final double vx = p[0] - c[0];
-            final double vy = p[1] - c[1];
-            final double vz = p[2] - c[2];
-            final double t = vx * d[0] + vy * d[1] + vz * d[2];
-            final double rx = vx - t * d[0];
-            final double ry = vy - t * d[1];
-            final double rz = vz - t * d[2];
-            sumSq += rx * rx + ry * ry + rz * rz;
-        }
-        return Math.sqrt(sumSq / points.size());
-    }
-
-    private static DistanceStats computePlaneDistanceStats(final List<double[]> points, final double[] c, final double[] n) {
-        double sumSq = 0.0;
-        double max = 0.0;
-        for (double[] p : points) {
-            final double vx = p[0] - c[0];
-            final double vy = p[1] - c[1];
-            final double vz = p[2] - c[2];
-            final double dist = Math.abs(vx * n[0] + vy * n[1] + vz * n[2]);
-            sumSq += dist * dist;
-            if (dist > max) {
-                max = dist;
-            }
-        }
-        return new DistanceStats(Math.sqrt(sumSq / points.size()), max);
-    }
-
-    private static final class EigenResult {
-        private final double[] values;
-        private final double[][] vectors;
+    static final class EigenResult {
+        final double[] values;
+        final double[][] vectors;
 
         private EigenResult(final double[] values, final double[][] vectors) {
             this.values = values;
@@ -219,16 +335,6 @@ public final class Pca3DUtils {
         }
     }
 
-    private static final class DistanceStats {
-        private final double rms;
-        private final double max;
-
-        private DistanceStats(final double rms, final double max) {
-            this.rms = rms;
-            this.max = max;
-        }
-    }
-
     public static final class LineFitResult {
         public final double[] centroid;
         public final double[] direction;
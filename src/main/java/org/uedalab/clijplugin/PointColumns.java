@@ -0,0 +1,228 @@
+package org.uedalab.clijplugin;
+
+import ij.measure.ResultsTable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Standardized point table rows held as primitive columns. Rows with a non-finite x, y or z are
+ * dropped on load; role strings are interned so repeated roles share one instance. The timepoint and
+ * channel columns are optional and default to 1.
+ */
+final class PointColumns {
+
+    final int size;
+    final double[] x;
+    final double[] y;
+    final double[] z;
+    final int[] t;
+    final int[] c;
+    final String[] roles;
+
+    private PointColumns(final int size, final double[] x, final double[] y, final double[] z, final int[] t,
+                         final int[] c, final String[] roles) {
+        this.size = size;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.t = t;
+        this.c = c;
+        this.roles = roles;
+    }
+
+    static PointColumns fromResultsTable(final ResultsTable rt) {
+        if (!PointTableSchema.looksLikePointTable(rt)) {
+            throw new IllegalArgumentException("Point table is missing required columns: id,x,y,z (role optional).");
+        }
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double[] ts = PointTableSchema.hasTimeColumn(rt)
+                ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_T)) : null;
+        final double[] cs = PointTableSchema.hasChannelColumn(rt)
+                ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_C)) : null;
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+
+        final Builder builder = new Builder(rows);
+        for (int row = 0; row < rows; row++) {
+            final String role = hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : "";
+            builder.add(xs[row], ys[row], zs[row], ts == null ? 1.0 : ts[row],
+                    cs == null ? 1.0 : cs[row], role);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Streams a CSV written by ImageJ (or any comma-separated file whose header names the id,x,y,z
+     * columns). Quoted fields are not supported.
+     */
+    static PointColumns readCsv(final File file) throws IOException {
+        final Builder builder = new Builder(1024);
+        streamCsv(file, null, (x, y, z, t, c, role, extra) -> builder.add(x, y, z, t, c, role));
+        return builder.build();
+    }
+
+    /**
+     * Receives the rows of {@link #streamCsv} one at a time.
+     */
+    interface RowVisitor {
+        /**
+         * t and c are 1.0 when their column is absent; extra is NaN when the extra column is absent or
+         * the field unreadable.
+         */
+        void row(double x, double y, double z, double t, double c, String role, double extra);
+    }
+
+    /**
+     * Reads a point CSV row by row without keeping it, for files too large to hold. Rows with missing
+     * x/y/z fields are skipped; extraColumn (may be null) names one more numeric column to pass along.
+     */
+    static void streamCsv(final File file, final String extraColumn, final RowVisitor visitor) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Empty file: " + file);
+            }
+            final String[] names = header.split(",", -1);
+            final String extraName = extraColumn == null ? null : extraColumn.trim().toLowerCase(Locale.ROOT);
+            int colX = -1;
+            int colY = -1;
+            int colZ = -1;
+            int colT = -1;
+            int colC = -1;
+            int colRole = -1;
+            int colExtra = -1;
+            for (int i = 0; i < names.length; i++) {
+                final String name = names[i].trim().toLowerCase(Locale.ROOT);
+                if (PointTableSchema.COL_X.equals(name)) {
+                    colX = i;
+                } else if (PointTableSchema.COL_Y.equals(name)) {
+                    colY = i;
+                } else if (PointTableSchema.COL_Z.equals(name)) {
+                    colZ = i;
+                } else if (PointTableSchema.COL_T.equals(name)) {
+                    colT = i;
+                } else if (PointTableSchema.COL_C.equals(name)) {
+                    colC = i;
+                } else if (PointTableSchema.COL_ROLE.equals(name)) {
+                    colRole = i;
+                } else if (name.equals(extraName)) {
+                    colExtra = i;
+                }
+            }
+            if (colX < 0 || colY < 0 || colZ < 0) {
+                throw new IOException("CSV header must contain x,y,z columns: " + file);
+            }
+
+            final String[] fields = new String[names.length];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (split(line, fields) <= Math.max(colX, Math.max(colY, colZ))) {
+                    continue;
+                }
+                visitor.row(parse(fields[colX]), parse(fields[colY]), parse(fields[colZ]),
+                        colT >= 0 ? parse(fields[colT]) : 1.0,
+                        colC >= 0 ? parse(fields[colC]) : 1.0,
+                        colRole >= 0 && fields[colRole] != null ? fields[colRole] : "",
+                        colExtra >= 0 ? parse(fields[colExtra]) : Double.NaN);
+            }
+        }
+    }
+
+    private static int split(final String line, final String[] fields) {
+        int count = 0;
+        int start = 0;
+        while (count < fields.length) {
+            final int comma = line.indexOf(',', start);
+            if (comma < 0) {
+                fields[count++] = line.substring(start);
+                break;
+            }
+            fields[count++] = line.substring(start, comma);
+            start = comma + 1;
+        }
+        for (int i = count; i < fields.length; i++) {
+            fields[i] = null;
+        }
+        return count;
+    }
+
+    private static double parse(final String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException nfe) {
+            return Double.NaN;
+        }
+    }
+
+    static int toIndex(final double value) {
+        return Double.isFinite(value) ? (int) Math.max(1L, Math.min(Integer.MAX_VALUE, Math.round(value))) : 1;
+    }
+
+    private static final class Builder {
+        private final Map<String, String> internedRoles = new HashMap<>();
+        private double[] x;
+        private double[] y;
+        private double[] z;
+        private int[] t;
+        private int[] c;
+        private String[] roles;
+        private int size;
+
+        private Builder(final int capacity) {
+            final int n = Math.max(16, capacity);
+            x = new double[n];
+            y = new double[n];
+            z = new double[n];
+            t = new int[n];
+            c = new int[n];
+            roles = new String[n];
+        }
+
+        private void add(final double px, final double py, final double pz, final double pt, final double pc,
+                         final String role) {
+            if (!Double.isFinite(px) || !Double.isFinite(py) || !Double.isFinite(pz)) {
+                return;
+            }
+            if (size == t.length) {
+                final int grown = t.length + (t.length >> 1);
+                x = Arrays.copyOf(x, grown);
+                y = Arrays.copyOf(y, grown);
+                z = Arrays.copyOf(z, grown);
+                t = Arrays.copyOf(t, grown);
+                c = Arrays.copyOf(c, grown);
+                roles = Arrays.copyOf(roles, grown);
+            }
+            final String trimmed = role == null ? "" : role.trim();
+            String interned = internedRoles.get(trimmed);
+            if (interned == null) {
+                interned = trimmed;
+                internedRoles.put(trimmed, trimmed);
+            }
+            x[size] = px;
+            y[size] = py;
+            z[size] = pz;
+            // A missing or unreadable timepoint or channel falls back to the first one.
+            t[size] = toIndex(pt);
+            c[size] = toIndex(pc);
+            roles[size] = interned;
+            size++;
+        }
+
+        private PointColumns build() {
+            return new PointColumns(size, x, y, z, t, c, roles);
+        }
+    }
+}
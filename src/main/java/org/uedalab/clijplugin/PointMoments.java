@@ -0,0 +1,215 @@
+package org.uedalab.clijplugin;
+
+/**
+ * Running centroid and co-moments of a 3D point set.
+ * <p>
+ * Points can be added or removed in O(1) (Welford update), so a model can be
+ * refit after each edit with a single 3x3 eigen solve instead of a pass over
+ * all of its points.
+ */
+public final class PointMoments {
+
+    private int n;
+    private double mx;
+    private double my;
+    private double mz;
+    private double sxx;
+    private double sxy;
+    private double sxz;
+    private double syy;
+    private double syz;
+    private double szz;
+
+    public PointMoments() {
+    }
+
+    /**
+     * Accumulator with the given count, centroid and centred co-moment sums (not divided by n).
+     */
+    static PointMoments of(final int n, final double mx, final double my, final double mz,
+                           final double sxx, final double sxy, final double sxz,
+                           final double syy, final double syz, final double szz) {
+        final PointMoments m = new PointMoments();
+        m.n = n;
+        m.mx = mx;
+        m.my = my;
+        m.mz = mz;
+        m.sxx = sxx;
+        m.sxy = sxy;
+        m.sxz = sxz;
+        m.syy = syy;
+        m.syz = syz;
+        m.szz = szz;
+        return m;
+    }
+
+    public PointMoments copy() {
+        final PointMoments c = new PointMoments();
+        c.copyFrom(this);
+        return c;
+    }
+
+    public void add(final double x, final double y, final double z) {
+        n++;
+        final double dx = x - mx;
+        final double dy = y - my;
+        final double dz = z - mz;
+        final double invN = 1.0 / n;
+        mx += dx * invN;
+        my += dy * invN;
+        mz += dz * invN;
+        final double ex = x - mx;
+        final double ey = y - my;
+        final double ez = z - mz;
+        sxx += dx * ex;
+        sxy += dx * ey;
+        sxz += dx * ez;
+        syy += dy * ey;
+        syz += dy * ez;
+        szz += dz * ez;
+    }
+
+    public void remove(final double x, final double y, final double z) {
+        if (n <= 1) {
+            clear();
+            return;
+        }
+        final double invN1 = 1.0 / (n - 1);
+        final double ox = (n * mx - x) * invN1;
+        final double oy = (n * my - y) * invN1;
+        final double oz = (n * mz - z) * invN1;
+        final double dx = x - ox;
+        final double dy = y - oy;
+        final double dz = z - oz;
+        final double ex = x - mx;
+        final double ey = y - my;
+        final double ez = z - mz;
+        sxx -= dx * ex;
+        sxy -= dx * ey;
+        sxz -= dx * ez;
+        syy -= dy * ey;
+        syz -= dy * ez;
+        szz -= dz * ez;
+        mx = ox;
+        my = oy;
+        mz = oz;
+        n--;
+    }
+
+    /**
+     * Adds all points of another accumulator in O(1) (Chan et al. pairwise combination).
+     */
+    public void merge(final PointMoments other) {
+        if (other.n == 0) {
+            return;
+        }
+        if (n == 0) {
+            copyFrom(other);
+            return;
+        }
+        final int total = n + other.n;
+        final double dx = other.mx - mx;
+        final double dy = other.my - my;
+        final double dz = other.mz - mz;
+        final double f = (double) n * other.n / total;
+        sxx += other.sxx + dx * dx * f;
+        sxy += other.sxy + dx * dy * f;
+        sxz += other.sxz + dx * dz * f;
+        syy += other.syy + dy * dy * f;
+        syz += other.syz + dy * dz * f;
+        szz += other.szz + dz * dz * f;
+        final double wOther = (double) other.n / total;
+        mx += dx * wOther;
+        my += dy * wOther;
+        mz += dz * wOther;
+        n = total;
+    }
+
+    /**
+     * Removes a subset previously merged in (inverse of {@link #merge}), also O(1). Used to slide a
+     * window of per-frame moments without re-accumulating the frames that stay in it.
+     */
+    public void subtract(final PointMoments other) {
+        if (other.n == 0) {
+            return;
+        }
+        if (other.n >= n) {
+            clear();
+            return;
+        }
+        final int rest = n - other.n;
+        final double wOther = (double) other.n / rest;
+        final double rx = mx + (mx - other.mx) * wOther;
+        final double ry = my + (my - other.my) * wOther;
+        final double rz = mz + (mz - other.mz) * wOther;
+        final double dx = other.mx - rx;
+        final double dy = other.my - ry;
+        final double dz = other.mz - rz;
+        final double f = (double) rest * other.n / n;
+        sxx -= other.sxx + dx * dx * f;
+        sxy -= other.sxy + dx * dy * f;
+        sxz -= other.sxz + dx * dz * f;
+        syy -= other.syy + dy * dy * f;
+        syz -= other.syz + dy * dz * f;
+        szz -= other.szz + dz * dz * f;
+        mx = rx;
+        my = ry;
+        mz = rz;
+        n = rest;
+    }
+
+    private void copyFrom(final PointMoments other) {
+        n = other.n;
+        mx = other.mx;
+        my = other.my;
+        mz = other.mz;
+        sxx = other.sxx;
+        sxy = other.sxy;
+        sxz = other.sxz;
+        syy = other.syy;
+        syz = other.syz;
+        szz = other.szz;
+    }
+
+    public void clear() {
+        n = 0;
+        mx = 0.0;
+        my = 0.0;
+        mz = 0.0;
+        sxx = 0.0;
+        sxy = 0.0;
+        sxz = 0.0;
+        syy = 0.0;
+        syz = 0.0;
+        szz = 0.0;
+    }
+
+    public int count() {
+        return n;
+    }
+
+    public double[] centroid() {
+        return new double[]{mx, my, mz};
+    }
+
+    /**
+     * Population covariance (divided by n), same normalization as Pca3DUtils.
+     */
+    public double[][] covariance() {
+        final double[][] s = new double[3][3];
+        if (n == 0) {
+            return s;
+        }
+        final double invN = 1.0 / n;
+        s[0][0] = sxx * invN;
+        s[0][1] = sxy * invN;
+        s[0][2] = sxz * invN;
+        s[1][1] = syy * invN;
+        s[1][2] = syz * invN;
+        s[2][2] = szz * invN;
+        s[1][0] = s[0][1];
+        s[2][0] = s[0][2];
+        s[2][1] = s[1][2];
+        return s;
+    }
+}
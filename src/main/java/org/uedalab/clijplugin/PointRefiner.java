@@ -0,0 +1,248 @@
+package org.uedalab.clijplugin;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/**
+ * Moves points onto the intensity peak in a local (2 rxy + 1)^2 x (2 rz + 1) window, with sub-pixel x, y
+ * and sub-slice z. Coordinates are pixels with zero-based z, like the fits. Stack planes are fetched
+ * once and shared, so {@link #refineAll} can work on all points in parallel.
+ */
+final class PointRefiner {
+
+    enum Method {
+        /**
+         * Background-subtracted intensity-weighted centroid, re-centred until it settles.
+         */
+        CENTROID("centroid"),
+        /**
+         * Separable three-point Gaussian fit (parabola through the log intensities) around the brightest
+         * voxel of the window; the closed form of a per-axis Gaussian peak fit.
+         */
+        GAUSSIAN("gaussian");
+
+        final String label;
+
+        Method(final String label) {
+            this.label = label;
+        }
+
+        static Method fromLabel(final String label) {
+            for (Method method : values()) {
+                if (method.label.equalsIgnoreCase(label == null ? "" : label.trim())) {
+                    return method;
+                }
+            }
+            return CENTROID;
+        }
+    }
+
+    /**
+     * The centroid stops once it moves less than this many pixels per step.
+     */
+    private static final double CONVERGENCE_PX = 0.01;
+
+    private final ImagePlus imp;
+    private final ImageStack stack;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int radiusXY;
+    private final int radiusZ;
+    private final Method method;
+    private final int iterations;
+    private final AtomicReferenceArray<ImageProcessor> planes;
+
+    PointRefiner(final ImagePlus imp, final int radiusXY, final int radiusZ, final Method method,
+                 final int iterations) {
+        this.imp = imp;
+        this.stack = imp.getStack();
+        this.width = imp.getWidth();
+        this.height = imp.getHeight();
+        this.depth = Math.max(1, imp.getNSlices());
+        this.radiusXY = Math.max(1, radiusXY);
+        this.radiusZ = depth > 1 ? Math.max(0, radiusZ) : 0;
+        this.method = method;
+        this.iterations = Math.max(1, iterations);
+        this.planes = new AtomicReferenceArray<>(stack.getSize());
+    }
+
+    /**
+     * Refines xyz = {x, y, z} in place for channel c and frame t (one-based); false if the window holds
+     * no signal above its minimum, in which case xyz is unchanged.
+     */
+    boolean refine(final double[] xyz, final int c, final int t) {
+        return method == Method.GAUSSIAN ? gaussian(xyz, c, t) : centroid(xyz, c, t);
+    }
+
+    /**
+     * Refines every point in parallel. Columns are updated in place; shifts[i] receives the distance
+     * moved, or NaN where the point could not be refined. Returns the number of refined points.
+     */
+    int refineAll(final double[] xs, final double[] ys, final double[] zs, final int[] cs, final int[] ts,
+                  final int n, final double[] shifts) {
+        return (int) IntStream.range(0, n).parallel().filter(i -> {
+            final double[] p = {xs[i], ys[i], zs[i]};
+            if (!refine(p, cs[i], ts[i])) {
+                shifts[i] = Double.NaN;
+                return false;
+            }
+            final double dx = p[0] - xs[i];
+            final double dy = p[1] - ys[i];
+            final double dz = p[2] - zs[i];
+            shifts[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            xs[i] = p[0];
+            ys[i] = p[1];
+            zs[i] = p[2];
+            return true;
+        }).count();
+    }
+
+    private boolean centroid(final double[] xyz, final int c, final int t) {
+        double cx = xyz[0];
+        double cy = xyz[1];
+        double cz = xyz[2];
+        boolean found = false;
+        for (int it = 0; it < iterations; it++) {
+            final int x0 = clamp((int) Math.round(cx), width);
+            final int y0 = clamp((int) Math.round(cy), height);
+            final int z0 = clamp((int) Math.round(cz), depth);
+            final double background = windowMinimum(x0, y0, z0, c, t);
+            double sw = 0.0;
+            double sx = 0.0;
+            double sy = 0.0;
+            double sz = 0.0;
+            for (int z = Math.max(0, z0 - radiusZ); z <= Math.min(depth - 1, z0 + radiusZ); z++) {
+                final ImageProcessor ip = plane(c, z, t);
+                for (int y = Math.max(0, y0 - radiusXY); y <= Math.min(height - 1, y0 + radiusXY); y++) {
+                    for (int x = Math.max(0, x0 - radiusXY); x <= Math.min(width - 1, x0 + radiusXY); x++) {
+                        final double w = ip.getf(x, y) - background;
+                        if (w > 0.0) {
+                            sw += w;
+                            sx += w * x;
+                            sy += w * y;
+                            sz += w * z;
+                        }
+                    }
+                }
+            }
+            if (!(sw > 0.0)) {
+                break;
+            }
+            final double nx = sx / sw;
+            final double ny = sy / sw;
+            final double nz = sz / sw;
+            final double step = Math.abs(nx - cx) + Math.abs(ny - cy) + Math.abs(nz - cz);
+            cx = nx;
+            cy = ny;
+            cz = nz;
+            found = true;
+            if (step < CONVERGENCE_PX) {
+                break;
+            }
+        }
+        if (found) {
+            xyz[0] = cx;
+            xyz[1] = cy;
+            xyz[2] = depth > 1 ? cz : xyz[2];
+        }
+        return found;
+    }
+
+    private boolean gaussian(final double[] xyz, final int c, final int t) {
+        final int x0 = clamp((int) Math.round(xyz[0]), width);
+        final int y0 = clamp((int) Math.round(xyz[1]), height);
+        final int z0 = clamp((int) Math.round(xyz[2]), depth);
+        int px = x0;
+        int py = y0;
+        int pz = z0;
+        double peak = Double.NEGATIVE_INFINITY;
+        for (int z = Math.max(0, z0 - radiusZ); z <= Math.min(depth - 1, z0 + radiusZ); z++) {
+            final ImageProcessor ip = plane(c, z, t);
+            for (int y = Math.max(0, y0 - radiusXY); y <= Math.min(height - 1, y0 + radiusXY); y++) {
+                for (int x = Math.max(0, x0 - radiusXY); x <= Math.min(width - 1, x0 + radiusXY); x++) {
+                    final double v = ip.getf(x, y);
+                    if (v > peak) {
+                        peak = v;
+                        px = x;
+                        py = y;
+                        pz = z;
+                    }
+                }
+            }
+        }
+        final double background = windowMinimum(x0, y0, z0, c, t);
+        if (!(peak > background)) {
+            return false;
+        }
+        // Log intensities above the window background; the offset keeps them defined at the tails.
+        final double floor = background - 1e-6 * (peak - background);
+        final ImageProcessor centre = plane(c, pz, t);
+        final double lc = Math.log(peak - floor);
+        double offX = 0.0;
+        double offY = 0.0;
+        double offZ = 0.0;
+        if (px > 0 && px < width - 1) {
+            offX = vertex(Math.log(centre.getf(px - 1, py) - floor), lc, Math.log(centre.getf(px + 1, py) - floor));
+        }
+        if (py > 0 && py < height - 1) {
+            offY = vertex(Math.log(centre.getf(px, py - 1) - floor), lc, Math.log(centre.getf(px, py + 1) - floor));
+        }
+        if (radiusZ > 0 && pz > 0 && pz < depth - 1) {
+            offZ = vertex(Math.log(plane(c, pz - 1, t).getf(px, py) - floor), lc,
+                    Math.log(plane(c, pz + 1, t).getf(px, py) - floor));
+        }
+        xyz[0] = px + offX;
+        xyz[1] = py + offY;
+        xyz[2] = depth > 1 ? pz + offZ : xyz[2];
+        return true;
+    }
+
+    /**
+     * Vertex offset of the parabola through (-1, a), (0, b), (1, c), limited to half a pixel; 0 when the
+     * samples do not bend downwards.
+     */
+    private static double vertex(final double a, final double b, final double c) {
+        final double curvature = a - 2.0 * b + c;
+        if (!(curvature < 0.0)) {
+            return 0.0;
+        }
+        return Math.max(-0.5, Math.min(0.5, 0.5 * (a - c) / curvature));
+    }
+
+    private double windowMinimum(final int x0, final int y0, final int z0, final int c, final int t) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int z = Math.max(0, z0 - radiusZ); z <= Math.min(depth - 1, z0 + radiusZ); z++) {
+            final ImageProcessor ip = plane(c, z, t);
+            for (int y = Math.max(0, y0 - radiusXY); y <= Math.min(height - 1, y0 + radiusXY); y++) {
+                for (int x = Math.max(0, x0 - radiusXY); x <= Math.min(width - 1, x0 + radiusXY); x++) {
+                    min = Math.min(min, ip.getf(x, y));
+                }
+            }
+        }
+        return min;
+    }
+
+    /**
+     * The plane of zero-based slice z; fetched from the stack on first use and then shared by all threads.
+     */
+    private ImageProcessor plane(final int c, final int z, final int t) {
+        final int index = imp.getStackIndex(Math.max(1, c), z + 1, Math.max(1, t)) - 1;
+        ImageProcessor ip = planes.get(index);
+        if (ip == null) {
+            ip = stack.getProcessor(index + 1);
+            if (!planes.compareAndSet(index, null, ip)) {
+                ip = planes.get(index);
+            }
+        }
+        return ip;
+    }
+
+    private static int clamp(final int v, final int size) {
+        return v < 0 ? 0 : Math.min(v, size - 1);
+    }
+}
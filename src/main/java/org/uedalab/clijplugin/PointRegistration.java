@@ -0,0 +1,297 @@
+package org.uedalab.clijplugin;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Rigid and similarity registration of 3D point sets. {@link #kabsch} is the closed-form least-squares
+ * fit for known pairs; the right singular vectors of the cross-covariance come from the symmetric eigen
+ * solver of {@link Pca3DUtils}, applied to H^T H. {@link #icp} aligns unmatched clouds by alternating
+ * nearest-neighbour pairing (k-d tree, queried in parallel) with that fit.
+ */
+final class PointRegistration {
+
+    /**
+     * p -&gt; scale * R p + t.
+     */
+    static final class Transform {
+        /**
+         * Row-major 3x3 rotation.
+         */
+        final double[] r;
+        final double scale;
+        final double[] t;
+
+        Transform(final double[] r, final double scale, final double[] t) {
+            this.r = r;
+            this.scale = scale;
+            this.t = t;
+        }
+
+        static Transform translation(final double tx, final double ty, final double tz) {
+            return new Transform(new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, 1.0, new double[]{tx, ty, tz});
+        }
+
+        void apply(final double x, final double y, final double z, final double[] out) {
+            out[0] = scale * (r[0] * x + r[1] * y + r[2] * z) + t[0];
+            out[1] = scale * (r[3] * x + r[4] * y + r[5] * z) + t[1];
+            out[2] = scale * (r[6] * x + r[7] * y + r[8] * z) + t[2];
+        }
+
+        /**
+         * R v, for directions and normals (unit in, unit out).
+         */
+        double[] rotate(final double[] v) {
+            return new double[]{
+                    r[0] * v[0] + r[1] * v[1] + r[2] * v[2],
+                    r[3] * v[0] + r[4] * v[1] + r[5] * v[2],
+                    r[6] * v[0] + r[7] * v[1] + r[8] * v[2]
+            };
+        }
+
+        double rotationAngleDegrees() {
+            final double cos = 0.5 * (r[0] + r[4] + r[8] - 1.0);
+            return Math.toDegrees(Math.acos(Math.max(-1.0, Math.min(1.0, cos))));
+        }
+    }
+
+    static final class IcpResult {
+        final Transform transform;
+        final double rms;
+        final int pairs;
+        final int iterations;
+        final boolean converged;
+
+        private IcpResult(final Transform transform, final double rms, final int pairs, final int iterations,
+                          final boolean converged) {
+            this.transform = transform;
+            this.rms = rms;
+            this.pairs = pairs;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+    }
+
+    private PointRegistration() {
+    }
+
+    /**
+     * Least-squares transform taking source point src[k] onto target point dst[k] for k &lt; count, where
+     * the indices select rows of the source and target columns. With withScale the uniform scale is
+     * fitted too (Umeyama), otherwise it is 1.
+     *
+     * @throws IllegalArgumentException for fewer than 3 pairs or collinear source points
+     */
+    static Transform kabsch(final double[] sx, final double[] sy, final double[] sz, final int[] src,
+                            final double[] tx, final double[] ty, final double[] tz, final int[] dst,
+                            final int count, final boolean withScale) {
+        if (count < 3) {
+            throw new IllegalArgumentException("Need at least 3 point pairs; found " + count + ".");
+        }
+        double msx = 0.0;
+        double msy = 0.0;
+        double msz = 0.0;
+        double mtx = 0.0;
+        double mty = 0.0;
+        double mtz = 0.0;
+        for (int k = 0; k < count; k++) {
+            msx += sx[src[k]];
+            msy += sy[src[k]];
+            msz += sz[src[k]];
+            mtx += tx[dst[k]];
+            mty += ty[dst[k]];
+            mtz += tz[dst[k]];
+        }
+        msx /= count;
+        msy /= count;
+        msz /= count;
+        mtx /= count;
+        mty /= count;
+        mtz /= count;
+
+        // Cross-covariance H = sum (s - ms)(t - mt)^T and the source variance, both about the means.
+        final double[][] h = new double[3][3];
+        double sourceVariance = 0.0;
+        for (int k = 0; k < count; k++) {
+            final double[] s = {sx[src[k]] - msx, sy[src[k]] - msy, sz[src[k]] - msz};
+            final double[] t = {tx[dst[k]] - mtx, ty[dst[k]] - mty, tz[dst[k]] - mtz};
+            for (int a = 0; a < 3; a++) {
+                for (int b = 0; b < 3; b++) {
+                    h[a][b] += s[a] * t[b];
+                }
+            }
+            sourceVariance += s[0] * s[0] + s[1] * s[1] + s[2] * s[2];
+        }
+        double norm = 0.0;
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                norm += h[a][b] * h[a][b];
+            }
+        }
+        norm = Math.sqrt(norm);
+        if (!(norm > 0.0) || !Double.isFinite(norm)) {
+            throw new IllegalArgumentException("Point pairs do not constrain a rotation.");
+        }
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                h[a][b] /= norm;
+            }
+        }
+
+        // Right singular vectors V and singular values of H from the eigen decomposition of H^T H.
+        final double[][] hth = new double[3][3];
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                hth[a][b] = h[0][a] * h[0][b] + h[1][a] * h[1][b] + h[2][a] * h[2][b];
+            }
+        }
+        final Pca3DUtils.EigenResult eigen = Pca3DUtils.jacobiEigenSymmetric3x3(hth);
+        final Integer[] order = {0, 1, 2};
+        Arrays.sort(order, (p, q) -> Double.compare(eigen.values[q], eigen.values[p]));
+        final double[][] v = new double[3][];
+        for (int k = 0; k < 3; k++) {
+            v[k] = new double[]{eigen.vectors[0][order[k]], eigen.vectors[1][order[k]], eigen.vectors[2][order[k]]};
+        }
+        if (dot(cross(v[0], v[1]), v[2]) < 0.0) {
+            v[2] = new double[]{-v[2][0], -v[2][1], -v[2][2]};
+        }
+
+        // Left singular vectors U = H v / sigma; the third is completed as a cross product so det(U) = +1
+        // and the last singular value carries the reflection sign instead.
+        final double[][] u = new double[3][];
+        u[0] = normalized(multiply(h, v[0]));
+        final double[] u1 = multiply(h, v[1]);
+        final double sigma1 = Math.sqrt(dot(u1, u1));
+        if (!(sigma1 > 1e-9)) {
+            throw new IllegalArgumentException("Points are collinear; the rotation about their line is undetermined.");
+        }
+        final double along = dot(u1, u[0]);
+        u[1] = normalized(new double[]{u1[0] - along * u[0][0], u1[1] - along * u[0][1], u1[2] - along * u[0][2]});
+        u[2] = cross(u[0], u[1]);
+        final double sigmaSum = dot(u[0], multiply(h, v[0])) + dot(u[1], multiply(h, v[1]))
+                + dot(u[2], multiply(h, v[2]));
+
+        // R = V U^T maximizes trace(R H) over proper rotations.
+        final double[] r = new double[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                r[3 * i + j] = v[0][i] * u[0][j] + v[1][i] * u[1][j] + v[2][i] * u[2][j];
+            }
+        }
+        final double scale = withScale && sourceVariance > 0.0 ? sigmaSum * norm / sourceVariance : 1.0;
+        final double[] t = {
+                mtx - scale * (r[0] * msx + r[1] * msy + r[2] * msz),
+                mty - scale * (r[3] * msx + r[4] * msy + r[5] * msz),
+                mtz - scale * (r[6] * msx + r[7] * msy + r[8] * msz)
+        };
+        return new Transform(r, scale, t);
+    }
+
+    /**
+     * Iterative closest point from the moving cloud onto the fixed one, starting from the translation that
+     * aligns their centroids. Each iteration pairs every moving point with its nearest fixed point, drops
+     * pairs farther than maxDistance (0 = no limit) and then all but the closest keepFraction of the rest
+     * (trimmed ICP, for partial overlap), and refits the transform to the kept pairs. Stops when the rms
+     * changes by less than tolerance.
+     */
+    static IcpResult icp(final double[] mx, final double[] my, final double[] mz, final int movingCount,
+                         final double[] fx, final double[] fy, final double[] fz, final int fixedCount,
+                         final boolean withScale, final int maxIterations, final double tolerance,
+                         final double maxDistance, final double keepFraction) {
+        final KdTree tree = new KdTree(fx, fy, fz, fixedCount);
+        final double[] movingCentroid = centroid(mx, my, mz, movingCount);
+        final double[] fixedCentroid = centroid(fx, fy, fz, fixedCount);
+        Transform transform = Transform.translation(fixedCentroid[0] - movingCentroid[0],
+                fixedCentroid[1] - movingCentroid[1], fixedCentroid[2] - movingCentroid[2]);
+
+        final int[] nearest = new int[movingCount];
+        final double[] distances = new double[movingCount];
+        final int[] src = new int[movingCount];
+        final int[] dst = new int[movingCount];
+        final double[] rms = new double[1];
+        double previousRms = Double.POSITIVE_INFINITY;
+        int iteration = 0;
+        boolean converged = false;
+        while (iteration < maxIterations) {
+            iteration++;
+            final int pairs = correspond(tree, mx, my, mz, movingCount, transform, maxDistance, keepFraction,
+                    nearest, distances, src, dst, rms);
+            transform = kabsch(mx, my, mz, src, fx, fy, fz, dst, pairs, withScale);
+            if (Math.abs(previousRms - rms[0]) < tolerance) {
+                converged = true;
+                break;
+            }
+            previousRms = rms[0];
+        }
+        final int pairs = correspond(tree, mx, my, mz, movingCount, transform, maxDistance, keepFraction,
+                nearest, distances, src, dst, rms);
+        return new IcpResult(transform, rms[0], pairs, iteration, converged);
+    }
+
+    /**
+     * Pairs every moving point under the transform with its nearest fixed point and keeps the accepted
+     * pairs in src/dst. Returns the number of pairs; their rms distance goes to rmsOut[0].
+     */
+    private static int correspond(final KdTree tree, final double[] mx, final double[] my, final double[] mz,
+                                  final int movingCount, final Transform transform, final double maxDistance,
+                                  final double keepFraction, final int[] nearest, final double[] distances,
+                                  final int[] src, final int[] dst, final double[] rmsOut) {
+        IntStream.range(0, movingCount).parallel().forEach(i -> {
+            final double[] p = new double[3];
+            transform.apply(mx[i], my[i], mz[i], p);
+            final double[] d2 = new double[1];
+            nearest[i] = tree.nearest(p[0], p[1], p[2], d2);
+            distances[i] = d2[0];
+        });
+        final double maxSquared = maxDistance > 0.0 ? maxDistance * maxDistance : Double.POSITIVE_INFINITY;
+        double limit = maxSquared;
+        if (keepFraction < 1.0) {
+            final double[] sorted = Arrays.stream(distances, 0, movingCount).filter(d -> d <= maxSquared).toArray();
+            if (sorted.length > 0) {
+                Arrays.parallelSort(sorted);
+                final int keep = Math.max(3, (int) Math.ceil(keepFraction * sorted.length));
+                limit = sorted[Math.min(sorted.length, keep) - 1];
+            }
+        }
+        int pairs = 0;
+        double sum = 0.0;
+        for (int i = 0; i < movingCount; i++) {
+            if (distances[i] <= limit) {
+                src[pairs] = i;
+                dst[pairs] = nearest[i];
+                sum += distances[i];
+                pairs++;
+            }
+        }
+        if (pairs < 3) {
+            throw new IllegalArgumentException("Only " + pairs + " point pairs within the maximum distance.");
+        }
+        rmsOut[0] = Math.sqrt(sum / pairs);
+        return pairs;
+    }
+
+    private static double[] centroid(final double[] xs, final double[] ys, final double[] zs, final int n) {
+        return MomentKernels.moments(xs, ys, zs, 0, n).centroid();
+    }
+
+    private static double[] multiply(final double[][] m, final double[] v) {
+        return new double[]{
+                m[0][0] * v[0] + m[0][1] * v[1] + m[0][2] * v[2],
+                m[1][0] * v[0] + m[1][1] * v[1] + m[1][2] * v[2],
+                m[2][0] * v[0] + m[2][1] * v[1] + m[2][2] * v[2]
+        };
+    }
+
+    private static double dot(final double[] a, final double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    private static double[] cross(final double[] a, final double[] b) {
+        return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    private static double[] normalized(final double[] v) {
+        final double length = Math.sqrt(dot(v, v));
+        return new double[]{v[0] / length, v[1] / length, v[2] / length};
+    }
+}
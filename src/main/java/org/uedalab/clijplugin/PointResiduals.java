@@ -0,0 +1,145 @@
+package org.uedalab.clijplugin;
+
+import ij.measure.ResultsTable;
+
+import java.util.Arrays;
+
+/**
+ * Per-point residual columns for the fit commands. Residuals are gathered into one primitive column
+ * per table (NaN for rows that were not fitted) and written back with a single setValues call per
+ * column instead of one addValue per row.
+ */
+final class PointResiduals {
+
+    static final String COL_RESIDUAL = "residual";
+    static final String COL_INLIER = "inlier";
+    static final String COL_WORST_RANK = "worst_rank";
+
+    private PointResiduals() {
+    }
+
+    static double[] newColumn(final int rows) {
+        final double[] column = new double[rows];
+        Arrays.fill(column, Double.NaN);
+        return column;
+    }
+
+    /**
+     * Writes the distance of each of the n fitted points to its model into column[rows[i]]: signed along
+     * the normal for planes, perpendicular for lines.
+     */
+    static void fill(final double[] column, final double[] xs, final double[] ys, final double[] zs,
+                     final int[] rows, final int n, final boolean plane, final double[] centroid,
+                     final double[] vector) {
+        final double[] coords = new double[n * 3];
+        for (int i = 0; i < n; i++) {
+            coords[i * 3] = xs[i];
+            coords[i * 3 + 1] = ys[i];
+            coords[i * 3 + 2] = zs[i];
+        }
+        final double[] distances = new double[n];
+        GeometryRelations.pointModelDistanceTable(coords, n, centroid, vector, new boolean[]{plane}, 1, distances);
+        for (int i = 0; i < n; i++) {
+            column[rows[i]] = distances[i];
+        }
+    }
+
+    /**
+     * Sets the residual, inlier (|residual| within the threshold) and, if worstK &gt; 0, worst_rank
+     * (1 for the largest |residual|, 0 outside the worst k) columns. Returns the inlier count.
+     */
+    static int writeBack(final ResultsTable rt, final double[] residuals, final double inlierThreshold,
+                         final int worstK) {
+        final double[] inliers = new double[residuals.length];
+        int inlierCount = 0;
+        for (int row = 0; row < residuals.length; row++) {
+            final double r = Math.abs(residuals[row]);
+            if (Double.isNaN(r)) {
+                inliers[row] = Double.NaN;
+            } else if (r <= inlierThreshold) {
+                inliers[row] = 1.0;
+                inlierCount++;
+            }
+        }
+        rt.setValues(COL_RESIDUAL, residuals);
+        rt.setValues(COL_INLIER, inliers);
+        if (worstK > 0) {
+            rt.setValues(COL_WORST_RANK, worstRanks(residuals, worstK));
+        }
+        final String title = rt.getTitle();
+        if (title != null && !title.isEmpty()) {
+            rt.show(title);
+        }
+        return inlierCount;
+    }
+
+    /**
+     * Ranks the k largest |residual| rows through a bounded min-heap of row indices: O(n log k).
+     */
+    private static double[] worstRanks(final double[] residuals, final int k) {
+        final int[] heap = new int[k];
+        int size = 0;
+        for (int row = 0; row < residuals.length; row++) {
+            final double r = Math.abs(residuals[row]);
+            if (Double.isNaN(r)) {
+                continue;
+            }
+            if (size < k) {
+                heap[size] = row;
+                siftUp(heap, size++, residuals);
+            } else if (r > Math.abs(residuals[heap[0]])) {
+                heap[0] = row;
+                siftDown(heap, size, residuals);
+            }
+        }
+        final double[] ranks = new double[residuals.length];
+        for (int row = 0; row < residuals.length; row++) {
+            if (Double.isNaN(residuals[row])) {
+                ranks[row] = Double.NaN;
+            }
+        }
+        // Popping the min-heap yields the smallest of the worst k first, i.e. rank size down to 1.
+        for (int rank = size; rank >= 1; rank--) {
+            ranks[heap[0]] = rank;
+            heap[0] = heap[--size];
+            siftDown(heap, size, residuals);
+        }
+        return ranks;
+    }
+
+    private static void siftUp(final int[] heap, final int start, final double[] residuals) {
+        int i = start;
+        while (i > 0) {
+            final int parent = (i - 1) >> 1;
+            if (Math.abs(residuals[heap[i]]) >= Math.abs(residuals[heap[parent]])) {
+                return;
+            }
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(final int[] heap, final int size, final double[] residuals) {
+        int i = 0;
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            final int smaller = right < size && Math.abs(residuals[heap[right]]) < Math.abs(residuals[heap[left]])
+                    ? right : left;
+            if (Math.abs(residuals[heap[i]]) <= Math.abs(residuals[heap[smaller]])) {
+                return;
+            }
+            swap(heap, i, smaller);
+            i = smaller;
+        }
+    }
+
+    private static void swap(final int[] heap, final int a, final int b) {
+        final int tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+    }
+}
@@ -0,0 +1,104 @@
+package org.uedalab.clijplugin;
+
+import ij.measure.ResultsTable;
+
+import java.util.Arrays;
+
+/**
+ * Collects imported points in primitive columns and appends them to a point table in one go: numeric
+ * columns are written whole with setValues, the id and role cells by column index, so a point costs no
+ * per-row incrementCounter/addValue name lookups. Ids are prefix + index zero-padded to three digits,
+ * built without String.format.
+ */
+final class PointTableAppender {
+
+    private final String idPrefix;
+    private final int startIndex;
+    private final String role;
+    private double[] x;
+    private double[] y;
+    private double[] z;
+    private double[] t;
+    private double[] c;
+    private int size;
+
+    PointTableAppender(final String idPrefix, final int startIndex, final String role, final int capacity) {
+        this.idPrefix = idPrefix;
+        this.startIndex = Math.max(1, startIndex);
+        this.role = role;
+        final int initial = Math.max(16, capacity);
+        x = new double[initial];
+        y = new double[initial];
+        z = new double[initial];
+        t = new double[initial];
+        c = new double[initial];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(final double px, final double py, final int pz, final int pt, final int pc) {
+        if (size == x.length) {
+            final int grown = x.length * 2;
+            x = Arrays.copyOf(x, grown);
+            y = Arrays.copyOf(y, grown);
+            z = Arrays.copyOf(z, grown);
+            t = Arrays.copyOf(t, grown);
+            c = Arrays.copyOf(c, grown);
+        }
+        x[size] = px;
+        y[size] = py;
+        z[size] = pz;
+        t[size] = pt;
+        c[size] = pc;
+        size++;
+    }
+
+    /**
+     * Appends the collected rows below the existing ones; columns missing from the table are created
+     * in schema order and left NaN/empty for the old rows.
+     */
+    void appendTo(final ResultsTable rt) {
+        if (size == 0) {
+            return;
+        }
+        final int base = rt.size();
+        final int idCol = column(rt, PointTableSchema.COL_ID);
+        // Growing the numeric columns first adds the new rows.
+        appendColumn(rt, PointTableSchema.COL_X, x, base);
+        appendColumn(rt, PointTableSchema.COL_Y, y, base);
+        appendColumn(rt, PointTableSchema.COL_Z, z, base);
+        appendColumn(rt, PointTableSchema.COL_T, t, base);
+        appendColumn(rt, PointTableSchema.COL_C, c, base);
+        final int roleCol = column(rt, PointTableSchema.COL_ROLE);
+        final StringBuilder id = new StringBuilder(idPrefix.length() + 10).append(idPrefix);
+        for (int i = 0; i < size; i++) {
+            id.setLength(idPrefix.length());
+            final int index = startIndex + i;
+            if (index < 100) {
+                id.append(index < 10 ? "00" : "0");
+            }
+            rt.setValue(idCol, base + i, id.append(index).toString());
+            rt.setValue(roleCol, base + i, role);
+        }
+    }
+
+    private void appendColumn(final ResultsTable rt, final String name, final double[] values, final int base) {
+        final double[] column = new double[base + size];
+        final int index = rt.getColumnIndex(name);
+        if (index != ResultsTable.COLUMN_NOT_FOUND) {
+            final double[] existing = rt.getColumnAsDoubles(index);
+            System.arraycopy(existing, 0, column, 0, Math.min(base, existing.length));
+        } else {
+            Arrays.fill(column, 0, base, Double.NaN);
+        }
+        System.arraycopy(values, 0, column, base, size);
+        rt.setValues(name, column);
+    }
+
+    private static int column(final ResultsTable rt, final String name) {
+        final int index = rt.getColumnIndex(name);
+        return index != ResultsTable.COLUMN_NOT_FOUND ? index : rt.getFreeColumn(name);
+    }
+}
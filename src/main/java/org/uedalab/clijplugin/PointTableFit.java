@@ -0,0 +1,390 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.Line;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+
+import java.awt.Frame;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Shared body of the line and plane point-table fits. The usable rows are collected into primitive
+ * columns with their source row indices; a grouped fit splits them by (channel, timepoint) with a
+ * counting sort over the sorted distinct group keys and fits the groups in parallel. Output rows, residual
+ * columns and overlays are written the same way for both models, so a command only supplies the fit, its
+ * output values and its single-slice overlay line.
+ *
+ * @param <F> the fit result
+ */
+abstract class PointTableFit<F> {
+
+    private final String title;
+    private final String noun;
+    private final GeometryPointsControlFrame.ModelType type;
+    private final int minPoints;
+    private final String projectionName;
+
+    ImagePlus image;
+    boolean overlayAllSlices;
+    int overlayZSlice = 1;
+    boolean writeResiduals;
+    double inlierThresholdPx;
+    int worstK;
+
+    /**
+     * @param title          dialog title, e.g. "Fit Line"
+     * @param noun           model name used in log messages, e.g. "line"
+     * @param minPoints      smallest point count that can be fitted
+     * @param projectionName name of the single-slice overlay line (per group, with a _c/_t suffix)
+     */
+    PointTableFit(final String title, final String noun, final GeometryPointsControlFrame.ModelType type,
+                  final int minPoints, final String projectionName) {
+        this.title = title;
+        this.noun = noun;
+        this.type = type;
+        this.minPoints = minPoints;
+        this.projectionName = projectionName;
+    }
+
+    abstract F fit(Columns points);
+
+    abstract double[] centroid(F fit);
+
+    /**
+     * Line direction or plane normal.
+     */
+    abstract double[] vector(F fit);
+
+    /**
+     * Adds the model's output columns to the current row.
+     */
+    abstract void addValues(ResultsTable out, F fit);
+
+    /**
+     * XY projection drawn on a single slice when sections are not requested.
+     */
+    abstract Line projection(F fit);
+
+    /**
+     * Summary of the fit for the log, after the centroid.
+     */
+    abstract String describe(F fit);
+
+    /**
+     * Rows of a point table that take part in a fit: zero-based coordinates, weights (null when
+     * unweighted), source row indices and (c, t) group keys (null when not grouped).
+     */
+    static final class Columns {
+        final double[] x;
+        final double[] y;
+        final double[] z;
+        final double[] w;
+        final int[] rows;
+        final long[] groups;
+        final Set<String> rolesUsed = new HashSet<>();
+        long group;
+        int size;
+
+        private Columns(final int capacity, final boolean weighted, final boolean grouped) {
+            x = new double[capacity];
+            y = new double[capacity];
+            z = new double[capacity];
+            w = weighted ? new double[capacity] : null;
+            rows = new int[capacity];
+            groups = grouped ? new long[capacity] : null;
+        }
+
+        private void add(final Columns from, final int i) {
+            x[size] = from.x[i];
+            y[size] = from.y[i];
+            z[size] = from.z[i];
+            if (w != null) {
+                w[size] = from.w[i];
+            }
+            rows[size] = from.rows[i];
+            size++;
+        }
+
+        /**
+         * The points of each (c, t) group in ascending key order, each in its own columns. Group indices
+         * come from a binary search of the sorted distinct keys, then one counting pass sizes the groups
+         * and one more scatters the points.
+         */
+        Columns[] splitByGroup() {
+            final long[] keys = Arrays.copyOf(groups, size);
+            Arrays.sort(keys);
+            int distinct = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (i == 0 || keys[i] != keys[i - 1]) {
+                    keys[distinct++] = keys[i];
+                }
+            }
+            final int[] index = new int[size];
+            final int[] counts = new int[distinct];
+            for (int i = 0; i < size; i++) {
+                index[i] = Arrays.binarySearch(keys, 0, distinct, groups[i]);
+                counts[index[i]]++;
+            }
+            final Columns[] parts = new Columns[distinct];
+            for (int g = 0; g < distinct; g++) {
+                parts[g] = new Columns(counts[g], w != null, false);
+                parts[g].group = keys[g];
+            }
+            for (int i = 0; i < size; i++) {
+                parts[index[i]].add(this, i);
+            }
+            return parts;
+        }
+    }
+
+    /**
+     * Collects the rows with finite coordinates, an allowed role (allowedRoles null = all), a positive
+     * finite weight (weightColumn null = unweighted) and, when grouping, a finite t and c.
+     */
+    static Columns collect(final ResultsTable rt, final boolean zOneBased, final Set<String> allowedRoles,
+                           final String weightColumn, final boolean useTime, final boolean useChannel) {
+        final int rows = rt.getCounter();
+        final double[] xs = column(rt, PointTableSchema.COL_X);
+        final double[] ys = column(rt, PointTableSchema.COL_Y);
+        final double[] zs = column(rt, PointTableSchema.COL_Z);
+        final double[] ws = weightColumn == null ? null : column(rt, weightColumn);
+        final double[] ts = useTime ? column(rt, PointTableSchema.COL_T) : null;
+        final double[] cs = useChannel ? column(rt, PointTableSchema.COL_C) : null;
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+        final Columns points = new Columns(rows, ws != null, useTime || useChannel);
+        for (int row = 0; row < rows; row++) {
+            final String value = hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : null;
+            final String role = value == null ? "" : value.trim();
+            if (allowedRoles != null && !allowedRoles.contains(role.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            final double z = zOneBased ? zs[row] - 1.0 : zs[row];
+            if (!Double.isFinite(xs[row]) || !Double.isFinite(ys[row]) || !Double.isFinite(z)) {
+                continue;
+            }
+            // Rows without a positive weight do not take part in a weighted fit.
+            if (ws != null && (!(ws[row] > 0.0) || Double.isInfinite(ws[row]))) {
+                continue;
+            }
+            if (points.groups != null) {
+                final double t = ts != null ? ts[row] : 1.0;
+                final double c = cs != null ? cs[row] : 1.0;
+                if (!Double.isFinite(t) || !Double.isFinite(c)) {
+                    continue;
+                }
+                points.groups[points.size] = groupKey((int) Math.round(c), (int) Math.round(t));
+            }
+            points.x[points.size] = xs[row];
+            points.y[points.size] = ys[row];
+            points.z[points.size] = z;
+            if (ws != null) {
+                points.w[points.size] = ws[row];
+            }
+            points.rows[points.size] = row;
+            points.size++;
+            if (!role.isEmpty()) {
+                points.rolesUsed.add(role);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Fits all points as one model, or every channel and/or timepoint separately, and writes one row per
+     * model (in (c, t) order when grouped) to the output table. Groups with too few points are skipped.
+     */
+    final void run(final ResultsTable rt, final Columns points, final boolean useChannel, final boolean useTime,
+                   final boolean filteredByRole, final String outputTitle) {
+        final boolean grouped = useChannel || useTime;
+        final Columns[] groups = grouped ? points.splitByGroup() : new Columns[]{points};
+        final List<Columns> fittable = new ArrayList<>(groups.length);
+        for (Columns group : groups) {
+            if (group.size >= minPoints) {
+                fittable.add(group);
+            }
+        }
+        if (fittable.isEmpty()) {
+            IJ.error(title, grouped
+                    ? "No channel or timepoint has at least " + minPoints + " valid points."
+                    : "Need at least " + minPoints + " valid points to fit a " + noun + ".");
+            return;
+        }
+
+        final List<F> fits = new ArrayList<>(Collections.<F>nCopies(fittable.size(), null));
+        IntStream.range(0, fits.size()).parallel().forEach(i -> fits.set(i, fit(fittable.get(i))));
+
+        final String fallbackTitle = "fit_" + noun;
+        final String resolvedOutputTitle = outputTitle == null || outputTitle.trim().isEmpty()
+                ? fallbackTitle : outputTitle;
+        final ResultsTable out = getOrCreateResultsTable(resolvedOutputTitle);
+        final String roles = summarizeRoles(points.rolesUsed, filteredByRole);
+        final Overlay overlay = image == null ? null
+                : image.getOverlay() == null ? new Overlay() : image.getOverlay();
+        final int zSlice = overlay == null ? 1 : resolveOverlaySlice(image, overlayZSlice);
+        final double[] residuals = writeResiduals ? PointResiduals.newColumn(rt.getCounter()) : null;
+        final boolean plane = type == GeometryPointsControlFrame.ModelType.PLANE;
+        int fittedPoints = 0;
+        for (int i = 0; i < fits.size(); i++) {
+            final Columns group = fittable.get(i);
+            final int c = groupChannel(group.group);
+            final int t = groupTime(group.group);
+            final F fit = fits.get(i);
+            out.incrementCounter();
+            if (useChannel) {
+                out.addValue(PointTableSchema.COL_C, c);
+            }
+            if (useTime) {
+                out.addValue(PointTableSchema.COL_T, t);
+            }
+            out.addValue("n_points", group.size);
+            fittedPoints += group.size;
+            if (residuals != null) {
+                PointResiduals.fill(residuals, group.x, group.y, group.z, group.rows, group.size, plane,
+                        centroid(fit), vector(fit));
+            }
+            addValues(out, fit);
+            out.addValue("roles_used", roles);
+            final String suffix = (useChannel ? "_c" + c : "") + (useTime ? "_t" + t : "");
+            if (overlay != null && overlayAllSlices) {
+                final ModelSectionRoi roi = sectionRoi(centroid(fit), vector(fit), fallbackTitle + "_sections" + suffix);
+                assignSlicePosition(roi, useChannel ? c : 0, 0, useTime ? t : 0);
+                overlay.add(roi);
+            } else if (overlay != null) {
+                final Line line = projection(fit);
+                line.setName(projectionName + suffix);
+                line.setStrokeWidth(1.5);
+                assignSlicePosition(line, useChannel ? c : 0, zSlice, useTime ? t : 0);
+                overlay.add(line);
+            }
+        }
+        out.show(resolvedOutputTitle);
+        if (residuals != null) {
+            logResiduals(PointResiduals.writeBack(rt, residuals, inlierThresholdPx, worstK), fittedPoints);
+        }
+        if (overlay != null) {
+            image.setOverlay(overlay);
+            image.updateAndDraw();
+        }
+        if (grouped) {
+            IJ.log("Fit " + noun + " per " + (useChannel ? (useTime ? "channel and timepoint" : "channel") : "timepoint")
+                    + ": " + fits.size() + " groups fitted, " + (groups.length - fits.size()) + " skipped (fewer than "
+                    + minPoints + " points).");
+            return;
+        }
+        if (overlay != null && overlayAllSlices) {
+            IJ.log("Drew fit " + noun + " sections on all " + Math.max(1, image.getNSlices()) + " slices of image '"
+                    + image.getTitle() + "'.");
+        } else if (overlay != null) {
+            IJ.log("Drew " + projectionName + " at zSlice=" + zSlice + " on image '" + image.getTitle() + "'.");
+        }
+        final double[] centroid = centroid(fits.get(0));
+        IJ.log("Fit " + noun + " from point table: n_points=" + points.size + ", centroid=(" + centroid[0] + ","
+                + centroid[1] + "," + centroid[2] + "), " + describe(fits.get(0)) + ".");
+    }
+
+    /**
+     * Overlay element with the fitted model's section on every z slice of the image (fits use zero-based z).
+     */
+    private ModelSectionRoi sectionRoi(final double[] centroid, final double[] vector, final String name) {
+        final ModelSectionRoi roi = ModelSectionRoi.of(new GeometryPointsCanvas.RenderModel(type,
+                centroid[0], centroid[1], centroid[2], vector[0], vector[1], vector[2], new double[0]),
+                image.getWidth(), image.getHeight(), image.getNSlices());
+        roi.setName(name);
+        roi.setStrokeWidth(1.5);
+        return roi;
+    }
+
+    private void logResiduals(final int inliers, final int fitted) {
+        IJ.log("Fit " + noun + " residuals: " + inliers + " of " + fitted + " points within " + inlierThresholdPx
+                + " px" + (worstK > 0 ? ", worst " + Math.min(worstK, fitted) + " ranked in '"
+                + PointResiduals.COL_WORST_RANK + "'" : "") + ".");
+    }
+
+    /**
+     * Lower-cased roles of a comma-separated list.
+     */
+    static Set<String> parseAllowedRoles(final String csv) {
+        final Set<String> roles = new HashSet<>();
+        if (csv == null || csv.trim().isEmpty()) {
+            return roles;
+        }
+        for (String token : csv.split(",")) {
+            final String value = token == null ? "" : token.trim().toLowerCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                roles.add(value);
+            }
+        }
+        return roles;
+    }
+
+    private static double[] column(final ResultsTable rt, final String name) {
+        return rt.getColumnAsDoubles(rt.getColumnIndex(name));
+    }
+
+    private static long groupKey(final int channel, final int timepoint) {
+        return ((long) channel << 32) | (timepoint & 0xffffffffL);
+    }
+
+    private static int groupChannel(final long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int groupTime(final long key) {
+        return (int) key;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+
+    private static String summarizeRoles(final Set<String> roles, final boolean filtered) {
+        if (roles.isEmpty()) {
+            return filtered ? "(filtered; no role values)" : "(all/non-empty roles unavailable)";
+        }
+        final List<String> sorted = new ArrayList<>(roles);
+        Collections.sort(sorted);
+        return String.join(",", sorted);
+    }
+
+    private static int resolveOverlaySlice(final ImagePlus image, final int requestedSlice) {
+        int zSlice = requestedSlice <= 0 ? 1 : requestedSlice;
+        if (image != null && requestedSlice == 1) {
+            zSlice = image.getCurrentSlice();
+        }
+        final int nSlices = Math.max(1, image.getNSlices());
+        if (zSlice < 1) {
+            return 1;
+        }
+        if (zSlice > nSlices) {
+            return nSlices;
+        }
+        return zSlice;
+    }
+
+    private static void assignSlicePosition(final Roi roi, final int cChannel, final int zSlice, final int tFrame) {
+        try {
+            Roi.class.getMethod("setPosition", int.class, int.class, int.class).invoke(roi, cChannel, zSlice, tFrame);
+        } catch (Throwable t) {
+            roi.setPosition(zSlice);
+        }
+    }
+}
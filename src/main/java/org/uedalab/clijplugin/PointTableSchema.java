@@ -9,6 +9,14 @@ public final class PointTableSchema {
     public static final String COL_Y = "y";
     public static final String COL_Z = "z";
     public static final String COL_ROLE = "role";
+    /**
+     * Optional one-based timepoint; tables without it are treated as a single timepoint t=1.
+     */
+    public static final String COL_T = "t";
+    /**
+     * Optional one-based channel; tables without it are treated as a single channel c=1.
+     */
+    public static final String COL_C = "c";
 
     public static final String ROLE_AXIS_START = "axis_start";
     public static final String ROLE_AXIS_END = "axis_end";
@@ -27,4 +35,12 @@ public final class PointTableSchema {
                 && rt.getColumnIndex(COL_Y) != ResultsTable.COLUMN_NOT_FOUND
                 && rt.getColumnIndex(COL_Z) != ResultsTable.COLUMN_NOT_FOUND;
     }
+
+    public static boolean hasTimeColumn(final ResultsTable rt) {
+        return rt != null && rt.getColumnIndex(COL_T) != ResultsTable.COLUMN_NOT_FOUND;
+    }
+
+    public static boolean hasChannelColumn(final ResultsTable rt) {
+        return rt != null && rt.getColumnIndex(COL_C) != ResultsTable.COLUMN_NOT_FOUND;
+    }
 }
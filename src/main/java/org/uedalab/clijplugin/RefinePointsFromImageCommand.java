@@ -0,0 +1,264 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Snaps the rows of a point table to the local intensity peak of an image: an intensity-weighted
+ * centroid or a per-axis Gaussian fit in a small window, with sub-pixel x, y and sub-slice z. All
+ * selected rows are refined in parallel; large centroid batches can run on the GPU instead, one CLIJ2
+ * kernel launch per channel and timepoint. Refined coordinates replace x, y, z; the originals are
+ * kept in x_raw, y_raw, z_raw the first time.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry points>refine points from image...")
+public class RefinePointsFromImageCommand implements Command {
+
+    private static final String COL_SHIFT = "refine_shift";
+    private static final String COL_X_RAW = "x_raw";
+    private static final String COL_Y_RAW = "y_raw";
+    private static final String COL_Z_RAW = "z_raw";
+
+    @Parameter(label = "Image")
+    private ImagePlus image;
+
+    @Parameter(label = "Points table", required = false)
+    private ResultsTable pointsTable;
+
+    @Parameter(label = "Z is one-based in table")
+    private boolean zOneBasedInTable = true;
+
+    @Parameter(label = "Method", choices = {"centroid", "gaussian"})
+    private String method = "centroid";
+
+    @Parameter(label = "Window radius XY (px)", min = "1")
+    private int radiusXY = 3;
+
+    @Parameter(label = "Window radius Z (slices)", min = "0")
+    private int radiusZ = 1;
+
+    @Parameter(label = "Centroid iterations", min = "1")
+    private int iterations = 5;
+
+    @Parameter(label = "Filter by role")
+    private boolean filterByRole = false;
+
+    @Parameter(label = "Allowed roles (CSV)")
+    private String allowedRolesCsv = PointTableSchema.ROLE_PLANE_FIT;
+
+    @Parameter(label = "Use GPU (CLIJ2, centroid only)")
+    private boolean useGpu = false;
+
+    @Parameter(label = "GPU from this many points", min = "1")
+    private int gpuMinPoints = 10000;
+
+    @Override
+    public void run() {
+        if (image == null) {
+            IJ.error("Refine Points", "No active image. Please open/select an image first.");
+            return;
+        }
+        final ResultsTable rt = pointsTable != null ? pointsTable : ResultsTable.getResultsTable();
+        if (rt == null || !PointTableSchema.looksLikePointTable(rt)) {
+            IJ.error("Refine Points", "Point table is missing required columns: id,x,y,z (role optional).");
+            return;
+        }
+
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double[] cColumn = PointTableSchema.hasChannelColumn(rt)
+                ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_C)) : null;
+        final double[] tColumn = PointTableSchema.hasTimeColumn(rt)
+                ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_T)) : null;
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+        final Set<String> allowedRoles = parseAllowedRoles(allowedRolesCsv);
+        final double zOffset = zOneBasedInTable ? 1.0 : 0.0;
+
+        // Selected rows as compact columns; z zero-based.
+        final int[] sourceRows = new int[rows];
+        final double[] px = new double[rows];
+        final double[] py = new double[rows];
+        final double[] pz = new double[rows];
+        final int[] pc = new int[rows];
+        final int[] pt = new int[rows];
+        int n = 0;
+        for (int row = 0; row < rows; row++) {
+            if (filterByRole) {
+                final String role = hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : "";
+                if (!allowedRoles.contains(role == null ? "" : role.trim().toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+            }
+            if (!Double.isFinite(xs[row]) || !Double.isFinite(ys[row]) || !Double.isFinite(zs[row])) {
+                continue;
+            }
+            sourceRows[n] = row;
+            px[n] = xs[row];
+            py[n] = ys[row];
+            pz[n] = zs[row] - zOffset;
+            pc[n] = cColumn == null || !Double.isFinite(cColumn[row]) ? 1 : Math.max(1, (int) Math.round(cColumn[row]));
+            pt[n] = tColumn == null || !Double.isFinite(tColumn[row]) ? 1 : Math.max(1, (int) Math.round(tColumn[row]));
+            n++;
+        }
+        if (n == 0) {
+            IJ.error("Refine Points", "No valid rows to refine.");
+            return;
+        }
+
+        final PointRefiner.Method resolvedMethod = PointRefiner.Method.fromLabel(method);
+        final double[] shifts = new double[n];
+        final boolean gpu = useGpu && resolvedMethod == PointRefiner.Method.CENTROID && n >= gpuMinPoints;
+        final long start = System.nanoTime();
+        final int refined;
+        if (gpu) {
+            refined = refineOnGpu(px, py, pz, pc, pt, n, shifts);
+        } else {
+            refined = new PointRefiner(image, radiusXY, radiusZ, resolvedMethod, iterations)
+                    .refineAll(px, py, pz, pc, pt, n, shifts);
+        }
+        final double elapsedMs = (System.nanoTime() - start) / 1e6;
+
+        if (rt.getColumnIndex(COL_X_RAW) == ResultsTable.COLUMN_NOT_FOUND) {
+            rt.setValues(COL_X_RAW, xs.clone());
+            rt.setValues(COL_Y_RAW, ys.clone());
+            rt.setValues(COL_Z_RAW, zs.clone());
+        }
+        final double[] shiftColumn = new double[rows];
+        Arrays.fill(shiftColumn, Double.NaN);
+        for (int i = 0; i < n; i++) {
+            final int row = sourceRows[i];
+            shiftColumn[row] = shifts[i];
+            if (!Double.isNaN(shifts[i])) {
+                xs[row] = px[i];
+                ys[row] = py[i];
+                zs[row] = pz[i] + zOffset;
+            }
+        }
+        rt.setValues(PointTableSchema.COL_X, xs);
+        rt.setValues(PointTableSchema.COL_Y, ys);
+        rt.setValues(PointTableSchema.COL_Z, zs);
+        rt.setValues(COL_SHIFT, shiftColumn);
+        final String title = rt.getTitle();
+        if (title != null && !title.isEmpty()) {
+            rt.show(title);
+        }
+        IJ.log(String.format(Locale.ROOT, "Refine points (%s%s): %d of %d rows refined in %.1f ms; shift in '%s'.",
+                resolvedMethod.label, gpu ? ", GPU" : "", refined, n, elapsedMs, COL_SHIFT));
+    }
+
+    /**
+     * Centroid refinement with refine_points.cl: per (c, t) group the z-stack of that channel and frame
+     * and the group's coordinates are pushed, and x, y, z plus a found flag come back in one transfer.
+     */
+    private int refineOnGpu(final double[] px, final double[] py, final double[] pz, final int[] pc,
+                            final int[] pt, final int n, final double[] shifts) {
+        // Counting sort of the points by (c, t): group -> {start, count, fill} into order.
+        final TreeMap<Long, int[]> groups = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            groups.computeIfAbsent(groupKey(pc[i], pt[i]), k -> new int[3])[1]++;
+        }
+        int offset = 0;
+        for (int[] group : groups.values()) {
+            group[0] = offset;
+            group[2] = offset;
+            offset += group[1];
+        }
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[groups.get(groupKey(pc[i], pt[i]))[2]++] = i;
+        }
+
+        final CLIJ2 clij2 = CLIJ2.getInstance();
+        final ImageStack stack = image.getStack();
+        final int depth = Math.max(1, image.getNSlices());
+        int refined = 0;
+        for (Map.Entry<Long, int[]> entry : groups.entrySet()) {
+            final int c = (int) (entry.getKey() >> 32);
+            final int t = entry.getKey().intValue();
+            final int first = entry.getValue()[0];
+            final int count = entry.getValue()[1];
+
+            final ImageStack zStack = new ImageStack(image.getWidth(), image.getHeight());
+            for (int z = 1; z <= depth; z++) {
+                zStack.addSlice(stack.getProcessor(image.getStackIndex(c, z, t)));
+            }
+            final float[] coordinates = new float[count * 3];
+            for (int k = 0; k < count; k++) {
+                coordinates[k] = (float) px[order[first + k]];
+                coordinates[count + k] = (float) py[order[first + k]];
+                coordinates[2 * count + k] = (float) pz[order[first + k]];
+            }
+
+            final ClearCLBuffer src = clij2.push(new ImagePlus("refine", zStack));
+            final ClearCLBuffer points = clij2.pushArray(coordinates, count, 3, 1);
+            final ClearCLBuffer dst = clij2.create(new long[]{count, 4}, NativeTypeEnum.Float);
+            final HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("src", src);
+            parameters.put("points", points);
+            parameters.put("dst", dst);
+            parameters.put("radius_xy", Math.max(1, radiusXY));
+            parameters.put("radius_z", depth > 1 ? Math.max(0, radiusZ) : 0);
+            parameters.put("iterations", Math.max(1, iterations));
+            clij2.execute(RefinePointsFromImageCommand.class, "refine_points.cl", "refine_points",
+                    dst.getDimensions(), new long[]{count, 1, 1}, parameters);
+            final float[] result = new float[count * 4];
+            dst.writeTo(FloatBuffer.wrap(result), true);
+            clij2.release(src);
+            clij2.release(points);
+            clij2.release(dst);
+
+            for (int k = 0; k < count; k++) {
+                final int i = order[first + k];
+                if (result[3 * count + k] == 0f) {
+                    shifts[i] = Double.NaN;
+                    continue;
+                }
+                final double dx = result[k] - px[i];
+                final double dy = result[count + k] - py[i];
+                final double dz = result[2 * count + k] - pz[i];
+                shifts[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                px[i] = result[k];
+                py[i] = result[count + k];
+                pz[i] = result[2 * count + k];
+                refined++;
+            }
+        }
+        return refined;
+    }
+
+    private static long groupKey(final int channel, final int timepoint) {
+        return ((long) channel << 32) | (timepoint & 0xffffffffL);
+    }
+
+    private static Set<String> parseAllowedRoles(final String csv) {
+        final Set<String> roles = new HashSet<>();
+        if (csv == null || csv.trim().isEmpty()) {
+            return roles;
+        }
+        for (String token : csv.split(",")) {
+            final String value = token == null ? "" : token.trim().toLowerCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                roles.add(value);
+            }
+        }
+        return roles;
+    }
+}
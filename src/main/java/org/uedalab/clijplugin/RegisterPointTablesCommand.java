@@ -0,0 +1,394 @@
+package org.uedalab.clijplugin;
+
+import ij.IJ;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
+import ij.text.TextWindow;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Frame;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Aligns a moving point table (or one timepoint of it) onto a fixed one with {@link PointRegistration}:
+ * closed-form Kabsch on rows sharing an id, or ICP when the points are not matched. The transform goes to
+ * one row of the output table; optionally the registered coordinates are written back to the moving table
+ * and the fitted lines/planes of the moving timepoint are mapped into copies of the fit tables.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry fit>register point tables...")
+public class RegisterPointTablesCommand implements Command {
+
+    private static final String METHOD_KABSCH = "matched ids (Kabsch)";
+    private static final String METHOD_ICP = "nearest points (ICP)";
+    private static final String TRANSFORM_RIGID = "rigid";
+    private static final String TRANSFORM_SIMILARITY = "similarity";
+
+    @Parameter(label = "Moving points table", required = false)
+    private ResultsTable movingTable;
+
+    @Parameter(label = "Moving timepoint (0 = all)", min = "0")
+    private int movingTimepoint = 0;
+
+    @Parameter(label = "Fixed points table", required = false)
+    private ResultsTable fixedTable;
+
+    @Parameter(label = "Fixed timepoint (0 = all)", min = "0")
+    private int fixedTimepoint = 0;
+
+    @Parameter(label = "Z is one-based in table")
+    private boolean zOneBasedInTable = true;
+
+    @Parameter(label = "Filter by role")
+    private boolean filterByRole = false;
+
+    @Parameter(label = "Allowed roles (CSV)")
+    private String allowedRolesCsv = "";
+
+    @Parameter(label = "Method", choices = {METHOD_KABSCH, METHOD_ICP})
+    private String method = METHOD_KABSCH;
+
+    @Parameter(label = "Transform", choices = {TRANSFORM_RIGID, TRANSFORM_SIMILARITY})
+    private String transform = TRANSFORM_RIGID;
+
+    @Parameter(label = "ICP maximum iterations", min = "1")
+    private int maxIterations = 50;
+
+    @Parameter(label = "ICP tolerance (px)", min = "0")
+    private double tolerance = 1e-6;
+
+    @Parameter(label = "ICP maximum pair distance (px, 0 = none)", min = "0")
+    private double maxDistance = 0.0;
+
+    @Parameter(label = "ICP fraction of pairs kept", min = "0.05", max = "1")
+    private double keepFraction = 1.0;
+
+    @Parameter(label = "Write x_reg/y_reg/z_reg to moving table")
+    private boolean writeRegisteredColumns = true;
+
+    @Parameter(label = "Apply to fit tables")
+    private boolean applyToFitTables = false;
+
+    @Parameter(label = "Line table title")
+    private String lineTableTitle = "fit_line";
+
+    @Parameter(label = "Plane table title")
+    private String planeTableTitle = "fit_plane";
+
+    @Parameter(label = "Output table title")
+    private String outputTableTitle = "registration";
+
+    @Override
+    public void run() {
+        final ResultsTable moving = movingTable != null ? movingTable : ResultsTable.getResultsTable();
+        final ResultsTable fixed = fixedTable != null ? fixedTable : moving;
+        if (moving == null || !PointTableSchema.looksLikePointTable(moving)
+                || !PointTableSchema.looksLikePointTable(fixed)) {
+            IJ.error("Register Points", "Point tables are missing required columns: id,x,y,z (role optional).");
+            return;
+        }
+        if ((movingTimepoint > 0 && !PointTableSchema.hasTimeColumn(moving))
+                || (fixedTimepoint > 0 && !PointTableSchema.hasTimeColumn(fixed))) {
+            IJ.error("Register Points", "Selecting a timepoint needs a 't' column in the point table.");
+            return;
+        }
+        if (moving == fixed && movingTimepoint == fixedTimepoint) {
+            IJ.error("Register Points", "Choose two tables, or two different timepoints of one table.");
+            return;
+        }
+
+        final Set<String> allowedRoles = filterByRole ? parseAllowedRoles(allowedRolesCsv) : Collections.emptySet();
+        final double zOffset = zOneBasedInTable ? 1.0 : 0.0;
+        final Points source = Points.of(moving, movingTimepoint, allowedRoles, zOffset);
+        final Points target = Points.of(fixed, fixedTimepoint, allowedRoles, zOffset);
+        final boolean withScale = TRANSFORM_SIMILARITY.equals(transform);
+        final boolean icp = METHOD_ICP.equals(method);
+
+        final long start = System.nanoTime();
+        final PointRegistration.Transform fit;
+        final double rms;
+        final int pairs;
+        final int iterations;
+        final boolean converged;
+        try {
+            if (icp) {
+                if (source.n < 3 || target.n < 3) {
+                    IJ.error("Register Points", "Need at least 3 valid points in each table; found "
+                            + source.n + " moving and " + target.n + " fixed.");
+                    return;
+                }
+                final PointRegistration.IcpResult result = PointRegistration.icp(source.x, source.y, source.z,
+                        source.n, target.x, target.y, target.z, target.n, withScale, maxIterations, tolerance,
+                        maxDistance, keepFraction);
+                fit = result.transform;
+                rms = result.rms;
+                pairs = result.pairs;
+                iterations = result.iterations;
+                converged = result.converged;
+            } else {
+                final int[] src = new int[source.n];
+                final int[] dst = new int[source.n];
+                pairs = matchIds(source, target, src, dst);
+                fit = PointRegistration.kabsch(source.x, source.y, source.z, src, target.x, target.y, target.z,
+                        dst, pairs, withScale);
+                rms = pairRms(fit, source, target, src, dst, pairs);
+                iterations = 1;
+                converged = true;
+            }
+        } catch (IllegalArgumentException e) {
+            IJ.error("Register Points", e.getMessage());
+            return;
+        }
+        final double elapsedMs = (System.nanoTime() - start) / 1e6;
+
+        final String resolvedTitle = outputTableTitle == null || outputTableTitle.trim().isEmpty()
+                ? "registration" : outputTableTitle;
+        final ResultsTable out = getOrCreateResultsTable(resolvedTitle);
+        out.incrementCounter();
+        out.addValue("moving_table", tableName(moving));
+        out.addValue("moving_t", movingTimepoint);
+        out.addValue("fixed_table", tableName(fixed));
+        out.addValue("fixed_t", fixedTimepoint);
+        out.addValue("method", icp ? "icp" : "kabsch");
+        out.addValue("transform", transform);
+        for (int k = 0; k < 9; k++) {
+            out.addValue("r" + (k / 3) + (k % 3), fit.r[k]);
+        }
+        out.addValue("scale", fit.scale);
+        // Translation in the table's z convention: t_table = t + (I - sR) * (0, 0, zOffset).
+        out.addValue("tx", fit.t[0] - fit.scale * fit.r[2] * zOffset);
+        out.addValue("ty", fit.t[1] - fit.scale * fit.r[5] * zOffset);
+        out.addValue("tz", fit.t[2] + zOffset - fit.scale * fit.r[8] * zOffset);
+        out.addValue("rotation_deg", fit.rotationAngleDegrees());
+        out.addValue("rms", rms);
+        out.addValue("n_pairs", pairs);
+        out.addValue("iterations", iterations);
+        out.addValue("converged", converged ? 1 : 0);
+        out.show(resolvedTitle);
+
+        if (writeRegisteredColumns) {
+            writeRegistered(moving, fit, zOffset);
+        }
+        int fitRows = 0;
+        if (applyToFitTables) {
+            fitRows += applyToFitTable(resolveTitle(lineTableTitle, "fit_line"), "line_", "d", fit);
+            fitRows += applyToFitTable(resolveTitle(planeTableTitle, "fit_plane"), "plane_", "n", fit);
+        }
+
+        IJ.log(String.format(Locale.ROOT, "Register points: %s %s, %d pairs, rms=%.4f px, rotation=%.3f deg, "
+                        + "scale=%.5f, %d iteration(s)%s in %.1f ms%s.", icp ? "ICP" : "Kabsch", transform, pairs,
+                rms, fit.rotationAngleDegrees(), fit.scale, iterations, converged ? "" : " (not converged)", elapsedMs,
+                applyToFitTables ? "; " + fitRows + " fit rows mapped" : ""));
+    }
+
+    /**
+     * Pairs each moving point with the fixed point of the same id (the first one when ids repeat) and
+     * returns the number of pairs.
+     */
+    private static int matchIds(final Points source, final Points target, final int[] src, final int[] dst) {
+        final Map<String, Integer> fixedById = new HashMap<>();
+        for (int i = 0; i < target.n; i++) {
+            fixedById.putIfAbsent(target.ids[i], i);
+        }
+        int pairs = 0;
+        for (int i = 0; i < source.n; i++) {
+            final Integer match = fixedById.get(source.ids[i]);
+            if (match != null && !source.ids[i].isEmpty()) {
+                src[pairs] = i;
+                dst[pairs] = match;
+                pairs++;
+            }
+        }
+        return pairs;
+    }
+
+    private static double pairRms(final PointRegistration.Transform fit, final Points source, final Points target,
+                                  final int[] src, final int[] dst, final int pairs) {
+        final double[] p = new double[3];
+        double sum = 0.0;
+        for (int k = 0; k < pairs; k++) {
+            fit.apply(source.x[src[k]], source.y[src[k]], source.z[src[k]], p);
+            final double dx = p[0] - target.x[dst[k]];
+            final double dy = p[1] - target.y[dst[k]];
+            final double dz = p[2] - target.z[dst[k]];
+            sum += dx * dx + dy * dy + dz * dz;
+        }
+        return Math.sqrt(sum / pairs);
+    }
+
+    /**
+     * Registered coordinates of every moving-timepoint row (whatever its role); other rows get NaN.
+     */
+    private void writeRegistered(final ResultsTable rt, final PointRegistration.Transform fit, final double zOffset) {
+        final int rows = rt.getCounter();
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final double[] ts = movingTimepoint > 0
+                ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_T)) : null;
+        final double[] rx = new double[rows];
+        final double[] ry = new double[rows];
+        final double[] rz = new double[rows];
+        Arrays.fill(rx, Double.NaN);
+        Arrays.fill(ry, Double.NaN);
+        Arrays.fill(rz, Double.NaN);
+        final double[] p = new double[3];
+        for (int row = 0; row < rows; row++) {
+            if (ts != null && PointColumns.toIndex(ts[row]) != movingTimepoint) {
+                continue;
+            }
+            fit.apply(xs[row], ys[row], zs[row] - zOffset, p);
+            rx[row] = p[0];
+            ry[row] = p[1];
+            rz[row] = p[2] + zOffset;
+        }
+        rt.setValues("x_reg", rx);
+        rt.setValues("y_reg", ry);
+        rt.setValues("z_reg", rz);
+        final String title = rt.getTitle();
+        if (title != null && !title.isEmpty()) {
+            rt.show(title);
+        }
+    }
+
+    /**
+     * Maps the centroid and direction/normal of the fit rows (of the moving timepoint, when the table has a
+     * t column) into a copy titled "&lt;title&gt;_registered". Returns the number of rows mapped.
+     */
+    private int applyToFitTable(final String title, final String prefix, final String vector,
+                                final PointRegistration.Transform fit) {
+        final ResultsTable source = findTableByTitle(title);
+        if (source == null || source.getColumnIndex(prefix + "cx") == ResultsTable.COLUMN_NOT_FOUND
+                || source.getColumnIndex(prefix + vector + "x") == ResultsTable.COLUMN_NOT_FOUND) {
+            return 0;
+        }
+        final ResultsTable out = (ResultsTable) source.clone();
+        final boolean byTime = movingTimepoint > 0 && PointTableSchema.hasTimeColumn(out);
+        final double[] p = new double[3];
+        int mapped = 0;
+        for (int row = 0; row < out.getCounter(); row++) {
+            if (byTime && PointColumns.toIndex(out.getValue(PointTableSchema.COL_T, row)) != movingTimepoint) {
+                continue;
+            }
+            // Fit centroids already use zero-based z, like the registration.
+            fit.apply(out.getValue(prefix + "cx", row), out.getValue(prefix + "cy", row),
+                    out.getValue(prefix + "cz", row), p);
+            out.setValue(prefix + "cx", row, p[0]);
+            out.setValue(prefix + "cy", row, p[1]);
+            out.setValue(prefix + "cz", row, p[2]);
+            final double[] v = fit.rotate(new double[]{out.getValue(prefix + vector + "x", row),
+                    out.getValue(prefix + vector + "y", row), out.getValue(prefix + vector + "z", row)});
+            out.setValue(prefix + vector + "x", row, v[0]);
+            out.setValue(prefix + vector + "y", row, v[1]);
+            out.setValue(prefix + vector + "z", row, v[2]);
+            mapped++;
+        }
+        out.show(title + "_registered");
+        return mapped;
+    }
+
+    /**
+     * Rows of one timepoint (or all) with finite coordinates and an allowed role, as compact columns with
+     * zero-based z.
+     */
+    private static final class Points {
+        private final double[] x;
+        private final double[] y;
+        private final double[] z;
+        private final String[] ids;
+        private final int n;
+
+        private Points(final double[] x, final double[] y, final double[] z, final String[] ids, final int n) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.ids = ids;
+            this.n = n;
+        }
+
+        private static Points of(final ResultsTable rt, final int timepoint, final Set<String> allowedRoles,
+                                 final double zOffset) {
+            final int rows = rt.getCounter();
+            final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+            final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+            final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+            final double[] ts = timepoint > 0 ? rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_T)) : null;
+            final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+            final boolean filter = !allowedRoles.isEmpty();
+            final double[] x = new double[rows];
+            final double[] y = new double[rows];
+            final double[] z = new double[rows];
+            final String[] ids = new String[rows];
+            int n = 0;
+            for (int row = 0; row < rows; row++) {
+                if (ts != null && PointColumns.toIndex(ts[row]) != timepoint) {
+                    continue;
+                }
+                if (filter) {
+                    final String role = hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : null;
+                    if (role == null || !allowedRoles.contains(role.trim().toLowerCase(Locale.ROOT))) {
+                        continue;
+                    }
+                }
+                if (!Double.isFinite(xs[row]) || !Double.isFinite(ys[row]) || !Double.isFinite(zs[row])) {
+                    continue;
+                }
+                x[n] = xs[row];
+                y[n] = ys[row];
+                z[n] = zs[row] - zOffset;
+                final String id = rt.getStringValue(PointTableSchema.COL_ID, row);
+                ids[n] = id == null ? "" : id.trim();
+                n++;
+            }
+            return new Points(x, y, z, ids, n);
+        }
+    }
+
+    private static String tableName(final ResultsTable rt) {
+        return rt.getTitle() == null || rt.getTitle().isEmpty() ? "table" : rt.getTitle();
+    }
+
+    private static String resolveTitle(final String title, final String fallback) {
+        return title == null || title.trim().isEmpty() ? fallback : title;
+    }
+
+    private static ResultsTable findTableByTitle(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            return ((TextWindow) frame).getTextPanel().getResultsTable();
+        }
+        return null;
+    }
+
+    private static Set<String> parseAllowedRoles(final String csv) {
+        final Set<String> roles = new HashSet<>();
+        if (csv == null || csv.trim().isEmpty()) {
+            return roles;
+        }
+        for (String token : csv.split(",")) {
+            final String value = token == null ? "" : token.trim().toLowerCase(Locale.ROOT);
+            if (!value.isEmpty()) {
+                roles.add(value);
+            }
+        }
+        return roles;
+    }
+
+    private static ResultsTable getOrCreateResultsTable(final String title) {
+        final Frame frame = WindowManager.getFrame(title);
+        if (frame instanceof TextWindow) {
+            final ResultsTable existing = ((TextWindow) frame).getTextPanel().getResultsTable();
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return new ResultsTable();
+    }
+}
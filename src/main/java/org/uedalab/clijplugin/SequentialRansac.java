@@ -0,0 +1,290 @@
+package org.uedalab.clijplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Finds several planes and/or lines in one point cloud by sequential RANSAC: the best-supported model
+ * is extracted, its inliers are removed, and the search repeats on the rest until no model reaches the
+ * minimum support. Hypotheses are scored in parallel on a random subsample of the remaining points
+ * (abandoning those clearly behind after a short preview), and only the winner is checked against all
+ * of them, so a round costs O(remaining) rather than O(hypotheses x remaining). The winner is refitted
+ * by PCA on its inliers (twice, keeping the refit only while support does not drop).
+ * <p>
+ * With both kinds enabled, each round searches the best plane and the best line; the line wins when it
+ * holds most of the plane's support, since every line also lies in some plane.
+ * <p>
+ * Random draws come from a SplittableRandom per (round, hypothesis), so results depend on the seed only,
+ * not on the thread count.
+ */
+final class SequentialRansac {
+
+    enum Kind {
+        PLANE,
+        LINE
+    }
+
+    static final class Model {
+        final Kind kind;
+        final double[] centroid;
+        /**
+         * Unit normal for planes, unit direction for lines.
+         */
+        final double[] vector;
+        final int[] inliers;
+        final double rms;
+        final double max;
+
+        private Model(final Kind kind, final double[] centroid, final double[] vector, final int[] inliers,
+                      final double rms, final double max) {
+            this.kind = kind;
+            this.centroid = centroid;
+            this.vector = vector;
+            this.inliers = inliers;
+            this.rms = rms;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Points each hypothesis is scored on.
+     */
+    private static final int SCORE_SAMPLE = 32768;
+    /**
+     * Hypotheses generated and scored per parallel batch, between adaptive stopping checks.
+     */
+    private static final int BATCH = 64;
+    /**
+     * Sample points seen before a hypothesis can be dropped as hopeless.
+     */
+    private static final int PREVIEW = 1024;
+    private static final int SAMPLE_RETRIES = 8;
+    /**
+     * Share of the best plane's inliers the best line needs to be preferred over it.
+     */
+    private static final double LINE_SHARE = 0.8;
+
+    private final double threshold;
+    private final int minInliers;
+    private final int maxModels;
+    private final int maxIterations;
+    private final double confidence;
+    private final long seed;
+    private final boolean planes;
+    private final boolean lines;
+
+    SequentialRansac(final double threshold, final int minInliers, final int maxModels, final int maxIterations,
+                     final double confidence, final long seed, final boolean planes, final boolean lines) {
+        if (!planes && !lines) {
+            throw new IllegalArgumentException("Enable planes, lines or both.");
+        }
+        this.threshold = threshold;
+        this.minInliers = Math.max(3, minInliers);
+        this.maxModels = maxModels;
+        this.maxIterations = Math.max(1, maxIterations);
+        this.confidence = Math.min(0.999999, Math.max(0.5, confidence));
+        this.seed = seed;
+        this.planes = planes;
+        this.lines = lines;
+    }
+
+    /**
+     * Extracts models from points [0, n) in order of discovery. labels[i] receives the one-based index of
+     * the model point i belongs to, or 0.
+     */
+    List<Model> extract(final double[] xs, final double[] ys, final double[] zs, final int n, final int[] labels) {
+        final List<Model> models = new ArrayList<>();
+        int[] remaining = IntStream.range(0, n).toArray();
+        while (models.size() < maxModels && remaining.length >= minInliers) {
+            final Model plane = planes ? findModel(xs, ys, zs, remaining, models.size(), Kind.PLANE) : null;
+            final Model line = lines ? findModel(xs, ys, zs, remaining, models.size(), Kind.LINE) : null;
+            final Model model = line != null
+                    && (plane == null || line.inliers.length >= LINE_SHARE * plane.inliers.length) ? line : plane;
+            if (model == null) {
+                break;
+            }
+            models.add(model);
+            final int label = models.size();
+            for (int i : model.inliers) {
+                labels[i] = label;
+            }
+            final int[] current = remaining;
+            remaining = IntStream.range(0, current.length).parallel()
+                    .filter(k -> labels[current[k]] == 0).map(k -> current[k]).toArray();
+        }
+        return models;
+    }
+
+    private Model findModel(final double[] xs, final double[] ys, final double[] zs, final int[] remaining,
+                            final int round, final Kind kind) {
+        final int m = remaining.length;
+        final SplittableRandom roundRandom = new SplittableRandom((seed * 31L + round) * 2L + kind.ordinal());
+        final int sampleSize = Math.min(m, SCORE_SAMPLE);
+        final int[] sample = new int[sampleSize];
+        for (int k = 0; k < sampleSize; k++) {
+            sample[k] = remaining[roundRandom.nextInt(m)];
+        }
+
+        double[] best = null;
+        int bestScore = -1;
+        int done = 0;
+        int needed = maxIterations;
+        while (done < Math.min(needed, maxIterations)) {
+            final long[] seeds = new long[BATCH];
+            for (int h = 0; h < BATCH; h++) {
+                seeds[h] = roundRandom.nextLong();
+            }
+            // A hypothesis is dropped after the preview if it scores under half the best so far, pro rata.
+            final double cutoff = 0.5 * bestScore * Math.min(PREVIEW, sampleSize) / sampleSize;
+            final double[][] hypotheses = new double[BATCH][];
+            final int[] scores = new int[BATCH];
+            IntStream.range(0, BATCH).parallel().forEach(h -> {
+                final SplittableRandom random = new SplittableRandom(seeds[h]);
+                final double[] hypothesis = hypothesis(xs, ys, zs, remaining, kind, random);
+                if (hypothesis != null) {
+                    hypotheses[h] = hypothesis;
+                    scores[h] = score(xs, ys, zs, sample, kind, hypothesis, cutoff);
+                }
+            });
+            for (int h = 0; h < BATCH; h++) {
+                if (hypotheses[h] != null && scores[h] > bestScore) {
+                    bestScore = scores[h];
+                    best = hypotheses[h];
+                }
+            }
+            done += BATCH;
+            needed = requiredIterations((double) bestScore / sampleSize, kind == Kind.PLANE ? 3 : 2);
+        }
+        if (best == null) {
+            return null;
+        }
+
+        int[] inliers = inliers(xs, ys, zs, remaining, kind, best);
+        if (inliers.length < minInliers) {
+            return null;
+        }
+        Model model = refit(xs, ys, zs, inliers, kind);
+        for (int pass = 0; pass < 2; pass++) {
+            final int[] refined = inliers(xs, ys, zs, remaining, kind, modelParameters(model));
+            if (refined.length < inliers.length) {
+                break;
+            }
+            inliers = refined;
+            model = refit(xs, ys, zs, inliers, kind);
+        }
+        return model;
+    }
+
+    /**
+     * Hypotheses needed to draw one all-inlier sample with the configured confidence, given the inlier
+     * ratio seen so far.
+     */
+    private int requiredIterations(final double inlierRatio, final int sampleSize) {
+        final double allInliers = Math.pow(inlierRatio, sampleSize);
+        if (allInliers <= 0.0) {
+            return maxIterations;
+        }
+        if (allInliers >= 1.0) {
+            return 1;
+        }
+        final double iterations = Math.log(1.0 - confidence) / Math.log(1.0 - allInliers);
+        return (int) Math.min(maxIterations, Math.ceil(iterations));
+    }
+
+    /**
+     * {cx, cy, cz, vx, vy, vz} from a minimal sample, or null if the sample was degenerate every time.
+     */
+    private static double[] hypothesis(final double[] xs, final double[] ys, final double[] zs, final int[] remaining,
+                                       final Kind kind, final SplittableRandom random) {
+        final int m = remaining.length;
+        for (int attempt = 0; attempt < SAMPLE_RETRIES; attempt++) {
+            final int a = remaining[random.nextInt(m)];
+            final int b = remaining[random.nextInt(m)];
+            final double abx = xs[b] - xs[a];
+            final double aby = ys[b] - ys[a];
+            final double abz = zs[b] - zs[a];
+            final double abLength = Math.sqrt(abx * abx + aby * aby + abz * abz);
+            if (!(abLength > 1e-9)) {
+                continue;
+            }
+            if (kind == Kind.LINE) {
+                return new double[]{xs[a], ys[a], zs[a], abx / abLength, aby / abLength, abz / abLength};
+            }
+            final int c = remaining[random.nextInt(m)];
+            final double acx = xs[c] - xs[a];
+            final double acy = ys[c] - ys[a];
+            final double acz = zs[c] - zs[a];
+            final double nx = aby * acz - abz * acy;
+            final double ny = abz * acx - abx * acz;
+            final double nz = abx * acy - aby * acx;
+            final double nLength = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            // Reject near-collinear triples: their normal is mostly rounding noise.
+            if (!(nLength > 1e-6 * abLength * Math.sqrt(acx * acx + acy * acy + acz * acz))) {
+                continue;
+            }
+            return new double[]{xs[a], ys[a], zs[a], nx / nLength, ny / nLength, nz / nLength};
+        }
+        return null;
+    }
+
+    /**
+     * Inliers of the model in the sample, or -1 if the first PREVIEW sample points hold fewer than cutoff.
+     */
+    private int score(final double[] xs, final double[] ys, final double[] zs, final int[] sample, final Kind kind,
+                      final double[] model, final double cutoff) {
+        final double limit = threshold * threshold;
+        int count = 0;
+        for (int k = 0; k < sample.length; k++) {
+            if (k == PREVIEW && count < cutoff) {
+                return -1;
+            }
+            final int i = sample[k];
+            if (squaredDistance(xs[i], ys[i], zs[i], kind, model) <= limit) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int[] inliers(final double[] xs, final double[] ys, final double[] zs, final int[] remaining,
+                          final Kind kind, final double[] model) {
+        final double limit = threshold * threshold;
+        return IntStream.of(remaining).parallel()
+                .filter(i -> squaredDistance(xs[i], ys[i], zs[i], kind, model) <= limit).toArray();
+    }
+
+    private static double squaredDistance(final double x, final double y, final double z, final Kind kind,
+                                          final double[] model) {
+        final double dx = x - model[0];
+        final double dy = y - model[1];
+        final double dz = z - model[2];
+        final double dot = dx * model[3] + dy * model[4] + dz * model[5];
+        return kind == Kind.PLANE ? dot * dot : Math.max(0.0, dx * dx + dy * dy + dz * dz - dot * dot);
+    }
+
+    private static double[] modelParameters(final Model model) {
+        return new double[]{model.centroid[0], model.centroid[1], model.centroid[2],
+                model.vector[0], model.vector[1], model.vector[2]};
+    }
+
+    private static Model refit(final double[] xs, final double[] ys, final double[] zs, final int[] inliers,
+                               final Kind kind) {
+        final int n = inliers.length;
+        final double[] px = new double[n];
+        final double[] py = new double[n];
+        final double[] pz = new double[n];
+        for (int k = 0; k < n; k++) {
+            px[k] = xs[inliers[k]];
+            py[k] = ys[inliers[k]];
+            pz[k] = zs[inliers[k]];
+        }
+        if (kind == Kind.PLANE) {
+            final Pca3DUtils.PlaneFitResult fit = Pca3DUtils.fitPlane(px, py, pz, n);
+            return new Model(kind, fit.centroid, fit.normal, inliers, fit.rmsDist, fit.maxDist);
+        }
+        final Pca3DUtils.LineFitResult fit = Pca3DUtils.fitLine(px, py, pz, n);
+        return new Model(kind, fit.centroid, fit.direction, inliers, fit.rmsDist, Double.NaN);
+    }
+}
@@ -0,0 +1,672 @@
+package org.uedalab.clijplugin;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary persistence for the control frame: a columnar snapshot of all points and models, plus an
+ * append-only journal of the edits made since that snapshot. Saving rewrites the snapshot and starts
+ * an empty journal; every later edit costs one journal record. Loading maps the snapshot and replays
+ * the journal on top of it.
+ * <p>
+ * Snapshot layout (big-endian): magic, version, stamp, the point counters and one model id counter per
+ * model type (in ModelType order), point/unassigned/model counts, a precision byte, then the point
+ * columns (keys, ids, x, y, z, t, c), the unassigned keys and one block per model (id, type, parameter
+ * count, centroid, vector, rms, max, shape parameters, keys). The
+ * precision byte says whether x and y are stored as float32; the writer picks float32 whenever every
+ * coordinate survives the round trip exactly (pixel-precision data), halving the coordinate columns at
+ * no loss. The journal starts with its own magic, version and the stamp of the snapshot it extends, so
+ * a journal left over from another snapshot is never replayed. A file of another version, or a journal
+ * record this reader does not know, fails the load rather than being cut short and overwritten.
+ */
+final class SessionStore {
+
+    static final String SESSION_EXTENSION = ".gpsession";
+
+    private static final int SNAPSHOT_MAGIC = 0x47505353; // "GPSS"
+    private static final int JOURNAL_MAGIC = 0x47504a4c; // "GPJL"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int JOURNAL_VERSION = 1;
+    private static final int JOURNAL_HEADER_BYTES = 16;
+    private static final byte PRECISION_DOUBLE = 0;
+    private static final byte PRECISION_FLOAT = 1;
+
+    private static final byte OP_ADD_POINTS = 1;
+    private static final byte OP_DELETE_POINTS = 2;
+    private static final byte OP_MOVE_POINT = 3;
+    private static final byte OP_CREATE_MODEL = 4;
+    private static final byte OP_ASSIGN_UNASSIGNED = 5;
+    private static final byte OP_UNASSIGN_POINTS = 6;
+    private static final byte OP_DELETE_MODEL = 7;
+    private static final byte OP_ASSIGN_POINTS = 8;
+
+    /**
+     * Number of fixed fit parameters per model: centroid (3), vector (3), rms and max distance. Surface
+     * models append their shape parameters (radius or quadric coefficients) after these.
+     */
+    static final int FIT_PARAMS = 8;
+
+    /**
+     * Upper bound on the parameters of one model, as a sanity check on corrupt counts.
+     */
+    private static final int MAX_FIT_PARAMS = 64;
+
+    private SessionStore() {
+    }
+
+    static File journalFile(final File sessionFile) {
+        return new File(sessionFile.getPath() + ".journal");
+    }
+
+    /**
+     * Complete frame state in primitive columns; z, t and c are the one-based slice, frame and channel.
+     */
+    static final class Snapshot {
+        long stamp;
+        long nextPointKey;
+        int nextPointId;
+        /**
+         * Next id number of each model type, indexed by ordinal.
+         */
+        int[] nextModelIds;
+
+        int pointCount;
+        long[] keys;
+        int[] ids;
+        double[] x;
+        double[] y;
+        int[] z;
+        int[] t;
+        int[] c;
+
+        long[] unassignedKeys;
+
+        String[] modelIds;
+        GeometryPointsControlFrame.ModelType[] modelTypes;
+        double[][] modelFits;
+        long[][] modelKeys;
+    }
+
+    /**
+     * Writes the snapshot to a sibling temp file and moves it into place, so a failed save never
+     * damages the previous session.
+     */
+    static void writeSnapshot(final File file, final Snapshot s) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(s.stamp);
+            out.writeLong(s.nextPointKey);
+            out.writeInt(s.nextPointId);
+            for (int next : s.nextModelIds) {
+                out.writeInt(next);
+            }
+            out.writeInt(s.pointCount);
+            out.writeInt(s.unassignedKeys.length);
+            out.writeInt(s.modelIds.length);
+            final boolean compact = fitsFloat(s.x, s.pointCount) && fitsFloat(s.y, s.pointCount);
+            out.writeByte(compact ? PRECISION_FLOAT : PRECISION_DOUBLE);
+            for (int i = 0; i < s.pointCount; i++) {
+                out.writeLong(s.keys[i]);
+            }
+            for (int i = 0; i < s.pointCount; i++) {
+                out.writeInt(s.ids[i]);
+            }
+            writeCoordinates(out, s.x, s.pointCount, compact);
+            writeCoordinates(out, s.y, s.pointCount, compact);
+            for (int i = 0; i < s.pointCount; i++) {
+                out.writeInt(s.z[i]);
+            }
+            for (int i = 0; i < s.pointCount; i++) {
+                out.writeInt(s.t[i]);
+            }
+            for (int i = 0; i < s.pointCount; i++) {
+                out.writeInt(s.c[i]);
+            }
+            for (long key : s.unassignedKeys) {
+                out.writeLong(key);
+            }
+            for (int m = 0; m < s.modelIds.length; m++) {
+                writeString(out, s.modelIds[m]);
+                out.writeByte(s.modelTypes[m].ordinal());
+                out.writeInt(s.modelFits[m].length);
+                for (double value : s.modelFits[m]) {
+                    out.writeDouble(value);
+                }
+                out.writeInt(s.modelKeys[m].length);
+                for (long key : s.modelKeys[m]) {
+                    out.writeLong(key);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a snapshot through a read-only memory map; the columns are copied out with bulk gets.
+     */
+    static Snapshot readSnapshot(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Session too large to map: " + file);
+            }
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                if (buf.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a geometry points session: " + file);
+                }
+                final int version = buf.getInt();
+                if (version != SNAPSHOT_VERSION) {
+                    throw new IOException("Unsupported session version " + version + ": " + file);
+                }
+                final Snapshot s = new Snapshot();
+                s.stamp = buf.getLong();
+                s.nextPointKey = buf.getLong();
+                s.nextPointId = buf.getInt();
+                s.nextModelIds = new int[GeometryPointsControlFrame.ModelType.values().length];
+                for (int k = 0; k < s.nextModelIds.length; k++) {
+                    s.nextModelIds[k] = buf.getInt();
+                }
+                s.pointCount = checkCount(buf.getInt(), file);
+                final int unassignedCount = checkCount(buf.getInt(), file);
+                final int modelCount = checkCount(buf.getInt(), file);
+                final boolean compact = buf.get() == PRECISION_FLOAT;
+
+                final int n = s.pointCount;
+                s.keys = new long[n];
+                s.ids = new int[n];
+                s.x = new double[n];
+                s.y = new double[n];
+                s.z = new int[n];
+                s.t = new int[n];
+                s.c = new int[n];
+                buf.asLongBuffer().get(s.keys);
+                skip(buf, n, 8);
+                buf.asIntBuffer().get(s.ids);
+                skip(buf, n, 4);
+                readCoordinates(buf, s.x, compact);
+                readCoordinates(buf, s.y, compact);
+                buf.asIntBuffer().get(s.z);
+                skip(buf, n, 4);
+                buf.asIntBuffer().get(s.t);
+                skip(buf, n, 4);
+                buf.asIntBuffer().get(s.c);
+                skip(buf, n, 4);
+                s.unassignedKeys = new long[unassignedCount];
+                buf.asLongBuffer().get(s.unassignedKeys);
+                skip(buf, unassignedCount, 8);
+
+                final GeometryPointsControlFrame.ModelType[] types = GeometryPointsControlFrame.ModelType.values();
+                s.modelIds = new String[modelCount];
+                s.modelTypes = new GeometryPointsControlFrame.ModelType[modelCount];
+                s.modelFits = new double[modelCount][];
+                s.modelKeys = new long[modelCount][];
+                for (int m = 0; m < modelCount; m++) {
+                    s.modelIds[m] = readString(buf);
+                    s.modelTypes[m] = types[buf.get()];
+                    s.modelFits[m] = new double[checkFitCount(buf.getInt(), file)];
+                    buf.asDoubleBuffer().get(s.modelFits[m]);
+                    skip(buf, s.modelFits[m].length, 8);
+                    s.modelKeys[m] = new long[checkCount(buf.getInt(), file)];
+                    buf.asLongBuffer().get(s.modelKeys[m]);
+                    skip(buf, s.modelKeys[m].length, 8);
+                }
+                return s;
+            } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                    | ArithmeticException e) {
+                throw new IOException("Truncated or corrupt session: " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the journal records (positioned after the header) if the journal exists and extends the
+     * snapshot with the given stamp, otherwise null. A journal of another version is an error.
+     */
+    static ByteBuffer readJournal(final File file, final long stamp) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        // Read onto the heap rather than mapping: the file is reopened for append (and possibly
+        // truncated) right after replay, which a live mapping would block on some platforms.
+        final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buf.remaining() < JOURNAL_HEADER_BYTES || buf.getInt() != JOURNAL_MAGIC) {
+            return null;
+        }
+        final int version = buf.getInt();
+        if (version != JOURNAL_VERSION) {
+            throw new IOException("Unsupported journal version " + version + ": " + file);
+        }
+        return buf.getLong() == stamp ? buf : null;
+    }
+
+    /**
+     * Receives replayed journal records in the order they were written.
+     */
+    interface JournalListener {
+        void pointsAdded(long firstKey, int firstId, int count, double[] x, double[] y, int[] z, int[] t, int[] c);
+
+        void pointsDeleted(long[] keys);
+
+        void pointMoved(long key, double x, double y);
+
+        void modelCreated(String id, GeometryPointsControlFrame.ModelType type, double[] fit, long[] keys);
+
+        void unassignedAssigned(String modelId);
+
+        void pointsUnassigned(String modelId, long[] keys);
+
+        void pointsAssigned(String modelId, long[] keys);
+
+        void modelDeleted(String modelId);
+    }
+
+    /**
+     * Replays every complete record and returns the journal length up to the last one. A record cut
+     * short by a crash ends the replay; appending from the returned length drops it. An unknown opcode
+     * is not a torn tail, so it throws instead of letting the caller truncate the records after it.
+     */
+    static long replay(final ByteBuffer buf, final JournalListener listener) throws IOException {
+        final GeometryPointsControlFrame.ModelType[] types = GeometryPointsControlFrame.ModelType.values();
+        int valid = buf.position();
+        try {
+            while (buf.hasRemaining()) {
+                final byte op = buf.get();
+                switch (op) {
+                    case OP_ADD_POINTS: {
+                        final long firstKey = buf.getLong();
+                        final int firstId = buf.getInt();
+                        final int count = buf.getInt();
+                        if (count < 0 || count > buf.remaining() / 28) {
+                            return valid;
+                        }
+                        final double[] x = new double[count];
+                        final double[] y = new double[count];
+                        final int[] z = new int[count];
+                        final int[] t = new int[count];
+                        final int[] c = new int[count];
+                        for (int i = 0; i < count; i++) {
+                            x[i] = buf.getDouble();
+                            y[i] = buf.getDouble();
+                            z[i] = buf.getInt();
+                            t[i] = buf.getInt();
+                            c[i] = buf.getInt();
+                        }
+                        listener.pointsAdded(firstKey, firstId, count, x, y, z, t, c);
+                        break;
+                    }
+                    case OP_DELETE_POINTS: {
+                        final long[] keys = readKeys(buf);
+                        if (keys == null) {
+                            return valid;
+                        }
+                        listener.pointsDeleted(keys);
+                        break;
+                    }
+                    case OP_MOVE_POINT: {
+                        final long key = buf.getLong();
+                        final double x = buf.getDouble();
+                        final double y = buf.getDouble();
+                        listener.pointMoved(key, x, y);
+                        break;
+                    }
+                    case OP_CREATE_MODEL: {
+                        final String id = readString(buf);
+                        final int type = buf.get();
+                        if (type < 0 || type >= types.length) {
+                            return valid;
+                        }
+                        final int count = buf.getInt();
+                        if (count < FIT_PARAMS || count > MAX_FIT_PARAMS) {
+                            return valid;
+                        }
+                        final double[] fit = new double[count];
+                        for (int k = 0; k < count; k++) {
+                            fit[k] = buf.getDouble();
+                        }
+                        final long[] keys = readKeys(buf);
+                        if (keys == null) {
+                            return valid;
+                        }
+                        listener.modelCreated(id, types[type], fit, keys);
+                        break;
+                    }
+                    case OP_ASSIGN_UNASSIGNED:
+                        listener.unassignedAssigned(readString(buf));
+                        break;
+                    case OP_UNASSIGN_POINTS:
+                    case OP_ASSIGN_POINTS: {
+                        final String id = readString(buf);
+                        final long[] keys = readKeys(buf);
+                        if (keys == null) {
+                            return valid;
+                        }
+                        if (op == OP_ASSIGN_POINTS) {
+                            listener.pointsAssigned(id, keys);
+                        } else {
+                            listener.pointsUnassigned(id, keys);
+                        }
+                        break;
+                    }
+                    case OP_DELETE_MODEL:
+                        listener.modelDeleted(readString(buf));
+                        break;
+                    default:
+                        throw new IOException("Unknown journal record " + op + " at offset " + valid);
+                }
+                valid = buf.position();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // Torn tail: keep everything before the incomplete record.
+        }
+        return valid;
+    }
+
+    /**
+     * Append-only edit log. A journal starts buffering in memory and is bound to its file once the
+     * snapshot it extends is on disk, so edits made while a save is in flight are not lost. Every
+     * record is flushed when written. Methods are synchronized because binding happens on the job
+     * thread while edits arrive on the EDT.
+     */
+    static final class Journal {
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private DataOutputStream out = new DataOutputStream(pending);
+        private OutputStream file;
+        private boolean discarded;
+
+        private Journal() {
+        }
+
+        static Journal buffered() {
+            return new Journal();
+        }
+
+        /**
+         * Creates (or replaces) the journal file for the snapshot with the given stamp.
+         */
+        static Journal create(final File file, final long stamp) throws IOException {
+            final Journal journal = new Journal();
+            journal.bind(file, stamp);
+            return journal;
+        }
+
+        /**
+         * Reopens an existing journal for append, dropping anything past {@code validLength}.
+         */
+        static Journal append(final File file, final long validLength) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+            final Journal journal = new Journal();
+            journal.pending = null;
+            journal.file = new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16);
+            journal.out = new DataOutputStream(journal.file);
+            return journal;
+        }
+
+        synchronized void bind(final File target, final long stamp) throws IOException {
+            if (discarded) {
+                return;
+            }
+            final OutputStream stream = new BufferedOutputStream(new FileOutputStream(target), 1 << 16);
+            final DataOutputStream data = new DataOutputStream(stream);
+            try {
+                data.writeInt(JOURNAL_MAGIC);
+                data.writeInt(JOURNAL_VERSION);
+                data.writeLong(stamp);
+                pending.writeTo(data);
+                data.flush();
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+            pending = null;
+            file = stream;
+            out = data;
+        }
+
+        /**
+         * Drops the journal unless {@link #bind} already completed; returns true if it was dropped.
+         */
+        synchronized boolean discardUnlessBound() {
+            if (!discarded && pending == null && file != null) {
+                return false;
+            }
+            discard();
+            return true;
+        }
+
+        /**
+         * Drops the journal; later records are ignored.
+         */
+        synchronized void discard() {
+            discarded = true;
+            pending = null;
+            closeQuietly();
+        }
+
+        synchronized void close() throws IOException {
+            discarded = true;
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+
+        synchronized void pointsAdded(final long firstKey, final int firstId, final int count,
+                                      final double[] x, final double[] y, final int[] z, final int[] t,
+                                      final int[] c) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_ADD_POINTS);
+            out.writeLong(firstKey);
+            out.writeInt(firstId);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeDouble(x[i]);
+                out.writeDouble(y[i]);
+                out.writeInt(z[i]);
+                out.writeInt(t[i]);
+                out.writeInt(c[i]);
+            }
+            out.flush();
+        }
+
+        synchronized void pointsDeleted(final long[] keys, final int count) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_DELETE_POINTS);
+            writeKeys(out, keys, count);
+            out.flush();
+        }
+
+        synchronized void pointMoved(final long key, final double x, final double y) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_MOVE_POINT);
+            out.writeLong(key);
+            out.writeDouble(x);
+            out.writeDouble(y);
+            out.flush();
+        }
+
+        synchronized void modelCreated(final String id, final GeometryPointsControlFrame.ModelType type,
+                                       final double[] fit, final long[] keys, final int count) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_CREATE_MODEL);
+            writeString(out, id);
+            out.writeByte(type.ordinal());
+            out.writeInt(fit.length);
+            for (double value : fit) {
+                out.writeDouble(value);
+            }
+            writeKeys(out, keys, count);
+            out.flush();
+        }
+
+        synchronized void unassignedAssigned(final String modelId) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_ASSIGN_UNASSIGNED);
+            writeString(out, modelId);
+            out.flush();
+        }
+
+        synchronized void pointsUnassigned(final String modelId, final long[] keys, final int count) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_UNASSIGN_POINTS);
+            writeString(out, modelId);
+            writeKeys(out, keys, count);
+            out.flush();
+        }
+
+        synchronized void pointsAssigned(final String modelId, final long[] keys, final int count) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_ASSIGN_POINTS);
+            writeString(out, modelId);
+            writeKeys(out, keys, count);
+            out.flush();
+        }
+
+        synchronized void modelDeleted(final String modelId) throws IOException {
+            if (discarded) {
+                return;
+            }
+            out.writeByte(OP_DELETE_MODEL);
+            writeString(out, modelId);
+            out.flush();
+        }
+
+        private void closeQuietly() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                    // Nothing left to flush into a journal that is being dropped.
+                }
+                file = null;
+            }
+        }
+    }
+
+    private static int checkCount(final int count, final File file) throws IOException {
+        if (count < 0) {
+            throw new IOException("Corrupt session: " + file);
+        }
+        return count;
+    }
+
+    /**
+     * True if every value is unchanged by a round trip through float.
+     */
+    private static boolean fitsFloat(final double[] values, final int n) {
+        for (int i = 0; i < n; i++) {
+            if ((double) (float) values[i] != values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeCoordinates(final DataOutputStream out, final double[] values, final int n,
+                                         final boolean compact) throws IOException {
+        if (compact) {
+            for (int i = 0; i < n; i++) {
+                out.writeFloat((float) values[i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                out.writeDouble(values[i]);
+            }
+        }
+    }
+
+    private static void readCoordinates(final ByteBuffer buf, final double[] values, final boolean compact) {
+        final int n = values.length;
+        if (compact) {
+            final float[] floats = new float[n];
+            buf.asFloatBuffer().get(floats);
+            skip(buf, n, 4);
+            for (int i = 0; i < n; i++) {
+                values[i] = floats[i];
+            }
+        } else {
+            buf.asDoubleBuffer().get(values);
+            skip(buf, n, 8);
+        }
+    }
+
+    /**
+     * Moves past {@code count} elements of {@code width} bytes. The offset is computed in long, so a
+     * huge count fails instead of wrapping to a negative position.
+     */
+    private static void skip(final ByteBuffer buf, final int count, final int width) {
+        buf.position(Math.toIntExact(buf.position() + (long) count * width));
+    }
+
+    private static int checkFitCount(final int count, final File file) throws IOException {
+        if (count < FIT_PARAMS || count > MAX_FIT_PARAMS) {
+            throw new IOException("Corrupt session: " + file);
+        }
+        return count;
+    }
+
+    private static void writeKeys(final DataOutputStream out, final long[] keys, final int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(keys[i]);
+        }
+    }
+
+    /**
+     * Reads a count-prefixed key array, or returns null if the count cannot be right.
+     */
+    private static long[] readKeys(final ByteBuffer buf) {
+        final int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / 8) {
+            return null;
+        }
+        final long[] keys = new long[count];
+        buf.asLongBuffer().get(keys);
+        skip(buf, count, 8);
+        return keys;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer buf) {
+        final int length = buf.getShort() & 0xffff;
+        final byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -3,7 +3,6 @@ package org.uedalab.clijplugin;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Overlay;
-import ij.gui.OvalRoi;
 import ij.gui.Roi;
 import ij.measure.ResultsTable;
 import org.scijava.command.Command;
@@ -13,8 +12,15 @@ import org.scijava.plugin.Plugin;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
+/**
+ * Draws the rows of a point table as an overlay. The markers of each slice go into one
+ * {@link PointOverlayRoi}, so an overlay of millions of points holds one element per slice rather than
+ * one OvalRoi per row.
+ */
 @Plugin(type = Command.class, menuPath = "Plugins>Geometry Points>geometry points>show point table overlay...")
 public class ShowPointTableOverlayCommand implements Command {
 
@@ -72,20 +78,26 @@ public class ShowPointTableOverlayCommand implements Command {
         final Overlay overlay = clearExistingOverlay || image.getOverlay() == null ? new Overlay() : image.getOverlay();
         final int totalRows = rt.getCounter();
         final int nSlices = Math.max(1, image.getNSlices());
+        final boolean hasId = rt.getColumnIndex(PointTableSchema.COL_ID) != ResultsTable.COLUMN_NOT_FOUND;
+        final boolean hasRole = rt.getColumnIndex(PointTableSchema.COL_ROLE) != ResultsTable.COLUMN_NOT_FOUND;
+        final double[] xs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_X));
+        final double[] ys = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Y));
+        final double[] zs = rt.getColumnAsDoubles(rt.getColumnIndex(PointTableSchema.COL_Z));
+        final Map<Integer, PointOverlayRoi.Builder> batches = new TreeMap<>();
+        final int initialCapacity = Math.max(16, totalRows / nSlices);
         int drawnCount = 0;
         int skippedCount = 0;
 
         for (int row = 0; row < totalRows; row++) {
-            final String id = safeString(rt, PointTableSchema.COL_ID, row);
-            final String role = safeString(rt, PointTableSchema.COL_ROLE, row);
-            if (filterByRole && !allowedRoles.contains(role.toLowerCase(Locale.ROOT))) {
+            final String role = hasRole ? rt.getStringValue(PointTableSchema.COL_ROLE, row) : "";
+            if (filterByRole && !allowedRoles.contains(role == null ? "" : role.trim().toLowerCase(Locale.ROOT))) {
                 skippedCount++;
                 continue;
             }
 
-            final double x = rt.getValue(PointTableSchema.COL_X, row);
-            final double y = rt.getValue(PointTableSchema.COL_Y, row);
-            final double z = rt.getValue(PointTableSchema.COL_Z, row);
+            final double x = xs[row];
+            final double y = ys[row];
+            final double z = zs[row];
             if (!Double.isFinite(x) || !Double.isFinite(y) || !Double.isFinite(z)) {
                 if (!skipInvalidRows) {
                     IJ.error("Show Point Table Overlay", "Invalid numeric value at row " + row + ".");
@@ -108,23 +120,31 @@ public class ShowPointTableOverlayCommand implements Command {
                 continue;
             }
 
-            final double diameter = pointRadiusPx * 2.0;
-            final OvalRoi roi = new OvalRoi(x - pointRadiusPx, y - pointRadiusPx, diameter, diameter);
-            assignSlicePosition(roi, zSlice);
-
+            String label = null;
             if (showIdLabels) {
-                String label = id == null ? "" : id.trim();
+                final String id = hasId ? rt.getStringValue(PointTableSchema.COL_ID, row) : "";
+                label = id == null ? "" : id.trim();
                 final String roleText = role == null ? "" : role.trim();
                 if (showRoleInLabel && !roleText.isEmpty()) {
                     label = label + " (" + roleText + ")";
                 }
-                roi.setName(label);
-                roi.setStrokeWidth(1.0f);
             }
-            overlay.add(roi);
+            PointOverlayRoi.Builder batch = batches.get(zSlice);
+            if (batch == null) {
+                batch = new PointOverlayRoi.Builder(initialCapacity, showIdLabels);
+                batches.put(zSlice, batch);
+            }
+            batch.add(x, y, label);
             drawnCount++;
         }
 
+        for (Map.Entry<Integer, PointOverlayRoi.Builder> entry : batches.entrySet()) {
+            final PointOverlayRoi roi = entry.getValue().build(pointRadiusPx);
+            roi.setName("points z=" + entry.getKey());
+            assignSlicePosition(roi, entry.getKey());
+            overlay.add(roi);
+        }
+
         image.setOverlay(overlay);
         image.updateAndDraw();
         IJ.log("Point overlay: totalRows=" + totalRows + ", drawn=" + drawnCount + ", skipped=" + skippedCount
@@ -146,14 +166,6 @@ public class ShowPointTableOverlayCommand implements Command {
         return roles;
     }
 
-    private static String safeString(final ResultsTable rt, final String column, final int row) {
-        final int col = rt.getColumnIndex(column);
-        if (col == ResultsTable.COLUMN_NOT_FOUND) {
-            return "";
-        }
-        return rt.getStringValue(column, row);
-    }
-
     private static void assignSlicePosition(final Roi roi, final int zSlice) {
         try {
             Roi.class.getMethod("setPosition", int.class, int.class, int.class).invoke(roi, 0, zSlice, 0);
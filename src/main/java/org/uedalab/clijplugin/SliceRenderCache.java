@@ -0,0 +1,233 @@
+package org.uedalab.clijplugin;
+
+/**
+ * Points bucketed by z slice (and optionally by channel) in primitive arrays, tagged with the state
+ * version they were built from. Painting a slice only walks that slice's arrays and allocates nothing;
+ * switching channel or slice needs no rebuild.
+ */
+final class SliceRenderCache {
+
+    static final class Slice {
+        final double[] x;
+        final double[] y;
+        final long[] keys;
+        final boolean[] highlighted;
+
+        // Uniform grid over the slice's bounding box, built on the first pick: point indices sorted by
+        // cell, with cellStart[c]..cellStart[c + 1] the range of cell c.
+        private int[] cellStart;
+        private int[] cellPoints;
+        private double gridMinX;
+        private double gridMinY;
+        private double cellSize;
+        private int cols;
+        private int rows;
+
+        private Slice(final int size) {
+            x = new double[size];
+            y = new double[size];
+            keys = new long[size];
+            highlighted = new boolean[size];
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        /**
+         * Index of the point nearest to (px, py) within the radius, or -1. Expected O(1) per call once
+         * the grid exists.
+         */
+        int nearest(final double px, final double py, final double radius) {
+            if (keys.length == 0) {
+                return -1;
+            }
+            if (cellStart == null) {
+                buildGrid();
+            }
+            final int c0 = clamp((int) Math.floor((px - radius - gridMinX) / cellSize), cols);
+            final int c1 = clamp((int) Math.floor((px + radius - gridMinX) / cellSize), cols);
+            final int r0 = clamp((int) Math.floor((py - radius - gridMinY) / cellSize), rows);
+            final int r1 = clamp((int) Math.floor((py + radius - gridMinY) / cellSize), rows);
+            int best = -1;
+            double bestD2 = radius * radius;
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    final int cell = r * cols + c;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        final int i = cellPoints[k];
+                        final double dx = x[i] - px;
+                        final double dy = y[i] - py;
+                        final double d2 = dx * dx + dy * dy;
+                        if (d2 <= bestD2) {
+                            bestD2 = d2;
+                            best = i;
+                        }
+                    }
+                }
+            }
+            return best;
+        }
+
+        private void buildGrid() {
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < keys.length; i++) {
+                minX = Math.min(minX, x[i]);
+                minY = Math.min(minY, y[i]);
+                maxX = Math.max(maxX, x[i]);
+                maxY = Math.max(maxY, y[i]);
+            }
+            // Aim for about two points per cell.
+            final double area = Math.max(1.0, (maxX - minX) * (maxY - minY));
+            cellSize = Math.max(1.0, Math.sqrt(2.0 * area / keys.length));
+            gridMinX = minX;
+            gridMinY = minY;
+            cols = (int) Math.min(4096, Math.floor((maxX - minX) / cellSize) + 1);
+            rows = (int) Math.min(4096, Math.floor((maxY - minY) / cellSize) + 1);
+
+            final int[] cellOf = new int[keys.length];
+            final int[] start = new int[cols * rows + 1];
+            for (int i = 0; i < keys.length; i++) {
+                final int c = clamp((int) ((x[i] - minX) / cellSize), cols);
+                final int r = clamp((int) ((y[i] - minY) / cellSize), rows);
+                cellOf[i] = r * cols + c;
+                start[cellOf[i] + 1]++;
+            }
+            for (int cell = 0; cell < cols * rows; cell++) {
+                start[cell + 1] += start[cell];
+            }
+            final int[] fillAt = new int[cols * rows];
+            final int[] sorted = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                final int cell = cellOf[i];
+                sorted[start[cell] + fillAt[cell]++] = i;
+            }
+            cellPoints = sorted;
+            cellStart = start;
+        }
+
+        private static int clamp(final int value, final int count) {
+            return value < 0 ? 0 : (value >= count ? count - 1 : value);
+        }
+    }
+
+    private static final Slice EMPTY_SLICE = new Slice(0);
+
+    final long version;
+    private final boolean byChannel;
+    private final Slice[][] slices;
+
+    private SliceRenderCache(final long version, final boolean byChannel, final Slice[][] slices) {
+        this.version = version;
+        this.byChannel = byChannel;
+        this.slices = slices;
+    }
+
+    /**
+     * Returns the points on a one-based channel and z slice; never null. Without channel buckets the
+     * channel is ignored.
+     */
+    Slice slice(final int c, final int z) {
+        final int bucket = byChannel ? c : 0;
+        if (bucket < 0 || bucket >= slices.length || slices[bucket] == null) {
+            return EMPTY_SLICE;
+        }
+        final Slice[] channel = slices[bucket];
+        if (z < 1 || z >= channel.length || channel[z] == null) {
+            return EMPTY_SLICE;
+        }
+        return channel[z];
+    }
+
+    /**
+     * Two-pass builder: count every point with {@link #count(int, int)}, then {@link #add} them in any
+     * order.
+     */
+    static final class Builder {
+        private final long version;
+        private final boolean byChannel;
+        private int[][] counts = new int[1][];
+        private int[][] fill;
+        private Slice[][] slices;
+
+        Builder(final long version, final boolean byChannel) {
+            this.version = version;
+            this.byChannel = byChannel;
+        }
+
+        void count(final int c, final int z) {
+            final int bucket = byChannel ? c : 0;
+            if (z < 1 || bucket < 0) {
+                return;
+            }
+            if (bucket >= counts.length) {
+                final int[][] grown = new int[Math.max(bucket + 1, counts.length * 2)][];
+                System.arraycopy(counts, 0, grown, 0, counts.length);
+                counts = grown;
+            }
+            int[] channel = counts[bucket];
+            if (channel == null) {
+                channel = new int[Math.max(16, z + 1)];
+                counts[bucket] = channel;
+            } else if (z >= channel.length) {
+                final int[] grown = new int[Math.max(z + 1, channel.length * 2)];
+                System.arraycopy(channel, 0, grown, 0, channel.length);
+                channel = grown;
+                counts[bucket] = channel;
+            }
+            channel[z]++;
+        }
+
+        void add(final int c, final int z, final long key, final double x, final double y, final boolean highlighted) {
+            if (slices == null) {
+                allocate();
+            }
+            final int bucket = byChannel ? c : 0;
+            if (bucket < 0 || bucket >= slices.length || slices[bucket] == null) {
+                return;
+            }
+            final Slice[] channel = slices[bucket];
+            if (z < 1 || z >= channel.length || channel[z] == null) {
+                return;
+            }
+            final Slice slice = channel[z];
+            final int i = fill[bucket][z]++;
+            if (i >= slice.size()) {
+                fill[bucket][z]--;
+                return;
+            }
+            slice.x[i] = x;
+            slice.y[i] = y;
+            slice.keys[i] = key;
+            slice.highlighted[i] = highlighted;
+        }
+
+        SliceRenderCache build() {
+            if (slices == null) {
+                allocate();
+            }
+            return new SliceRenderCache(version, byChannel, slices);
+        }
+
+        private void allocate() {
+            slices = new Slice[counts.length][];
+            fill = new int[counts.length][];
+            for (int b = 0; b < counts.length; b++) {
+                final int[] channel = counts[b];
+                if (channel == null) {
+                    continue;
+                }
+                slices[b] = new Slice[channel.length];
+                fill[b] = new int[channel.length];
+                for (int z = 1; z < channel.length; z++) {
+                    if (channel[z] > 0) {
+                        slices[b][z] = new Slice(channel[z]);
+                    }
+                }
+            }
+        }
+    }
+}
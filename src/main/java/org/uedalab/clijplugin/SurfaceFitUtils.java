@@ -0,0 +1,585 @@
+package org.uedalab.clijplugin;
+
+/**
+ * Sphere, cylinder and general quadric fits over interleaved x,y,z coordinates. Every stage streams the
+ * points through a small {@link NormalEquations} accumulator, so memory beyond the input is O(1) and a
+ * 10^6-point fit costs a handful of linear passes: centroid and scale, the algebraic solution, one per
+ * refinement iteration and one for the residual statistics. Inside each pass the coordinates are centred
+ * and scaled to unit rms radius to keep the normal equations well conditioned.
+ */
+public final class SurfaceFitUtils {
+
+    public static final int DEFAULT_REFINE_ITERATIONS = 20;
+
+    /**
+     * Quadric coefficient order: x^2, y^2, z^2, xy, xz, yz, x, y, z, 1.
+     */
+    public static final int QUADRIC_COEFFICIENTS = 10;
+
+    private static final double CONVERGED = 1e-10;
+    private static final double EPS = 1e-15;
+
+    private SurfaceFitUtils() {
+    }
+
+    /**
+     * Algebraic sphere fit (|p|^2 linear in centre and offset) refined by Gauss-Newton on the geometric
+     * distance | |p - c| - r |.
+     */
+    public static SphereFitResult fitSphere(final double[] coords, final int n, final int refineIterations) {
+        requirePoints(coords, n, 4);
+        final PointMoments moments = moments(coords, n);
+        final double[] c = moments.centroid();
+        final double s = scale(moments);
+        final double inv = 1.0 / s;
+
+        final NormalEquations ne = new NormalEquations(4);
+        final double[] row = new double[4];
+        row[3] = 1.0;
+        for (int i = 0; i < n; i++) {
+            final double ux = (coords[i * 3] - c[0]) * inv;
+            final double uy = (coords[i * 3 + 1] - c[1]) * inv;
+            final double uz = (coords[i * 3 + 2] - c[2]) * inv;
+            row[0] = 2.0 * ux;
+            row[1] = 2.0 * uy;
+            row[2] = 2.0 * uz;
+            ne.add(row, ux * ux + uy * uy + uz * uz, 1.0);
+        }
+        final double[] algebraic = ne.solve();
+        if (algebraic == null) {
+            throw new IllegalArgumentException("Points are degenerate for a sphere fit.");
+        }
+        double ax = algebraic[0];
+        double ay = algebraic[1];
+        double az = algebraic[2];
+        double r = Math.sqrt(Math.max(0.0, algebraic[3] + ax * ax + ay * ay + az * az));
+
+        int iterations = 0;
+        while (iterations < refineIterations) {
+            ne.clear();
+            row[3] = -1.0;
+            for (int i = 0; i < n; i++) {
+                final double wx = (coords[i * 3] - c[0]) * inv - ax;
+                final double wy = (coords[i * 3 + 1] - c[1]) * inv - ay;
+                final double wz = (coords[i * 3 + 2] - c[2]) * inv - az;
+                final double d = Math.sqrt(wx * wx + wy * wy + wz * wz);
+                if (d < EPS) {
+                    continue;
+                }
+                row[0] = -wx / d;
+                row[1] = -wy / d;
+                row[2] = -wz / d;
+                ne.add(row, r - d, 1.0);
+            }
+            final double[] delta = ne.solve();
+            if (delta == null) {
+                break;
+            }
+            ax += delta[0];
+            ay += delta[1];
+            az += delta[2];
+            r += delta[3];
+            iterations++;
+            if (norm(delta) < CONVERGED) {
+                break;
+            }
+        }
+        r = Math.abs(r);
+
+        double sumSq = 0.0;
+        double max = 0.0;
+        for (int i = 0; i < n; i++) {
+            final double wx = (coords[i * 3] - c[0]) * inv - ax;
+            final double wy = (coords[i * 3 + 1] - c[1]) * inv - ay;
+            final double wz = (coords[i * 3 + 2] - c[2]) * inv - az;
+            final double dist = Math.abs(Math.sqrt(wx * wx + wy * wy + wz * wz) - r);
+            sumSq += dist * dist;
+            max = Math.max(max, dist);
+        }
+        return new SphereFitResult(new double[]{c[0] + s * ax, c[1] + s * ay, c[2] + s * az}, s * r,
+                s * Math.sqrt(sumSq / n), s * max, iterations);
+    }
+
+    /**
+     * Cylinder fit: an algebraic circle fit across each principal axis of the point cloud (all three in
+     * one pass), the best candidate by geometric residual, then Gauss-Newton on axis point, axis
+     * direction and radius.
+     */
+    public static CylinderFitResult fitCylinder(final double[] coords, final int n, final int refineIterations) {
+        requirePoints(coords, n, 5);
+        final PointMoments moments = moments(coords, n);
+        final double[] c = moments.centroid();
+        final double s = scale(moments);
+        final double inv = 1.0 / s;
+        final double[][] axes = eigenvectors(moments.covariance());
+
+        final double[][][] bases = new double[3][][];
+        final NormalEquations[] circles = new NormalEquations[3];
+        for (int k = 0; k < 3; k++) {
+            bases[k] = basis(axes[k]);
+            circles[k] = new NormalEquations(3);
+        }
+        final double[] row = new double[3];
+        row[2] = 1.0;
+        for (int i = 0; i < n; i++) {
+            final double ux = (coords[i * 3] - c[0]) * inv;
+            final double uy = (coords[i * 3 + 1] - c[1]) * inv;
+            final double uz = (coords[i * 3 + 2] - c[2]) * inv;
+            for (int k = 0; k < 3; k++) {
+                final double[] e1 = bases[k][0];
+                final double[] e2 = bases[k][1];
+                final double a = ux * e1[0] + uy * e1[1] + uz * e1[2];
+                final double b = ux * e2[0] + uy * e2[1] + uz * e2[2];
+                row[0] = 2.0 * a;
+                row[1] = 2.0 * b;
+                circles[k].add(row, a * a + b * b, 1.0);
+            }
+        }
+        final double[][] points = new double[3][];
+        final double[] radii = new double[3];
+        final double[] sumSq = new double[3];
+        for (int k = 0; k < 3; k++) {
+            final double[] sol = circles[k].solve();
+            if (sol == null) {
+                sumSq[k] = Double.POSITIVE_INFINITY;
+                continue;
+            }
+            final double[] e1 = bases[k][0];
+            final double[] e2 = bases[k][1];
+            points[k] = new double[]{
+                    sol[0] * e1[0] + sol[1] * e2[0],
+                    sol[0] * e1[1] + sol[1] * e2[1],
+                    sol[0] * e1[2] + sol[1] * e2[2]
+            };
+            radii[k] = Math.sqrt(Math.max(0.0, sol[2] + sol[0] * sol[0] + sol[1] * sol[1]));
+        }
+        for (int i = 0; i < n; i++) {
+            final double ux = (coords[i * 3] - c[0]) * inv;
+            final double uy = (coords[i * 3 + 1] - c[1]) * inv;
+            final double uz = (coords[i * 3 + 2] - c[2]) * inv;
+            for (int k = 0; k < 3; k++) {
+                if (points[k] != null) {
+                    final double dist = axisDistance(ux, uy, uz, points[k], axes[k]) - radii[k];
+                    sumSq[k] += dist * dist;
+                }
+            }
+        }
+        int best = 0;
+        for (int k = 1; k < 3; k++) {
+            if (sumSq[k] < sumSq[best]) {
+                best = k;
+            }
+        }
+        if (points[best] == null) {
+            throw new IllegalArgumentException("Points are degenerate for a cylinder fit.");
+        }
+        final double[] p = points[best];
+        final double[] d = axes[best].clone();
+        double r = radii[best];
+
+        final NormalEquations ne = new NormalEquations(5);
+        final double[] jac = new double[5];
+        jac[4] = -1.0;
+        int iterations = 0;
+        while (iterations < refineIterations) {
+            final double[][] e = basis(d);
+            final double[] e1 = e[0];
+            final double[] e2 = e[1];
+            ne.clear();
+            for (int i = 0; i < n; i++) {
+                final double wx = (coords[i * 3] - c[0]) * inv - p[0];
+                final double wy = (coords[i * 3 + 1] - c[1]) * inv - p[1];
+                final double wz = (coords[i * 3 + 2] - c[2]) * inv - p[2];
+                final double t = wx * d[0] + wy * d[1] + wz * d[2];
+                final double px = wx - t * d[0];
+                final double py = wy - t * d[1];
+                final double pz = wz - t * d[2];
+                final double rho = Math.sqrt(px * px + py * py + pz * pz);
+                if (rho < EPS) {
+                    continue;
+                }
+                // Moving the axis point along e_k or tilting the axis towards e_k changes rho by
+                // -(nhat.e_k) and -(w.d)(nhat.e_k) respectively.
+                final double n1 = (px * e1[0] + py * e1[1] + pz * e1[2]) / rho;
+                final double n2 = (px * e2[0] + py * e2[1] + pz * e2[2]) / rho;
+                jac[0] = -n1;
+                jac[1] = -n2;
+                jac[2] = -t * n1;
+                jac[3] = -t * n2;
+                ne.add(jac, r - rho, 1.0);
+            }
+            final double[] delta = ne.solve();
+            if (delta == null) {
+                break;
+            }
+            for (int k = 0; k < 3; k++) {
+                p[k] += delta[0] * e1[k] + delta[1] * e2[k];
+                d[k] += delta[2] * e1[k] + delta[3] * e2[k];
+            }
+            final double dn = Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+            d[0] /= dn;
+            d[1] /= dn;
+            d[2] /= dn;
+            // Keep the axis point at the foot of the perpendicular from the centroid.
+            final double along = p[0] * d[0] + p[1] * d[1] + p[2] * d[2];
+            p[0] -= along * d[0];
+            p[1] -= along * d[1];
+            p[2] -= along * d[2];
+            r += delta[4];
+            iterations++;
+            if (norm(delta) < CONVERGED) {
+                break;
+            }
+        }
+        r = Math.abs(r);
+
+        double residualSq = 0.0;
+        double max = 0.0;
+        for (int i = 0; i < n; i++) {
+            final double dist = Math.abs(axisDistance((coords[i * 3] - c[0]) * inv, (coords[i * 3 + 1] - c[1]) * inv,
+                    (coords[i * 3 + 2] - c[2]) * inv, p, d) - r);
+            residualSq += dist * dist;
+            max = Math.max(max, dist);
+        }
+        return new CylinderFitResult(new double[]{c[0] + s * p[0], c[1] + s * p[1], c[2] + s * p[2]}, d, s * r,
+                s * Math.sqrt(residualSq / n), s * max, iterations);
+    }
+
+    /**
+     * General quadric fit: the unit coefficient vector minimizing the algebraic error (smallest
+     * eigenvector of the 10x10 scatter of monomials), refined by reweighting each point with its inverse
+     * squared gradient so the error approaches the Sampson distance |Q| / |grad Q|. Coefficients are
+     * returned for the original coordinates; distances are Sampson distances.
+     */
+    public static QuadricFitResult fitQuadric(final double[] coords, final int n, final int refineIterations) {
+        requirePoints(coords, n, 9);
+        final PointMoments moments = moments(coords, n);
+        final double[] c = moments.centroid();
+        final double s = scale(moments);
+        final double inv = 1.0 / s;
+
+        final NormalEquations ne = new NormalEquations(QUADRIC_COEFFICIENTS);
+        final double[] row = new double[QUADRIC_COEFFICIENTS];
+        for (int i = 0; i < n; i++) {
+            monomials((coords[i * 3] - c[0]) * inv, (coords[i * 3 + 1] - c[1]) * inv,
+                    (coords[i * 3 + 2] - c[2]) * inv, row);
+            ne.add(row, 0.0, 1.0);
+        }
+        double[] q = smallestEigenvector(ne.matrix());
+
+        int iterations = 0;
+        while (iterations < refineIterations) {
+            ne.clear();
+            for (int i = 0; i < n; i++) {
+                final double ux = (coords[i * 3] - c[0]) * inv;
+                final double uy = (coords[i * 3 + 1] - c[1]) * inv;
+                final double uz = (coords[i * 3 + 2] - c[2]) * inv;
+                monomials(ux, uy, uz, row);
+                ne.add(row, 0.0, 1.0 / Math.max(gradientSquared(q, ux, uy, uz), 1e-12));
+            }
+            final double[] next = smallestEigenvector(ne.matrix());
+            double dot = 0.0;
+            for (int k = 0; k < QUADRIC_COEFFICIENTS; k++) {
+                dot += next[k] * q[k];
+            }
+            double change = 0.0;
+            for (int k = 0; k < QUADRIC_COEFFICIENTS; k++) {
+                next[k] = dot < 0.0 ? -next[k] : next[k];
+                change += (next[k] - q[k]) * (next[k] - q[k]);
+            }
+            q = next;
+            iterations++;
+            if (Math.sqrt(change) < CONVERGED) {
+                break;
+            }
+        }
+
+        double sumSq = 0.0;
+        double max = 0.0;
+        for (int i = 0; i < n; i++) {
+            final double ux = (coords[i * 3] - c[0]) * inv;
+            final double uy = (coords[i * 3 + 1] - c[1]) * inv;
+            final double uz = (coords[i * 3 + 2] - c[2]) * inv;
+            final double dist = s * sampson(q, ux, uy, uz);
+            sumSq += dist * dist;
+            max = Math.max(max, dist);
+        }
+        return new QuadricFitResult(denormalize(q, c, s), c, Math.sqrt(sumSq / n), max, iterations);
+    }
+
+    /**
+     * Value of the quadric with coefficients q (x^2, y^2, z^2, xy, xz, yz, x, y, z, 1) at a point.
+     */
+    public static double evaluateQuadric(final double[] q, final double x, final double y, final double z) {
+        return q[0] * x * x + q[1] * y * y + q[2] * z * z + q[3] * x * y + q[4] * x * z + q[5] * y * z
+                + q[6] * x + q[7] * y + q[8] * z + q[9];
+    }
+
+    /**
+     * First-order (Sampson) distance of a point from the quadric surface.
+     */
+    public static double sampson(final double[] q, final double x, final double y, final double z) {
+        return Math.abs(evaluateQuadric(q, x, y, z)) / Math.sqrt(Math.max(gradientSquared(q, x, y, z), 1e-24));
+    }
+
+    private static double gradientSquared(final double[] q, final double x, final double y, final double z) {
+        final double gx = 2.0 * q[0] * x + q[3] * y + q[4] * z + q[6];
+        final double gy = 2.0 * q[1] * y + q[3] * x + q[5] * z + q[7];
+        final double gz = 2.0 * q[2] * z + q[4] * x + q[5] * y + q[8];
+        return gx * gx + gy * gy + gz * gz;
+    }
+
+    private static void monomials(final double x, final double y, final double z, final double[] row) {
+        row[0] = x * x;
+        row[1] = y * y;
+        row[2] = z * z;
+        row[3] = x * y;
+        row[4] = x * z;
+        row[5] = y * z;
+        row[6] = x;
+        row[7] = y;
+        row[8] = z;
+        row[9] = 1.0;
+    }
+
+    /**
+     * Rewrites Q(u), u = (p - c) / s, as a quadric in p and rescales it to unit coefficient norm.
+     */
+    private static double[] denormalize(final double[] q, final double[] c, final double s) {
+        final double s2 = s * s;
+        // Symmetric matrix A and linear term b of Q(u) = u^T A u + b.u + j.
+        final double[][] a = {
+                {q[0], q[3] * 0.5, q[4] * 0.5},
+                {q[3] * 0.5, q[1], q[5] * 0.5},
+                {q[4] * 0.5, q[5] * 0.5, q[2]}
+        };
+        final double[] b = {q[6], q[7], q[8]};
+        final double[] ac = new double[3];
+        for (int i = 0; i < 3; i++) {
+            ac[i] = a[i][0] * c[0] + a[i][1] * c[1] + a[i][2] * c[2];
+        }
+        final double[] out = new double[QUADRIC_COEFFICIENTS];
+        out[0] = a[0][0] / s2;
+        out[1] = a[1][1] / s2;
+        out[2] = a[2][2] / s2;
+        out[3] = 2.0 * a[0][1] / s2;
+        out[4] = 2.0 * a[0][2] / s2;
+        out[5] = 2.0 * a[1][2] / s2;
+        for (int i = 0; i < 3; i++) {
+            out[6 + i] = -2.0 * ac[i] / s2 + b[i] / s;
+        }
+        out[9] = (c[0] * ac[0] + c[1] * ac[1] + c[2] * ac[2]) / s2
+                - (b[0] * c[0] + b[1] * c[1] + b[2] * c[2]) / s + q[9];
+        final double norm = norm(out);
+        for (int k = 0; k < QUADRIC_COEFFICIENTS; k++) {
+            out[k] /= norm;
+        }
+        return out;
+    }
+
+    private static double axisDistance(final double ux, final double uy, final double uz,
+                                       final double[] p, final double[] d) {
+        final double wx = ux - p[0];
+        final double wy = uy - p[1];
+        final double wz = uz - p[2];
+        final double t = wx * d[0] + wy * d[1] + wz * d[2];
+        return Math.sqrt(Math.max(0.0, wx * wx + wy * wy + wz * wz - t * t));
+    }
+
+    /**
+     * Two unit vectors completing d (assumed unit) to an orthonormal frame.
+     */
+    private static double[][] basis(final double[] d) {
+        final double[] helper = Math.abs(d[0]) < 0.9 ? new double[]{1.0, 0.0, 0.0} : new double[]{0.0, 1.0, 0.0};
+        final double dot = helper[0] * d[0] + helper[1] * d[1] + helper[2] * d[2];
+        final double[] e1 = Pca3DUtils.normalize(new double[]{
+                helper[0] - dot * d[0], helper[1] - dot * d[1], helper[2] - dot * d[2]
+        }, new double[]{0.0, 0.0, 1.0});
+        final double[] e2 = {
+                d[1] * e1[2] - d[2] * e1[1],
+                d[2] * e1[0] - d[0] * e1[2],
+                d[0] * e1[1] - d[1] * e1[0]
+        };
+        return new double[][]{e1, e2};
+    }
+
+    private static PointMoments moments(final double[] coords, final int n) {
+        final PointMoments moments = new PointMoments();
+        for (int i = 0; i < n; i++) {
+            moments.add(coords[i * 3], coords[i * 3 + 1], coords[i * 3 + 2]);
+        }
+        return moments;
+    }
+
+    /**
+     * Rms distance of the points from their centroid, or 1 for a single repeated point.
+     */
+    private static double scale(final PointMoments moments) {
+        final double[][] cov = moments.covariance();
+        final double s = Math.sqrt(cov[0][0] + cov[1][1] + cov[2][2]);
+        return s > EPS && Double.isFinite(s) ? s : 1.0;
+    }
+
+    private static void requirePoints(final double[] coords, final int n, final int minimum) {
+        if (coords == null || n < minimum || coords.length < n * 3) {
+            throw new IllegalArgumentException("Need at least " + minimum + " points.");
+        }
+    }
+
+    private static double norm(final double[] v) {
+        double sum = 0.0;
+        for (double x : v) {
+            sum += x * x;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Unit eigenvectors of a symmetric 3x3 matrix (rows of the result), in no particular order.
+     */
+    private static double[][] eigenvectors(final double[][] matrix) {
+        final double[][] v = jacobiEigenSymmetric(matrix, new double[3]);
+        final double[][] out = new double[3][3];
+        for (int k = 0; k < 3; k++) {
+            out[k] = Pca3DUtils.normalize(new double[]{v[0][k], v[1][k], v[2][k]}, new double[]{1.0, 0.0, 0.0});
+        }
+        return out;
+    }
+
+    private static double[] smallestEigenvector(final double[][] matrix) {
+        final int size = matrix.length;
+        final double[] values = new double[size];
+        final double[][] v = jacobiEigenSymmetric(matrix, values);
+        int idx = 0;
+        for (int k = 1; k < size; k++) {
+            if (values[k] < values[idx]) {
+                idx = k;
+            }
+        }
+        final double[] out = new double[size];
+        for (int i = 0; i < size; i++) {
+            out[i] = v[i][idx];
+        }
+        return out;
+    }
+
+    /**
+     * Cyclic Jacobi rotations for an n x n symmetric matrix. Fills values with the eigenvalues and
+     * returns the eigenvectors as columns.
+     */
+    private static double[][] jacobiEigenSymmetric(final double[][] matrix, final double[] values) {
+        final int size = matrix.length;
+        final double[][] a = new double[size][];
+        final double[][] v = new double[size][size];
+        double scale = 0.0;
+        for (int i = 0; i < size; i++) {
+            a[i] = matrix[i].clone();
+            v[i][i] = 1.0;
+            for (int j = 0; j < size; j++) {
+                scale += a[i][j] * a[i][j];
+            }
+        }
+        final double threshold = 1e-30 * Math.max(scale, 1e-300);
+
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0.0;
+            for (int p = 0; p < size; p++) {
+                for (int q = p + 1; q < size; q++) {
+                    off += a[p][q] * a[p][q];
+                }
+            }
+            if (off <= threshold) {
+                break;
+            }
+            for (int p = 0; p < size; p++) {
+                for (int q = p + 1; q < size; q++) {
+                    final double apq = a[p][q];
+                    if (apq == 0.0) {
+                        continue;
+                    }
+                    final double phi = 0.5 * Math.atan2(2.0 * apq, a[q][q] - a[p][p]);
+                    final double c = Math.cos(phi);
+                    final double s = Math.sin(phi);
+                    for (int k = 0; k < size; k++) {
+                        final double akp = a[k][p];
+                        final double akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < size; k++) {
+                        final double apk = a[p][k];
+                        final double aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < size; k++) {
+                        final double vkp = v[k][p];
+                        final double vkq = v[k][q];
+                        v[k][p] = c * vkp - s * vkq;
+                        v[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            values[i] = a[i][i];
+        }
+        return v;
+    }
+
+    public static final class SphereFitResult {
+        public final double[] center;
+        public final double radius;
+        public final double rmsDist;
+        public final double maxDist;
+        public final int iterations;
+
+        private SphereFitResult(final double[] center, final double radius, final double rmsDist,
+                                final double maxDist, final int iterations) {
+            this.center = center;
+            this.radius = radius;
+            this.rmsDist = rmsDist;
+            this.maxDist = maxDist;
+            this.iterations = iterations;
+        }
+    }
+
+    public static final class CylinderFitResult {
+        /**
+         * Point of the axis closest to the centroid of the fitted points.
+         */
+        public final double[] axisPoint;
+        public final double[] direction;
+        public final double radius;
+        public final double rmsDist;
+        public final double maxDist;
+        public final int iterations;
+
+        private CylinderFitResult(final double[] axisPoint, final double[] direction, final double radius,
+                                  final double rmsDist, final double maxDist, final int iterations) {
+            this.axisPoint = axisPoint;
+            this.direction = direction;
+            this.radius = radius;
+            this.rmsDist = rmsDist;
+            this.maxDist = maxDist;
+            this.iterations = iterations;
+        }
+    }
+
+    public static final class QuadricFitResult {
+        public final double[] coefficients;
+        public final double[] centroid;
+        public final double rmsDist;
+        public final double maxDist;
+        public final int iterations;
+
+        private QuadricFitResult(final double[] coefficients, final double[] centroid, final double rmsDist,
+                                 final double maxDist, final int iterations) {
+            this.coefficients = coefficients;
+            this.centroid = centroid;
+            this.rmsDist = rmsDist;
+            this.maxDist = maxDist;
+            this.iterations = iterations;
+        }
+    }
+}
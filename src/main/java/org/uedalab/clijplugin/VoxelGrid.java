@@ -0,0 +1,172 @@
+package org.uedalab.clijplugin;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Streaming voxel-grid reduction of a point set: each point is binned into a cell of sizeX x sizeY x
+ * sizeZ, and a cell keeps only its total weight plus either the weighted centroid or the point nearest
+ * the cell centre. Memory grows with the number of occupied cells, not points. Cells are found through
+ * an open-addressing table keyed by the packed cell indices, and are reported in first-seen order.
+ * <p>
+ * Coordinates are accumulated relative to the cell corner, so the sums stay small and keep their
+ * precision however far the cell is from the origin.
+ */
+final class VoxelGrid {
+
+    /**
+     * Bits per packed cell index; indices must lie in [-2^20, 2^20).
+     */
+    private static final int INDEX_BITS = 21;
+    private static final long INDEX_LIMIT = 1L << (INDEX_BITS - 1);
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private final double sizeX;
+    private final double sizeY;
+    private final double sizeZ;
+    private final boolean nearestToCentre;
+
+    private long[] tableKeys;
+    private int[] tableCells;
+    private int mask;
+
+    private long[] cellKeys;
+    private double[] weight;
+    // Per cell, relative to its corner: weighted coordinate sums, or the kept point when nearestToCentre.
+    private double[] relX;
+    private double[] relY;
+    private double[] relZ;
+    private double[] nearestD2;
+    private int size;
+
+    VoxelGrid(final double sizeX, final double sizeY, final double sizeZ, final boolean nearestToCentre) {
+        if (!(sizeX > 0.0) || !(sizeY > 0.0) || !(sizeZ > 0.0)) {
+            throw new IllegalArgumentException("Voxel sizes must be positive.");
+        }
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.nearestToCentre = nearestToCentre;
+        allocateTable(1024);
+        cellKeys = new long[256];
+        weight = new double[256];
+        relX = new double[256];
+        relY = new double[256];
+        relZ = new double[256];
+        nearestD2 = new double[256];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a point with the given weight (a count for already reduced points, 1 otherwise).
+     *
+     * @throws IllegalArgumentException if the point's cell index does not fit the packed key
+     */
+    void add(final double x, final double y, final double z, final double w) {
+        final long ix = (long) Math.floor(x / sizeX);
+        final long iy = (long) Math.floor(y / sizeY);
+        final long iz = (long) Math.floor(z / sizeZ);
+        if (ix < -INDEX_LIMIT || ix >= INDEX_LIMIT || iy < -INDEX_LIMIT || iy >= INDEX_LIMIT
+                || iz < -INDEX_LIMIT || iz >= INDEX_LIMIT) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT,
+                    "Point (%g, %g, %g) is more than 2^20 voxels from the origin; use larger voxels.", x, y, z));
+        }
+        final long key = ((ix & INDEX_MASK) << (2 * INDEX_BITS)) | ((iy & INDEX_MASK) << INDEX_BITS) | (iz & INDEX_MASK);
+        final int cell = cellFor(key);
+        final double fx = x - ix * sizeX;
+        final double fy = y - iy * sizeY;
+        final double fz = z - iz * sizeZ;
+        weight[cell] += w;
+        if (nearestToCentre) {
+            final double ex = fx - 0.5 * sizeX;
+            final double ey = fy - 0.5 * sizeY;
+            final double ez = fz - 0.5 * sizeZ;
+            final double d2 = ex * ex + ey * ey + ez * ez;
+            if (d2 < nearestD2[cell]) {
+                relX[cell] = fx;
+                relY[cell] = fy;
+                relZ[cell] = fz;
+                nearestD2[cell] = d2;
+            }
+        } else {
+            relX[cell] += w * fx;
+            relY[cell] += w * fy;
+            relZ[cell] += w * fz;
+        }
+    }
+
+    /**
+     * Writes the representative of every cell, in first-seen order, from index offset on.
+     */
+    void copyTo(final double[] xs, final double[] ys, final double[] zs, final double[] ws, final int offset) {
+        for (int i = 0; i < size; i++) {
+            final long key = cellKeys[i];
+            final double ox = unpack(key >>> (2 * INDEX_BITS)) * sizeX;
+            final double oy = unpack(key >>> INDEX_BITS) * sizeY;
+            final double oz = unpack(key) * sizeZ;
+            final double scale = nearestToCentre || weight[i] == 0.0 ? 1.0 : 1.0 / weight[i];
+            xs[offset + i] = ox + relX[i] * scale;
+            ys[offset + i] = oy + relY[i] * scale;
+            zs[offset + i] = oz + relZ[i] * scale;
+            ws[offset + i] = weight[i];
+        }
+    }
+
+    private static long unpack(final long bits) {
+        final long index = bits & INDEX_MASK;
+        return index >= INDEX_LIMIT ? index - (1L << INDEX_BITS) : index;
+    }
+
+    private int cellFor(final long key) {
+        int i = LongHashing.slot(key, mask);
+        while (true) {
+            final int cell = tableCells[i];
+            if (cell == 0) {
+                break;
+            }
+            if (tableKeys[i] == key) {
+                return cell - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size == cellKeys.length) {
+            final int grown = size * 2;
+            cellKeys = Arrays.copyOf(cellKeys, grown);
+            weight = Arrays.copyOf(weight, grown);
+            relX = Arrays.copyOf(relX, grown);
+            relY = Arrays.copyOf(relY, grown);
+            relZ = Arrays.copyOf(relZ, grown);
+            nearestD2 = Arrays.copyOf(nearestD2, grown);
+        }
+        final int cell = size++;
+        cellKeys[cell] = key;
+        nearestD2[cell] = Double.POSITIVE_INFINITY;
+        tableKeys[i] = key;
+        tableCells[i] = cell + 1;
+        if (size > (tableKeys.length >> 1) + (tableKeys.length >> 2)) {
+            rehash(tableKeys.length << 1);
+        }
+        return cell;
+    }
+
+    private void rehash(final int capacity) {
+        allocateTable(capacity);
+        for (int cell = 0; cell < size; cell++) {
+            int i = LongHashing.slot(cellKeys[cell], mask);
+            while (tableCells[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            tableKeys[i] = cellKeys[cell];
+            tableCells[i] = cell + 1;
+        }
+    }
+
+    private void allocateTable(final int capacity) {
+        tableKeys = new long[capacity];
+        tableCells = new int[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,50 @@
+// Marks local maxima above a threshold in one pass: dst is 1 where src > threshold and no voxel of the
+// (2 rx + 1) x (2 ry + 1) x (2 rz + 1) box is brighter. Among equal neighbours the one first in raster
+// order is kept, so a flat peak normally gives one spot. Neighbours outside the image are skipped
+// rather than clamped, which would compare edge voxels with themselves.
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+__kernel void detect_spots(
+    IMAGE_src_TYPE src,
+    IMAGE_dst_TYPE dst,
+    float threshold,
+    int radius_x,
+    int radius_y,
+    int radius_z) {
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+  const int width = GET_IMAGE_WIDTH(src);
+  const int height = GET_IMAGE_HEIGHT(src);
+  const int depth = GET_IMAGE_DEPTH(src);
+
+  const float value = READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x;
+  float result = value > threshold ? 1 : 0;
+
+  for (int dz = -radius_z; dz <= radius_z && result > 0; dz++) {
+    const int nz = z + dz;
+    if (nz < 0 || nz >= depth) {
+      continue;
+    }
+    for (int dy = -radius_y; dy <= radius_y && result > 0; dy++) {
+      const int ny = y + dy;
+      if (ny < 0 || ny >= height) {
+        continue;
+      }
+      for (int dx = -radius_x; dx <= radius_x; dx++) {
+        const int nx = x + dx;
+        if (nx < 0 || nx >= width || (dx == 0 && dy == 0 && dz == 0)) {
+          continue;
+        }
+        const float other = READ_IMAGE(src, sampler, POS_src_INSTANCE(nx, ny, nz, 0)).x;
+        const bool earlier = dz < 0 || (dz == 0 && (dy < 0 || (dy == 0 && dx < 0)));
+        if (other > value || (other == value && earlier)) {
+          result = 0;
+          break;
+        }
+      }
+    }
+  }
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(x, y, z, 0), CONVERT_dst_PIXEL_TYPE(result));
+}
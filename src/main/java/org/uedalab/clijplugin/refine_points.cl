@@ -0,0 +1,81 @@
+// Intensity-weighted centroid refinement, one work item per point. points and dst are point lists with
+// one column per point: rows x, y, z (zero-based) in points; x, y, z and a found flag (1 or 0) in dst.
+// Each step subtracts the window minimum, takes the weighted centroid of the
+// (2 radius_xy + 1)^2 x (2 radius_z + 1) window and re-centres on it, as PointRefiner does on the CPU.
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+__kernel void refine_points(
+    IMAGE_src_TYPE src,
+    IMAGE_points_TYPE points,
+    IMAGE_dst_TYPE dst,
+    int radius_xy,
+    int radius_z,
+    int iterations) {
+  const int i = get_global_id(0);
+  const int width = GET_IMAGE_WIDTH(src);
+  const int height = GET_IMAGE_HEIGHT(src);
+  const int depth = GET_IMAGE_DEPTH(src);
+
+  float cx = READ_IMAGE(points, sampler, POS_points_INSTANCE(i, 0, 0, 0)).x;
+  float cy = READ_IMAGE(points, sampler, POS_points_INSTANCE(i, 1, 0, 0)).x;
+  float cz = READ_IMAGE(points, sampler, POS_points_INSTANCE(i, 2, 0, 0)).x;
+  float found = 0;
+
+  for (int it = 0; it < iterations; it++) {
+    const int x0 = clamp((int) round(cx), 0, width - 1);
+    const int y0 = clamp((int) round(cy), 0, height - 1);
+    const int z0 = clamp((int) round(cz), 0, depth - 1);
+    const int xa = max(0, x0 - radius_xy);
+    const int xb = min(width - 1, x0 + radius_xy);
+    const int ya = max(0, y0 - radius_xy);
+    const int yb = min(height - 1, y0 + radius_xy);
+    const int za = max(0, z0 - radius_z);
+    const int zb = min(depth - 1, z0 + radius_z);
+
+    float background = INFINITY;
+    for (int z = za; z <= zb; z++) {
+      for (int y = ya; y <= yb; y++) {
+        for (int x = xa; x <= xb; x++) {
+          background = min(background, (float) READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x);
+        }
+      }
+    }
+
+    float sw = 0;
+    float sx = 0;
+    float sy = 0;
+    float sz = 0;
+    for (int z = za; z <= zb; z++) {
+      for (int y = ya; y <= yb; y++) {
+        for (int x = xa; x <= xb; x++) {
+          const float w = (float) READ_IMAGE(src, sampler, POS_src_INSTANCE(x, y, z, 0)).x - background;
+          if (w > 0) {
+            sw += w;
+            sx += w * x;
+            sy += w * y;
+            sz += w * z;
+          }
+        }
+      }
+    }
+    if (!(sw > 0)) {
+      break;
+    }
+    const float nx = sx / sw;
+    const float ny = sy / sw;
+    const float nz = depth > 1 ? sz / sw : cz;
+    const float step = fabs(nx - cx) + fabs(ny - cy) + fabs(nz - cz);
+    cx = nx;
+    cy = ny;
+    cz = nz;
+    found = 1;
+    if (step < 0.01f) {
+      break;
+    }
+  }
+
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(i, 0, 0, 0), CONVERT_dst_PIXEL_TYPE(cx));
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(i, 1, 0, 0), CONVERT_dst_PIXEL_TYPE(cy));
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(i, 2, 0, 0), CONVERT_dst_PIXEL_TYPE(cz));
+  WRITE_IMAGE(dst, POS_dst_INSTANCE(i, 3, 0, 0), CONVERT_dst_PIXEL_TYPE(found));
+}
@@ -0,0 +1,163 @@
+package org.uedalab.clijplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fits of clouds with a small spread far from the origin, where sums of raw coordinates lose every
+ * digit of the spread. The clouds are built symmetrically so the normal, direction and rms are known
+ * exactly.
+ */
+public class Pca3DUtilsTest {
+
+    private static final double ORIGIN = 1e7;
+
+    /**
+     * Grid step over [0, 10]; 81 x 81 grid points, each used twice, is several kernel blocks.
+     */
+    private static final double STEP = 0.125;
+    private static final int STEPS = 81;
+
+    @Test
+    public void planeFarFromOriginKeepsSmallSpread() {
+        final double offset = 0.25;
+        final double length = Math.sqrt(0.5 * 0.5 + 0.25 * 0.25 + 1.0);
+        final double[] normal = {-0.5 / length, 0.25 / length, 1.0 / length};
+        final int n = STEPS * STEPS * 2;
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final double[] zs = new double[n];
+        int k = 0;
+        for (int i = 0; i < STEPS; i++) {
+            for (int j = 0; j < STEPS; j++) {
+                final double u = i * STEP;
+                final double v = j * STEP;
+                // On z = 0.5u - 0.25v, every grid point once above and once below along the normal.
+                for (int sign = -1; sign <= 1; sign += 2) {
+                    xs[k] = ORIGIN + u + sign * offset * normal[0];
+                    ys[k] = ORIGIN + v + sign * offset * normal[1];
+                    zs[k] = ORIGIN + 0.5 * u - 0.25 * v + sign * offset * normal[2];
+                    k++;
+                }
+            }
+        }
+        final Pca3DUtils.PlaneFitResult fit = Pca3DUtils.fitPlane(xs, ys, zs, n);
+
+        assertEquals(1.0, Math.abs(dot(normal, fit.normal)), 1e-12);
+        assertEquals(ORIGIN + 5.0, fit.centroid[0], 1e-6);
+        assertEquals(ORIGIN + 5.0, fit.centroid[1], 1e-6);
+        assertEquals(ORIGIN + 1.25, fit.centroid[2], 1e-6);
+        assertEquals(offset, fit.rmsDist, 1e-7);
+        assertEquals(offset, fit.maxDist, 1e-7);
+    }
+
+    @Test
+    public void lineFarFromOriginKeepsSmallSpread() {
+        final double[] direction = {1.0 / 3.0, 2.0 / 3.0, 2.0 / 3.0};
+        final double[] across = {2.0 / 3.0, 1.0 / 3.0, -2.0 / 3.0};
+        final double[] across2 = {2.0 / 3.0, -2.0 / 3.0, 1.0 / 3.0};
+        final double offset = 0.3;
+        final int steps = 8001;
+        final int n = steps * 4;
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final double[] zs = new double[n];
+        int k = 0;
+        for (int i = 0; i < steps; i++) {
+            final double t = i * (10.0 / (steps - 1));
+            // Four points around each station, at the same distance from the line.
+            for (int m = 0; m < 4; m++) {
+                final double[] side = m < 2 ? across : across2;
+                final double sign = (m & 1) == 0 ? offset : -offset;
+                xs[k] = ORIGIN + t * direction[0] + sign * side[0];
+                ys[k] = ORIGIN + t * direction[1] + sign * side[1];
+                zs[k] = ORIGIN + t * direction[2] + sign * side[2];
+                k++;
+            }
+        }
+        final Pca3DUtils.LineFitResult fit = Pca3DUtils.fitLine(xs, ys, zs, n);
+
+        assertEquals(1.0, Math.abs(dot(direction, fit.direction)), 1e-12);
+        for (int axis = 0; axis < 3; axis++) {
+            assertEquals(ORIGIN + 5.0 * direction[axis], fit.centroid[axis], 1e-6);
+        }
+        assertEquals(offset, fit.rmsDist, 1e-7);
+    }
+
+    @Test
+    public void runningMomentsMatchColumnFit() {
+        final int n = 3000;
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final double[] zs = new double[n];
+        final PointMoments moments = new PointMoments();
+        for (int i = 0; i < n; i++) {
+            final double u = (i % 60) / 6.0;
+            final double v = (i / 60) / 5.0;
+            xs[i] = ORIGIN + u;
+            ys[i] = ORIGIN + v;
+            zs[i] = ORIGIN + 0.1 * u + ((i & 1) == 0 ? 0.05 : -0.05);
+            moments.add(xs[i], ys[i], zs[i]);
+        }
+        final Pca3DUtils.PlaneFitResult columns = Pca3DUtils.fitPlane(xs, ys, zs, n);
+        final Pca3DUtils.PlaneFitResult running = Pca3DUtils.fitPlane(moments);
+        assertEquals(1.0, Math.abs(dot(columns.normal, running.normal)), 1e-9);
+        assertEquals(columns.rmsDist, running.rmsDist, 1e-6);
+    }
+
+    @Test
+    public void weightedPlaneMatchesRepeatedPoints() {
+        final int n = 5000;
+        final double[] xs = new double[n];
+        final double[] ys = new double[n];
+        final double[] zs = new double[n];
+        final double[] ws = new double[n];
+        int expanded = 0;
+        for (int i = 0; i < n; i++) {
+            final double u = (i % 50) * 0.2;
+            final double v = (i / 50) * 0.1;
+            xs[i] = ORIGIN + u;
+            ys[i] = ORIGIN + v;
+            zs[i] = ORIGIN + 0.3 * u - 0.1 * v + ((i & 2) == 0 ? 0.02 : -0.02) * (1 + i % 3);
+            ws[i] = i % 4;
+            expanded += i % 4;
+        }
+        // A weight of k stands for the point repeated k times; zero-weight points drop out.
+        final double[] rx = new double[expanded];
+        final double[] ry = new double[expanded];
+        final double[] rz = new double[expanded];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            for (int r = 0; r < ws[i]; r++) {
+                rx[k] = xs[i];
+                ry[k] = ys[i];
+                rz[k] = zs[i];
+                k++;
+            }
+        }
+        final Pca3DUtils.PlaneFitResult weighted = Pca3DUtils.fitWeightedPlane(xs, ys, zs, ws, n);
+        final Pca3DUtils.PlaneFitResult repeated = Pca3DUtils.fitPlane(rx, ry, rz, expanded);
+        assertEquals(1.0, Math.abs(dot(weighted.normal, repeated.normal)), 1e-12);
+        for (int axis = 0; axis < 3; axis++) {
+            assertEquals(repeated.centroid[axis], weighted.centroid[axis], 1e-6);
+        }
+        assertEquals(repeated.rmsDist, weighted.rmsDist, 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWeightIsRejected() {
+        Pca3DUtils.fitWeightedLine(new double[]{0, 1, 2}, new double[]{0, 1, 2}, new double[]{0, 0, 0},
+                new double[]{1, -1, 1}, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonFiniteWeightIsRejected() {
+        Pca3DUtils.fitWeightedPlane(new double[]{0, 1, 0}, new double[]{0, 0, 1}, new double[]{0, 0, 0},
+                new double[]{1, Double.NaN, 1}, 3);
+    }
+
+    private static double dot(final double[] a, final double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+}
@@ -0,0 +1,100 @@
+package org.uedalab.clijplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The control frame's render-state rebuild: points bucketed by slice (and channel), limited to the
+ * current timepoint, with the selected point and the selected model's points highlighted.
+ */
+public class PointCacheTest {
+
+    private static final int SLICES = 10;
+
+    /**
+     * Keys 1..n; slice (key % SLICES) + 1, timepoint 1 for odd keys and 2 for even ones, channel 1 for
+     * keys up to n / 2 and 2 above.
+     */
+    private static LongObjectHashMap<GeometryPointsControlFrame.PointRecord> points(final int n) {
+        final LongObjectHashMap<GeometryPointsControlFrame.PointRecord> points = new LongObjectHashMap<>(n);
+        for (long key = 1; key <= n; key++) {
+            final int z = (int) (key % SLICES) + 1;
+            final int t = key % 2 == 1 ? 1 : 2;
+            final int c = key <= n / 2 ? 1 : 2;
+            points.put(key, new GeometryPointsControlFrame.PointRecord(key, (int) key, key, 2.0 * key, z, t, c));
+        }
+        return points;
+    }
+
+    @Test
+    public void everyPointLandsInItsSlice() {
+        final int n = 1000;
+        final SliceRenderCache cache = GeometryPointsControlFrame.buildPointCache(points(n), 0, -1L, null, 7L,
+                false);
+        assertEquals(7L, cache.version);
+        int total = 0;
+        for (int z = 1; z <= SLICES; z++) {
+            final SliceRenderCache.Slice slice = cache.slice(1, z);
+            assertEquals(n / SLICES, slice.size());
+            for (int i = 0; i < slice.size(); i++) {
+                assertEquals(z, (int) (slice.keys[i] % SLICES) + 1);
+                assertEquals((double) slice.keys[i], slice.x[i], 0.0);
+                assertEquals(2.0 * slice.keys[i], slice.y[i], 0.0);
+                assertTrue(!slice.highlighted[i]);
+            }
+            total += slice.size();
+        }
+        assertEquals(n, total);
+        assertEquals(0, cache.slice(1, SLICES + 1).size());
+    }
+
+    @Test
+    public void selectedPointAndModelAreHighlighted() {
+        final int n = 1000;
+        final LongHashSet model = new LongHashSet(16);
+        for (long key = 100; key < 200; key++) {
+            model.add(key);
+        }
+        final long selected = 500L;
+        final SliceRenderCache cache = GeometryPointsControlFrame.buildPointCache(points(n), 0, selected, model, 1L,
+                false);
+        int highlighted = 0;
+        for (int z = 1; z <= SLICES; z++) {
+            final SliceRenderCache.Slice slice = cache.slice(1, z);
+            for (int i = 0; i < slice.size(); i++) {
+                final long key = slice.keys[i];
+                assertEquals(key == selected || model.contains(key), slice.highlighted[i]);
+                if (slice.highlighted[i]) {
+                    highlighted++;
+                }
+            }
+        }
+        assertEquals(model.size() + 1, highlighted);
+    }
+
+    @Test
+    public void frameAndChannelRestrictThePoints() {
+        final int n = 1000;
+        final SliceRenderCache cache = GeometryPointsControlFrame.buildPointCache(points(n), 2, -1L, null, 1L, true);
+        int perChannel1 = 0;
+        int perChannel2 = 0;
+        for (int z = 1; z <= SLICES; z++) {
+            final SliceRenderCache.Slice first = cache.slice(1, z);
+            for (int i = 0; i < first.size(); i++) {
+                assertEquals(0L, first.keys[i] % 2);
+                assertTrue(first.keys[i] <= n / 2);
+            }
+            final SliceRenderCache.Slice second = cache.slice(2, z);
+            for (int i = 0; i < second.size(); i++) {
+                assertEquals(0L, second.keys[i] % 2);
+                assertTrue(second.keys[i] > n / 2);
+            }
+            perChannel1 += first.size();
+            perChannel2 += second.size();
+        }
+        assertEquals(n / 4, perChannel1);
+        assertEquals(n / 4, perChannel2);
+    }
+}